@@ -1,16 +1,37 @@
 package net.katsuster.ememu.arm;
 
+import java.io.*;
+import java.util.concurrent.*;
+
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * DMA コントローラ
  *
+ * <p>
+ * チャネルを有効にすると、ワーカースレッドで転送します。
+ * アドレスを増やす側の転送はバスからまとめて読み書きし（{@link Bus64#readBlock}）、
+ * RAM どうしの転送は配列のコピーになります。
+ * アドレスを増やさない側（ペリフェラルの FIFO など）は転送幅ごとにバスにアクセスします。
+ * </p>
+ *
+ * <p>
+ * ペリフェラルからの DMA 要求はエミュレートせず、常に要求されているものとして扱います。
+ * フロー制御をペリフェラルが行う場合も、転送サイズに従って転送します。
+ * ビッグエンディアンの転送には対応しません。
+ * </p>
+ *
+ * <p>
  * 参考: ARM PrimeCell DMA Controller (PL080)
  * ARM DDI0196G
+ * </p>
  */
-public class DMAC extends AbstractParentCore {
+public class DMAC extends AbstractParentCore implements INTSource {
+    private static final Logger log = Log.getLogger("arm.dmac");
+
     public static final int REG_DMACIntStatus           = 0x000;
     public static final int REG_DMACIntTCStatus         = 0x004;
     public static final int REG_DMACIntTCClear          = 0x008;
@@ -78,72 +99,549 @@ public class DMAC extends AbstractParentCore {
     public static final int REG_DMACPCellID2            = 0xff8;
     public static final int REG_DMACPCellID3            = 0xffc;
 
+
+    //チャネルの数
+    public static final int CHANNELS = 8;
+    //チャネルのレジスタの間隔
+    public static final int CHANNEL_STRIDE = 0x20;
+
+    //DMACConfiguration
+    public static final int CONF_E = 0x1;
+
+    //DMACCxControl
+    public static final int CTL_TRANSFER_SIZE = 0xfff;
+    public static final int CTL_SWIDTH_SHIFT = 18;
+    public static final int CTL_DWIDTH_SHIFT = 21;
+    public static final int CTL_WIDTH_MASK = 0x7;
+    public static final int CTL_SI = 1 << 26;
+    public static final int CTL_DI = 1 << 27;
+    public static final int CTL_I = 1 << 31;
+
+    //DMACCxConfiguration
+    public static final int CCFG_E = 1 << 0;
+    public static final int CCFG_IE = 1 << 14;
+    public static final int CCFG_ITC = 1 << 15;
+    public static final int CCFG_A = 1 << 17;
+    public static final int CCFG_H = 1 << 18;
+
+    //DMACCxLLI
+    public static final int LLI_MASK = ~0x3;
+    //リンクリストアイテムの大きさ（SrcAddr, DestAddr, LLI, Control）
+    public static final int LLI_SIZE = 16;
+    //データを転送しないリンクリストアイテムがこの数だけ続けば、循環しているとみなす
+    public static final int LLI_EMPTY_LIMIT = 256;
+
+    private INTDestination intDst = new NullINTDestination();
+
+    private int configuration;
+    private int sync;
+    private int rawTC;
+    private int rawErr;
+    private int[] srcAddr;
+    private int[] destAddr;
+    private int[] lli;
+    private int[] control;
+    private int[] chConfig;
+
+    //転送中のチャネル、転送していなければ -1
+    private int active;
+    //ワーカースレッドに転送を渡している
+    private boolean busy;
+    private ExecutorService worker;
+
     public DMAC(String n) {
         super(n);
 
+        srcAddr = new int[CHANNELS];
+        destAddr = new int[CHANNELS];
+        lli = new int[CHANNELS];
+        control = new int[CHANNELS];
+        chConfig = new int[CHANNELS];
+        active = -1;
+
         setSlaveCore(new DMACSlave());
     }
 
+    /**
+     * 転送終了割り込みのステータス（マスク後）を取得します。
+     *
+     * @return チャネルごとのステータス
+     */
+    private int getIntTCStatus() {
+        int result = 0;
+
+        for (int i = 0; i < CHANNELS; i++) {
+            if ((chConfig[i] & CCFG_ITC) != 0) {
+                result |= rawTC & (1 << i);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * エラー割り込みのステータス（マスク後）を取得します。
+     *
+     * @return チャネルごとのステータス
+     */
+    private int getIntErrorStatus() {
+        int result = 0;
+
+        for (int i = 0; i < CHANNELS; i++) {
+            if ((chConfig[i] & CCFG_IE) != 0) {
+                result |= rawErr & (1 << i);
+            }
+        }
+
+        return result;
+    }
+
+    private int getEnabledChannels() {
+        int result = 0;
+
+        for (int i = 0; i < CHANNELS; i++) {
+            if ((chConfig[i] & CCFG_E) != 0) {
+                result |= 1 << i;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 次に転送するチャネルを取得します。
+     *
+     * 番号の小さいチャネルほど優先度が高くなります。
+     *
+     * @return チャネルの番号、転送するチャネルがなければ -1
+     */
+    private int nextChannel() {
+        if ((configuration & CONF_E) == 0) {
+            return -1;
+        }
+
+        for (int i = 0; i < CHANNELS; i++) {
+            if ((chConfig[i] & (CCFG_E | CCFG_H)) == CCFG_E) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * 転送するチャネルがあれば、ワーカースレッドに転送を渡します。
+     *
+     * ワーカースレッドは最初に転送するときに作成し、
+     * 転送するチャネルがなくなるまで転送を続けます。
+     */
+    private synchronized void schedule() {
+        if (busy || nextChannel() < 0) {
+            return;
+        }
+
+        if (worker == null) {
+            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, getName() + " worker");
+
+                    t.setDaemon(true);
+
+                    return t;
+                }
+            });
+        }
+
+        busy = true;
+        try {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(System.err);
+                        synchronized (DMAC.this) {
+                            busy = false;
+                            active = -1;
+                            DMAC.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            busy = false;
+        }
+    }
+
+    /**
+     * 転送するチャネルがなくなるまで、リンクリストアイテムを 1つずつ転送します。
+     *
+     * CPU はバスのロックを獲得してからレジスタにアクセスするため、
+     * デバイスのロックを解放してからバスにアクセスします。
+     */
+    private void process() {
+        Bus64 bus = getSlaveCore().getMasterBus();
+        int ch, src, dest, next, ctl, len;
+        int prev = -1, empty = 0;
+        int[] item;
+        boolean ok, loop;
+
+        while (true) {
+            synchronized (this) {
+                ch = nextChannel();
+                if (ch < 0) {
+                    //転送を渡すかどうかの判断と同じロックの中で終える
+                    busy = false;
+                    notifyAll();
+                    return;
+                }
+                active = ch;
+                src = srcAddr[ch];
+                dest = destAddr[ch];
+                next = lli[ch] & LLI_MASK;
+                ctl = control[ch];
+            }
+
+            item = null;
+            len = transfer(bus, src, dest, ctl);
+            ok = len >= 0;
+
+            //大きさ 0 のアイテムが自身を指すなどして循環すると、
+            //このチャネルを永久に転送し続け、他のチャネルが転送されなくなる
+            if (len == 0 && ch == prev) {
+                empty++;
+            } else {
+                empty = (len == 0) ? 1 : 0;
+            }
+            prev = ch;
+            loop = next != 0 && empty >= LLI_EMPTY_LIMIT;
+
+            if (ok && next != 0 && !loop) {
+                item = readLLI(bus, next);
+                ok = item != null;
+            }
+
+            synchronized (this) {
+                active = -1;
+                if ((chConfig[ch] & CCFG_E) == 0) {
+                    //転送中に CPU がチャネルを無効にした
+                    continue;
+                }
+
+                if (loop) {
+                    log.warn("%s: ch%d: linked list loops without data, lli 0x%08x.\n",
+                            getName(), ch, next);
+                    rawErr |= 1 << ch;
+                    chConfig[ch] &= ~CCFG_E;
+                    empty = 0;
+                } else if (!ok) {
+                    log.warn("%s: ch%d: error, src 0x%08x, dest 0x%08x, lli 0x%08x.\n",
+                            getName(), ch, src, dest, next);
+                    rawErr |= 1 << ch;
+                    chConfig[ch] &= ~CCFG_E;
+                } else {
+                    if ((ctl & CTL_SI) != 0) {
+                        srcAddr[ch] = src + len;
+                    }
+                    if ((ctl & CTL_DI) != 0) {
+                        destAddr[ch] = dest + len;
+                    }
+                    control[ch] = ctl & ~CTL_TRANSFER_SIZE;
+                    if ((ctl & CTL_I) != 0) {
+                        rawTC |= 1 << ch;
+                    }
+
+                    if (item != null) {
+                        srcAddr[ch] = item[0];
+                        destAddr[ch] = item[1];
+                        lli[ch] = item[2];
+                        control[ch] = item[3];
+                    } else {
+                        chConfig[ch] &= ~CCFG_E;
+                    }
+                }
+            }
+
+            updateInterrupts();
+        }
+    }
+
+    /**
+     * リンクリストアイテムを 1つ転送します。
+     *
+     * @param bus  バス
+     * @param src  転送元のアドレス
+     * @param dest 転送先のアドレス
+     * @param ctl  チャネルの制御レジスタの値
+     * @return 転送した大きさ（バイト単位）、エラーならば -1
+     */
+    private int transfer(Bus64 bus, int src, int dest, int ctl) {
+        int sw = (ctl >>> CTL_SWIDTH_SHIFT) & CTL_WIDTH_MASK;
+        int dw = (ctl >>> CTL_DWIDTH_SHIFT) & CTL_WIDTH_MASK;
+        int len, w, i;
+        long s = src & 0xffffffffL;
+        long d = dest & 0xffffffffL;
+        byte[] buf;
+
+        if (sw > 2 || dw > 2) {
+            //reserved
+            return -1;
+        }
+        sw = 1 << sw;
+        dw = 1 << dw;
+        len = (ctl & CTL_TRANSFER_SIZE) * sw;
+        buf = new byte[len];
+
+        try {
+            if ((ctl & CTL_SI) != 0) {
+                bus.readBlock(null, s, buf, 0, len);
+            } else {
+                for (i = 0; i < len; i += sw) {
+                    w = readElement(bus, s, sw);
+                    for (int j = 0; j < sw; j++) {
+                        buf[i + j] = (byte)(w >>> (j * 8));
+                    }
+                }
+            }
+
+            if ((ctl & CTL_DI) != 0) {
+                bus.writeBlock(null, d, buf, 0, len);
+            } else {
+                for (i = 0; i + dw <= len; i += dw) {
+                    w = 0;
+                    for (int j = 0; j < dw; j++) {
+                        w |= (buf[i + j] & 0xff) << (j * 8);
+                    }
+                    writeElement(bus, d, dw, w);
+                }
+                //転送先の幅に満たない残りはバイト単位で書き込む
+                for (; i < len; i++) {
+                    bus.write8(null, d, buf[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            //存在しないアドレスへのアクセス
+            log.debug("%s: %s\n", getName(), e.getMessage());
+            return -1;
+        }
+
+        return len;
+    }
+
+    private static int readElement(Bus64 bus, long addr, int width) {
+        switch (width) {
+        case 1:
+            return bus.read8(null, addr) & 0xff;
+        case 2:
+            return bus.read16(null, addr) & 0xffff;
+        default:
+            return bus.read32(null, addr);
+        }
+    }
+
+    private static void writeElement(Bus64 bus, long addr, int width, int data) {
+        switch (width) {
+        case 1:
+            bus.write8(null, addr, (byte)data);
+            break;
+        case 2:
+            bus.write16(null, addr, (short)data);
+            break;
+        default:
+            bus.write32(null, addr, data);
+            break;
+        }
+    }
+
+    /**
+     * 次のリンクリストアイテムを読み出します。
+     *
+     * @param bus  バス
+     * @param addr リンクリストアイテムのアドレス
+     * @return SrcAddr, DestAddr, LLI, Control の値、エラーならば null
+     */
+    private int[] readLLI(Bus64 bus, int addr) {
+        byte[] b = new byte[LLI_SIZE];
+        int[] item = new int[LLI_SIZE / 4];
+
+        try {
+            bus.readBlock(null, addr & 0xffffffffL, b, 0, b.length);
+        } catch (IllegalArgumentException e) {
+            log.debug("%s: %s\n", getName(), e.getMessage());
+            return null;
+        }
+        for (int i = 0; i < item.length; i++) {
+            item[i] = (b[i * 4] & 0xff) | ((b[i * 4 + 1] & 0xff) << 8) |
+                    ((b[i * 4 + 2] & 0xff) << 16) | ((b[i * 4 + 3] & 0xff) << 24);
+        }
+
+        return item;
+    }
+
+    /**
+     * 転送中のリンクリストアイテムが全て完了するまで待ちます。
+     *
+     * CPU がバスのロックを獲得したまま呼び出してはいけません。
+     *
+     * @throws InterruptedIOException 待っている間に割り込まれた場合
+     */
+    public synchronized void waitIdle() throws InterruptedIOException {
+        try {
+            while (busy) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting transfers.");
+        }
+    }
+
+    /**
+     * 割り込みの状態を割り込み先に通知します。
+     *
+     * 割り込み先がロックを獲得するため、ロックを獲得せずに呼び出してください。
+     */
+    private void updateInterrupts() {
+        intDst.setRaisedInterrupt(isAssert());
+    }
+
+    @Override
+    public INTDestination getINTDestination() {
+        return intDst;
+    }
+
+    @Override
+    public void connectINTDestination(INTDestination c) {
+        intDst = c;
+    }
+
+    @Override
+    public void disconnectINTDestination() {
+        intDst = new NullINTDestination();
+    }
+
+    @Override
+    public synchronized boolean isAssert() {
+        return (getIntTCStatus() | getIntErrorStatus()) != 0;
+    }
+
+    @Override
+    public String getIRQMessage() {
+        return "DMAC";
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * 転送中のリンクリストアイテムの完了を待ってから保存します。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        //転送の完了処理がデバイスのロックを獲得するため、ロックの外で待つ
+        waitIdle();
+        synchronized (this) {
+            out.writeInt(configuration);
+            out.writeInt(sync);
+            out.writeInt(rawTC);
+            out.writeInt(rawErr);
+            for (int i = 0; i < CHANNELS; i++) {
+                out.writeInt(srcAddr[i]);
+                out.writeInt(destAddr[i]);
+                out.writeInt(lli[i]);
+                out.writeInt(control[i]);
+                out.writeInt(chConfig[i]);
+            }
+        }
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        waitIdle();
+        synchronized (this) {
+            configuration = in.readInt();
+            sync = in.readInt();
+            rawTC = in.readInt();
+            rawErr = in.readInt();
+            for (int i = 0; i < CHANNELS; i++) {
+                srcAddr[i] = in.readInt();
+                destAddr[i] = in.readInt();
+                lli[i] = in.readInt();
+                control[i] = in.readInt();
+                chConfig[i] = in.readInt();
+            }
+        }
+
+        //有効なチャネルの転送を再開する
+        schedule();
+    }
+
     class DMACSlave extends Controller32 {
         public DMACSlave() {
-            //addReg(REG_DMACIntStatus, "DMACIntStatus", 0x00);
-            //addReg(REG_DMACIntTCStatus, "DMACIntTCStatus", 0x00);
-            //addReg(REG_DMACIntTCClear, "DMACIntTCClear", 0x0);
-            //addReg(REG_DMACIntErrorStatus, "DMACIntErrorStatus", 0x00);
-            //addReg(REG_DMACIntErrClr, "DMACIntErrClr", 0x0);
-            //addReg(REG_DMACRawIntTCStatus, "DMACRawIntTCStatus", 0x0);
-            //addReg(REG_DMACRawIntErrorStatus, "DMACRawIntErrorStatus", 0x0);
-            //addReg(REG_DMACEnbldChns, "DMACEnbldChns", 0x00);
-            //addReg(REG_DMACSoftBReq, "DMACSoftBReq", 0x0000);
-            //addReg(REG_DMACSoftSReq, "DMACSoftSReq", 0x0000);
-            //addReg(REG_DMACSoftLBReq, "DMACSoftLBReq", 0x0000);
-            //addReg(REG_DMACSoftLSReq, "DMACSoftLSReq", 0x0000);
-            //addReg(REG_DMACConfiguration, "DMACConfiguration", 0x00);
-            //addReg(REG_DMACSync, "DMACSync", 0x0000);
-            //addReg(REG_DMACC0SrcAddr, "DMACC0SrcAddr", 0x00000000);
-            //addReg(REG_DMACC0DestAddr, "DMACC0DestAddr", 0x00000000);
-            //addReg(REG_DMACC0LLI, "DMACC0LLI", 0x00000000);
-            //addReg(REG_DMACC0Control, "DMACC0Control", 0x00000000);
-            //addReg(REG_DMACC0Configuration, "DMACC0Configuration", 0x00000);
-            //addReg(REG_DMACC1SrcAddr, "DMACC1SrcAddr", 0x00000000);
-            //addReg(REG_DMACC1DestAddr, "DMACC1DestAddr", 0x00000000);
-            //addReg(REG_DMACC1LLI, "DMACC1LLI", 0x00000000);
-            //addReg(REG_DMACC1Control, "DMACC1Control", 0x00000000);
-            //addReg(REG_DMACC1Configuration, "DMACC1Configuration", 0x00000);
-            //addReg(REG_DMACC2SrcAddr, "DMACC2SrcAddr", 0x00000000);
-            //addReg(REG_DMACC2DestAddr, "DMACC2DestAddr", 0x00000000);
-            //addReg(REG_DMACC2LLI, "DMACC2LLI", 0x00000000);
-            //addReg(REG_DMACC2Control, "DMACC2Control", 0x00000000);
-            //addReg(REG_DMACC2Configuration, "DMACC2Configuration", 0x00000);
-            //addReg(REG_DMACC3SrcAddr, "DMACC3SrcAddr", 0x00000000);
-            //addReg(REG_DMACC3DestAddr, "DMACC3DestAddr", 0x00000000);
-            //addReg(REG_DMACC3LLI, "DMACC3LLI", 0x00000000);
-            //addReg(REG_DMACC3Control, "DMACC3Control", 0x00000000);
-            //addReg(REG_DMACC3Configuration, "DMACC3Configuration", 0x00000);
-            //addReg(REG_DMACC4SrcAddr, "DMACC4SrcAddr", 0x00000000);
-            //addReg(REG_DMACC4DestAddr, "DMACC4DestAddr", 0x00000000);
-            //addReg(REG_DMACC4LLI, "DMACC4LLI", 0x00000000);
-            //addReg(REG_DMACC4Control, "DMACC4Control", 0x00000000);
-            //addReg(REG_DMACC4Configuration, "DMACC4Configuration", 0x00000);
-            //addReg(REG_DMACC5SrcAddr, "DMACC5SrcAddr", 0x00000000);
-            //addReg(REG_DMACC5DestAddr, "DMACC5DestAddr", 0x00000000);
-            //addReg(REG_DMACC5LLI, "DMACC5LLI", 0x00000000);
-            //addReg(REG_DMACC5Control, "DMACC5Control", 0x00000000);
-            //addReg(REG_DMACC5Configuration, "DMACC5Configuration", 0x00000);
-            //addReg(REG_DMACC6SrcAddr, "DMACC6SrcAddr", 0x00000000);
-            //addReg(REG_DMACC6DestAddr, "DMACC6DestAddr", 0x00000000);
-            //addReg(REG_DMACC6LLI, "DMACC6LLI", 0x00000000);
-            //addReg(REG_DMACC6Control, "DMACC6Control", 0x00000000);
-            //addReg(REG_DMACC6Configuration, "DMACC6Configuration", 0x00000);
-            //addReg(REG_DMACC7SrcAddr, "DMACC7SrcAddr", 0x00000000);
-            //addReg(REG_DMACC7DestAddr, "DMACC7DestAddr", 0x00000000);
-            //addReg(REG_DMACC7LLI, "DMACC7LLI", 0x00000000);
-            //addReg(REG_DMACC7Control, "DMACC7Control", 0x00000000);
-            //addReg(REG_DMACC7Configuration, "DMACC7Configuration", 0x00000);
-            //addReg(REG_DMACITCR, "DMACITCR", 0x0);
-            //addReg(REG_DMACITOP1, "DMACITOP1", 0x0000);
-            //addReg(REG_DMACITOP2, "DMACITOP2", 0x0000);
-            //addReg(REG_DMACITOP3, "DMACITOP3", 0x0);
+            addReg(REG_DMACIntStatus, "DMACIntStatus", 0x00);
+            addReg(REG_DMACIntTCStatus, "DMACIntTCStatus", 0x00);
+            addReg(REG_DMACIntTCClear, "DMACIntTCClear", 0x0);
+            addReg(REG_DMACIntErrorStatus, "DMACIntErrorStatus", 0x00);
+            addReg(REG_DMACIntErrClr, "DMACIntErrClr", 0x0);
+            addReg(REG_DMACRawIntTCStatus, "DMACRawIntTCStatus", 0x0);
+            addReg(REG_DMACRawIntErrorStatus, "DMACRawIntErrorStatus", 0x0);
+            addReg(REG_DMACEnbldChns, "DMACEnbldChns", 0x00);
+            addReg(REG_DMACSoftBReq, "DMACSoftBReq", 0x0000);
+            addReg(REG_DMACSoftSReq, "DMACSoftSReq", 0x0000);
+            addReg(REG_DMACSoftLBReq, "DMACSoftLBReq", 0x0000);
+            addReg(REG_DMACSoftLSReq, "DMACSoftLSReq", 0x0000);
+            addReg(REG_DMACConfiguration, "DMACConfiguration", 0x00);
+            addReg(REG_DMACSync, "DMACSync", 0x0000);
+            addReg(REG_DMACC0SrcAddr, "DMACC0SrcAddr", 0x00000000);
+            addReg(REG_DMACC0DestAddr, "DMACC0DestAddr", 0x00000000);
+            addReg(REG_DMACC0LLI, "DMACC0LLI", 0x00000000);
+            addReg(REG_DMACC0Control, "DMACC0Control", 0x00000000);
+            addReg(REG_DMACC0Configuration, "DMACC0Configuration", 0x00000);
+            addReg(REG_DMACC1SrcAddr, "DMACC1SrcAddr", 0x00000000);
+            addReg(REG_DMACC1DestAddr, "DMACC1DestAddr", 0x00000000);
+            addReg(REG_DMACC1LLI, "DMACC1LLI", 0x00000000);
+            addReg(REG_DMACC1Control, "DMACC1Control", 0x00000000);
+            addReg(REG_DMACC1Configuration, "DMACC1Configuration", 0x00000);
+            addReg(REG_DMACC2SrcAddr, "DMACC2SrcAddr", 0x00000000);
+            addReg(REG_DMACC2DestAddr, "DMACC2DestAddr", 0x00000000);
+            addReg(REG_DMACC2LLI, "DMACC2LLI", 0x00000000);
+            addReg(REG_DMACC2Control, "DMACC2Control", 0x00000000);
+            addReg(REG_DMACC2Configuration, "DMACC2Configuration", 0x00000);
+            addReg(REG_DMACC3SrcAddr, "DMACC3SrcAddr", 0x00000000);
+            addReg(REG_DMACC3DestAddr, "DMACC3DestAddr", 0x00000000);
+            addReg(REG_DMACC3LLI, "DMACC3LLI", 0x00000000);
+            addReg(REG_DMACC3Control, "DMACC3Control", 0x00000000);
+            addReg(REG_DMACC3Configuration, "DMACC3Configuration", 0x00000);
+            addReg(REG_DMACC4SrcAddr, "DMACC4SrcAddr", 0x00000000);
+            addReg(REG_DMACC4DestAddr, "DMACC4DestAddr", 0x00000000);
+            addReg(REG_DMACC4LLI, "DMACC4LLI", 0x00000000);
+            addReg(REG_DMACC4Control, "DMACC4Control", 0x00000000);
+            addReg(REG_DMACC4Configuration, "DMACC4Configuration", 0x00000);
+            addReg(REG_DMACC5SrcAddr, "DMACC5SrcAddr", 0x00000000);
+            addReg(REG_DMACC5DestAddr, "DMACC5DestAddr", 0x00000000);
+            addReg(REG_DMACC5LLI, "DMACC5LLI", 0x00000000);
+            addReg(REG_DMACC5Control, "DMACC5Control", 0x00000000);
+            addReg(REG_DMACC5Configuration, "DMACC5Configuration", 0x00000);
+            addReg(REG_DMACC6SrcAddr, "DMACC6SrcAddr", 0x00000000);
+            addReg(REG_DMACC6DestAddr, "DMACC6DestAddr", 0x00000000);
+            addReg(REG_DMACC6LLI, "DMACC6LLI", 0x00000000);
+            addReg(REG_DMACC6Control, "DMACC6Control", 0x00000000);
+            addReg(REG_DMACC6Configuration, "DMACC6Configuration", 0x00000);
+            addReg(REG_DMACC7SrcAddr, "DMACC7SrcAddr", 0x00000000);
+            addReg(REG_DMACC7DestAddr, "DMACC7DestAddr", 0x00000000);
+            addReg(REG_DMACC7LLI, "DMACC7LLI", 0x00000000);
+            addReg(REG_DMACC7Control, "DMACC7Control", 0x00000000);
+            addReg(REG_DMACC7Configuration, "DMACC7Configuration", 0x00000);
+            addReg(REG_DMACITCR, "DMACITCR", 0x0);
+            addReg(REG_DMACITOP1, "DMACITOP1", 0x0000);
+            addReg(REG_DMACITOP2, "DMACITOP2", 0x0000);
+            addReg(REG_DMACITOP3, "DMACITOP3", 0x0);
 
             addReg(REG_DMACPeriphID0, "DMACPeriphID0", 0x00000080);
             addReg(REG_DMACPeriphID1, "DMACPeriphID1", 0x00000010);
@@ -157,15 +655,77 @@ public class DMAC extends AbstractParentCore {
 
         @Override
         public int readWord(BusMaster64 m, long addr) {
-            int regaddr;
+            int regaddr, ch;
             int result;
 
             regaddr = (int) (addr & BitOp.getAddressMask(LEN_WORD_BITS));
 
-            switch (regaddr) {
-            default:
-                result = super.readWord(m, regaddr);
-                break;
+            synchronized (DMAC.this) {
+                if (REG_DMACC0SrcAddr <= regaddr &&
+                        regaddr < REG_DMACC0SrcAddr + CHANNELS * CHANNEL_STRIDE) {
+                    ch = (regaddr - REG_DMACC0SrcAddr) / CHANNEL_STRIDE;
+
+                    switch (regaddr - ch * CHANNEL_STRIDE) {
+                    case REG_DMACC0SrcAddr:
+                        return srcAddr[ch];
+                    case REG_DMACC0DestAddr:
+                        return destAddr[ch];
+                    case REG_DMACC0LLI:
+                        return lli[ch];
+                    case REG_DMACC0Control:
+                        return control[ch];
+                    case REG_DMACC0Configuration:
+                        result = chConfig[ch] & ~CCFG_A;
+                        if (active == ch) {
+                            result |= CCFG_A;
+                        }
+                        return result;
+                    default:
+                        return super.readWord(m, regaddr);
+                    }
+                }
+
+                switch (regaddr) {
+                case REG_DMACIntStatus:
+                    result = getIntTCStatus() | getIntErrorStatus();
+                    break;
+                case REG_DMACIntTCStatus:
+                    result = getIntTCStatus();
+                    break;
+                case REG_DMACIntErrorStatus:
+                    result = getIntErrorStatus();
+                    break;
+                case REG_DMACRawIntTCStatus:
+                    result = rawTC;
+                    break;
+                case REG_DMACRawIntErrorStatus:
+                    result = rawErr;
+                    break;
+                case REG_DMACEnbldChns:
+                    result = getEnabledChannels();
+                    break;
+                case REG_DMACConfiguration:
+                    result = configuration;
+                    break;
+                case REG_DMACSync:
+                    result = sync;
+                    break;
+                case REG_DMACIntTCClear:
+                case REG_DMACIntErrClr:
+                    //write only
+                    result = 0;
+                    break;
+                case REG_DMACSoftBReq:
+                case REG_DMACSoftSReq:
+                case REG_DMACSoftLBReq:
+                case REG_DMACSoftLSReq:
+                    //要求は常に受け付け済み
+                    result = 0;
+                    break;
+                default:
+                    result = super.readWord(m, regaddr);
+                    break;
+                }
             }
 
             return result;
@@ -173,31 +733,105 @@ public class DMAC extends AbstractParentCore {
 
         @Override
         public void writeWord(BusMaster64 m, long addr, int data) {
-            int regaddr;
+            int regaddr, ch;
 
             regaddr = (int) (addr & BitOp.getAddressMask(LEN_WORD_BITS));
 
-            switch (regaddr) {
-            case REG_DMACPeriphID0:
-            case REG_DMACPeriphID1:
-            case REG_DMACPeriphID2:
-            case REG_DMACPeriphID3:
-            case REG_DMACPCellID0:
-            case REG_DMACPCellID1:
-            case REG_DMACPCellID2:
-            case REG_DMACPCellID3:
-                //read only, ignored
-                break;
-            default:
-                super.writeWord(m, regaddr, data);
-                break;
+            synchronized (DMAC.this) {
+                if (REG_DMACC0SrcAddr <= regaddr &&
+                        regaddr < REG_DMACC0SrcAddr + CHANNELS * CHANNEL_STRIDE) {
+                    ch = (regaddr - REG_DMACC0SrcAddr) / CHANNEL_STRIDE;
+
+                    switch (regaddr - ch * CHANNEL_STRIDE) {
+                    case REG_DMACC0SrcAddr:
+                        srcAddr[ch] = data;
+                        break;
+                    case REG_DMACC0DestAddr:
+                        destAddr[ch] = data;
+                        break;
+                    case REG_DMACC0LLI:
+                        lli[ch] = data;
+                        break;
+                    case REG_DMACC0Control:
+                        control[ch] = data;
+                        break;
+                    case REG_DMACC0Configuration:
+                        //Active は read only
+                        chConfig[ch] = data & ~CCFG_A;
+                        break;
+                    default:
+                        super.writeWord(m, regaddr, data);
+                        break;
+                    }
+                } else {
+                    switch (regaddr) {
+                    case REG_DMACIntTCClear:
+                        rawTC &= ~data;
+                        break;
+                    case REG_DMACIntErrClr:
+                        rawErr &= ~data;
+                        break;
+                    case REG_DMACConfiguration:
+                        if ((data & ~CONF_E) != 0) {
+                            log.warn("%s: big-endian transfer is not supported, " +
+                                    "conf 0x%08x.\n", getName(), data);
+                        }
+                        configuration = data;
+                        break;
+                    case REG_DMACSync:
+                        sync = data;
+                        break;
+                    case REG_DMACSoftBReq:
+                    case REG_DMACSoftSReq:
+                    case REG_DMACSoftLBReq:
+                    case REG_DMACSoftLSReq:
+                        //要求は常に受け付けているものとして扱う
+                        break;
+                    case REG_DMACIntStatus:
+                    case REG_DMACIntTCStatus:
+                    case REG_DMACIntErrorStatus:
+                    case REG_DMACRawIntTCStatus:
+                    case REG_DMACRawIntErrorStatus:
+                    case REG_DMACEnbldChns:
+                    case REG_DMACPeriphID0:
+                    case REG_DMACPeriphID1:
+                    case REG_DMACPeriphID2:
+                    case REG_DMACPeriphID3:
+                    case REG_DMACPCellID0:
+                    case REG_DMACPCellID1:
+                    case REG_DMACPCellID2:
+                    case REG_DMACPCellID3:
+                        //read only, ignored
+                        break;
+                    default:
+                        super.writeWord(m, regaddr, data);
+                        break;
+                    }
+                }
             }
+
+            schedule();
+            updateInterrupts();
         }
 
         @Override
         public void run() {
             //do nothing
         }
-    }
 
-}
\ No newline at end of file
+        @Override
+        public void halt() {
+            ExecutorService w;
+
+            super.halt();
+
+            synchronized (DMAC.this) {
+                w = worker;
+                worker = null;
+            }
+            if (w != null) {
+                w.shutdown();
+            }
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package net.katsuster.ememu.arm;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * タイマー
@@ -13,6 +16,8 @@ import net.katsuster.ememu.generic.bus.*;
  * </p>
  */
 public class DualTimer extends AbstractParentCore implements INTSource {
+    private static final Logger log = Log.getLogger("arm.timer");
+
     private INTDestination intDst = new NullINTDestination();
 
     private int clock;
@@ -109,7 +114,46 @@ public class DualTimer extends AbstractParentCore implements INTSource {
         return "Dual-Timer";
     }
 
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        for (int i = 0; i < 2; i++) {
+            out.writeBoolean(timerEn[i]);
+            out.writeBoolean(timerPeriodic[i]);
+            out.writeInt(intEnable[i]);
+            out.writeInt(prescale[i]);
+            out.writeBoolean(timerSize32[i]);
+            out.writeBoolean(oneshot[i]);
+            out.writeInt(rawInt[i]);
+            out.writeInt(loadValue[i]);
+            out.writeInt(currentValue[i]);
+        }
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        for (int i = 0; i < 2; i++) {
+            timerEn[i] = in.readBoolean();
+            timerPeriodic[i] = in.readBoolean();
+            intEnable[i] = in.readInt();
+            prescale[i] = in.readInt();
+            timerSize32[i] = in.readBoolean();
+            oneshot[i] = in.readBoolean();
+            rawInt[i] = in.readInt();
+            loadValue[i] = in.readInt();
+            currentValue[i] = in.readInt();
+        }
+    }
+
     class DualTimerSlave extends Controller32 {
+        //FIXME: 100Hz polling
+        private static final int TICK_HZ = 100;
+        //交互に実行する場合に、最後にタイマーを進めた時刻（ナノ秒単位）
+        private long lastTick = 0;
+
         public DualTimerSlave() {
             addReg(REG_Timer1Load, "Timer1Load", 0x00000000);
             addReg(REG_Timer1Value, "Timer1Value", 0xffffffff);
@@ -157,13 +201,14 @@ public class DualTimer extends AbstractParentCore implements INTSource {
             boolean size32 = BitOp.getBit32(val, 1);
             boolean one = BitOp.getBit32(val, 0);
 
-            System.out.printf("Timer%dControl: 0x%x.\n", id + 1, val);
-            System.out.printf("  timerEn      : %b\n", en);
-            System.out.printf("  timerPeriodic: %b\n", peri);
-            System.out.printf("  intEnable    : %b\n", inten);
-            System.out.printf("  timerPre     : %d\n", pre);
-            System.out.printf("  timerSize32  : %b\n", size32);
-            System.out.printf("  oneshot      : %b\n", one);
+            log.debug("Timer%dControl: 0x%x.\n" +
+                            "  timerEn      : %b\n" +
+                            "  timerPeriodic: %b\n" +
+                            "  intEnable    : %b\n" +
+                            "  timerPre     : %d\n" +
+                            "  timerSize32  : %b\n" +
+                            "  oneshot      : %b\n",
+                    id + 1, val, en, peri, inten, pre, size32, one);
 
             timerEn[id] = en;
             timerPeriodic[id] = peri;
@@ -324,40 +369,63 @@ public class DualTimer extends AbstractParentCore implements INTSource {
         @Override
         public void run() {
             while (!shouldHalt()) {
-                //FIXME: 100Hz polling
-                int hz = 100;
-
                 try {
-                    Thread.sleep(1000 / hz);
-
-                    //NOTE: タイマーカウンタのクリアと排他する必要がある
-                    synchronized (this) {
-                        for (int id = 0; id < 2; id++) {
-                            if (!timerEn[id]) {
-                                //hold value
-                                continue;
-                            }
-
-                            int dec = clock / (hz * prescale[id]);
-                            int after = currentValue[id] - dec;
-
-                            if (currentValue[id] == 0 ||
-                                    after == 0 || after > currentValue[id]) {
-                                //0 または 0 以下に達した
-                                currentValue[id] = loadValue[id];
-                                rawInt[id] = 0x1;
-                            } else {
-                                currentValue[id] = after;
-                            }
-                        }
-
-                        intDst.setRaisedInterrupt(isAssert());
-                    }
+                    Thread.sleep(1000 / TICK_HZ);
+
+                    tick();
                 } catch (InterruptedException e) {
                     //ignore
                 }
             }
         }
+
+        @Override
+        public boolean runSlice() {
+            long now = System.nanoTime();
+            long period = 1000000000L / TICK_HZ;
+
+            if (lastTick == 0 || now - lastTick > 1000000000L) {
+                //初回、または長く実行されなかった場合は今からの時間を数える
+                lastTick = now;
+            }
+            if (now - lastTick < period) {
+                return false;
+            }
+            lastTick += period;
+
+            tick();
+
+            return true;
+        }
+
+        /**
+         * タイマーを 1 / TICK_HZ 秒だけ進めます。
+         */
+        private void tick() {
+            //NOTE: タイマーカウンタのクリアと排他する必要がある
+            synchronized (this) {
+                for (int id = 0; id < 2; id++) {
+                    if (!timerEn[id]) {
+                        //hold value
+                        continue;
+                    }
+
+                    int dec = clock / (TICK_HZ * prescale[id]);
+                    int after = currentValue[id] - dec;
+
+                    if (currentValue[id] == 0 ||
+                            after == 0 || after > currentValue[id]) {
+                        //0 または 0 以下に達した
+                        currentValue[id] = loadValue[id];
+                        rawInt[id] = 0x1;
+                    } else {
+                        currentValue[id] = after;
+                    }
+                }
+
+                intDst.setRaisedInterrupt(isAssert());
+            }
+        }
     }
 
 }
@@ -3,6 +3,7 @@ package net.katsuster.ememu.arm;
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * GPIO
@@ -11,6 +12,8 @@ import net.katsuster.ememu.generic.bus.*;
  * ARM DDI0190B
  */
 public class GPIO extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("arm.gpio");
+
     //0x000-0x3fc: REG_GPIODATA
 
     public static final int REG_GPIODIR       = 0x400;
@@ -78,32 +81,32 @@ public class GPIO extends AbstractParentCore {
             switch (regaddr) {
             case REG_GPIODIR:
                 //TODO: not implemented
-                System.out.printf("GPIODIR: read 0x%08x\n", 0);
+                log.debug("GPIODIR: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_GPIOIS:
                 //TODO: not implemented
-                System.out.printf("GPIOIS: read 0x%08x\n", 0);
+                log.debug("GPIOIS: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_GPIOIBE:
                 //TODO: not implemented
-                System.out.printf("GPIOIBE: read 0x%08x\n", 0);
+                log.debug("GPIOIBE: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_GPIOIEV:
                 //TODO: not implemented
-                System.out.printf("GPIOIEV: read 0x%08x\n", 0);
+                log.debug("GPIOIEV: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_GPIOIE:
                 //TODO: not implemented
-                System.out.printf("GPIOIE: read 0x%08x\n", 0);
+                log.debug("GPIOIE: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_GPIOIC:
                 //TODO: not implemented
-                System.out.printf("GPIOIC: read 0x%08x\n", 0);
+                log.debug("GPIOIC: read 0x%08x\n", 0);
                 result = 0;
                 break;
             default:
@@ -123,27 +126,27 @@ public class GPIO extends AbstractParentCore {
             switch (regaddr) {
             case REG_GPIODIR:
                 //TODO: not implemented
-                System.out.printf("GPIODIR: 0x%08x\n", data);
+                log.debug("GPIODIR: 0x%08x\n", data);
                 break;
             case REG_GPIOIS:
                 //TODO: not implemented
-                System.out.printf("GPIOIS: 0x%08x\n", data);
+                log.debug("GPIOIS: 0x%08x\n", data);
                 break;
             case REG_GPIOIBE:
                 //TODO: not implemented
-                System.out.printf("GPIOIBE: 0x%08x\n", data);
+                log.debug("GPIOIBE: 0x%08x\n", data);
                 break;
             case REG_GPIOIEV:
                 //TODO: not implemented
-                System.out.printf("GPIOIEV: 0x%08x\n", data);
+                log.debug("GPIOIEV: 0x%08x\n", data);
                 break;
             case REG_GPIOIE:
                 //TODO: not implemented
-                System.out.printf("GPIOIE: 0x%08x\n", data);
+                log.debug("GPIOIE: 0x%08x\n", data);
                 break;
             case REG_GPIOIC:
                 //TODO: not implemented
-                System.out.printf("GPIOIC: 0x%08x\n", data);
+                log.debug("GPIOIC: 0x%08x\n", data);
                 break;
             case REG_GPIOPeriphID0:
             case REG_GPIOPeriphID1:
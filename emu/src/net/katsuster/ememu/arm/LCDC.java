@@ -3,6 +3,7 @@ package net.katsuster.ememu.arm;
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * カラー LCD コントローラ
@@ -14,6 +15,8 @@ import net.katsuster.ememu.generic.bus.*;
  * Linux のドライバは DDI0161E に対応していない。
  */
 public class LCDC extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("arm.lcdc");
+
     public static final int REG_LCDTiming0       = 0x000;
     public static final int REG_LCDTiming1       = 0x004;
     public static final int REG_LCDTiming2       = 0x008;
@@ -81,52 +84,52 @@ public class LCDC extends AbstractParentCore {
             switch (regaddr) {
             case REG_LCDTiming0:
                 //TODO: not implemented
-                System.out.printf("LCDTiming0: read 0x%08x\n", 0);
+                log.debug("LCDTiming0: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDTiming1:
                 //TODO: not implemented
-                System.out.printf("LCDTiming1: read 0x%08x\n", 0);
+                log.debug("LCDTiming1: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDTiming2:
                 //TODO: not implemented
-                System.out.printf("LCDTiming2: read 0x%08x\n", 0);
+                log.debug("LCDTiming2: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDTiming3:
                 //TODO: not implemented
-                System.out.printf("LCDTiming3: read 0x%08x\n", 0);
+                log.debug("LCDTiming3: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDUPBASE:
                 //TODO: not implemented
-                System.out.printf("LCDUPBASE: read 0x%08x\n", 0);
+                log.debug("LCDUPBASE: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDLPBASE:
                 //TODO: not implemented
-                System.out.printf("LCDLPBASE: read 0x%08x\n", 0);
+                log.debug("LCDLPBASE: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDINTRENABLE:
                 //TODO: not implemented
-                System.out.printf("LCDIMSC: read 0x%08x\n", 0);
+                log.debug("LCDIMSC: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDControl:
                 //TODO: not implemented
-                System.out.printf("LCDControl: read 0x%08x\n", 0);
+                log.debug("LCDControl: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDStatus:
                 //TODO: not implemented
-                System.out.printf("LCDStatus: read 0x%08x\n", 0);
+                log.debug("LCDStatus: read 0x%08x\n", 0);
                 result = 0;
                 break;
             case REG_LCDInterrupt:
                 //TODO: not implemented
-                System.out.printf("LCDInterrupt: read 0x%08x\n", 0);
+                log.debug("LCDInterrupt: read 0x%08x\n", 0);
                 result = 0;
                 break;
             default:
@@ -146,43 +149,43 @@ public class LCDC extends AbstractParentCore {
             switch (regaddr) {
             case REG_LCDTiming0:
                 //TODO: not implemented
-                System.out.printf("LCDTiming0: 0x%08x\n", data);
+                log.debug("LCDTiming0: 0x%08x\n", data);
                 break;
             case REG_LCDTiming1:
                 //TODO: not implemented
-                System.out.printf("LCDTiming1: 0x%08x\n", data);
+                log.debug("LCDTiming1: 0x%08x\n", data);
                 break;
             case REG_LCDTiming2:
                 //TODO: not implemented
-                System.out.printf("LCDTiming2: 0x%08x\n", data);
+                log.debug("LCDTiming2: 0x%08x\n", data);
                 break;
             case REG_LCDTiming3:
                 //TODO: not implemented
-                System.out.printf("LCDTiming3: 0x%08x\n", data);
+                log.debug("LCDTiming3: 0x%08x\n", data);
                 break;
             case REG_LCDUPBASE:
                 //TODO: not implemented
-                System.out.printf("LCDUPBASE: 0x%08x\n", data);
+                log.debug("LCDUPBASE: 0x%08x\n", data);
                 break;
             case REG_LCDLPBASE:
                 //TODO: not implemented
-                System.out.printf("LCDLPBASE: 0x%08x\n", data);
+                log.debug("LCDLPBASE: 0x%08x\n", data);
                 break;
             case REG_LCDINTRENABLE:
                 //TODO: not implemented
-                System.out.printf("LCDIMSC: 0x%08x\n", data);
+                log.debug("LCDIMSC: 0x%08x\n", data);
                 break;
             case REG_LCDControl:
                 //TODO: not implemented
-                System.out.printf("LCDControl: 0x%08x\n", data);
+                log.debug("LCDControl: 0x%08x\n", data);
                 break;
             case REG_LCDStatus:
                 //TODO: not implemented
-                System.out.printf("LCDStatus: 0x%08x\n", data);
+                log.debug("LCDStatus: 0x%08x\n", data);
                 break;
             case REG_LCDInterrupt:
                 //TODO: not implemented
-                System.out.printf("LCDInterrupt: 0x%08x\n", data);
+                log.debug("LCDInterrupt: 0x%08x\n", data);
                 break;
             case REG_CLCDPERIPHID0:
             case REG_CLCDPERIPHID1:
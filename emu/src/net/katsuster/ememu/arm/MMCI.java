@@ -1,16 +1,36 @@
 package net.katsuster.ememu.arm;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * マルチメディアカードインタフェース
  *
+ * <p>
+ * SD メモリカード（{@link SDMemoryCard}）を 1枚接続します。
+ * コマンドは CPU のスレッドで即座に実行し、
+ * データは FIFO を介して PIO で転送します。
+ * カードの記憶媒体の読み書きはワーカースレッドで行い、
+ * 読み出したブロックから順に FIFO に供給します。
+ * </p>
+ *
+ * <p>
+ * ストリーム転送と DMA には対応しません。
+ * データのタイムアウトは時間を計らず、転送できないと分かった時点で発生させます。
+ * </p>
+ *
+ * <p>
  * 参考: ARM PrimeCell Multimedia Card Interface (PL180)
  * ARM DDI0172A
+ * </p>
  */
 public class MMCI extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("arm.mmci");
+
     public static final int REG_MCIPower      = 0x000;
     public static final int REG_MCIClock      = 0x004;
     public static final int REG_MCIArgument   = 0x008;
@@ -31,7 +51,9 @@ public class MMCI extends AbstractParentCore {
     public static final int REG_MCISelect     = 0x044;
     public static final int REG_MCIFifoCnt    = 0x048;
 
-//0x080-0x0bc: MCIFIFO
+    //0x080-0x0bc: MCIFIFO
+    public static final int REG_MCIFIFO       = 0x080;
+    public static final int FIFO_SIZE         = 0x040;
 
     public static final int REG_MCIPeriphID0  = 0xfe0;
     public static final int REG_MCIPeriphID1  = 0xfe4;
@@ -42,35 +64,599 @@ public class MMCI extends AbstractParentCore {
     public static final int REG_MCIPCellID2   = 0xff8;
     public static final int REG_MCIPCellID3   = 0xffc;
 
+    //MCIPower
+    public static final int POWER_CTRL_MASK = 0x3;
+    public static final int POWER_ON        = 0x3;
+
+    //MMCCommand
+    public static final int CMD_INDEX_MASK = 0x3f;
+    public static final int CMD_RESPONSE   = 1 << 6;
+    public static final int CMD_LONGRSP    = 1 << 7;
+    public static final int CMD_INTERRUPT  = 1 << 8;
+    public static final int CMD_PENDING    = 1 << 9;
+    public static final int CMD_ENABLE     = 1 << 10;
+
+    //MCIDataCtrl
+    public static final int DCTRL_ENABLE    = 1 << 0;
+    public static final int DCTRL_DIRECTION = 1 << 1;
+    public static final int DCTRL_MODE      = 1 << 2;
+    public static final int DCTRL_DMAENABLE = 1 << 3;
+
+    //MCIStatus
+    public static final int ST_CMDCRCFAIL      = 1 << 0;
+    public static final int ST_DATACRCFAIL     = 1 << 1;
+    public static final int ST_CMDTIMEOUT      = 1 << 2;
+    public static final int ST_DATATIMEOUT     = 1 << 3;
+    public static final int ST_TXUNDERRUN      = 1 << 4;
+    public static final int ST_RXOVERRUN       = 1 << 5;
+    public static final int ST_CMDRESPEND      = 1 << 6;
+    public static final int ST_CMDSENT         = 1 << 7;
+    public static final int ST_DATAEND         = 1 << 8;
+    public static final int ST_STARTBITERR     = 1 << 9;
+    public static final int ST_DATABLOCKEND    = 1 << 10;
+    public static final int ST_CMDACTIVE       = 1 << 11;
+    public static final int ST_TXACTIVE        = 1 << 12;
+    public static final int ST_RXACTIVE        = 1 << 13;
+    public static final int ST_TXFIFOHALFEMPTY = 1 << 14;
+    public static final int ST_RXFIFOHALFFULL  = 1 << 15;
+    public static final int ST_TXFIFOFULL      = 1 << 16;
+    public static final int ST_RXFIFOFULL      = 1 << 17;
+    public static final int ST_TXFIFOEMPTY     = 1 << 18;
+    public static final int ST_RXFIFOEMPTY     = 1 << 19;
+    public static final int ST_TXDATAAVLBL     = 1 << 20;
+    public static final int ST_RXDATAAVLBL     = 1 << 21;
+    //MCIClear で消去できるビット
+    public static final int ST_STATIC_MASK     = 0x7ff;
+
+    //記憶媒体を読み書きするワーカースレッドの数
+    public static final int WORKERS = 1;
+
+    private MMCIINTSource intSrc0;
+    private MMCIINTSource intSrc1;
+
+    private BlockStorage storage;
+    private SDMemoryCard card;
+
+    private int power;
+    private int clock;
+    private int argument;
+    private int command;
+    private int respCmd;
+    private int[] response;
+    private int dataTimer;
+    private int dataLength;
+    private int dataCtrl;
+    //MCIClear で消去するまで保持されるステータス
+    private int status;
+    private int mask0;
+    private int mask1;
+    private int select;
+    //転送中のデータ、転送していなければ null
+    private Transfer xfer;
+
+    /**
+     * データパスで転送中のデータです。
+     */
+    private static class Transfer {
+        private boolean read;
+        private int len;
+        //記憶媒体を読み書きする位置（バイト単位）
+        private long addr;
+        private byte[] buf;
+        //カード側が転送を終えた大きさ（バイト単位）
+        private int ready;
+        //ホスト側が FIFO を読み書きした大きさ（バイト単位）
+        private int pos;
+
+        public Transfer(boolean r, int l, long a) {
+            read = r;
+            len = l;
+            addr = a;
+            //FIFO はワード単位で読み書きする
+            buf = new byte[(l + 3) & ~3];
+        }
+
+        /**
+         * カード側から FIFO に入ったデータの終わりの位置を取得します。
+         *
+         * @return FIFO に入ったデータの終わり（バイト単位）
+         */
+        public int getFilled() {
+            return Math.min(ready, pos + FIFO_SIZE);
+        }
+    }
+
     public MMCI(String n) {
         super(n);
 
+        intSrc0 = new MMCIINTSource(0);
+        intSrc1 = new MMCIINTSource(1);
+        storage = new BlockStorage(n, WORKERS);
+        card = new SDMemoryCard(storage);
+        response = new int[4];
+
         setSlaveCore(new MMCISlave());
     }
 
+    /**
+     * カードの記憶媒体を取得します。
+     *
+     * 記憶媒体を開くとカードが挿入され、閉じると取り出されます。
+     *
+     * @return 記憶媒体
+     */
+    public BlockStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * カードが挿入されているかどうかを取得します。
+     *
+     * @return 挿入されていれば true、そうでなければ false
+     */
+    public boolean isCardInserted() {
+        return card.isInserted();
+    }
+
+    /**
+     * 割り込み線 MCIINTR0（コマンド、データの完了とエラー）に接続するコアを取得します。
+     *
+     * @return 割り込み線に接続するコア
+     */
+    public INTSource getIRQ0Source() {
+        return intSrc0;
+    }
+
+    /**
+     * 割り込み線 MCIINTR1（FIFO の状態）に接続するコアを取得します。
+     *
+     * @return 割り込み線に接続するコア
+     */
+    public INTSource getIRQ1Source() {
+        return intSrc1;
+    }
+
+    /**
+     * ステータスを取得します。
+     *
+     * @return MCIStatus の値
+     */
+    private synchronized int getStatus() {
+        Transfer x = xfer;
+        int st = status;
+
+        if (x == null) {
+            return st;
+        }
+
+        if (x.read) {
+            int cnt = x.getFilled() - x.pos;
+
+            st |= ST_RXACTIVE;
+            if (cnt > 0) {
+                st |= ST_RXDATAAVLBL;
+            } else {
+                st |= ST_RXFIFOEMPTY;
+            }
+            if (cnt >= FIFO_SIZE / 2) {
+                st |= ST_RXFIFOHALFFULL;
+            }
+            if (cnt >= FIFO_SIZE) {
+                st |= ST_RXFIFOFULL;
+            }
+        } else {
+            st |= ST_TXACTIVE;
+            if (x.pos < x.len) {
+                //書き込んだデータはすぐにカード側に送られる
+                st |= ST_TXFIFOEMPTY | ST_TXFIFOHALFEMPTY;
+            }
+        }
+
+        return st;
+    }
+
+    /**
+     * 割り込みの状態が変わったことを割り込みコントローラに通知します。
+     *
+     * 割り込みコントローラが全ての割り込み元の状態を調べるため、
+     * デバイスのロックを獲得せずに呼び出してください。
+     */
+    private void updateInterrupts() {
+        intSrc0.getINTDestination().setRaisedInterrupt(intSrc0.isAssert());
+        intSrc1.getINTDestination().setRaisedInterrupt(intSrc1.isAssert());
+    }
+
+    /**
+     * カードにコマンドを送り、レスポンスを受け取ります。
+     */
+    private synchronized void executeCommand() {
+        int idx = command & CMD_INDEX_MASK;
+        int[] r = null;
+
+        if ((power & POWER_CTRL_MASK) == POWER_ON) {
+            r = card.command(idx, argument);
+        }
+
+        if ((command & CMD_RESPONSE) == 0) {
+            status |= ST_CMDSENT;
+        } else if (r == null || r.length == 0) {
+            status |= ST_CMDTIMEOUT;
+            return;
+        } else {
+            respCmd = idx;
+            for (int i = 0; i < response.length; i++) {
+                response[i] = (i < r.length) ? r[i] : 0;
+            }
+            status |= ST_CMDRESPEND;
+        }
+
+        if ((dataCtrl & DCTRL_ENABLE) != 0 && (dataCtrl & DCTRL_DIRECTION) != 0 &&
+                idx != 55) {
+            //読み出しはデータパスを有効にしてからコマンドを送る
+            if (card.getDataDirection() == SDMemoryCard.DATA_READ) {
+                startTransfer();
+            } else {
+                dataCtrl &= ~DCTRL_ENABLE;
+                status |= ST_DATATIMEOUT;
+            }
+        }
+    }
+
+    /**
+     * データパスを有効にします。
+     *
+     * 書き込みはコマンドを送ってからデータパスを有効にするので、
+     * カードが受信できる状態でなければデータのタイムアウトとします。
+     */
+    private synchronized void enableDataPath() {
+        xfer = null;
+        if ((dataCtrl & DCTRL_ENABLE) == 0) {
+            return;
+        }
+        if ((dataCtrl & (DCTRL_MODE | DCTRL_DMAENABLE)) != 0) {
+            log.warn("%s: stream mode and DMA are not supported.\n", getName());
+            dataCtrl &= ~DCTRL_ENABLE;
+            status |= ST_DATATIMEOUT;
+            return;
+        }
+
+        if ((dataCtrl & DCTRL_DIRECTION) != 0) {
+            //読み出しはコマンドを待つ
+            if (card.getDataDirection() == SDMemoryCard.DATA_READ) {
+                startTransfer();
+            }
+        } else {
+            if (card.getDataDirection() == SDMemoryCard.DATA_WRITE) {
+                startTransfer();
+            } else {
+                dataCtrl &= ~DCTRL_ENABLE;
+                status |= ST_DATATIMEOUT;
+            }
+        }
+    }
+
+    /**
+     * データの転送を開始します。
+     *
+     * 読み出しはワーカースレッドで記憶媒体からブロックを読み出し、
+     * 読み出したブロックから順に FIFO に供給します。
+     */
+    private synchronized void startTransfer() {
+        final Transfer x;
+        boolean read = card.getDataDirection() == SDMemoryCard.DATA_READ;
+        byte[] reg = card.getRegisterData();
+        int len = dataLength & 0xffff;
+
+        dataCtrl &= ~DCTRL_ENABLE;
+        x = new Transfer(read, len, card.advanceData(len));
+        xfer = x;
+
+        if (len == 0) {
+            xfer = null;
+            status |= ST_DATAEND;
+            return;
+        }
+        if (!x.read) {
+            //FIFO にデータが揃ってから書き込む
+            return;
+        }
+        if (reg != null) {
+            System.arraycopy(reg, 0, x.buf, 0, Math.min(reg.length, len));
+            x.ready = len;
+            return;
+        }
+
+        if (!storage.submit(new Runnable() {
+            @Override
+            public void run() {
+                readBlocks(x);
+            }
+        })) {
+            xfer = null;
+            status |= ST_DATATIMEOUT;
+        }
+    }
+
+    /**
+     * ワーカースレッドで記憶媒体からブロックを読み出し、FIFO に供給します。
+     *
+     * @param x 転送
+     */
+    private void readBlocks(Transfer x) {
+        for (int off = 0; off < x.len; off += SDMemoryCard.BLOCK_SIZE) {
+            int n = Math.min(SDMemoryCard.BLOCK_SIZE, x.len - off);
+
+            try {
+                storage.read(x.addr + off, x.buf, off, n);
+            } catch (IOException e) {
+                log.warn("%s: %s\n", getName(), e.getMessage());
+                synchronized (this) {
+                    if (xfer == x) {
+                        xfer = null;
+                        status |= ST_DATATIMEOUT;
+                    }
+                }
+                updateInterrupts();
+                return;
+            }
+
+            synchronized (this) {
+                if (xfer != x) {
+                    //中断された転送
+                    return;
+                }
+                x.ready = off + n;
+            }
+            updateInterrupts();
+        }
+    }
+
+    /**
+     * ワーカースレッドで FIFO から受け取ったデータを記憶媒体に書き込みます。
+     *
+     * @param x 転送
+     */
+    private void writeBlocks(Transfer x) {
+        boolean ok = false;
+
+        try {
+            storage.write(x.addr, x.buf, 0, x.len);
+            ok = true;
+        } catch (IOException e) {
+            log.warn("%s: %s\n", getName(), e.getMessage());
+        }
+
+        synchronized (this) {
+            if (xfer != x) {
+                return;
+            }
+            xfer = null;
+            x.ready = x.len;
+            if (ok) {
+                status |= ST_DATAEND | ST_DATABLOCKEND;
+            } else {
+                status |= ST_DATATIMEOUT;
+            }
+        }
+        updateInterrupts();
+    }
+
+    /**
+     * FIFO から 1ワード読み出します。
+     *
+     * @return 読み出したデータ、FIFO が空ならば 0
+     */
+    private synchronized int readFIFO() {
+        Transfer x = xfer;
+        int v = 0;
+
+        if (x == null || !x.read || x.pos >= x.getFilled()) {
+            return 0;
+        }
+
+        for (int i = 0; i < 4; i++) {
+            v |= (x.buf[x.pos + i] & 0xff) << (i * 8);
+        }
+        x.pos += 4;
+        if (x.pos >= x.len) {
+            xfer = null;
+            status |= ST_DATAEND | ST_DATABLOCKEND;
+        }
+
+        return v;
+    }
+
+    /**
+     * FIFO に 1ワード書き込みます。
+     *
+     * 転送する大きさに達したら、ワーカースレッドで記憶媒体に書き込みます。
+     *
+     * @param data 書き込むデータ
+     */
+    private synchronized void writeFIFO(int data) {
+        final Transfer x = xfer;
+
+        if (x == null || x.read || x.pos >= x.len) {
+            return;
+        }
+
+        for (int i = 0; i < 4; i++) {
+            x.buf[x.pos + i] = (byte)(data >>> (i * 8));
+        }
+        x.pos += 4;
+        if (x.pos < x.len) {
+            return;
+        }
+
+        if (!storage.submit(new Runnable() {
+            @Override
+            public void run() {
+                writeBlocks(x);
+            }
+        })) {
+            xfer = null;
+            status |= ST_DATATIMEOUT;
+        }
+    }
+
+    /**
+     * FIFO に残っている、またはカードとの間で転送が残っているワード数を取得します。
+     *
+     * @return MCIFifoCnt の値
+     */
+    private synchronized int getFifoCount() {
+        Transfer x = xfer;
+
+        if (x == null) {
+            return 0;
+        }
+        if (x.read) {
+            return (x.len - x.getFilled() + 3) / 4;
+        } else {
+            return (x.len - x.pos + 3) / 4;
+        }
+    }
+
+    /**
+     * カードとの間で転送が残っているバイト数を取得します。
+     *
+     * @return MCIDataCnt の値
+     */
+    private synchronized int getDataCount() {
+        Transfer x = xfer;
+
+        if (x == null) {
+            return 0;
+        }
+
+        return x.len - x.ready;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * 記憶媒体への読み書きの完了を待ってから保存します。
+     * 転送中のデータと記憶媒体の内容は保存しません。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        //読み書きの完了処理がデバイスのロックを獲得するため、ロックの外で待つ
+        storage.waitIdle();
+        synchronized (this) {
+            out.writeInt(power);
+            out.writeInt(clock);
+            out.writeInt(argument);
+            out.writeInt(command);
+            out.writeInt(respCmd);
+            for (int i = 0; i < response.length; i++) {
+                out.writeInt(response[i]);
+            }
+            out.writeInt(dataTimer);
+            out.writeInt(dataLength);
+            out.writeInt(dataCtrl);
+            out.writeInt(status);
+            out.writeInt(mask0);
+            out.writeInt(mask1);
+            out.writeInt(select);
+            card.saveState(out);
+        }
+    }
+
+    @Override
+    public synchronized void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        xfer = null;
+        power = in.readInt();
+        clock = in.readInt();
+        argument = in.readInt();
+        command = in.readInt();
+        respCmd = in.readInt();
+        for (int i = 0; i < response.length; i++) {
+            response[i] = in.readInt();
+        }
+        dataTimer = in.readInt();
+        dataLength = in.readInt();
+        dataCtrl = in.readInt();
+        status = in.readInt();
+        mask0 = in.readInt();
+        mask1 = in.readInt();
+        select = in.readInt();
+        card.loadState(in);
+    }
+
+    /**
+     * MCIINTR0, MCIINTR1 の割り込み線です。
+     */
+    public class MMCIINTSource implements INTSource {
+        private INTDestination intDst = new NullINTDestination();
+        private int num;
+
+        public MMCIINTSource(int n) {
+            num = n;
+        }
+
+        @Override
+        public INTDestination getINTDestination() {
+            return intDst;
+        }
+
+        @Override
+        public void connectINTDestination(INTDestination c) {
+            intDst = c;
+        }
+
+        @Override
+        public void disconnectINTDestination() {
+            intDst = new NullINTDestination();
+        }
+
+        @Override
+        public boolean isAssert() {
+            int mask;
+
+            synchronized (MMCI.this) {
+                mask = (num == 0) ? mask0 : mask1;
+            }
+
+            return (getStatus() & mask) != 0;
+        }
+
+        @Override
+        public String getIRQMessage() {
+            return "MMCI" + num;
+        }
+    }
+
     class MMCISlave extends Controller32 {
         public MMCISlave() {
-            //addReg(REG_MCIPower, "MCIPower", 0x00);
-            //addReg(REG_MCIClock, "MCIClock", 0x000);
-            //addReg(REG_MCIArgument, "MCIArgument", 0x00000000);
-            //addReg(REG_MMCCommand, "MMCCommand", 0x000);
-            //addReg(REG_MCIRepCmd, "MCIRepCmd", 0x00);
-            //addReg(REG_MCIResponse0, "MCIResponse0", 0x00000000);
-            //addReg(REG_MCIResponse1, "MCIResponse1", 0x00000000);
-            //addReg(REG_MCIResponse2, "MCIResponse2", 0x00000000);
-            //addReg(REG_MCIResponse3, "MCIResponse3", 0x00000000);
-            //addReg(REG_MCIDataTimer, "MCIDataTimer", 0x00000000);
-            //addReg(REG_MCIDataLength, "MCIDataLength", 0x0000);
-            //addReg(REG_MCIDataCtrl, "MCIDataCtrl", 0x00);
-            //addReg(REG_MCIDataCnt, "MCIDataCnt", 0x0000);
-            //addReg(REG_MCIStatus, "MCIStatus", 0x000000);
+            addReg(REG_MCIPower, "MCIPower", 0x00);
+            addReg(REG_MCIClock, "MCIClock", 0x000);
+            addReg(REG_MCIArgument, "MCIArgument", 0x00000000);
+            addReg(REG_MMCCommand, "MMCCommand", 0x000);
+            addReg(REG_MCIRepCmd, "MCIRepCmd", 0x00);
+            addReg(REG_MCIResponse0, "MCIResponse0", 0x00000000);
+            addReg(REG_MCIResponse1, "MCIResponse1", 0x00000000);
+            addReg(REG_MCIResponse2, "MCIResponse2", 0x00000000);
+            addReg(REG_MCIResponse3, "MCIResponse3", 0x00000000);
+            addReg(REG_MCIDataTimer, "MCIDataTimer", 0x00000000);
+            addReg(REG_MCIDataLength, "MCIDataLength", 0x0000);
+            addReg(REG_MCIDataCtrl, "MCIDataCtrl", 0x00);
+            addReg(REG_MCIDataCnt, "MCIDataCnt", 0x0000);
+            addReg(REG_MCIStatus, "MCIStatus", 0x000000);
             addReg(REG_MCIClear, "MCIClear", 0x0);
             addReg(REG_MCIMask0, "MCIMask0", 0x000000);
             addReg(REG_MCIMask1, "MCIMask1", 0x000000);
-            //addReg(REG_MCISelect, "MCISelect", 0x0);
-            //addReg(REG_MCIFifoCnt, "MCIFifoCnt", 0x0000);
+            addReg(REG_MCISelect, "MCISelect", 0x0);
+            addReg(REG_MCIFifoCnt, "MCIFifoCnt", 0x0000);
 
-            //0x080-0x0bc: MCIFIFO
+            for (int i = 0; i < FIFO_SIZE; i += 4) {
+                addReg(REG_MCIFIFO + i, String.format("MCIFIFO%d", i / 4), 0x0);
+            }
 
             addReg(REG_MCIPeriphID0, "MCIPeriphID0", 0x80);
             addReg(REG_MCIPeriphID1, "MCIPeriphID1", 0x11);
@@ -89,10 +675,78 @@ public class MMCI extends AbstractParentCore {
 
             regaddr = (int) (addr & BitOp.getAddressMask(LEN_WORD_BITS));
 
-            switch (regaddr) {
-            default:
-                result = super.readWord(m, regaddr);
-                break;
+            if (REG_MCIFIFO <= regaddr && regaddr < REG_MCIFIFO + FIFO_SIZE) {
+                boolean end;
+
+                synchronized (MMCI.this) {
+                    result = readFIFO();
+                    end = (xfer == null);
+                }
+                //割り込みが発生するのは転送を終えたときのみ
+                if (end) {
+                    updateInterrupts();
+                }
+                return result;
+            }
+
+            synchronized (MMCI.this) {
+                switch (regaddr) {
+                case REG_MCIPower:
+                    result = power;
+                    break;
+                case REG_MCIClock:
+                    result = clock;
+                    break;
+                case REG_MCIArgument:
+                    result = argument;
+                    break;
+                case REG_MMCCommand:
+                    result = command;
+                    break;
+                case REG_MCIRepCmd:
+                    result = respCmd;
+                    break;
+                case REG_MCIResponse0:
+                case REG_MCIResponse1:
+                case REG_MCIResponse2:
+                case REG_MCIResponse3:
+                    result = response[(regaddr - REG_MCIResponse0) / 4];
+                    break;
+                case REG_MCIDataTimer:
+                    result = dataTimer;
+                    break;
+                case REG_MCIDataLength:
+                    result = dataLength;
+                    break;
+                case REG_MCIDataCtrl:
+                    result = dataCtrl;
+                    break;
+                case REG_MCIDataCnt:
+                    result = getDataCount();
+                    break;
+                case REG_MCIStatus:
+                    result = getStatus();
+                    break;
+                case REG_MCIClear:
+                    //write only
+                    result = 0;
+                    break;
+                case REG_MCIMask0:
+                    result = mask0;
+                    break;
+                case REG_MCIMask1:
+                    result = mask1;
+                    break;
+                case REG_MCISelect:
+                    result = select;
+                    break;
+                case REG_MCIFifoCnt:
+                    result = getFifoCount();
+                    break;
+                default:
+                    result = super.readWord(m, regaddr);
+                    break;
+                }
             }
 
             return result;
@@ -104,27 +758,94 @@ public class MMCI extends AbstractParentCore {
 
             regaddr = (int) (addr & BitOp.getAddressMask(LEN_WORD_BITS));
 
-            switch (regaddr) {
-            case REG_MCIPeriphID0:
-            case REG_MCIPeriphID1:
-            case REG_MCIPeriphID2:
-            case REG_MCIPeriphID3:
-            case REG_MCIPCellID0:
-            case REG_MCIPCellID1:
-            case REG_MCIPCellID2:
-            case REG_MCIPCellID3:
-                //read only, ignored
-                break;
-            default:
-                super.writeWord(m, regaddr, data);
-                break;
+            if (REG_MCIFIFO <= regaddr && regaddr < REG_MCIFIFO + FIFO_SIZE) {
+                //書き込みの完了はワーカースレッドが通知する
+                writeFIFO(data);
+                return;
+            }
+
+            synchronized (MMCI.this) {
+                switch (regaddr) {
+                case REG_MCIPower:
+                    power = data & 0xff;
+                    if ((power & POWER_CTRL_MASK) == 0) {
+                        //電源を切るとカードは初期状態に戻る
+                        card.reset();
+                        xfer = null;
+                    }
+                    break;
+                case REG_MCIClock:
+                    clock = data & 0xfff;
+                    break;
+                case REG_MCIArgument:
+                    argument = data;
+                    break;
+                case REG_MMCCommand:
+                    command = data & 0x7ff;
+                    if ((command & CMD_ENABLE) != 0) {
+                        executeCommand();
+                    }
+                    break;
+                case REG_MCIDataTimer:
+                    dataTimer = data;
+                    break;
+                case REG_MCIDataLength:
+                    dataLength = data & 0xffff;
+                    break;
+                case REG_MCIDataCtrl:
+                    dataCtrl = data & 0xff;
+                    enableDataPath();
+                    break;
+                case REG_MCIClear:
+                    status &= ~(data & ST_STATIC_MASK);
+                    break;
+                case REG_MCIMask0:
+                    mask0 = data & 0x3fffff;
+                    break;
+                case REG_MCIMask1:
+                    mask1 = data & 0x3fffff;
+                    break;
+                case REG_MCISelect:
+                    select = data & 0xf;
+                    break;
+                case REG_MCIRepCmd:
+                case REG_MCIResponse0:
+                case REG_MCIResponse1:
+                case REG_MCIResponse2:
+                case REG_MCIResponse3:
+                case REG_MCIDataCnt:
+                case REG_MCIStatus:
+                case REG_MCIFifoCnt:
+                case REG_MCIPeriphID0:
+                case REG_MCIPeriphID1:
+                case REG_MCIPeriphID2:
+                case REG_MCIPeriphID3:
+                case REG_MCIPCellID0:
+                case REG_MCIPCellID1:
+                case REG_MCIPCellID2:
+                case REG_MCIPCellID3:
+                    //read only, ignored
+                    break;
+                default:
+                    super.writeWord(m, regaddr, data);
+                    break;
+                }
             }
+
+            //コマンドの完了、マスクの変更で割り込みの状態が変わる
+            updateInterrupts();
         }
 
         @Override
         public void run() {
             //do nothing
         }
-    }
 
+        @Override
+        public void halt() {
+            super.halt();
+
+            storage.shutdown();
+        }
+    }
 }
@@ -1,8 +1,11 @@
 package net.katsuster.ememu.arm;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * 割り込みコントローラ。
@@ -19,6 +22,8 @@ import net.katsuster.ememu.generic.bus.*;
  */
 public class PrimaryINTC extends Controller32
         implements INTDestination {
+    private static final Logger log = Log.getLogger("arm.intc");
+
     private NormalINTC intc;
     private INTSourceIRQ intSrcIrq;
     private INTSourceFIQ intSrcFiq;
@@ -225,12 +230,12 @@ public class PrimaryINTC extends Controller32
             break;
         case REG_VICVECTADDR:
             //TODO: not implemented
-            System.out.printf("VICVECTADDR: read 0x%08x\n", 0);
+            log.debug("VICVECTADDR: read 0x%08x\n", 0);
             result = 0x0;
             break;
         case REG_VICDEFVECTADDR:
             //TODO: not implemented
-            System.out.printf("VICDEFVECTADDR: read 0x%08x\n", 0);
+            log.debug("VICDEFVECTADDR: read 0x%08x\n", 0);
             result = 0x0;
             break;
         default:
@@ -270,15 +275,15 @@ public class PrimaryINTC extends Controller32
             break;
         case REG_VICVECTADDR:
             //TODO: not implemented
-            System.out.printf("VICVECTADDR: 0x%08x\n", data);
+            log.debug("VICVECTADDR: 0x%08x\n", data);
             break;
         case REG_VICDEFVECTADDR:
             //TODO: not implemented
-            System.out.printf("VICDEFVECTADDR: 0x%08x\n", data);
+            log.debug("VICDEFVECTADDR: 0x%08x\n", data);
             break;
         case REG_VICITCR:
             //TODO: not implemented
-            System.out.printf("VICITCR: 0x%08x\n", data);
+            log.debug("VICITCR: 0x%08x\n", data);
             break;
         case REG_VICVECTCNTL0:
         case REG_VICVECTCNTL1:
@@ -297,7 +302,7 @@ public class PrimaryINTC extends Controller32
         case REG_VICVECTCNTL14:
         case REG_VICVECTCNTL15:
             //TODO: not implemented
-            System.out.printf("VICVECTCNTL[%d]: 0x%08x\n",
+            log.debug("VICVECTCNTL[%d]: 0x%08x\n",
                     (regaddr - REG_VICVECTCNTL0) / 4, data);
             break;
         case REG_VICPERIPHID0:
@@ -316,6 +321,24 @@ public class PrimaryINTC extends Controller32
         }
     }
 
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        out.writeInt(rawSoftInt);
+        out.writeInt(intEnable);
+        out.writeInt(intSelect);
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        rawSoftInt = in.readInt();
+        intEnable = in.readInt();
+        intSelect = in.readInt();
+    }
+
     /**
      * ARM CPU の IRQ（割り込み線）に接続するコアを取得します。
      *
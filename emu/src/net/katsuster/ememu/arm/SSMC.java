@@ -3,6 +3,7 @@ package net.katsuster.ememu.arm;
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * メモリコントローラ
@@ -11,6 +12,8 @@ import net.katsuster.ememu.generic.bus.*;
  * ARM DDI0236H
  */
 public class SSMC extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("arm.ssmc");
+
     public static final int REG_SMBIDCYR0     = 0x000;
     public static final int REG_SMBWSTRDR0    = 0x004;
     public static final int REG_SMBWSTWRR0    = 0x008;
@@ -191,12 +194,12 @@ public class SSMC extends AbstractParentCore {
             case REG_SMBIDCYR0:
                 //TODO: Not implemented
                 result = super.readWord(m, regaddr);
-                System.out.printf("SMBIDCYR0: read 0x%08x\n", result);
+                log.debug("SMBIDCYR0: read 0x%08x\n", result);
                 break;
             case REG_SMBWSTOENR0:
                 //TODO: Not implemented
                 result = super.readWord(m, regaddr);
-                System.out.printf("SMBWSTOENR0: read 0x%08x\n", result);
+                log.debug("SMBWSTOENR0: read 0x%08x\n", result);
                 break;
             default:
                 result = super.readWord(m, regaddr);
@@ -215,11 +218,11 @@ public class SSMC extends AbstractParentCore {
             switch (regaddr) {
             case REG_SMBIDCYR0:
                 //TODO: Not implemented
-                System.out.printf("SMBIDCYR0: 0x%08x\n", data);
+                log.debug("SMBIDCYR0: 0x%08x\n", data);
                 break;
             case REG_SMBWSTOENR0:
                 //TODO: Not implemented
-                System.out.printf("SMBWSTOENR0: 0x%08x\n", data);
+                log.debug("SMBWSTOENR0: 0x%08x\n", data);
                 break;
             case REG_SSMCPeriphID0:
             case REG_SSMCPeriphID1:
@@ -1,22 +1,45 @@
 package net.katsuster.ememu.arm;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * 2nd 割り込みコントローラ
  *
  * <p>
+ * 有効な割り込みのいずれかが発生していれば、
+ * 1st 割り込みコントローラの 31番の割り込み線をアサートします。
+ * SIC_PICENABLE で指定された 21 - 31番の割り込みは、
+ * 1st 割り込みコントローラの同じ番号の割り込み線に直接つながり、
+ * 31番の割り込み線はアサートしません。
+ * </p>
+ *
+ * <p>
  * 参考: Versatile Application Baseboard for ARM926EJ-S User Guide
  * ARM DUI0225D
  * </p>
  */
 public class SecondaryINTC extends Controller32
-        implements INTDestination {
+        implements INTSource, INTDestination {
+    private static final Logger log = Log.getLogger("arm.intc");
+
+    private INTDestination intDst = new NullINTDestination();
     private NormalINTC intc;
+    private PICSource[] picSrcs;
+
+    private int rawSoftInt;
+    private int intEnable;
+    private int picEnable;
 
     public static final int MAX_INTSRCS = 32;
+    //1st 割り込みコントローラに直接つなげられる割り込みの範囲
+    public static final int PIC_MIN = 21;
+    public static final int PIC_MAX = 31;
+    public static final int PIC_MASK = 0xffe00000;
 
     public static final int REG_SIC_STATUS     = 0x000;
     public static final int REG_SIC_RAWSTAT    = 0x004;
@@ -32,9 +55,19 @@ public class SecondaryINTC extends Controller32
     public SecondaryINTC() {
         intc = new NormalINTC(MAX_INTSRCS);
         intc.connectINTDestination(this);
+        picSrcs = new PICSource[PIC_MAX - PIC_MIN + 1];
+        for (int i = 0; i < picSrcs.length; i++) {
+            picSrcs[i] = new PICSource(PIC_MIN + i);
+        }
 
+        addReg(REG_SIC_STATUS, "SIC_STATUS", 0x00000000);
+        addReg(REG_SIC_RAWSTAT, "SIC_RAWSTAT", 0x00000000);
+        addReg(REG_SIC_ENSET, "SIC_ENSET", 0x00000000);
         addReg(REG_SIC_ENCLR, "SIC_ENCLR", 0x00000000);
+        addReg(REG_SIC_SOFTINTSET, "SIC_SOFTINTSET", 0x00000000);
+        addReg(REG_SIC_SOFTINTCLR, "SIC_SOFTINTCLR", 0x00000000);
         addReg(REG_SIC_PICENSET, "SIC_PICENSET", 0x00000000);
+        addReg(REG_SIC_PICENCLR, "SIC_PICENCLR", 0x00000000);
 
         //FIXME: Workaround for Linux Versatile Device Tree.
         //  CONFIG_MACH_VERSATILE_DT
@@ -62,6 +95,42 @@ public class SecondaryINTC extends Controller32
         intc.disconnectINTSource(n);
     }
 
+    /**
+     * 1st 割り込みコントローラに直接つなげる割り込み線を取得します。
+     *
+     * SIC_PICENABLE の対応するビットが 1 の間、
+     * この割り込み線は 2nd 割り込みコントローラの割り込み線と同じ状態になります。
+     *
+     * @param n 割り込み線の番号（21 - 31）
+     * @return 1st 割り込みコントローラの同じ番号の割り込み線に接続するコア
+     */
+    public INTSource getPICSource(int n) {
+        if (n < PIC_MIN || PIC_MAX < n) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal pass through IRQ number %d.", n));
+        }
+
+        return picSrcs[n - PIC_MIN];
+    }
+
+    /**
+     * コアまたはソフトウェアが要求している割り込みの状態を取得します。
+     *
+     * @return 割り込みの状態（SIC_RAWSTAT の値）
+     */
+    public int getRawStatus() {
+        return intc.getSourcesStatus() | rawSoftInt;
+    }
+
+    /**
+     * 要求されていて、なおかつ有効な割り込みの状態を取得します。
+     *
+     * @return 有効な割り込みの状態（SIC_STATUS の値）
+     */
+    public int getStatus() {
+        return getRawStatus() & intEnable;
+    }
+
     @Override
     public int readWord(BusMaster64 m, long addr) {
         int regaddr;
@@ -70,14 +139,25 @@ public class SecondaryINTC extends Controller32
         regaddr = (int)(addr & BitOp.getAddressMask(LEN_WORD_BITS));
 
         switch (regaddr) {
-        case REG_SIC_ENCLR:
-            //TODO: not implemented
-            System.out.printf("SIC_ENCLR: read 0x%08x\n", 0);
-            result = 0x0;
+        case REG_SIC_STATUS:
+            result = getStatus();
             break;
-        case REG_SIC_PICENSET:
-            //TODO: not implemented
-            System.out.printf("SIC_PICENSET: read 0x%08x\n", 0);
+        case REG_SIC_RAWSTAT:
+            result = getRawStatus();
+            break;
+        case REG_SIC_ENABLE:
+            result = intEnable;
+            break;
+        case REG_SIC_SOFTINTSET:
+            result = rawSoftInt;
+            break;
+        case REG_SIC_PICENABLE:
+            result = picEnable;
+            break;
+        case REG_SIC_ENCLR:
+        case REG_SIC_SOFTINTCLR:
+        case REG_SIC_PICENCLR:
+            //write only
             result = 0x0;
             break;
         default:
@@ -95,33 +175,134 @@ public class SecondaryINTC extends Controller32
         regaddr = (int) (addr & BitOp.getAddressMask(LEN_WORD_BITS));
 
         switch (regaddr) {
+        case REG_SIC_STATUS:
+        case REG_SIC_RAWSTAT:
+            //read only, ignored
+            break;
+        case REG_SIC_ENSET:
+            intEnable |= data;
+            break;
         case REG_SIC_ENCLR:
-            //TODO: not implemented
-            System.out.printf("SIC_ENCLR: 0x%08x\n", data);
+            intEnable &= ~data;
+            break;
+        case REG_SIC_SOFTINTSET:
+            rawSoftInt |= data;
+            break;
+        case REG_SIC_SOFTINTCLR:
+            rawSoftInt &= ~data;
             break;
         case REG_SIC_PICENSET:
-            //TODO: not implemented
-            System.out.printf("SIC_PICENSET: 0x%08x\n", data);
+            picEnable |= data & PIC_MASK;
+            log.debug("SIC_PICENSET: 0x%08x\n", data);
+            break;
+        case REG_SIC_PICENCLR:
+            picEnable &= ~data;
             break;
         default:
             super.writeWord(m, regaddr, data);
-            break;
+            return;
         }
+
+        //既に要求されている割り込みが有効になった可能性がある
+        setRaisedInterrupt(true);
+    }
+
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        out.writeInt(rawSoftInt);
+        out.writeInt(intEnable);
+        out.writeInt(picEnable);
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        rawSoftInt = in.readInt();
+        intEnable = in.readInt();
+        picEnable = in.readInt();
+    }
+
+    @Override
+    public INTDestination getINTDestination() {
+        return intDst;
+    }
+
+    @Override
+    public void connectINTDestination(INTDestination c) {
+        intDst = c;
+    }
+
+    @Override
+    public void disconnectINTDestination() {
+        intDst = new NullINTDestination();
+    }
+
+    @Override
+    public boolean isAssert() {
+        //1st 割り込みコントローラに直接つながる割り込みは含めない
+        return (getStatus() & ~picEnable) != 0;
+    }
+
+    @Override
+    public String getIRQMessage() {
+        return "SecondaryINTC";
     }
 
     @Override
     public boolean isRaisedInterrupt() {
-        return false;
+        return isAssert();
     }
 
     @Override
     public void setRaisedInterrupt(boolean m) {
-        //FIXME: do nothing
-        m = false;
+        intDst.setRaisedInterrupt(isAssert());
+        for (PICSource s : picSrcs) {
+            s.getINTDestination().setRaisedInterrupt(s.isAssert());
+        }
     }
 
     @Override
     public void run() {
         //do nothing
     }
+
+    /**
+     * 1st 割り込みコントローラに直接つながる割り込み線です。
+     */
+    public class PICSource implements INTSource {
+        private INTDestination intDst = new NullINTDestination();
+        private int num;
+
+        public PICSource(int n) {
+            num = n;
+        }
+
+        @Override
+        public INTDestination getINTDestination() {
+            return intDst;
+        }
+
+        @Override
+        public void connectINTDestination(INTDestination c) {
+            intDst = c;
+        }
+
+        @Override
+        public void disconnectINTDestination() {
+            intDst = new NullINTDestination();
+        }
+
+        @Override
+        public boolean isAssert() {
+            return ((picEnable & getRawStatus()) & (1 << num)) != 0;
+        }
+
+        @Override
+        public String getIRQMessage() {
+            return "SecondaryINTC pass through " + num;
+        }
+    }
 }
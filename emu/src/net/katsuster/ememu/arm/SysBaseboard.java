@@ -1,8 +1,11 @@
 package net.katsuster.ememu.arm;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * システムレジスタ
@@ -11,7 +14,11 @@ import net.katsuster.ememu.generic.bus.*;
  * ARM DUI0225D
  */
 public class SysBaseboard extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("arm.sys");
+
     private long start24MHz;
+    //カードの挿入を検出するマルチメディアカードインタフェース
+    private MMCI[] mcis = new MMCI[2];
 
     public static final int REG_SYS_ID         = 0x000;
     public static final int REG_SYS_SW         = 0x004;
@@ -60,6 +67,53 @@ public class SysBaseboard extends AbstractParentCore {
         setSlaveCore(new SysBaseboardSlave());
     }
 
+    /**
+     * SYS_MCI でカードの挿入を検出するマルチメディアカードインタフェースを接続します。
+     *
+     * @param n マルチメディアカードインタフェースの番号（0 または 1）
+     * @param c マルチメディアカードインタフェース
+     */
+    public void connectMMCI(int n, MMCI c) {
+        if (n < 0 || mcis.length <= n) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal MMCI number %d.", n));
+        }
+
+        mcis[n] = c;
+    }
+
+    /**
+     * カードの挿入状態を取得します。
+     *
+     * @return SYS_MCI の値、MCIn のカードが挿入されていればビット n が 1
+     */
+    public int getMCIStatus() {
+        int result = 0;
+
+        for (int i = 0; i < mcis.length; i++) {
+            if (mcis[i] != null && mcis[i].isCardInserted()) {
+                result |= 1 << i;
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        //24MHz カウンタは経過時間を保存し、復元後も単調増加させる
+        out.writeLong(System.nanoTime() - start24MHz);
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        start24MHz = System.nanoTime() - in.readLong();
+    }
+
     class SysBaseboardSlave extends Controller32 {
         public SysBaseboardSlave() {
             //addReg(REG_SYS_ID, "SYS_ID", 0x00000000);
@@ -82,7 +136,7 @@ public class SysBaseboard extends AbstractParentCore {
             //addReg(REG_SYS_NVFLAGSCLR, "SYS_NVFLAGSCLR", 0x00000000);
             addReg(REG_SYS_RESETCTL, "SYS_RESETCTL", 0x00000000);
             //addReg(REG_SYS_PCICTL, "SYS_PCICTL", 0x00000000);
-            //addReg(REG_SYS_MCI, "SYS_MCI", 0x00000000);
+            addReg(REG_SYS_MCI, "SYS_MCI", 0x00000000);
             addReg(REG_SYS_FLASH, "SYS_FLASH", 0x00000000);
             addReg(REG_SYS_CLCD, "SYS_CLCD", 0x00000000);
 
@@ -119,22 +173,25 @@ public class SysBaseboard extends AbstractParentCore {
             case REG_SYS_OSC4:
                 //TODO: not implemented
                 result = 0;
-                System.out.printf("SYS_OSC4: read 0x%08x\n", result);
+                log.debug("SYS_OSC4: read 0x%08x\n", result);
                 break;
             case REG_SYS_LOCK:
                 //TODO: not implemented
                 result = 0;
-                System.out.printf("SYS_LOCK: read 0x%08x\n", result);
+                log.debug("SYS_LOCK: read 0x%08x\n", result);
                 break;
             case REG_SYS_RESETCTL:
                 //TODO: not implemented
                 result = 0x0;
-                System.out.printf("SYS_RESETCTL: read 0x%08x\n", result);
+                log.debug("SYS_RESETCTL: read 0x%08x\n", result);
+                break;
+            case REG_SYS_MCI:
+                result = getMCIStatus();
                 break;
             case REG_SYS_CLCD:
                 //TODO: not implemented
                 result = 0x1f00;
-                System.out.printf("SYS_CLCD: read 0x%08x\n", result);
+                log.debug("SYS_CLCD: read 0x%08x\n", result);
                 break;
             case REG_SYS_24MHz:
                 //TODO: 桁あふれ問題が未解決のまま
@@ -162,15 +219,15 @@ public class SysBaseboard extends AbstractParentCore {
                 break;
             case REG_SYS_OSC4:
                 //TODO: not implemented
-                System.out.printf("SYS_OSC4: 0x%08x\n", data);
+                log.debug("SYS_OSC4: 0x%08x\n", data);
                 break;
             case REG_SYS_LOCK:
                 //TODO: not implemented
-                System.out.printf("SYS_LOCK: 0x%08x\n", data);
+                log.debug("SYS_LOCK: 0x%08x\n", data);
                 break;
             case REG_SYS_RESETCTL:
                 //TODO: not implemented
-                System.out.printf("SYS_RESETCTL: 0x%08x\n", data);
+                log.debug("SYS_RESETCTL: 0x%08x\n", data);
                 break;
             case REG_SYS_FLASH:
                 //TODO: not implemented
@@ -181,8 +238,9 @@ public class SysBaseboard extends AbstractParentCore {
                 break;
             case REG_SYS_CLCD:
                 //TODO: not implemented
-                System.out.printf("SYS_CLCD: 0x%08x\n", data);
+                log.debug("SYS_CLCD: 0x%08x\n", data);
                 break;
+            case REG_SYS_MCI:
             case REG_SYS_24MHz:
                 //read only, ignored
                 break;
@@ -5,6 +5,7 @@ import java.io.*;
 import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * UART
@@ -13,14 +14,43 @@ import net.katsuster.ememu.generic.bus.*;
  * 日本語版は ARM DDI0183AJ, 英語版は ARM DDI0183G
  */
 public class UART extends AbstractParentCore implements INTSource {
+    private static final Logger log = Log.getLogger("arm.uart");
+
     private INTDestination intDst = new NullINTDestination();
 
     private int rawInt;
     private int maskInt;
 
     private InputStream strInput;
-    private OutputStream strOutput;
-    private StringBuffer bufInput;
+    //受信 FIFO と、まだ受信 FIFO に入っていないホストからの入力
+    private ByteRingBuffer bufInput;
+    //送信 FIFO と、まだホストに書き出していない出力
+    private AsyncOutputBuffer bufOutput;
+    //受信 FIFO の段数と受信割り込みの閾値（LCR_H.FEN, IFLS.RXIFLSEL から決まる）
+    private volatile int rxDepth;
+    private volatile int rxTrigger;
+    //送信 FIFO の段数と送信割り込みの閾値（LCR_H.FEN, IFLS.TXIFLSEL から決まる）
+    private volatile int txDepth;
+    private volatile int txTrigger;
+
+    //受信 FIFO、送信 FIFO の段数
+    public static final int RX_FIFO_DEPTH = 16;
+    public static final int TX_FIFO_DEPTH = 16;
+    //ホストからの入力を保持するバッファの容量
+    public static final int RX_BUFFER_SIZE = 64 * 1024;
+    //ホストへの出力を保持するバッファの容量
+    public static final int TX_BUFFER_SIZE = 64 * 1024;
+    //ホストから一度に読み出す最大のバイト数
+    public static final int RX_CHUNK_SIZE = 4096;
+    //IFLS.RXIFLSEL, TXIFLSEL ごとの割り込みの閾値（1/8, 1/4, 1/2, 3/4, 7/8）
+    private static final int[] RX_TRIGGERS = {
+            RX_FIFO_DEPTH / 8, RX_FIFO_DEPTH / 4, RX_FIFO_DEPTH / 2,
+            RX_FIFO_DEPTH * 3 / 4, RX_FIFO_DEPTH * 7 / 8,
+    };
+    private static final int[] TX_TRIGGERS = {
+            TX_FIFO_DEPTH / 8, TX_FIFO_DEPTH / 4, TX_FIFO_DEPTH / 2,
+            TX_FIFO_DEPTH * 3 / 4, TX_FIFO_DEPTH * 7 / 8,
+    };
 
     public static final int REG_UARTDR        = 0x000;
     public static final int REG_UARTRSR       = 0x004;
@@ -56,6 +86,13 @@ public class UART extends AbstractParentCore implements INTSource {
     public static final int FR_DSR  = 1;
     public static final int FR_CTS  = 0;
 
+    //line control bit fields
+    public static final int LCR_H_FEN = 4;
+
+    //interrupt FIFO level select bit fields
+    public static final int IFLS_RXIFLSEL = 3;
+    public static final int IFLS_TXIFLSEL = 0;
+
     //interrupt bit fields
     public static final int INTR_OE  = 10;
     public static final int INTR_BE  = 9;
@@ -82,8 +119,16 @@ public class UART extends AbstractParentCore implements INTSource {
         maskInt = 0;
 
         strInput = istr;
-        strOutput = ostr;
-        bufInput = new StringBuffer();
+        bufInput = new ByteRingBuffer(RX_BUFFER_SIZE);
+        bufOutput = new AsyncOutputBuffer(ostr, TX_BUFFER_SIZE);
+        bufOutput.setDrainListener(new Runnable() {
+            @Override
+            public void run() {
+                //送信 FIFO が空いたので送信割り込みを再評価させる
+                intDst.setRaisedInterrupt(true);
+            }
+        });
+        updateFifo(0x00000000, 0x00000012);
 
         setSlaveCore(new UARTSlave());
     }
@@ -97,7 +142,68 @@ public class UART extends AbstractParentCore implements INTSource {
      * @return 有効な割り込みの状態
      */
     public int getRawInt() {
-        return rawInt;
+        int level = getRxLevel();
+        int result = rawInt;
+
+        //送信 FIFO は閾値以下なら送信割り込みとする
+        result = BitOp.setBit32(result, INTR_TX, getTxLevel() <= txTrigger);
+        //受信 FIFO は閾値以上なら受信割り込み、
+        //閾値未満でも空でなければ受信タイムアウト割り込みとする
+        result = BitOp.setBit32(result, INTR_RX, level >= rxTrigger);
+        result = BitOp.setBit32(result, INTR_RT, level > 0 && level < rxTrigger);
+
+        return result;
+    }
+
+    /**
+     * 受信 FIFO に入っている文字数を取得します。
+     *
+     * ホストからの入力のうち、先頭から FIFO の段数までの文字が
+     * 受信 FIFO に入っているとみなします。
+     *
+     * @return 受信 FIFO に入っている文字数
+     */
+    private int getRxLevel() {
+        return Math.min(bufInput.size(), rxDepth);
+    }
+
+    /**
+     * 送信 FIFO に入っている文字数を取得します。
+     *
+     * <p>
+     * ホストへの出力バッファは送信 FIFO の後ろに続くシフトレジスタとみなし、
+     * 出力バッファが一杯になった分だけ送信 FIFO に文字が残っているとみなします。
+     * ホストへの書き出しが詰まったときだけゲストから FIFO が埋まって見えます。
+     * </p>
+     *
+     * @return 送信 FIFO に入っている文字数
+     */
+    private int getTxLevel() {
+        return Math.max(bufOutput.size() - (TX_BUFFER_SIZE - txDepth), 0);
+    }
+
+    /**
+     * 送信 FIFO、受信 FIFO の段数と割り込みの閾値を更新します。
+     *
+     * @param lcrh LCR_H レジスタの値
+     * @param ifls IFLS レジスタの値
+     */
+    private void updateFifo(int lcrh, int ifls) {
+        int rxsel = (ifls >>> IFLS_RXIFLSEL) & 0x7;
+        int txsel = (ifls >>> IFLS_TXIFLSEL) & 0x7;
+
+        if (!BitOp.getBit32(lcrh, LCR_H_FEN)) {
+            //FIFO 無効時は 1文字の保持レジスタとして動作する
+            rxDepth = 1;
+            rxTrigger = 1;
+            txDepth = 1;
+            txTrigger = 0;
+        } else {
+            rxDepth = RX_FIFO_DEPTH;
+            rxTrigger = RX_TRIGGERS[Math.min(rxsel, RX_TRIGGERS.length - 1)];
+            txDepth = TX_FIFO_DEPTH;
+            txTrigger = TX_TRIGGERS[Math.min(txsel, TX_TRIGGERS.length - 1)];
+        }
     }
 
     /**
@@ -131,11 +237,6 @@ public class UART extends AbstractParentCore implements INTSource {
 
     @Override
     public boolean isAssert() {
-        //送信 FIFO は常に空いていることにする
-        rawInt = BitOp.setBit32(rawInt, INTR_TX, true);
-        //受信 FIFO
-        rawInt = BitOp.setBit32(rawInt, INTR_RX, bufInput.length() > 0);
-
         return getMaskedInt() != 0;
     }
 
@@ -144,7 +245,38 @@ public class UART extends AbstractParentCore implements INTSource {
         return "UART";
     }
 
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        out.writeInt(rawInt);
+        out.writeInt(maskInt);
+        out.writeString(new String(bufInput.toByteArray(), "ISO-8859-1"));
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        byte[] b;
+
+        super.loadState(in);
+
+        rawInt = in.readInt();
+        maskInt = in.readInt();
+        bufInput.clear();
+        b = in.readString().getBytes("ISO-8859-1");
+        bufInput.offer(b, 0, b.length);
+
+        Controller32 c = (Controller32)getSlaveCore();
+        updateFifo(c.getReg(REG_UARTLCR_H).getValue(),
+                c.getReg(REG_UARTIFLS).getValue());
+    }
+
     class UARTSlave extends Controller32 {
+        //交互に実行する場合に、入力が EOF に達したか読み出しに失敗した
+        private boolean inputClosed = false;
+        //交互に実行する場合に、ホストから読み出すためのバッファ
+        private byte[] rxChunk = new byte[RX_CHUNK_SIZE];
+
         public UARTSlave() {
             addReg(REG_UARTDR, "UARTDR", 0x00000000);
             addReg(REG_UARTFR, "UARTFR", 0x00000000);
@@ -153,7 +285,7 @@ public class UART extends AbstractParentCore implements INTSource {
             addReg(REG_UARTFBRD, "UARTFBRD", 0x00000000);
             addReg(REG_UARTLCR_H, "UARTLCR_H", 0x00000000);
             addReg(REG_UARTCR, "UARTCR", 0x00000000);
-            addReg(REG_UARTIFLS, "UARTIFLS", 0x00000000);
+            addReg(REG_UARTIFLS, "UARTIFLS", 0x00000012);
 
             addReg(REG_UARTIMSC, "UARTIMSC", 0x00000000);
             addReg(REG_UARTRIS, "UARTRIS", 0x00000000);
@@ -179,20 +311,21 @@ public class UART extends AbstractParentCore implements INTSource {
 
             switch (regaddr) {
             case REG_UARTDR:
-                if (bufInput.length() > 0) {
-                    result = bufInput.charAt(0);
-                    bufInput.deleteCharAt(0);
-                } else {
+                result = bufInput.poll();
+                if (result < 0) {
                     result = 0;
                 }
                 break;
             case REG_UARTFR:
                 result = 0;
 
-                //送信 FIFO は常に空いていることにする
-                result = BitOp.setBit32(result, FR_TXFE, true);
+                //送信 FIFO は出力バッファの残量に応じて設定する
+                result = BitOp.setBit32(result, FR_TXFE, bufOutput.size() == 0);
+                result = BitOp.setBit32(result, FR_TXFF, getTxLevel() >= txDepth);
+                result = BitOp.setBit32(result, FR_BUSY, bufOutput.size() != 0);
                 //受信 FIFO はバッファ残量に応じて設定する
-                result = BitOp.setBit32(result, FR_RXFE, bufInput.length() == 0);
+                result = BitOp.setBit32(result, FR_RXFE, getRxLevel() == 0);
+                result = BitOp.setBit32(result, FR_RXFF, getRxLevel() >= rxDepth);
 
                 break;
             case REG_UARTLCR_H:
@@ -234,14 +367,8 @@ public class UART extends AbstractParentCore implements INTSource {
                     //FIXME: IntelliJ の Console でコピーできないため無視
                     break;
                 }
-                if (strOutput != null) {
-                    try {
-                        strOutput.write(ascii);
-                        strOutput.flush();
-                    } catch (IOException ex) {
-                        //ignore
-                    }
-                }
+                //送信 FIFO が一杯のときに書き込まれた文字は捨てる
+                bufOutput.write(ascii);
 
                 break;
             case REG_UARTFR:
@@ -249,16 +376,17 @@ public class UART extends AbstractParentCore implements INTSource {
                 break;
             case REG_UARTIBRD:
                 //TODO: Not implemented
-                System.out.printf("UARTIBRD: 0x%08x\n", data);
+                log.debug("UARTIBRD: 0x%08x\n", data);
                 break;
             case REG_UARTFBRD:
                 //TODO: Not implemented
-                System.out.printf("UARTFBRD: 0x%08x\n", data);
+                log.debug("UARTFBRD: 0x%08x\n", data);
                 break;
             case REG_UARTLCR_H:
                 //TODO: Not implemented
-                System.out.printf("UARTLCR_H: 0x%08x\n", data);
+                log.debug("UARTLCR_H: 0x%08x\n", data);
                 super.writeWord(m, regaddr, data);
+                updateFifo(data, super.readWord(m, REG_UARTIFLS));
                 break;
             case REG_UARTCR:
                 //TODO: Not implemented
@@ -266,8 +394,8 @@ public class UART extends AbstractParentCore implements INTSource {
                 super.writeWord(m, regaddr, data);
                 break;
             case REG_UARTIFLS:
-                //TODO: Not implemented
-                System.out.printf("UARTIFLS: 0x%08x\n", data);
+                super.writeWord(m, regaddr, data);
+                updateFifo(super.readWord(m, REG_UARTLCR_H), data);
                 break;
             case REG_UARTIMSC:
                 maskInt = data;
@@ -297,46 +425,128 @@ public class UART extends AbstractParentCore implements INTSource {
 
         @Override
         public void run() {
-            mainLoop:
-            while (!shouldHalt()) {
-                try {
-                    while (strInput == null) {
-                        Thread.sleep(50);
-                        if (shouldHalt()) {
-                            break mainLoop;
-                        }
+            Thread receiver;
+
+            if (strInput != null) {
+                //入力ストリームの read() はブロックして停止できない場合があるため、
+                //JVM の終了を妨げないデーモンスレッドで読み出す
+                receiver = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        receive();
                     }
+                }, getName() + " receiver");
+                receiver.setDaemon(true);
+                receiver.start();
+            } else {
+                receiver = null;
+            }
 
-                    //NOTE: InputStream をポーリングします。
-                    //strInput が System.in かつ read() がブロックしたとき、
-                    //他のスレッドからブロッキングをキャンセルする方法がないため、
-                    //read() のブロックを避ける必要があるためです。
-                    //FIXME: この実装はマルチスレッドセーフではありません。
-                    //他スレッドが同時に strInput にアクセスする場合、
-                    //read() でブロックする可能性があります。
-                    while (strInput.available() == 0) {
-                        Thread.sleep(50);
-                        if (shouldHalt()) {
-                            break mainLoop;
-                        }
-                    }
+            //停止するまで送信 FIFO の文字をまとめてホストに書き出す
+            bufOutput.run(this);
 
-                    int c = strInput.read();
+            if (receiver != null) {
+                receiver.interrupt();
+            }
+        }
+
+        /**
+         * 入力ストリームから読み出して受信バッファに入れます。
+         *
+         * <p>
+         * 最初の 1文字はブロックして待ち、続けて読み出せるだけ読み出します。
+         * 受信バッファが一杯のときは空くまで待ちます。
+         * </p>
+         *
+         * <p>
+         * 停止時には割り込みをかけます。割り込みに応答しないストリームの場合は、
+         * 次の文字を読み出すまでスレッドが残ります。
+         * </p>
+         */
+        private void receive() {
+            byte[] b = new byte[RX_CHUNK_SIZE];
+
+            try {
+                while (!shouldHalt()) {
+                    int len = Math.min(bufInput.awaitFree(), b.length);
+                    int c, n;
+
+                    c = strInput.read();
                     if (c == -1) {
                         //EOF
                         break;
                     }
-                    bufInput.append((char)c);
+                    b[0] = (byte)c;
+
+                    n = Math.min(strInput.available(), len - 1);
+                    if (n > 0) {
+                        n = Math.max(strInput.read(b, 1, n), 0);
+                    }
+                    if (shouldHalt()) {
+                        break;
+                    }
 
+                    bufInput.offer(b, 0, n + 1);
                     intDst.setRaisedInterrupt(true);
-                } catch (InterruptedException e) {
-                    //ignored
-                } catch (IOException e) {
+                }
+            } catch (InterruptedException | InterruptedIOException e) {
+                //halted
+            } catch (IOException e) {
+                if (!shouldHalt()) {
                     e.printStackTrace(System.err);
-                    break;
                 }
             }
         }
+
+        @Override
+        public void halt() {
+            super.halt();
+            bufOutput.wakeUp();
+        }
+
+        @Override
+        public boolean runSlice() {
+            boolean progress = bufOutput.drain();
+
+            return receiveSlice() || progress;
+        }
+
+        /**
+         * 入力ストリームからブロックせずに読み出せるだけ読み出して受信バッファに入れます。
+         *
+         * @return 読み出した場合は true、読み出せる文字がなかった場合は false
+         */
+        private boolean receiveSlice() {
+            int n;
+
+            if (strInput == null || inputClosed) {
+                return false;
+            }
+
+            try {
+                n = Math.min(strInput.available(),
+                        Math.min(bufInput.free(), rxChunk.length));
+                if (n <= 0) {
+                    return false;
+                }
+
+                n = strInput.read(rxChunk, 0, n);
+                if (n == -1) {
+                    //EOF
+                    inputClosed = true;
+                    return false;
+                }
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                inputClosed = true;
+                return false;
+            }
+
+            bufInput.offer(rxChunk, 0, n);
+            intDst.setRaisedInterrupt(true);
+
+            return true;
+        }
     }
 
 }
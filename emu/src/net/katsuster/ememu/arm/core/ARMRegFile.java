@@ -1,5 +1,8 @@
 package net.katsuster.ememu.arm.core;
 
+import java.io.*;
+
+import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.*;
 
 /**
@@ -153,6 +156,46 @@ public class ARMRegFile implements Reg32File {
         return (SPSR)getReg(ARM_REG_SPSR);
     }
 
+    /**
+     * 全てのモードのレジスタセットと CPSR を保存します。
+     *
+     * @param out 書き込み先のスナップショット
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        Reg32[][] sets = {
+                regs_usr, regs_svc, regs_abt, regs_und, regs_irq, regs_fiq,
+        };
+
+        for (Reg32[] set : sets) {
+            for (int i = 0; i < ARM_REGFILE_SIZE; i++) {
+                out.writeInt(set[i].getValue());
+            }
+        }
+        out.writeInt(cpsr.getValue());
+    }
+
+    /**
+     * 全てのモードのレジスタセットと CPSR を復元します。
+     *
+     * CPSR を最後に復元し、CPSR のモードに合ったレジスタセットを選択します。
+     *
+     * @param in 読み出し元のスナップショット
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public void loadState(SnapshotInputStream in) throws IOException {
+        Reg32[][] sets = {
+                regs_usr, regs_svc, regs_abt, regs_und, regs_irq, regs_fiq,
+        };
+
+        for (Reg32[] set : sets) {
+            for (int i = 0; i < ARM_REGFILE_SIZE; i++) {
+                set[i].setValue(in.readInt());
+            }
+        }
+        cpsr.setValue(in.readInt());
+    }
+
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder();
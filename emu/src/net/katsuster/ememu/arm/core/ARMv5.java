@@ -1,6 +1,12 @@
 package net.katsuster.ememu.arm.core;
 
+import java.io.*;
+
+import net.katsuster.ememu.generic.SnapshotInputStream;
+import net.katsuster.ememu.generic.SnapshotOutputStream;
 import net.katsuster.ememu.generic.core.*;
+import net.katsuster.ememu.generic.log.*;
+import net.katsuster.ememu.generic.stats.*;
 
 /**
  * ARMv5TE CPU
@@ -19,6 +25,8 @@ import net.katsuster.ememu.generic.core.*;
  * </p>
  */
 public class ARMv5 extends CPU32 {
+    private static final Logger log = Log.getLogger("arm.cpu");
+
     //IRQ, FIQ の 2つの割り込み線を持つ
     public static final int MAX_INTSRCS = 2;
     public static final int INTSRC_IRQ = 0;
@@ -85,6 +93,8 @@ public class ARMv5 extends CPU32 {
         armExec = new ExecStageARMv5(this);
         thumbExec = new ExecStageThumb(this);
         thumb2Exec = new ExecStageThumb2(this);
+
+        setStats(new CPUStats(OpIndex.values()));
     }
 
     @Override
@@ -435,6 +445,69 @@ public class ARMv5 extends CPU32 {
         return decinstAll;
     }
 
+    @Override
+    public int getPrivilegeMode() {
+        return getCPSR().getMode();
+    }
+
+    @Override
+    public String getPrivilegeModeName(int mode) {
+        return PSR.getModeName(mode);
+    }
+
+    @Override
+    public int getInstructionMode() {
+        return getCPSR().getTBit() ? 1 : 0;
+    }
+
+    @Override
+    public int getGeneralRegCount() {
+        //PC は命令の記録から分かるため含めない
+        return 15;
+    }
+
+    @Override
+    public long getGeneralReg(int n) {
+        return getRegRaw(n) & 0xffffffffL;
+    }
+
+    @Override
+    protected boolean isInterrupt(int num) {
+        return num == EXCEPT_FIQ || num == EXCEPT_IRQ;
+    }
+
+    @Override
+    protected CPU newDisassembler() {
+        return new ARMv5();
+    }
+
+    @Override
+    public String disassemble(long pc, int inst, int len, int mode) {
+        Inst32 instgen;
+        String s;
+
+        if (getCPSR().getMode() != PSR.MODE_SVC) {
+            getCPSR().setMode(PSR.MODE_SVC);
+        }
+        getCPSR().setTBit(mode != 0);
+        setRegRaw(15, (int)pc);
+        if (mode != 0) {
+            instgen = new InstructionThumb(0);
+            instgen.reuse(inst, len);
+        } else {
+            instgen = new InstructionARM(inst);
+        }
+
+        startDisasmCapture();
+        try {
+            disasm(decode(instgen));
+        } finally {
+            s = endDisasmCapture();
+        }
+
+        return s;
+    }
+
     /**
      * 命令を逆アセンブルします。
      *
@@ -496,6 +569,7 @@ public class ARMv5 extends CPU32 {
 
         exceptions[num] = true;
         exceptionReasons[num] = dbgmsg;
+        traceException(num, dbgmsg);
 
         setRaisedException(true);
     }
@@ -555,7 +629,7 @@ public class ARMv5 extends CPU32 {
     public void doExceptionReset(String dbgmsg) {
         int cpsrOrg;
 
-        System.out.printf("Exception: Reset by '%s'.\n",
+        log.info("Exception: Reset by '%s'.\n",
                 dbgmsg);
 
         //cpsr の値を取っておく
@@ -590,7 +664,7 @@ public class ARMv5 extends CPU32 {
     public void doExceptionUndefined(String dbgmsg) {
         int pcOrg, cpsrOrg;
 
-        System.out.printf("Exception: Undefined instruction by '%s'.\n",
+        log.debug("Exception: Undefined instruction by '%s'.\n",
                 dbgmsg);
 
         //pc, cpsr の値を取っておく
@@ -789,7 +863,7 @@ public class ARMv5 extends CPU32 {
     public void doExceptionFIQ(String dbgmsg) {
         int pcOrg, cpsrOrg;
 
-        System.out.printf("Exception: FIQ by '%s'.\n",
+        log.debug("Exception: FIQ by '%s'.\n",
                 dbgmsg);
 
         //pc, cpsr の値を取っておく
@@ -882,6 +956,56 @@ public class ARMv5 extends CPU32 {
         highVector = m;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * 全てのモードのレジスタ、コプロセッサレジスタ、MMU の状態、
+     * 処理待ちの例外を保存します。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        regfile.saveState(out);
+        for (int i = 0; i < coProcs.length; i++) {
+            if (coProcs[i] != null) {
+                out.writeByte(i);
+                coProcs[i].saveState(out);
+            }
+        }
+        out.writeByte(-1);
+        mmu.saveState(out);
+
+        for (int i = 0; i < exceptions.length; i++) {
+            out.writeBoolean(exceptions[i]);
+            out.writeString(exceptionReasons[i]);
+        }
+        out.writeBoolean(highVector);
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        regfile.loadState(in);
+        for (int i = 0; i < coProcs.length; i++) {
+            if (coProcs[i] != null) {
+                in.checkValue("coproc number", i, in.readByte());
+                coProcs[i].loadState(in);
+            }
+        }
+        in.checkValue("coproc number", -1, in.readByte());
+        mmu.loadState(in);
+
+        for (int i = 0; i < exceptions.length; i++) {
+            exceptions[i] = in.readBoolean();
+            exceptionReasons[i] = in.readString();
+        }
+        highVector = in.readBoolean();
+    }
+
     @Override
     public void step() {
         Inst32 inst;
@@ -920,6 +1044,9 @@ public class ARMv5 extends CPU32 {
 
         //デコードします
         decinst = decode(inst);
+        countInstruction(decinst.getIndex().ordinal());
+
+        traceInstruction(getPCRaw() & 0xffffffffL, inst);
 
         //逆アセンブルします
         if (isEnabledDisasm()) {
@@ -928,6 +1055,7 @@ public class ARMv5 extends CPU32 {
 
         //実行して、次の命令へ
         execute(decinst);
+        traceRegisters();
         if (isRaisedException()) {
             setRaisedException(false);
             return;
@@ -1,7 +1,9 @@
 package net.katsuster.ememu.arm.core;
 
+import java.io.*;
 import java.util.*;
 
+import net.katsuster.ememu.generic.*;
 import net.katsuster.ememu.generic.core.Reg32;
 
 /**
@@ -165,6 +167,48 @@ public class CoProc {
         r.setValue(val);
     }
 
+    /**
+     * 全てのコプロセッサレジスタの値を保存します。
+     *
+     * @param out 書き込み先のスナップショット
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        SortedMap<Integer, Reg32> sorted = new TreeMap<>(cregs);
+
+        out.writeInt(sorted.size());
+        for (Map.Entry<Integer, Reg32> e : sorted.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeInt(e.getValue().getValue());
+        }
+    }
+
+    /**
+     * 全てのコプロセッサレジスタの値を復元します。
+     *
+     * setCReg と異なり、レジスタへの書き込みに伴う動作は行いません。
+     *
+     * @param in 読み出し元のスナップショット
+     * @throws IOException 読み出しに失敗した場合、レジスタが一致しない場合
+     */
+    public void loadState(SnapshotInputStream in) throws IOException {
+        int n = in.readInt();
+
+        in.checkValue("coproc register count", cregs.size(), n);
+        for (int i = 0; i < n; i++) {
+            int cn = in.readInt();
+            int val = in.readInt();
+            Reg32 r = cregs.get(cn);
+
+            if (r == null) {
+                throw new IOException(String.format(
+                        "Snapshot has unknown coproc %d reg(%08x).",
+                        getNumber(), cn));
+            }
+            r.setValue(val);
+        }
+    }
+
     @Override
     public String toString() {
         return String.format("p%d", getNumber());
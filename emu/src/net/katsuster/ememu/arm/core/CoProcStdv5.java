@@ -1,6 +1,8 @@
 package net.katsuster.ememu.arm.core;
 
 import net.katsuster.ememu.generic.BitOp;
+import net.katsuster.ememu.generic.log.Log;
+import net.katsuster.ememu.generic.log.Logger;
 
 /**
  * ARM コプロセッサ 15: 標準コプロセッサ。
@@ -9,6 +11,8 @@ import net.katsuster.ememu.generic.BitOp;
  * ARM DDI0100DJ
  */
 public class CoProcStdv5 extends CoProc {
+    private static final Logger log = Log.getLogger("arm.cpu");
+
     //----------------------------------------------------------------------
     //crn00: ID コード、キャッシュタイプ、読み取り専用
     //----------------------------------------------------------------------
@@ -264,7 +268,7 @@ public class CoProcStdv5 extends CoProc {
             //System.out.printf("I&D-cache: all invalidated.\n");
             break;
         case CR07_UCH_INVV:
-            System.out.printf("I&D-cache: invalidated 0x%08x.\n", val);
+            log.debug("I&D-cache: invalidated 0x%08x.\n", val);
             break;
         case CR07_ICH_INVALL:
             //System.out.printf("I-cache  : all invalidated.\n");
@@ -279,10 +283,10 @@ public class CoProcStdv5 extends CoProc {
             //System.out.printf("D-cache  : invalidated 0x%08x.\n", val);
             break;
         case CR07_DCH_TSTCLN:
-            System.out.printf("D-cache  : test & clean.\n");
+            log.debug("D-cache  : test & clean.\n");
             break;
         case CR07_DCH_TSTCLNINV:
-            System.out.printf("D-cache  : test & clean & invalidated.\n");
+            log.debug("D-cache  : test & clean & invalidated.\n");
             break;
         case CR07_WB_PUR:
             //System.out.printf("W-buffer : all purged.\n");
@@ -291,7 +295,7 @@ public class CoProcStdv5 extends CoProc {
             //System.out.printf("I&D-TLB  : all invalidated.\n");
             break;
         case CR08_UTLB_INVV:
-            System.out.printf("i&D-TLB  : invalidated 0x%08x.\n", val);
+            log.debug("i&D-TLB  : invalidated 0x%08x.\n", val);
             break;
         case CR08_ITLB_INVALL:
             //System.out.printf("I-TLB    : all invalidated.\n");
@@ -382,6 +386,12 @@ public class CoProcStdv5 extends CoProc {
     public void waitInt(int val) {
         ARMv5 cpu = getCPU();
 
+        if (cpu.isCooperative()) {
+            //他のコアを止めないよう、ブロックせずに戻る
+            cpu.setWaitingInterrupt(true);
+            return;
+        }
+
         synchronized (cpu) {
             while (!cpu.isRaisedInterrupt() && !cpu.shouldHalt()) {
                 try {
@@ -1,5 +1,7 @@
 package net.katsuster.ememu.arm.core;
 
+import net.katsuster.ememu.generic.log.*;
+
 /**
  * ARM コプロセッサ 10: ベクタ浮動小数点プロセッサ（VFP）
  *
@@ -7,6 +9,8 @@ package net.katsuster.ememu.arm.core;
  * ARM DDI0100DJ
  */
 public class CoProcVFPv2 extends CoProc {
+    private static final Logger log = Log.getLogger("arm.cpu");
+
     //----------------------------------------------------------------------
     //opcode07: システムレジスタ転送（FMXR, FMRX）
     //----------------------------------------------------------------------
@@ -38,11 +42,11 @@ public class CoProcVFPv2 extends CoProc {
             break;
         case OP_FMR_FPSCR:
             //TODO: not implemented
-            System.out.printf("FMR_FPSCR: 0x%08x\n", val);
+            log.debug("FMR_FPSCR: 0x%08x\n", val);
             break;
         case OP_FMR_FPEXC:
             //TODO: not implemented
-            System.out.printf("FMR_FPEXC: 0x%08x\n", val);
+            log.debug("FMR_FPEXC: 0x%08x\n", val);
             break;
         default:
             super.setCReg(cn, val);
@@ -3,6 +3,8 @@ package net.katsuster.ememu.arm.core;
 import net.katsuster.ememu.generic.BitOp;
 import net.katsuster.ememu.generic.IntegerExt;
 import net.katsuster.ememu.generic.core.Stage32;
+import net.katsuster.ememu.generic.log.Log;
+import net.katsuster.ememu.generic.log.Logger;
 
 /**
  * ARMv5 命令の実行ステージ。
@@ -13,6 +15,8 @@ import net.katsuster.ememu.generic.core.Stage32;
  * 最新版は、日本語版 ARM DDI0100HJ, 英語版 ARM DDI0100I
  */
 public class ExecStageARMv5 extends Stage32 {
+    private static final Logger log = Log.getLogger("arm.cpu");
+
     /**
      * ARMv5 CPU コア c の実行ステージを生成します。
      *
@@ -1078,8 +1082,8 @@ public class ExecStageARMv5 extends Stage32 {
         }
 
         if (sbo != 0xf) {
-            System.out.println("Warning: Illegal instruction, " +
-                    String.format("mrs SBO[19:16](0x%01x) != 0xf.", sbo));
+            log.warn("Warning: Illegal instruction, " +
+                    "mrs SBO[19:16](0x%01x) != 0xf.\n", sbo);
         }
 
         if (r) {
@@ -1126,8 +1130,8 @@ public class ExecStageARMv5 extends Stage32 {
         }
 
         if (sbo != 0xf) {
-            System.out.println("Warning: Illegal instruction, " +
-                    String.format("msr SBO[15:12](0x%01x) != 0xf.", sbo));
+            log.warn("Warning: Illegal instruction, " +
+                    "msr SBO[15:12](0x%01x) != 0xf.\n", sbo);
         }
 
         if (!r) {
@@ -1558,8 +1562,8 @@ public class ExecStageARMv5 extends Stage32 {
         int left, right, dest;
 
         if (sbz != 0x0) {
-            System.out.println("Warning: Illegal instruction, " +
-                    String.format("tst SBZ[15:12](0x%01x) != 0x0.", sbz));
+            log.warn("Warning: Illegal instruction, " +
+                    "tst SBZ[15:12](0x%01x) != 0x0.\n", sbz);
         }
 
         if (!exec) {
@@ -1595,8 +1599,8 @@ public class ExecStageARMv5 extends Stage32 {
         int left, right, dest;
 
         if (sbz != 0x0) {
-            System.out.println("Warning: Illegal instruction, " +
-                    String.format("teq SBZ[15:12](0x%01x) != 0x0.", sbz));
+            log.warn("Warning: Illegal instruction, " +
+                    "teq SBZ[15:12](0x%01x) != 0x0.\n", sbz);
         }
 
         if (!exec) {
@@ -1632,8 +1636,8 @@ public class ExecStageARMv5 extends Stage32 {
         int left, right, dest;
 
         if (sbz != 0x0) {
-            System.out.println("Warning: Illegal instruction, " +
-                    String.format("cmp SBZ[15:12](0x%01x) != 0x0.", sbz));
+            log.warn("Warning: Illegal instruction, " +
+                    "cmp SBZ[15:12](0x%01x) != 0x0.\n", sbz);
         }
 
         if (!exec) {
@@ -1669,8 +1673,8 @@ public class ExecStageARMv5 extends Stage32 {
         int left, right, dest;
 
         if (sbz != 0x0) {
-            System.out.println("Warning: Illegal instruction, " +
-                    String.format("cmp SBZ[15:12](0x%01x) != 0x0.", sbz));
+            log.warn("Warning: Illegal instruction, " +
+                    "cmp SBZ[15:12](0x%01x) != 0x0.\n", sbz);
         }
 
         if (!exec) {
@@ -1746,8 +1750,8 @@ public class ExecStageARMv5 extends Stage32 {
         int right, dest;
 
         if (sbz != 0x0) {
-            System.out.println("Warning: Illegal instruction, " +
-                    String.format("mov SBZ[19:16](0x%01x) != 0x0.", sbz));
+            log.warn("Warning: Illegal instruction, " +
+                    "mov SBZ[19:16](0x%01x) != 0x0.\n", sbz);
         }
 
         if (!exec) {
@@ -1,6 +1,10 @@
 package net.katsuster.ememu.arm.core;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.BitOp;
+import net.katsuster.ememu.generic.SnapshotInputStream;
+import net.katsuster.ememu.generic.SnapshotOutputStream;
 
 /**
  * ARMv5 VMSA
@@ -271,6 +275,42 @@ public class MMUv5 {
         romProtect = b;
     }
 
+    /**
+     * MMU の状態を保存します。
+     *
+     * @param out 書き込み先のスナップショット
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        out.writeBoolean(alignCheck);
+        out.writeBoolean(enable);
+        out.writeBoolean(fault);
+        out.writeInt(tableBase);
+        for (int i = 0; i < domAcc.length; i++) {
+            out.writeByte(domAcc[i]);
+        }
+        out.writeBoolean(systemProtect);
+        out.writeBoolean(romProtect);
+    }
+
+    /**
+     * MMU の状態を復元します。
+     *
+     * @param in 読み出し元のスナップショット
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public void loadState(SnapshotInputStream in) throws IOException {
+        alignCheck = in.readBoolean();
+        enable = in.readBoolean();
+        fault = in.readBoolean();
+        tableBase = in.readInt();
+        for (int i = 0; i < domAcc.length; i++) {
+            domAcc[i] = in.readUnsignedByte() & 0x3;
+        }
+        systemProtect = in.readBoolean();
+        romProtect = in.readBoolean();
+    }
+
     /**
      * MMU が接続されている CPU を取得します。
      *
@@ -16,6 +16,9 @@ public class ARMVersatile extends AbstractBoard {
     private CPU cpu;
     private Bus64 bus;
     private RAM mpmc_c0_c1;
+    private VirtIOBlock virtioBlk;
+    private MMCI mci0;
+    private LAN91C111 eth;
     private InputStream[] uartIn = new InputStream[4];
     private OutputStream[] uartOut = new OutputStream[4];
 
@@ -28,6 +31,15 @@ public class ARMVersatile extends AbstractBoard {
         return cpu;
     }
 
+    @Override
+    public CPU[] getCPUs() {
+        if (cpu == null) {
+            return new CPU[0];
+        }
+
+        return new CPU[] {cpu};
+    }
+
     @Override
     public Bus64 getMainBus() {
         return bus;
@@ -38,6 +50,33 @@ public class ARMVersatile extends AbstractBoard {
         return mpmc_c0_c1;
     }
 
+    /**
+     * virtio-mmio ブロックデバイスを取得します。
+     *
+     * @return ブロックデバイス
+     */
+    public VirtIOBlock getVirtIOBlock() {
+        return virtioBlk;
+    }
+
+    /**
+     * 1つ目のマルチメディアカードインタフェースを取得します。
+     *
+     * @return マルチメディアカードインタフェース
+     */
+    public MMCI getMMCI() {
+        return mci0;
+    }
+
+    /**
+     * Ethernet コントローラを取得します。
+     *
+     * @return Ethernet コントローラ
+     */
+    public LAN91C111 getEthernet() {
+        return eth;
+    }
+
     @Override
     public InputStream getUARTInputStream(int index) {
         return uartIn[index];
@@ -62,9 +101,10 @@ public class ARMVersatile extends AbstractBoard {
     public void setup() {
         cpu = new ARMv5();
         bus = new Bus64();
+        bus.setCoreExecutor(getCoreExecutor());
 
         //TODO: implement MPMC controller...
-        mpmc_c0_c1 = new RAM32(64 * 1024 * 1024);
+        mpmc_c0_c1 = new PagedRAM32(64 * 1024 * 1024);
 
         SysBaseboard sysBoard = new SysBaseboard("sysBoard");
 
@@ -75,14 +115,13 @@ public class ARMVersatile extends AbstractBoard {
 
         SecondaryINTC intc2nd = new SecondaryINTC();
         AACI aaci = new AACI("aaci");
-        MMCI mci0 = new MMCI("mci0");
+        mci0 = new MMCI("mci0");
         KMI kmiKey = new KMI("kmiKey");
         KMI kmiMouse = new KMI("kmiMouse");
         UART uart3 = new UART("uart3", uartIn[3], uartOut[3]);
         SCard scard1 = new SCard("scard1");
         MMCI mci1 = new MMCI("mci1");
-        //TODO: implement Ethernet controller...
-        RAM ether = new RAM64(4 * 1024);
+        eth = new LAN91C111("eth");
         //TODO: implement USB controller...
         RAM usb = new RAM64(4 * 1024);
 
@@ -119,6 +158,8 @@ public class ARMVersatile extends AbstractBoard {
         RAM mbx = new RAM64(4 * 1024);
         //TODO: implement MPMC controller...
         RAM mpmc_c2_3 = new RAM64(4 * 1024);
+        //Not exist in real hardware
+        virtioBlk = new VirtIOBlock("virtio_blk");
 
         //Master core
         cpu.setThreadID(0);
@@ -173,6 +214,7 @@ public class ARMVersatile extends AbstractBoard {
         //  0x41000000 - 0x6fffffff: PCI interface
         //  0x70000000 - 0x7fffffff: MPMC Chip Select2-3(dynamic memory)
         //  0x80000000 - 0xffffffff: Reserved for Logic Tile Expansion
+        //    0x80000000 - 0x80000fff: virtio-mmio block device (emulator only)
         bus.addSlaveCore(mpmc_c0_c1, 0x00000000L, 0x0fffffffL);
 
         bus.addSlaveCore(sysBoard.getSlaveCore(), 0x10000000L, 0x10000fffL);
@@ -186,7 +228,7 @@ public class ARMVersatile extends AbstractBoard {
         bus.addSlaveCore(uart3.getSlaveCore(), 0x10009000L, 0x10009fffL);
         bus.addSlaveCore(scard1.getSlaveCore(), 0x1000a000L, 0x1000afffL);
         bus.addSlaveCore(mci1.getSlaveCore(), 0x1000b000L, 0x1000bfffL);
-        bus.addSlaveCore(ether, 0x10010000L, 0x1001ffffL);
+        bus.addSlaveCore(eth.getSlaveCore(), 0x10010000L, 0x1001ffffL);
         bus.addSlaveCore(usb, 0x10020000L, 0x1002ffffL);
 
         bus.addSlaveCore(ssmc.getSlaveCore(), 0x10100000L, 0x1010ffffL);
@@ -218,6 +260,7 @@ public class ARMVersatile extends AbstractBoard {
         bus.addSlaveCore(pci_area, 0x41000000L, 0x6fffffffL);
         //main RAM
         bus.addSlaveCore(mpmc_c2_3, 0x70000000L, 0x7fffffffL);
+        bus.addSlaveCore(virtioBlk.getSlaveCore(), 0x80000000L, 0x80000fffL);
 
         //INTC
         cpu.connectINTSource(ARMv5.INTSRC_IRQ, intc1st.getIRQSource());
@@ -227,6 +270,65 @@ public class ARMVersatile extends AbstractBoard {
         intc1st.connectINTSource(12, uart0);
         intc1st.connectINTSource(13, uart1);
         intc1st.connectINTSource(14, uart2);
+        intc1st.connectINTSource(17, dmac);
+        intc1st.connectINTSource(22, mci0.getIRQ0Source());
+        intc1st.connectINTSource(23, intc2nd.getPICSource(23));
+        intc1st.connectINTSource(25, eth);
+        intc1st.connectINTSource(30, virtioBlk);
+        intc1st.connectINTSource(31, intc2nd);
+
+        intc2nd.connectINTSource(1, mci0.getIRQ1Source());
+        intc2nd.connectINTSource(2, mci1.getIRQ1Source());
+        intc2nd.connectINTSource(23, mci1.getIRQ0Source());
+
+        //MMC
+        sysBoard.connectMMCI(0, mci0);
+        sysBoard.connectMMCI(1, mci1);
+
+        //Snapshot
+        addSnapshotTarget("cpu", cpu);
+        addSnapshotTarget("mpmc_c0_c1", mpmc_c0_c1);
+        addSnapshotTarget("sysBoard", sysBoard);
+        addSnapshotTarget("pci_conf", pci_conf);
+        addSnapshotTarget("serial_bus", serial_bus);
+        addSnapshotTarget("intc2nd", intc2nd);
+        addSnapshotTarget("aaci", aaci);
+        addSnapshotTarget("mci0", mci0);
+        addSnapshotTarget("kmiKey", kmiKey);
+        addSnapshotTarget("kmiMouse", kmiMouse);
+        addSnapshotTarget("uart3", uart3);
+        addSnapshotTarget("scard1", scard1);
+        addSnapshotTarget("mci1", mci1);
+        addSnapshotTarget("ether", eth);
+        addSnapshotTarget("usb", usb);
+        addSnapshotTarget("ssmc", ssmc);
+        addSnapshotTarget("mpmc", mpmc);
+        addSnapshotTarget("clcdc", clcdc);
+        addSnapshotTarget("dmac", dmac);
+        addSnapshotTarget("intc1st", intc1st);
+        addSnapshotTarget("sysCtrl", sysCtrl);
+        addSnapshotTarget("watchdog", watchdog);
+        addSnapshotTarget("timer0_1", timer0_1);
+        addSnapshotTarget("timer2_3", timer2_3);
+        addSnapshotTarget("gpio0", gpio0);
+        addSnapshotTarget("gpio1", gpio1);
+        addSnapshotTarget("gpio2", gpio2);
+        addSnapshotTarget("gpio3", gpio3);
+        addSnapshotTarget("rtc", rtc);
+        addSnapshotTarget("scard0", scard0);
+        addSnapshotTarget("uart0", uart0);
+        addSnapshotTarget("uart1", uart1);
+        addSnapshotTarget("uart2", uart2);
+        addSnapshotTarget("ssp", ssp);
+        addSnapshotTarget("ssmc_c4_7", ssmc_c4_7);
+        addSnapshotTarget("ssmc_c0", ssmc_c0);
+        addSnapshotTarget("ssmc_c1", ssmc_c1);
+        addSnapshotTarget("ssmc_c2", ssmc_c2);
+        addSnapshotTarget("ssmc_c3", ssmc_c3);
+        addSnapshotTarget("mbx", mbx);
+        addSnapshotTarget("pci_area", pci_area);
+        addSnapshotTarget("mpmc_c2_3", mpmc_c2_3);
+        addSnapshotTarget("virtio_blk", virtioBlk);
 
         //reset CPU
         cpu.setEnabledDisasm(false);
@@ -243,7 +345,7 @@ public class ARMVersatile extends AbstractBoard {
 
         //wait CPU halted
         try {
-            cpu.join();
+            getCoreExecutor().join(cpu);
         } catch (InterruptedException e) {
             e.printStackTrace(System.err);
             //ignored
@@ -13,6 +13,7 @@ public class RISCVUnleashed extends AbstractBoard {
     private RV64[] cpu;
     private Bus64[] buses;
     private RAM cl0_ddr;
+    private SDCard sdcard;
     private InputStream[] uartIn = new InputStream[4];
     private OutputStream[] uartOut = new OutputStream[4];
 
@@ -25,6 +26,15 @@ public class RISCVUnleashed extends AbstractBoard {
         return cpu[0];
     }
 
+    @Override
+    public CPU[] getCPUs() {
+        if (cpu == null) {
+            return new CPU[0];
+        }
+
+        return cpu.clone();
+    }
+
     @Override
     public Bus64 getMainBus() {
         return buses[0];
@@ -35,6 +45,15 @@ public class RISCVUnleashed extends AbstractBoard {
         return cl0_ddr;
     }
 
+    /**
+     * SPI2 に接続した SD カードを取得します。
+     *
+     * @return SD カード
+     */
+    public SDCard getSDCard() {
+        return sdcard;
+    }
+
     @Override
     public InputStream getUARTInputStream(int index) {
         return uartIn[index];
@@ -68,13 +87,16 @@ public class RISCVUnleashed extends AbstractBoard {
         buses[1] = busSpi0;
         buses[2] = busSpi1;
         buses[3] = busSpi2;
+        for (Bus64 b : buses) {
+            b.setCoreExecutor(getCoreExecutor());
+        }
 
         RAM mode_select = new RAM32(8 * 1024);
         RAM reserved2 = new RAM32(56 * 1024);
         RAM mask_rom = new RAM32(32 * 1024);
         CLINT clint = new CLINT("clint", cpu);
-        RAM l2lim = new RAM32(32 * 1024 * 1024);
-        cl0_ddr = new RAM32(64 * 1024 * 1024);
+        RAM l2lim = new PagedRAM32(32 * 1024 * 1024);
+        cl0_ddr = new PagedRAM32(64 * 1024 * 1024);
         PRCI prci = new PRCI("pcri");
         UART uart0 = new UART("uart0", uartIn[0], uartOut[0]);
         UART uart1 = new UART("uart1", uartIn[1], uartOut[1]);
@@ -84,9 +106,9 @@ public class RISCVUnleashed extends AbstractBoard {
         SPI spi2 = new SPI("spi2");
         GPIO gpio = new GPIO("gpio");
         DDRController ddrc = new DDRController("ddrc");
-        RAM qspi_flash0 = new RAM32(33 * 1024 * 1024);
+        RAM qspi_flash0 = new PagedRAM32(33 * 1024 * 1024);
 
-        SDCard sdcard = new SDCard("sdcard");
+        sdcard = new SDCard("sdcard");
 
         //Main bus
         for (int i = 0; i < cpu.length; i++) {
@@ -129,11 +151,36 @@ public class RISCVUnleashed extends AbstractBoard {
         busMain.addSlaveCore(qspi_flash0, 0x20000000L, 0x221fffffL);
 
         //SPI bus
+        spi0.setDirectTransfer(true);
+        spi1.setDirectTransfer(true);
+        spi2.setDirectTransfer(true);
         busSpi0.addMasterCore(spi0.getMasterCore());
         busSpi1.addMasterCore(spi1.getMasterCore());
         busSpi2.addMasterCore(spi2.getMasterCore());
         busSpi2.addSlaveCore(sdcard.getSlaveCore(), 0, 0);
 
+        //Snapshot
+        for (int i = 0; i < cpu.length; i++) {
+            addSnapshotTarget("cpu" + i, cpu[i]);
+        }
+        addSnapshotTarget("mode_select", mode_select);
+        addSnapshotTarget("reserved2", reserved2);
+        addSnapshotTarget("mask_rom", mask_rom);
+        addSnapshotTarget("clint", clint);
+        addSnapshotTarget("l2lim", l2lim);
+        addSnapshotTarget("cl0_ddr", cl0_ddr);
+        addSnapshotTarget("prci", prci);
+        addSnapshotTarget("uart0", uart0);
+        addSnapshotTarget("uart1", uart1);
+        addSnapshotTarget("i2c", i2c);
+        addSnapshotTarget("spi0", spi0);
+        addSnapshotTarget("spi1", spi1);
+        addSnapshotTarget("spi2", spi2);
+        addSnapshotTarget("gpio", gpio);
+        addSnapshotTarget("ddrc", ddrc);
+        addSnapshotTarget("qspi_flash0", qspi_flash0);
+        addSnapshotTarget("sdcard", sdcard);
+
         //reset CPU
         for (int i = 0; i < cpu.length; i++) {
             cpu[i].setEnabledDisasm(false);
@@ -154,7 +201,7 @@ public class RISCVUnleashed extends AbstractBoard {
         //wait CPU halted
         try {
             for (int i = 0; i < cpu.length; i++) {
-                cpu[i].join();
+                getCoreExecutor().join(cpu[i]);
             }
         } catch (InterruptedException e) {
             e.printStackTrace(System.err);
@@ -1,11 +1,16 @@
 package net.katsuster.ememu.generic;
 
 import java.io.*;
+import java.util.*;
 
+import net.katsuster.ememu.generic.core.*;
 import net.katsuster.ememu.ui.*;
 
 public abstract class AbstractBoard implements Board, Configurable {
     private EmuPropertyMap props;
+    private CoreExecutor executor = new ThreadCoreExecutor();
+    //スナップショットに保存するコア、デバイス（保存する順）
+    private Map<String, Snapshottable> snapshotTargets = new LinkedHashMap<>();
 
     @Override
     public abstract InputStream getUARTInputStream(int index);
@@ -19,6 +24,135 @@ public abstract class AbstractBoard implements Board, Configurable {
     @Override
     public abstract void setUARTOutputStream(int index, OutputStream os);
 
+    @Override
+    public CoreExecutor getCoreExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void setCoreExecutor(CoreExecutor e) {
+        executor = e;
+    }
+
+    /**
+     * スナップショットに保存するコア、デバイスを追加します。
+     *
+     * 保存、復元は追加した順に行います。
+     * setup で全てのコア、デバイスを追加してください。
+     *
+     * @param name 名前、ボード内で一意である必要があります
+     * @param s    状態を保存するコア、デバイス
+     */
+    protected void addSnapshotTarget(String name, Snapshottable s) {
+        if (snapshotTargets.containsKey(name)) {
+            throw new IllegalArgumentException(String.format(
+                    "Snapshot target '%s' is already added.", name));
+        }
+
+        snapshotTargets.put(name, s);
+    }
+
+    @Override
+    public void saveSnapshot(OutputStream os) throws IOException {
+        try (SnapshotOutputStream out = new SnapshotOutputStream(os)) {
+            out.writeUTF(getClass().getName());
+            out.writeInt(snapshotTargets.size());
+            for (Map.Entry<String, Snapshottable> e : snapshotTargets.entrySet()) {
+                out.writeState(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void loadSnapshot(InputStream is) throws IOException {
+        try (SnapshotInputStream in = new SnapshotInputStream(is)) {
+            String b = in.readUTF();
+
+            if (!b.equals(getClass().getName())) {
+                throw new IOException(String.format(
+                        "Snapshot is for '%s', not '%s'.",
+                        b, getClass().getName()));
+            }
+            in.checkValue("target count", snapshotTargets.size(), in.readInt());
+            for (Map.Entry<String, Snapshottable> e : snapshotTargets.entrySet()) {
+                in.readState(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * 停止している他のボードと同じ状態にします。
+     *
+     * <p>
+     * PagedRAM32 はデータを複製せずにページを共有し、
+     * 書き込まれたページだけを複製します（コピーオンライト）。
+     * スナップショットを復元した 1つのボードから多数のボードを作成すると、
+     * 各ボードが消費するメモリは書き換えた分だけで済みます。
+     * </p>
+     *
+     * <p>
+     * その他のコア、デバイスの状態はスナップショットを介して複製します。
+     * setup の後、boot の前に呼び出してください。
+     * </p>
+     *
+     * @param base 複製元のボード、同じクラスで setup 済みである必要があります
+     * @throws IOException 状態の複製に失敗した場合
+     */
+    public void forkFrom(AbstractBoard base) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        List<String> names = new ArrayList<>(snapshotTargets.keySet());
+
+        if (base.getClass() != getClass() ||
+                !names.equals(new ArrayList<>(base.snapshotTargets.keySet()))) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot fork '%s' from '%s'.",
+                    getClass().getName(), base.getClass().getName()));
+        }
+
+        try (SnapshotOutputStream out = new SnapshotOutputStream(bout, 1)) {
+            for (String name : names) {
+                Snapshottable src = base.snapshotTargets.get(name);
+
+                if (isSharable(src, snapshotTargets.get(name))) {
+                    continue;
+                }
+                out.writeState(name, src);
+            }
+        }
+
+        try (SnapshotInputStream in = new SnapshotInputStream(
+                new ByteArrayInputStream(bout.toByteArray()), 1)) {
+            for (String name : names) {
+                Snapshottable src = base.snapshotTargets.get(name);
+                Snapshottable dst = snapshotTargets.get(name);
+
+                if (isSharable(src, dst)) {
+                    ((PagedRAM32)dst).shareFrom((PagedRAM32)src);
+                    continue;
+                }
+                in.readState(name, dst);
+            }
+        }
+    }
+
+    /**
+     * ページを共有して状態を複製できるかどうかを判定します。
+     *
+     * @param src 複製元
+     * @param dst 複製先
+     * @return ページを共有できれば true、そうでなければ false
+     */
+    private static boolean isSharable(Snapshottable src, Snapshottable dst) {
+        if (!(src instanceof PagedRAM32) || !(dst instanceof PagedRAM32)) {
+            return false;
+        }
+
+        PagedRAM32 s = (PagedRAM32)src;
+        PagedRAM32 d = (PagedRAM32)dst;
+
+        return s.getSize() == d.getSize() && s.getPageSize() == d.getPageSize();
+    }
+
     @Override
     public void setup() {
 
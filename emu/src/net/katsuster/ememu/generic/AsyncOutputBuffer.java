@@ -0,0 +1,207 @@
+package net.katsuster.ememu.generic;
+
+import java.io.*;
+
+import net.katsuster.ememu.generic.core.*;
+
+/**
+ * 出力ストリームへの書き込みを、書き込んだスレッドとは別のスレッドでまとめて行うバッファです。
+ *
+ * <p>
+ * UART の送信 FIFO の後ろに置き、CPU が 1文字ずつ書き込むたびに
+ * 出力ストリームへ書き込むことを避けます。
+ * 溜まったデータはまとめて書き込み、改行を含む場合、バッファが一杯になった場合、
+ * 一定時間書き込みがなかった場合に出力ストリームをフラッシュします。
+ * </p>
+ *
+ * <p>
+ * 書き込み側（CPU）はブロックしません。
+ * バッファが一杯のときに書き込んだデータは捨てられます。
+ * </p>
+ */
+public class AsyncOutputBuffer {
+    //バッファの容量のデフォルト値
+    public static final int DEFAULT_SIZE = 64 * 1024;
+    //最後に書き込んでからフラッシュするまでの時間（ミリ秒単位）
+    public static final int IDLE_FLUSH = 10;
+    //出力ストリームへ一度に書き込む最大のバイト数
+    public static final int CHUNK_SIZE = 4096;
+
+    private OutputStream strOutput;
+    private ByteRingBuffer buf;
+    private Runnable listener;
+    private byte[] chunk;
+    //出力ストリームに書き込んでフラッシュしていないデータがあれば true
+    private boolean unflushed;
+    private long lastWrite;
+
+    /**
+     * バッファを作成します。
+     *
+     * @param os 書き込み先の出力ストリーム、null ならばデータを捨てる
+     */
+    public AsyncOutputBuffer(OutputStream os) {
+        this(os, DEFAULT_SIZE);
+    }
+
+    /**
+     * バッファを作成します。
+     *
+     * @param os   書き込み先の出力ストリーム、null ならばデータを捨てる
+     * @param size バッファの容量（バイト単位、2 のべき乗）
+     */
+    public AsyncOutputBuffer(OutputStream os, int size) {
+        strOutput = os;
+        buf = new ByteRingBuffer(size);
+        listener = null;
+        chunk = new byte[Math.min(size, CHUNK_SIZE)];
+        unflushed = false;
+        lastWrite = 0;
+    }
+
+    /**
+     * バッファのデータを出力ストリームに書き込んだときに呼び出す処理を設定します。
+     *
+     * 送信 FIFO の空きに応じた割り込みを更新するために使います。
+     *
+     * @param r 呼び出す処理、null ならば何もしない
+     */
+    public void setDrainListener(Runnable r) {
+        listener = r;
+    }
+
+    /**
+     * まだ出力ストリームに書き込んでいないバイト数を取得します。
+     *
+     * @return 書き込んでいないバイト数
+     */
+    public int size() {
+        return buf.size();
+    }
+
+    /**
+     * 1バイト書き込みます。
+     *
+     * @param b 書き込むデータ
+     * @return 書き込めた場合は true、バッファが一杯で捨てた場合は false
+     */
+    public boolean write(int b) {
+        return buf.offer((byte)b);
+    }
+
+    /**
+     * 停止を要求されるまで、バッファのデータを出力ストリームに書き込み続けます。
+     *
+     * 停止を要求された後、残っているデータを書き込んでから戻ります。
+     *
+     * @param c 停止の要求を受け付けるコア、停止を要求するときは wakeUp も呼び出してください
+     */
+    public void run(Core c) {
+        try {
+            while (!c.shouldHalt()) {
+                if (writeOut() > 0) {
+                    continue;
+                }
+
+                if (!unflushed) {
+                    buf.awaitData(0);
+                } else if (!buf.awaitData(IDLE_FLUSH)) {
+                    flushOut();
+                }
+            }
+
+            //残りを書き込む
+            while (writeOut() > 0) {
+                //do nothing
+            }
+            flushOut();
+        } catch (InterruptedException e) {
+            //halted
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * バッファのデータを出力ストリームに書き込みます。ブロックせずに戻ります。
+     *
+     * 1つのスレッドで他のコアと交互に実行する場合に使います。
+     *
+     * @return データを書き込んだ場合は true、データがなかった場合は false
+     */
+    public boolean drain() {
+        try {
+            if (writeOut() > 0) {
+                return true;
+            }
+
+            if (unflushed && System.nanoTime() - lastWrite > IDLE_FLUSH * 1000000L) {
+                flushOut();
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+
+        return false;
+    }
+
+    /**
+     * run で待っているスレッドを起こします。
+     */
+    public void wakeUp() {
+        buf.wakeUp();
+    }
+
+    /**
+     * バッファのデータを取り出して出力ストリームに書き込みます。
+     *
+     * 改行を含む場合、バッファが一杯だった場合はフラッシュします。
+     *
+     * @return 書き込んだバイト数
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private int writeOut() throws IOException {
+        boolean full = buf.free() == 0;
+        boolean newline = false;
+        int n;
+
+        n = buf.poll(chunk, 0, chunk.length);
+        if (n == 0) {
+            return 0;
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (chunk[i] == '\n') {
+                newline = true;
+                break;
+            }
+        }
+
+        if (strOutput != null) {
+            strOutput.write(chunk, 0, n);
+        }
+        unflushed = true;
+        lastWrite = System.nanoTime();
+        if (full || newline) {
+            flushOut();
+        }
+
+        if (listener != null) {
+            listener.run();
+        }
+
+        return n;
+    }
+
+    /**
+     * 出力ストリームをフラッシュします。
+     *
+     * @throws IOException フラッシュに失敗した場合
+     */
+    private void flushOut() throws IOException {
+        if (unflushed && strOutput != null) {
+            strOutput.flush();
+        }
+        unflushed = false;
+    }
+}
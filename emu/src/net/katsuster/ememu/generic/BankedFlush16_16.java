@@ -1,5 +1,7 @@
 package net.katsuster.ememu.generic;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.bus.BusMaster64;
 import net.katsuster.ememu.generic.core.SlaveCore64;
 
@@ -8,7 +10,8 @@ import net.katsuster.ememu.generic.core.SlaveCore64;
  *
  * 16ビットデータメモリ＋16ビットデータメモリの構成で使用します。
  */
-public class BankedFlush16_16 extends SlaveCore64 {
+public class BankedFlush16_16 extends SlaveCore64
+        implements Snapshottable {
     //データ幅（バイト単位）
     public static final int LEN_WORD = 4;
     //データ幅（ビット単位）
@@ -136,6 +139,18 @@ public class BankedFlush16_16 extends SlaveCore64 {
         bank1.write16(m, addrBank, data1);
     }
 
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        bank0.saveState(out);
+        bank1.saveState(out);
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        bank0.loadState(in);
+        bank1.loadState(in);
+    }
+
     @Override
     public void run() {
         //do nothing
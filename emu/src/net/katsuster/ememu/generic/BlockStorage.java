@@ -0,0 +1,360 @@
+package net.katsuster.ememu.generic;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import net.katsuster.ememu.generic.log.*;
+
+/**
+ * ディスクイメージのファイルを記憶媒体とするブロックストレージ
+ *
+ * <p>
+ * ディスクイメージのファイルをメモリにマップして読み書きします。
+ * デバイスは要求をワーカースレッドに渡し、CPU のスレッドの外で読み書きします。
+ * </p>
+ *
+ * <p>
+ * 読み書きはどのスレッドから呼び出しても構いませんが、
+ * 同じ領域を同時に読み書きした場合の順序は呼び出し側で保証してください。
+ * </p>
+ */
+public class BlockStorage {
+    private static final Logger log = Log.getLogger("storage");
+
+    //セクタの大きさ（バイト単位）
+    public static final int SECTOR_SIZE = 512;
+    //ディスクイメージを一度にマップする大きさ
+    public static final int MAP_SIZE = 1 << 30;
+
+    private String name;
+    private int threads;
+
+    //処理中の要求の数
+    private int inflight;
+    private ExecutorService workers;
+
+    private FileChannel channel;
+    private MappedByteBuffer[] maps;
+    //ディスクの大きさ（バイト単位、セクタの倍数）
+    private long capacity;
+    private boolean readOnly;
+
+    /**
+     * ブロックストレージを作成します。
+     *
+     * @param n 名前、ログとワーカースレッドの名前に使います
+     * @param t 要求を並行して処理するワーカースレッドの数
+     */
+    public BlockStorage(String n, int t) {
+        if (t <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal number of threads %d.", t));
+        }
+
+        name = n;
+        threads = t;
+        maps = new MappedByteBuffer[0];
+    }
+
+    /**
+     * ブロックストレージの名前を取得します。
+     *
+     * @return 名前
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * ディスクイメージのファイルを開き、メモリにマップします。
+     *
+     * ファイルの末尾のセクタに満たない部分は使いません。
+     * 既に開いているファイルは閉じます。
+     *
+     * @param f  ディスクイメージのファイル
+     * @param ro 読み出し専用とするならば true、そうでなければ false
+     * @throws IOException ファイルを開けなかった場合
+     */
+    public synchronized void open(File f, boolean ro) throws IOException {
+        FileChannel ch;
+        MappedByteBuffer[] m;
+        long size;
+
+        if (ro) {
+            ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        } else {
+            ch = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        try {
+            size = ch.size() & ~(long)(SECTOR_SIZE - 1);
+            m = new MappedByteBuffer[(int)((size + MAP_SIZE - 1) / MAP_SIZE)];
+            for (int i = 0; i < m.length; i++) {
+                long pos = (long)i * MAP_SIZE;
+
+                m[i] = ch.map(ro ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                        pos, Math.min(MAP_SIZE, size - pos));
+            }
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+
+        close();
+
+        channel = ch;
+        maps = m;
+        capacity = size;
+        readOnly = ro;
+
+        log.info("%s: '%s' %d sectors%s.\n", name, f.getPath(),
+                capacity / SECTOR_SIZE, ro ? ", read only" : "");
+    }
+
+    /**
+     * ディスクイメージのファイルを閉じます。
+     *
+     * 処理中の要求の完了を待ち、変更をファイルに書き戻します。
+     *
+     * @throws IOException 書き戻しに失敗した場合
+     */
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        waitIdle();
+        try {
+            if (!readOnly) {
+                for (MappedByteBuffer b : maps) {
+                    b.force();
+                }
+            }
+        } finally {
+            channel.close();
+            channel = null;
+            maps = new MappedByteBuffer[0];
+            capacity = 0;
+        }
+    }
+
+    /**
+     * ディスクイメージのファイルを開いているかどうかを取得します。
+     *
+     * @return 開いていれば true、そうでなければ false
+     */
+    public synchronized boolean isOpened() {
+        return channel != null;
+    }
+
+    /**
+     * ディスクの大きさを取得します。
+     *
+     * @return ディスクの大きさ（バイト単位）、開いていなければ 0
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 読み出し専用かどうかを取得します。
+     *
+     * @return 読み出し専用ならば true、そうでなければ false
+     */
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * 読み書きする範囲がディスクに収まっているか確認し、
+     * 現在マップしている領域を取得します。
+     *
+     * @param pos   読み書きを開始する位置（バイト単位）
+     * @param len   読み書きする長さ（バイト単位）
+     * @param write 書き込みならば true、読み出しならば false
+     * @return マップしている領域
+     * @throws IOException 範囲がディスクに収まらない場合、
+     *                     読み出し専用のディスクに書き込もうとした場合
+     */
+    private synchronized MappedByteBuffer[] getMaps(long pos, int len, boolean write) throws IOException {
+        if (pos < 0 || len < 0 || pos > capacity || len > capacity - pos) {
+            throw new IOException(String.format(
+                    "%s: 0x%x, %d bytes is out of disk.", name, pos, len));
+        }
+        if (write && readOnly) {
+            throw new IOException(String.format(
+                    "%s: disk is read only.", name));
+        }
+
+        return maps;
+    }
+
+    /**
+     * ディスクから読み出します。
+     *
+     * @param pos 読み出しを開始する位置（バイト単位）
+     * @param b   読み出したデータを格納する配列
+     * @param off 格納を開始する配列の位置
+     * @param len 読み出す長さ（バイト単位）
+     * @throws IOException 範囲がディスクに収まらない場合
+     */
+    public void read(long pos, byte[] b, int off, int len) throws IOException {
+        MappedByteBuffer[] m = getMaps(pos, len, false);
+
+        while (len > 0) {
+            ByteBuffer d = m[(int)(pos / MAP_SIZE)].duplicate();
+            int n;
+
+            d.position((int)(pos % MAP_SIZE));
+            n = Math.min(len, d.remaining());
+            d.get(b, off, n);
+
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * ディスクに書き込みます。
+     *
+     * @param pos 書き込みを開始する位置（バイト単位）
+     * @param b   書き込むデータを格納した配列
+     * @param off データの開始位置
+     * @param len 書き込む長さ（バイト単位）
+     * @throws IOException 範囲がディスクに収まらない場合、
+     *                     読み出し専用のディスクに書き込もうとした場合
+     */
+    public void write(long pos, byte[] b, int off, int len) throws IOException {
+        MappedByteBuffer[] m = getMaps(pos, len, true);
+
+        while (len > 0) {
+            ByteBuffer d = m[(int)(pos / MAP_SIZE)].duplicate();
+            int n;
+
+            d.position((int)(pos % MAP_SIZE));
+            n = Math.min(len, d.remaining());
+            d.put(b, off, n);
+
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * ディスクへの変更をファイルに書き戻します。
+     */
+    public void flush() {
+        MappedByteBuffer[] m;
+        boolean ro;
+
+        synchronized (this) {
+            m = maps;
+            ro = readOnly;
+        }
+        if (!ro) {
+            for (MappedByteBuffer b : m) {
+                b.force();
+            }
+        }
+    }
+
+    /**
+     * 要求をワーカースレッドに渡します。
+     *
+     * ワーカースレッドは最初の要求を受け取ったときに作成します。
+     * 要求の実行が終わるまで、処理中の要求として数えます。
+     *
+     * @param r 要求
+     * @return 受け付けたならば true、停止後で受け付けなかったならば false
+     */
+    public synchronized boolean submit(final Runnable r) {
+        if (workers == null) {
+            workers = newWorkers(name, threads);
+        }
+
+        inflight++;
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        synchronized (BlockStorage.this) {
+                            inflight--;
+                            BlockStorage.this.notifyAll();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inflight--;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 処理中の要求が全て完了するまで待ちます。
+     *
+     * CPU がバスのロックを獲得したまま呼び出してはいけません。
+     *
+     * @throws InterruptedIOException 待っている間に割り込まれた場合
+     */
+    public synchronized void waitIdle() throws InterruptedIOException {
+        try {
+            while (inflight > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting requests.");
+        }
+    }
+
+    /**
+     * ワーカースレッドを停止します。
+     *
+     * 処理中の要求は最後まで実行します。
+     * 停止後に要求を渡すと、ワーカースレッドを作り直します。
+     */
+    public void shutdown() {
+        ExecutorService w;
+
+        synchronized (this) {
+            w = workers;
+            workers = null;
+        }
+        if (w != null) {
+            w.shutdown();
+        }
+    }
+
+    /**
+     * 要求を処理するワーカースレッドのプールを作成します。
+     *
+     * スレッドはデーモンスレッドとし、JVM の終了を妨げないようにします。
+     *
+     * @param name スレッドの名前
+     * @param n    スレッドの数
+     * @return スレッドプール
+     */
+    private static ExecutorService newWorkers(final String name, int n) {
+        return Executors.newFixedThreadPool(n, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " worker");
+
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+}
@@ -4,6 +4,7 @@ import java.io.*;
 
 import net.katsuster.ememu.generic.bus.Bus64;
 import net.katsuster.ememu.generic.core.CPU;
+import net.katsuster.ememu.generic.core.CoreExecutor;
 
 public interface Board {
     /**
@@ -13,6 +14,13 @@ public interface Board {
      */
     public abstract CPU getMainCPU();
 
+    /**
+     * 全ての CPU を取得します。
+     *
+     * @return 全ての CPU、setup の前は空の配列
+     */
+    public abstract CPU[] getCPUs();
+
     /**
      * メインバスを取得します。
      *
@@ -59,6 +67,43 @@ public interface Board {
      */
     public abstract void setUARTOutputStream(int index, OutputStream os);
 
+    /**
+     * コアを実行する方式を取得します。
+     *
+     * @return コアを実行する方式
+     */
+    public abstract CoreExecutor getCoreExecutor();
+
+    /**
+     * コアを実行する方式を設定します。
+     *
+     * setup の前に呼び出してください。
+     *
+     * @param e コアを実行する方式
+     */
+    public abstract void setCoreExecutor(CoreExecutor e);
+
+    /**
+     * ボード全体の状態をスナップショットとして書き込みます。
+     *
+     * ボードを停止してから呼び出してください。
+     *
+     * @param os 書き込み先のストリーム、書き込み後に閉じられます
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public abstract void saveSnapshot(OutputStream os) throws IOException;
+
+    /**
+     * スナップショットからボード全体の状態を復元します。
+     *
+     * setup の後、boot の前に呼び出してください。
+     *
+     * @param is 読み出し元のストリーム、読み出し後に閉じられます
+     * @throws IOException 読み出しに失敗した場合、
+     *                     スナップショットがボードの構成と一致しない場合
+     */
+    public abstract void loadSnapshot(InputStream is) throws IOException;
+
     /**
      * ボードにコア、バスを配置して初期化します。
      */
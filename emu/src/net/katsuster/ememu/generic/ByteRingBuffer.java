@@ -0,0 +1,263 @@
+package net.katsuster.ememu.generic;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * 1つのスレッドが書き込み、1つのスレッドが読み出すリングバッファです。
+ *
+ * <p>
+ * 書き込み側、読み出し側がそれぞれ 1スレッドであればロックを取らずに動作します。
+ * 書き込み側はバッファが一杯のときに空きができるまで、
+ * 読み出し側はバッファが空のときにデータが来るまで待つことができます。
+ * </p>
+ */
+public class ByteRingBuffer {
+    private final byte[] buf;
+    private final int mask;
+    //読み出し、書き込みしたバイト数の累計
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    //書き込み側が空きを待っていれば true
+    private volatile boolean waitingFree;
+    //読み出し側がデータを待っていれば true
+    private volatile boolean waitingData;
+
+    /**
+     * リングバッファを作成します。
+     *
+     * @param size 容量（バイト単位、2 のべき乗）
+     */
+    public ByteRingBuffer(int size) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException(String.format(
+                    "size %d is not power of 2.", size));
+        }
+
+        buf = new byte[size];
+        mask = size - 1;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        waitingFree = false;
+        waitingData = false;
+    }
+
+    /**
+     * 容量を取得します。
+     *
+     * @return 容量（バイト単位）
+     */
+    public int getCapacity() {
+        return buf.length;
+    }
+
+    /**
+     * 読み出せるバイト数を取得します。
+     *
+     * @return 読み出せるバイト数
+     */
+    public int size() {
+        return (int)(tail.get() - head.get());
+    }
+
+    /**
+     * 書き込めるバイト数を取得します。
+     *
+     * @return 書き込めるバイト数
+     */
+    public int free() {
+        return buf.length - size();
+    }
+
+    /**
+     * 空かどうかを取得します。
+     *
+     * @return 空ならば true、そうでなければ false
+     */
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * 書き込めるだけ書き込みます。書き込み側のスレッドから呼び出してください。
+     *
+     * @param b   書き込むデータ
+     * @param off 書き込むデータの開始位置
+     * @param len 書き込むデータの長さ
+     * @return 書き込んだバイト数
+     */
+    public int offer(byte[] b, int off, int len) {
+        long t = tail.get();
+        int n = Math.min(len, buf.length - (int)(t - head.get()));
+
+        for (int i = 0; i < n; i++) {
+            buf[(int)(t + i) & mask] = b[off + i];
+        }
+        //waitingData を読む前に読み出し側から見えるようにする
+        tail.set(t + n);
+
+        if (n > 0 && waitingData) {
+            wakeUp();
+        }
+
+        return n;
+    }
+
+    /**
+     * 1バイト書き込みます。書き込み側のスレッドから呼び出してください。
+     *
+     * @param b 書き込むデータ
+     * @return 書き込めた場合は true、バッファが一杯の場合は false
+     */
+    public boolean offer(byte b) {
+        long t = tail.get();
+
+        if (t - head.get() == buf.length) {
+            return false;
+        }
+        buf[(int)t & mask] = b;
+        tail.set(t + 1);
+
+        if (waitingData) {
+            wakeUp();
+        }
+
+        return true;
+    }
+
+    /**
+     * 1バイト取り出します。読み出し側のスレッドから呼び出してください。
+     *
+     * @return 取り出したデータ（0 ～ 255）、空ならば -1
+     */
+    public int poll() {
+        long h = head.get();
+        int v;
+
+        if (h == tail.get()) {
+            return -1;
+        }
+        v = buf[(int)h & mask] & 0xff;
+        //waitingFree を読む前に書き込み側から見えるようにする
+        head.set(h + 1);
+
+        if (waitingFree) {
+            wakeUp();
+        }
+
+        return v;
+    }
+
+    /**
+     * 取り出せるだけ取り出します。読み出し側のスレッドから呼び出してください。
+     *
+     * @param b   取り出したデータを格納する配列
+     * @param off 格納する開始位置
+     * @param len 取り出す最大のバイト数
+     * @return 取り出したバイト数
+     */
+    public int poll(byte[] b, int off, int len) {
+        long h = head.get();
+        int n = Math.min(len, (int)(tail.get() - h));
+
+        for (int i = 0; i < n; i++) {
+            b[off + i] = buf[(int)(h + i) & mask];
+        }
+        head.set(h + n);
+
+        if (n > 0 && waitingFree) {
+            wakeUp();
+        }
+
+        return n;
+    }
+
+    /**
+     * データが来るまで待ちます。読み出し側のスレッドから呼び出してください。
+     *
+     * wakeUp が呼ばれた場合は、データが来ていなくても戻ります。
+     *
+     * @param timeout 待つ最大の時間（ミリ秒単位）、0 ならば時間の制限なし
+     * @return データがあれば true、なければ false
+     * @throws InterruptedException 待っている間に割り込まれた場合
+     */
+    public boolean awaitData(long timeout) throws InterruptedException {
+        if (!isEmpty()) {
+            return true;
+        }
+
+        synchronized (this) {
+            waitingData = true;
+            try {
+                if (isEmpty()) {
+                    wait(timeout);
+                }
+            } finally {
+                waitingData = false;
+            }
+        }
+
+        return !isEmpty();
+    }
+
+    /**
+     * 空き、データを待っているスレッドを起こします。
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * 空きができるまで待ちます。書き込み側のスレッドから呼び出してください。
+     *
+     * @return 書き込めるバイト数
+     * @throws InterruptedException 待っている間に割り込まれた場合
+     */
+    public int awaitFree() throws InterruptedException {
+        int n = free();
+
+        if (n > 0) {
+            return n;
+        }
+
+        synchronized (this) {
+            waitingFree = true;
+            try {
+                while ((n = free()) == 0) {
+                    wait();
+                }
+            } finally {
+                waitingFree = false;
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * 読み出せるデータを全て取り出さずに取得します。
+     *
+     * 書き込み、読み出しを行うスレッドが止まっているときに呼び出してください。
+     *
+     * @return 読み出せるデータ
+     */
+    public byte[] toByteArray() {
+        long h = head.get();
+        byte[] b = new byte[(int)(tail.get() - h)];
+
+        for (int i = 0; i < b.length; i++) {
+            b[i] = buf[(int)(h + i) & mask];
+        }
+
+        return b;
+    }
+
+    /**
+     * 全てのデータを捨てます。
+     *
+     * 書き込み、読み出しを行うスレッドが止まっているときに呼び出してください。
+     */
+    public synchronized void clear() {
+        head.set(tail.get());
+        notifyAll();
+    }
+}
@@ -1,5 +1,6 @@
 package net.katsuster.ememu.generic;
 
+import java.io.*;
 import java.util.*;
 
 import net.katsuster.ememu.generic.core.Reg32;
@@ -8,8 +9,15 @@ import net.katsuster.ememu.generic.bus.BusMaster64;
 
 /**
  * 64 ビットアドレスバス、32 ビットレジスタを持つコントローラ。
+ *
+ * <p>
+ * スナップショットには addReg で定義した全てのレジスタの値を保存します。
+ * レジスタ以外に状態を持つコントローラは、
+ * saveState, loadState をオーバーライドしてください。
+ * </p>
  */
-public abstract class Controller32 extends SlaveCore64 {
+public abstract class Controller32 extends SlaveCore64
+        implements Snapshottable {
     //データ幅（バイト単位）
     public static final int LEN_WORD = 4;
     //データ幅（ビット単位）
@@ -89,6 +97,35 @@ public abstract class Controller32 extends SlaveCore64 {
         return true;
     }
 
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        SortedMap<Long, Reg32> sorted = new TreeMap<>(regs);
+
+        out.writeInt(sorted.size());
+        for (Map.Entry<Long, Reg32> e : sorted.entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeInt(e.getValue().getValue());
+        }
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        int n = in.readInt();
+
+        in.checkValue("register count", regs.size(), n);
+        for (int i = 0; i < n; i++) {
+            long addr = in.readLong();
+            int val = in.readInt();
+            Reg32 r = regs.get(addr);
+
+            if (r == null) {
+                throw new IOException(String.format(
+                        "Snapshot has unknown register 0x%08x.", addr));
+            }
+            r.setValue(val);
+        }
+    }
+
     @Override
     public boolean tryAccess(BusMaster64 m, long addr, int len) {
         int regaddr;
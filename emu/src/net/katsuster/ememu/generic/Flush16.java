@@ -1,7 +1,11 @@
 package net.katsuster.ememu.generic;
 
+import java.io.*;
+import java.util.*;
+
 import net.katsuster.ememu.generic.bus.BusMaster64;
 import net.katsuster.ememu.generic.core.SlaveCore64;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * 64 ビットアドレス、16ビットデータ Flush ROM
@@ -11,7 +15,9 @@ import net.katsuster.ememu.generic.core.SlaveCore64;
  *     64K Word (128KB, 1Mbit) Block,
  *     256Blocks (256Mbits)
  */
-public class Flush16 extends SlaveCore64 {
+public class Flush16 extends SlaveCore64 implements Snapshottable {
+    private static final Logger log = Log.getLogger("flush16");
+
     //データ幅（バイト単位）
     public static final int LEN_WORD = 2;
     //データ幅（ビット単位）
@@ -104,9 +110,8 @@ public class Flush16 extends SlaveCore64 {
                 setStateMachine(STATE_ERASE_BLOCK);
                 break;
             default:
-                System.err.println(String.format(
-                        "Unknown write addr:0x%08x data:0x%04x in %s mode.",
-                        addr, data, state.getClass().getName()));
+                log.error("Unknown write addr:0x%08x data:0x%04x in %s mode.\n",
+                        addr, data, state.getClass().getName());
             }
         }
     }
@@ -223,9 +228,8 @@ public class Flush16 extends SlaveCore64 {
                     innerState = STATE_RETURN_STATUS;
                     break;
                 default:
-                    System.err.println(String.format(
-                            "Unknown write confirm addr:0x%08x data:0x%04x in %s mode.",
-                            addr, data, state.getClass().getName()));
+                    log.error("Unknown write confirm addr:0x%08x data:0x%04x in %s mode.\n",
+                            addr, data, state.getClass().getName());
                     break;
                 }
             }
@@ -478,7 +482,68 @@ public class Flush16 extends SlaveCore64 {
             wordsArray[start + i] = (short)0xffff;
         }
 
-        System.out.printf("flush16: erase: 0x%08x - 0x%08x\n", start * LEN_WORD, start * LEN_WORD + LEN_BLOCK);
+        log.debug("flush16: erase: 0x%08x - 0x%08x\n", start * LEN_WORD, start * LEN_WORD + LEN_BLOCK);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * 全て 0 のブロックは中身を保存しません。
+     * 書き込みコマンドの途中の状態は保存せず、
+     * 復元後は Read Array 状態から始めます。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        int blk = LEN_BLOCK / LEN_WORD;
+        byte[] buf = new byte[LEN_BLOCK];
+
+        out.writeInt(lenArray);
+        out.writeInt(statusReg);
+        for (int i = 0; i < wordsArray.length; i += blk) {
+            boolean zero = true;
+
+            for (int j = 0; j < blk; j++) {
+                if (wordsArray[i + j] != 0) {
+                    zero = false;
+                    break;
+                }
+            }
+            out.writeBoolean(zero);
+            if (zero) {
+                continue;
+            }
+
+            for (int j = 0; j < blk; j++) {
+                buf[j * 2 + 0] = (byte)(wordsArray[i + j] >>> 0);
+                buf[j * 2 + 1] = (byte)(wordsArray[i + j] >>> 8);
+            }
+            out.write(buf);
+        }
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        int blk = LEN_BLOCK / LEN_WORD;
+        byte[] buf = new byte[LEN_BLOCK];
+
+        in.checkValue("flash size", lenArray, in.readInt());
+        statusReg = in.readInt();
+        for (int i = 0; i < wordsArray.length; i += blk) {
+            if (in.readBoolean()) {
+                Arrays.fill(wordsArray, i, i + blk, (short)0);
+                continue;
+            }
+
+            in.readFully(buf);
+            for (int j = 0; j < blk; j++) {
+                wordsArray[i + j] = (short)((buf[j * 2 + 0] & 0xff) |
+                        ((buf[j * 2 + 1] & 0xff) << 8));
+            }
+        }
+
+        setStateMachine(STATE_READ_ARRAY);
     }
 
     @Override
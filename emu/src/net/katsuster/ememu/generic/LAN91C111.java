@@ -0,0 +1,1067 @@
+package net.katsuster.ememu.generic;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.core.*;
+import net.katsuster.ememu.generic.log.*;
+import net.katsuster.ememu.generic.net.*;
+
+/**
+ * SMSC LAN91C111 Ethernet コントローラ
+ *
+ * <p>
+ * 16バイトのレジスタをバンクで切り替えて使います。
+ * レジスタはバイト単位でアクセスでき、16, 32ビットのアクセスは
+ * 下位のアドレスから順にバイト単位のアクセスに分解して処理します。
+ * </p>
+ *
+ * <p>
+ * 送信は MMU に ENQUEUE を指示したときにその場で行い、
+ * フレームを送信先（{@link EtherDestination}、仮想スイッチなど）に渡します。
+ * 受信したフレームはパケットメモリに格納し、受信 FIFO に積みます。
+ * PHY は持たず、リンクは常に接続済み（EPH_STATUS の LINK_OK）とします。
+ * </p>
+ *
+ * <p>
+ * 参考: SMSC LAN91C111 10/100 Non-PCI Ethernet Single Chip MAC + PHY
+ * Datasheet Revision 1.91
+ * </p>
+ */
+public class LAN91C111 extends AbstractParentCore
+        implements INTSource, EtherPort {
+    private static final Logger log = Log.getLogger("lan91c111");
+
+    //パケットメモリのページ数と 1ページの大きさ（8KB）
+    public static final int NUM_PACKETS = 4;
+    public static final int PACKET_SIZE = 2048;
+    //受信できるフレームの最大長（FCS を除く）
+    public static final int MAX_FRAME = 1518;
+    //FCS の長さ
+    public static final int FCS_SIZE = 4;
+    //パケット内のステータス、バイト数、コントロールバイトを含む最後のワードの長さ
+    public static final int PACKET_OVERHEAD = 6;
+
+    //Bank 0
+    public static final int REG_TCR        = 0x0;
+    public static final int REG_EPH_STATUS = 0x2;
+    public static final int REG_RCR        = 0x4;
+    public static final int REG_COUNTER    = 0x6;
+    public static final int REG_MIR        = 0x8;
+    public static final int REG_RPCR       = 0xa;
+
+    //Bank 1
+    public static final int REG_CONFIG     = 0x0;
+    public static final int REG_BASE       = 0x2;
+    public static final int REG_IA         = 0x4;
+    public static final int REG_GP         = 0xa;
+    public static final int REG_CONTROL    = 0xc;
+
+    //Bank 2
+    public static final int REG_MMU_CMD    = 0x0;
+    public static final int REG_PNR        = 0x2;
+    public static final int REG_ARR        = 0x3;
+    public static final int REG_TX_FIFO    = 0x4;
+    public static final int REG_RX_FIFO    = 0x5;
+    public static final int REG_POINTER    = 0x6;
+    public static final int REG_DATA       = 0x8;
+    public static final int REG_INT        = 0xc;
+    public static final int REG_INT_MASK   = 0xd;
+
+    //Bank 3
+    public static final int REG_MT         = 0x0;
+    public static final int REG_MGMT       = 0x8;
+    public static final int REG_REVISION   = 0xa;
+    public static final int REG_ERCV       = 0xc;
+
+    //全てのバンクに共通
+    public static final int REG_BANK       = 0xe;
+
+    public static final int TCR_TXENA      = 0x0001;
+    public static final int TCR_PAD_EN     = 0x0080;
+
+    public static final int EPH_TX_SUC     = 0x0001;
+    public static final int EPH_LINK_OK    = 0x4000;
+
+    public static final int RCR_PRMS       = 0x0002;
+    public static final int RCR_ALMUL      = 0x0004;
+    public static final int RCR_RXEN       = 0x0100;
+    public static final int RCR_STRIP_CRC  = 0x0200;
+    public static final int RCR_SOFT_RST   = 0x8000;
+
+    public static final int CTR_AUTO_RELEASE = 0x0800;
+
+    //MMU コマンド（MMU_CMD の 7 - 5ビット）
+    public static final int MMU_NOP          = 0;
+    public static final int MMU_ALLOC        = 1;
+    public static final int MMU_RESET        = 2;
+    public static final int MMU_REMOVE       = 3;
+    public static final int MMU_RELEASE      = 4;
+    public static final int MMU_FREEPKT      = 5;
+    public static final int MMU_ENQUEUE      = 6;
+    public static final int MMU_RESET_TXFIFO = 7;
+
+    public static final int ARR_FAILED     = 0x80;
+    public static final int FIFO_EMPTY     = 0x80;
+
+    public static final int PTR_RCV        = 0x8000;
+    public static final int PTR_AUTOINC    = 0x4000;
+    public static final int PTR_READ       = 0x2000;
+    public static final int PTR_MASK       = 0x07ff;
+
+    public static final int INT_RCV        = 0x01;
+    public static final int INT_TX         = 0x02;
+    public static final int INT_TX_EMPTY   = 0x04;
+    public static final int INT_ALLOC      = 0x08;
+    public static final int INT_RX_OVRN    = 0x10;
+    public static final int INT_EPH        = 0x20;
+    public static final int INT_MD         = 0x80;
+    //書き込みでクリアできる割り込み
+    public static final int INT_ACK_MASK   = INT_MD | 0x40 | INT_RX_OVRN |
+            INT_TX_EMPTY | INT_TX;
+
+    //受信フレームのステータス
+    public static final int RS_BRODCAST    = 0x4000;
+    public static final int RS_ODDFRM      = 0x1000;
+    public static final int RS_MULTCAST    = 0x0001;
+
+    //パケットの末尾のコントロールバイト
+    public static final int CTL_ODD        = 0x20;
+
+    public static final int BANK_ID        = 0x3300;
+    //Chip ID 9 (LAN91C111), Revision 1
+    public static final int REVISION       = 0x3391;
+    public static final int MGMT_MDI       = 0x0002;
+
+    //MAC アドレスの既定値、インスタンスごとに最下位のバイトを変える
+    private static final byte[] DEFAULT_MAC = {
+            0x52, 0x54, 0x00, 0x12, 0x34, 0x56,
+    };
+    private static int instances = 0;
+
+    private INTDestination intDst = new NullINTDestination();
+    private EtherDestination etherDst = new NullEtherDestination();
+
+    private byte[] mac;
+    private byte[][] packets;
+    //使用中のパケットのビットマップ
+    private int allocated;
+    //割り当てに失敗し、パケットの解放を待っている
+    private boolean allocPending;
+    private int[] rxFifo;
+    private int rxLen;
+    private int[] txDone;
+    private int txDoneLen;
+    //ロックの外で送信するフレーム
+    private List<EtherFrame> txFrames;
+
+    private int bank;
+    private int tcr;
+    private int ephStatus;
+    private int rcr;
+    private int rpcr;
+    private int config;
+    private int base;
+    private int gp;
+    private int control;
+    private int pnr;
+    private int arr;
+    private int ptr;
+    private int intStatus;
+    private int intMask;
+    private int mgmt;
+    private int ercv;
+    private byte[] mt;
+
+    public LAN91C111(String n) {
+        super(n);
+
+        setSlaveCore(new LAN91C111Slave());
+
+        mac = DEFAULT_MAC.clone();
+        synchronized (LAN91C111.class) {
+            mac[5] += instances;
+            instances++;
+        }
+        packets = new byte[NUM_PACKETS][PACKET_SIZE];
+        rxFifo = new int[NUM_PACKETS];
+        txDone = new int[NUM_PACKETS];
+        txFrames = new ArrayList<>();
+        mt = new byte[8];
+
+        rcr = 0;
+        reset();
+    }
+
+    /**
+     * MAC アドレスを取得します。
+     *
+     * @return MAC アドレス
+     */
+    public synchronized byte[] getMACAddress() {
+        return mac.clone();
+    }
+
+    /**
+     * MAC アドレスを設定します。
+     *
+     * 実機では EEPROM から読み出して IA レジスタに設定する値です。
+     *
+     * @param m MAC アドレス
+     */
+    public synchronized void setMACAddress(byte[] m) {
+        if (m.length != EtherFrame.ADDR_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal MAC address length %d.", m.length));
+        }
+
+        mac = m.clone();
+    }
+
+    /**
+     * RCR 以外のレジスタとパケットメモリを初期状態に戻します。
+     */
+    private void reset() {
+        bank = 0;
+        tcr = 0;
+        ephStatus = EPH_LINK_OK;
+        rpcr = 0;
+        config = 0xa0b1;
+        base = 0x1801;
+        gp = 0;
+        control = 0x1210;
+        pnr = 0;
+        arr = 0;
+        ptr = 0;
+        intStatus = 0;
+        intMask = 0;
+        mgmt = 0;
+        ercv = 0;
+        Arrays.fill(mt, (byte)0);
+        resetMMU();
+    }
+
+    /**
+     * 全てのパケットを解放し、FIFO を空にします。
+     */
+    private void resetMMU() {
+        allocated = 0;
+        allocPending = false;
+        rxLen = 0;
+        txDoneLen = 0;
+    }
+
+    private static int getByte(int reg, int off) {
+        return (reg >>> ((off & 1) * 8)) & 0xff;
+    }
+
+    private static int setByte(int reg, int off, int b) {
+        int sh = (off & 1) * 8;
+
+        return (reg & ~(0xff << sh)) | ((b & 0xff) << sh);
+    }
+
+    private int getFreePackets() {
+        return NUM_PACKETS - Integer.bitCount(allocated);
+    }
+
+    /**
+     * 空いているパケットを探して使用中にします。
+     *
+     * @return パケットの番号、空きがなければ -1
+     */
+    private int allocPacket() {
+        for (int i = 0; i < NUM_PACKETS; i++) {
+            if ((allocated & (1 << i)) == 0) {
+                allocated |= 1 << i;
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * 送信用のパケットの割り当てを試みます。
+     *
+     * 空きがなければ、パケットが解放されたときに再び試みます。
+     */
+    private void allocTx() {
+        int n;
+
+        if (!allocPending) {
+            return;
+        }
+
+        n = allocPacket();
+        if (n < 0) {
+            arr = ARR_FAILED;
+            return;
+        }
+
+        allocPending = false;
+        arr = n;
+        intStatus |= INT_ALLOC;
+    }
+
+    private void releasePacket(int n) {
+        if (n < 0 || NUM_PACKETS <= n) {
+            return;
+        }
+
+        allocated &= ~(1 << n);
+        allocTx();
+    }
+
+    private void popRxFifo() {
+        if (rxLen == 0) {
+            return;
+        }
+
+        rxLen--;
+        System.arraycopy(rxFifo, 1, rxFifo, 0, rxLen);
+    }
+
+    private void popTxDone() {
+        if (txDoneLen == 0) {
+            return;
+        }
+
+        txDoneLen--;
+        System.arraycopy(txDone, 1, txDone, 0, txDoneLen);
+    }
+
+    private void mmuCommand(int cmd) {
+        switch (cmd) {
+        case MMU_NOP:
+            break;
+        case MMU_ALLOC:
+            //ページ数の指定は無視し、常に 1パケット割り当てる
+            intStatus &= ~INT_ALLOC;
+            allocPending = true;
+            allocTx();
+            break;
+        case MMU_RESET:
+            resetMMU();
+            break;
+        case MMU_REMOVE:
+            popRxFifo();
+            break;
+        case MMU_RELEASE:
+            if (rxLen > 0) {
+                int n = rxFifo[0];
+
+                popRxFifo();
+                releasePacket(n);
+            }
+            break;
+        case MMU_FREEPKT:
+            releasePacket(pnr);
+            break;
+        case MMU_ENQUEUE:
+            transmit(pnr);
+            break;
+        case MMU_RESET_TXFIFO:
+            txDoneLen = 0;
+            break;
+        }
+    }
+
+    /**
+     * パケットを送信します。
+     *
+     * <p>
+     * パケットはステータス、バイト数、データ、コントロールバイトの順に並びます。
+     * 送信したフレームはロックを解放してから送信先に渡します。
+     * 送信が終わったパケットは送信完了 FIFO に積むか、自動的に解放します。
+     * </p>
+     *
+     * @param n パケットの番号
+     */
+    private void transmit(int n) {
+        byte[] p, b;
+        int count, last, len, size, status;
+
+        if (n < 0 || NUM_PACKETS <= n) {
+            return;
+        }
+
+        p = packets[n];
+        //バイト数はゲストが書き込むため、パケットの範囲に収まるか確かめてから使う
+        count = ((p[2] & 0xff) | ((p[3] & 0xff) << 8)) & PTR_MASK;
+        len = -1;
+        if (count >= PACKET_OVERHEAD) {
+            //コントロールバイトを含む最後のワードの位置
+            last = Math.min((count - 2) & ~1, PACKET_SIZE - 2);
+            len = last - 4;
+            if ((p[last + 1] & CTL_ODD) != 0) {
+                len++;
+            }
+        }
+
+        status = EPH_LINK_OK;
+        if (len < EtherFrame.HEADER_SIZE) {
+            //送信せず、EPH_STATUS の TX_SUC を立てないことでエラーを示す
+            log.debug("%s: drop tx packet %d, illegal byte count %d.\n",
+                    getName(), n, count);
+        } else if ((tcr & TCR_TXENA) != 0) {
+            size = len;
+            if ((tcr & TCR_PAD_EN) != 0) {
+                size = Math.max(size, EtherFrame.MIN_SIZE);
+            }
+            b = new byte[size];
+            System.arraycopy(p, 4, b, 0, len);
+            txFrames.add(new EtherFrame(b));
+            status |= EPH_TX_SUC;
+        } else {
+            log.debug("%s: drop tx packet %d, len %d, tcr 0x%04x.\n",
+                    getName(), n, len, tcr);
+        }
+
+        ephStatus = status;
+        p[0] = (byte)status;
+        p[1] = (byte)(status >>> 8);
+
+        if ((control & CTR_AUTO_RELEASE) != 0) {
+            releasePacket(n);
+        } else if (txDoneLen < NUM_PACKETS) {
+            txDone[txDoneLen] = n;
+            txDoneLen++;
+        }
+        intStatus |= INT_TX_EMPTY;
+    }
+
+    /**
+     * 送信を待っているフレームを送信先に渡します。
+     *
+     * 受け手が同じスレッドでロックを獲得するため、ロックを獲得せずに呼び出してください。
+     */
+    private void flushFrames() {
+        List<EtherFrame> l;
+        EtherDestination d;
+
+        synchronized (this) {
+            if (txFrames.isEmpty()) {
+                return;
+            }
+            l = txFrames;
+            txFrames = new ArrayList<>();
+            d = etherDst;
+        }
+
+        for (EtherFrame f : l) {
+            d.receiveFrame(f);
+        }
+    }
+
+    /**
+     * フレームを受信するかどうかを判定します。
+     *
+     * @param f フレーム
+     * @return 受信するならば true、そうでなければ false
+     */
+    private boolean acceptFrame(EtherFrame f) {
+        boolean hash = false;
+        byte[] d = f.getData();
+
+        if ((rcr & RCR_RXEN) == 0 || (rcr & RCR_SOFT_RST) != 0) {
+            return false;
+        }
+        if (f.getLength() > MAX_FRAME) {
+            return false;
+        }
+        if ((rcr & RCR_PRMS) != 0 || f.isBroadcast()) {
+            return true;
+        }
+        if (f.isMulticast()) {
+            //ハッシュの計算は省略し、いずれかのビットが立っていれば受信する
+            for (byte b : mt) {
+                hash |= b != 0;
+            }
+            return (rcr & RCR_ALMUL) != 0 || hash;
+        }
+
+        for (int i = 0; i < EtherFrame.ADDR_SIZE; i++) {
+            if (d[i] != mac[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 受信したフレームをパケットメモリに格納し、受信 FIFO に積みます。
+     *
+     * @param f フレーム
+     */
+    private void storeFrame(EtherFrame f) {
+        byte[] p;
+        int n, len, size, even, pos, count, status;
+        CRC32 crc;
+
+        n = allocPacket();
+        if (n < 0 || rxLen == NUM_PACKETS) {
+            releasePacket(n);
+            intStatus |= INT_RX_OVRN;
+            return;
+        }
+
+        p = packets[n];
+        len = f.getLength();
+        //短いフレームはパディングする
+        size = Math.max(len, EtherFrame.MIN_SIZE);
+        even = size & ~1;
+
+        status = 0;
+        if (f.isBroadcast()) {
+            status |= RS_BRODCAST;
+        } else if (f.isMulticast()) {
+            status |= RS_MULTCAST;
+        }
+        if ((size & 1) != 0) {
+            status |= RS_ODDFRM;
+        }
+
+        System.arraycopy(f.getData(), 0, p, 4, len);
+        Arrays.fill(p, 4 + len, 4 + size, (byte)0);
+        pos = 4 + even;
+        if ((rcr & RCR_STRIP_CRC) == 0) {
+            crc = new CRC32();
+            crc.update(p, 4, size);
+            //奇数長の場合、最後のバイトはコントロールバイトと共に置く
+            if ((size & 1) != 0) {
+                p[pos + FCS_SIZE] = p[pos];
+            }
+            for (int i = 0; i < FCS_SIZE; i++) {
+                p[pos + i] = (byte)(crc.getValue() >>> (i * 8));
+            }
+            pos += FCS_SIZE;
+        }
+        if ((size & 1) == 0) {
+            p[pos] = 0;
+        }
+        p[pos + 1] = (byte)(((size & 1) != 0) ? CTL_ODD : 0);
+        count = pos + 2;
+
+        p[0] = (byte)status;
+        p[1] = (byte)(status >>> 8);
+        p[2] = (byte)count;
+        p[3] = (byte)(count >>> 8);
+
+        rxFifo[rxLen] = n;
+        rxLen++;
+    }
+
+    /**
+     * データレジスタがアクセスするパケットを取得します。
+     *
+     * @return パケット、パケットの番号が範囲外ならば null
+     */
+    private byte[] getDataPacket() {
+        int n;
+
+        if ((ptr & PTR_RCV) != 0) {
+            n = rxFifo[0];
+        } else {
+            n = pnr;
+        }
+        if (n < 0 || NUM_PACKETS <= n) {
+            return null;
+        }
+
+        return packets[n];
+    }
+
+    /**
+     * データレジスタがアクセスするパケット内の位置を取得し、
+     * 自動インクリメントが有効ならばポインタを進めます。
+     *
+     * @param off データレジスタのアドレス
+     * @return パケット内の位置
+     */
+    private int nextDataPos(int off) {
+        int pos = ptr & PTR_MASK;
+
+        if ((ptr & PTR_AUTOINC) != 0) {
+            ptr = (ptr & ~PTR_MASK) | ((ptr + 1) & PTR_MASK);
+        } else {
+            pos = (pos + (off & 3)) & PTR_MASK;
+        }
+
+        return pos;
+    }
+
+    private int getINTStatus() {
+        int result = intStatus;
+
+        if (rxLen > 0) {
+            result |= INT_RCV;
+        }
+        if (txDoneLen > 0) {
+            result |= INT_TX;
+        }
+
+        return result;
+    }
+
+    /**
+     * レジスタを 1バイト読み出します。
+     *
+     * @param off レジスタのアドレス
+     * @return 読み出した値
+     */
+    private int readReg(int off) {
+        byte[] p;
+        int pos;
+
+        if (off == REG_BANK) {
+            return bank;
+        } else if (off == REG_BANK + 1) {
+            return BANK_ID >>> 8;
+        }
+
+        switch ((bank << 4) | off) {
+        case 0x00:
+        case 0x01:
+            return getByte(tcr, off);
+        case 0x02:
+        case 0x03:
+            return getByte(ephStatus, off);
+        case 0x04:
+        case 0x05:
+            return getByte(rcr, off);
+        case 0x08:
+            return NUM_PACKETS;
+        case 0x09:
+            return getFreePackets();
+        case 0x0a:
+        case 0x0b:
+            return getByte(rpcr, off);
+        case 0x10:
+        case 0x11:
+            return getByte(config, off);
+        case 0x12:
+        case 0x13:
+            return getByte(base, off);
+        case 0x14:
+        case 0x15:
+        case 0x16:
+        case 0x17:
+        case 0x18:
+        case 0x19:
+            return mac[off - REG_IA] & 0xff;
+        case 0x1a:
+        case 0x1b:
+            return getByte(gp, off);
+        case 0x1c:
+        case 0x1d:
+            return getByte(control, off);
+        case 0x20:
+        case 0x21:
+            //MMU は常に busy でない
+            return 0;
+        case 0x22:
+            return pnr;
+        case 0x23:
+            return arr;
+        case 0x24:
+            return (txDoneLen == 0) ? FIFO_EMPTY : txDone[0];
+        case 0x25:
+            return (rxLen == 0) ? FIFO_EMPTY : rxFifo[0];
+        case 0x26:
+        case 0x27:
+            return getByte(ptr, off);
+        case 0x28:
+        case 0x29:
+        case 0x2a:
+        case 0x2b:
+            p = getDataPacket();
+            pos = nextDataPos(off);
+            return (p == null) ? 0 : p[pos] & 0xff;
+        case 0x2c:
+            return getINTStatus();
+        case 0x2d:
+            return intMask;
+        case 0x30:
+        case 0x31:
+        case 0x32:
+        case 0x33:
+        case 0x34:
+        case 0x35:
+        case 0x36:
+        case 0x37:
+            return mt[off - REG_MT] & 0xff;
+        case 0x38:
+        case 0x39:
+            //PHY は存在しないので MDI は常に 0
+            return getByte((mgmt & ~MGMT_MDI) | 0x3330, off);
+        case 0x3a:
+        case 0x3b:
+            return getByte(REVISION, off);
+        case 0x3c:
+        case 0x3d:
+            return getByte(ercv, off);
+        default:
+            //reserved, read only or counter
+            return 0;
+        }
+    }
+
+    /**
+     * レジスタに 1バイト書き込みます。
+     *
+     * @param off レジスタのアドレス
+     * @param b   書き込む値
+     */
+    private void writeReg(int off, int b) {
+        byte[] p;
+        int pos;
+
+        b &= 0xff;
+        if (off == REG_BANK) {
+            bank = b & 0x3;
+            return;
+        } else if (off == REG_BANK + 1) {
+            //read only, ignored
+            return;
+        }
+
+        switch ((bank << 4) | off) {
+        case 0x00:
+        case 0x01:
+            tcr = setByte(tcr, off, b);
+            break;
+        case 0x04:
+        case 0x05:
+            if ((rcr & RCR_SOFT_RST) == 0 && off == REG_RCR + 1 &&
+                    (b & (RCR_SOFT_RST >>> 8)) != 0) {
+                log.debug("%s: soft reset.\n", getName());
+                reset();
+            }
+            rcr = setByte(rcr, off, b);
+            break;
+        case 0x0a:
+        case 0x0b:
+            rpcr = setByte(rpcr, off, b);
+            break;
+        case 0x10:
+        case 0x11:
+            config = setByte(config, off, b);
+            break;
+        case 0x12:
+        case 0x13:
+            base = setByte(base, off, b);
+            break;
+        case 0x14:
+        case 0x15:
+        case 0x16:
+        case 0x17:
+        case 0x18:
+        case 0x19:
+            mac[off - REG_IA] = (byte)b;
+            break;
+        case 0x1a:
+        case 0x1b:
+            gp = setByte(gp, off, b);
+            break;
+        case 0x1c:
+        case 0x1d:
+            control = setByte(control, off, b);
+            break;
+        case 0x20:
+            mmuCommand(b >>> 5);
+            break;
+        case 0x22:
+            pnr = b & 0x3f;
+            break;
+        case 0x26:
+        case 0x27:
+            ptr = setByte(ptr, off, b);
+            break;
+        case 0x28:
+        case 0x29:
+        case 0x2a:
+        case 0x2b:
+            p = getDataPacket();
+            pos = nextDataPos(off);
+            if (p != null) {
+                p[pos] = (byte)b;
+            }
+            break;
+        case 0x2c:
+            intStatus &= ~(b & INT_ACK_MASK);
+            if ((b & INT_TX) != 0) {
+                popTxDone();
+            }
+            break;
+        case 0x2d:
+            intMask = b;
+            break;
+        case 0x30:
+        case 0x31:
+        case 0x32:
+        case 0x33:
+        case 0x34:
+        case 0x35:
+        case 0x36:
+        case 0x37:
+            mt[off - REG_MT] = (byte)b;
+            break;
+        case 0x38:
+        case 0x39:
+            mgmt = setByte(mgmt, off, b);
+            break;
+        case 0x3c:
+        case 0x3d:
+            ercv = setByte(ercv, off, b);
+            break;
+        default:
+            //reserved or read only, ignored
+            break;
+        }
+    }
+
+    /**
+     * 割り込みの状態を割り込み先に通知します。
+     *
+     * 割り込み先がロックを獲得するため、ロックを獲得せずに呼び出してください。
+     */
+    private void updateInterrupts() {
+        intDst.setRaisedInterrupt(isAssert());
+    }
+
+    @Override
+    public void receiveFrame(EtherFrame f) {
+        synchronized (this) {
+            if (!acceptFrame(f)) {
+                return;
+            }
+            storeFrame(f);
+        }
+
+        updateInterrupts();
+    }
+
+    @Override
+    public EtherDestination getEtherDestination() {
+        return etherDst;
+    }
+
+    @Override
+    public void connectEtherDestination(EtherDestination d) {
+        etherDst = d;
+    }
+
+    @Override
+    public void disconnectEtherDestination() {
+        etherDst = new NullEtherDestination();
+    }
+
+    @Override
+    public INTDestination getINTDestination() {
+        return intDst;
+    }
+
+    @Override
+    public void connectINTDestination(INTDestination c) {
+        intDst = c;
+    }
+
+    @Override
+    public void disconnectINTDestination() {
+        intDst = new NullINTDestination();
+    }
+
+    @Override
+    public synchronized boolean isAssert() {
+        return (getINTStatus() & intMask) != 0;
+    }
+
+    @Override
+    public String getIRQMessage() {
+        return "LAN91C111";
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * 送信先に渡していないフレームは保存しません。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        synchronized (this) {
+            out.write(mac);
+            for (byte[] p : packets) {
+                out.write(p);
+            }
+            out.writeInt(allocated);
+            out.writeBoolean(allocPending);
+            out.writeInt(rxLen);
+            for (int i = 0; i < rxLen; i++) {
+                out.writeInt(rxFifo[i]);
+            }
+            out.writeInt(txDoneLen);
+            for (int i = 0; i < txDoneLen; i++) {
+                out.writeInt(txDone[i]);
+            }
+
+            out.writeInt(bank);
+            out.writeInt(tcr);
+            out.writeInt(ephStatus);
+            out.writeInt(rcr);
+            out.writeInt(rpcr);
+            out.writeInt(config);
+            out.writeInt(base);
+            out.writeInt(gp);
+            out.writeInt(control);
+            out.writeInt(pnr);
+            out.writeInt(arr);
+            out.writeInt(ptr);
+            out.writeInt(intStatus);
+            out.writeInt(intMask);
+            out.writeInt(mgmt);
+            out.writeInt(ercv);
+            out.write(mt);
+        }
+    }
+
+    @Override
+    public synchronized void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        in.readFully(mac);
+        for (byte[] p : packets) {
+            in.readFully(p);
+        }
+        allocated = in.readInt();
+        allocPending = in.readBoolean();
+        rxLen = in.readInt();
+        if (rxLen < 0 || NUM_PACKETS < rxLen) {
+            throw new IOException("Illegal LAN91C111 Rx FIFO length " + rxLen);
+        }
+        for (int i = 0; i < rxLen; i++) {
+            rxFifo[i] = in.readInt();
+        }
+        txDoneLen = in.readInt();
+        if (txDoneLen < 0 || NUM_PACKETS < txDoneLen) {
+            throw new IOException("Illegal LAN91C111 Tx FIFO length " + txDoneLen);
+        }
+        for (int i = 0; i < txDoneLen; i++) {
+            txDone[i] = in.readInt();
+        }
+        txFrames.clear();
+
+        bank = in.readInt();
+        tcr = in.readInt();
+        ephStatus = in.readInt();
+        rcr = in.readInt();
+        rpcr = in.readInt();
+        config = in.readInt();
+        base = in.readInt();
+        gp = in.readInt();
+        control = in.readInt();
+        pnr = in.readInt();
+        arr = in.readInt();
+        ptr = in.readInt();
+        intStatus = in.readInt();
+        intMask = in.readInt();
+        mgmt = in.readInt();
+        ercv = in.readInt();
+        in.readFully(mt);
+    }
+
+    class LAN91C111Slave extends SlaveCore64 {
+        //レジスタのアドレスの範囲、以降は繰り返し現れる
+        public static final int REG_MASK = 0xf;
+
+        public LAN91C111Slave() {
+            //do nothing
+        }
+
+        @Override
+        public boolean tryAccess(BusMaster64 m, long addr, int len) {
+            return true;
+        }
+
+        /**
+         * 下位のアドレスから順にレジスタを読み出します。
+         *
+         * @param addr 読み出しを開始するアドレス
+         * @param len  読み出す長さ（バイト単位）
+         * @return 読み出した値（リトルエンディアン）
+         */
+        private int readBytes(long addr, int len) {
+            int result = 0;
+
+            synchronized (LAN91C111.this) {
+                for (int i = 0; i < len; i++) {
+                    result |= readReg((int)((addr + i) & REG_MASK)) << (i * 8);
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * 下位のアドレスから順にレジスタに書き込みます。
+         *
+         * 書き込みによって送信したフレームと割り込みは、ロックを解放してから通知します。
+         *
+         * @param addr 書き込みを開始するアドレス
+         * @param len  書き込む長さ（バイト単位）
+         * @param data 書き込む値（リトルエンディアン）
+         */
+        private void writeBytes(long addr, int len, int data) {
+            synchronized (LAN91C111.this) {
+                for (int i = 0; i < len; i++) {
+                    writeReg((int)((addr + i) & REG_MASK), data >>> (i * 8));
+                }
+            }
+
+            flushFrames();
+            updateInterrupts();
+        }
+
+        @Override
+        public byte read8(BusMaster64 m, long addr) {
+            return (byte)readBytes(addr, 1);
+        }
+
+        @Override
+        public short read16(BusMaster64 m, long addr) {
+            return (short)readBytes(addr, 2);
+        }
+
+        @Override
+        public int read32(BusMaster64 m, long addr) {
+            return readBytes(addr, 4);
+        }
+
+        @Override
+        public void write8(BusMaster64 m, long addr, byte data) {
+            writeBytes(addr, 1, data);
+        }
+
+        @Override
+        public void write16(BusMaster64 m, long addr, short data) {
+            writeBytes(addr, 2, data);
+        }
+
+        @Override
+        public void write32(BusMaster64 m, long addr, int data) {
+            writeBytes(addr, 4, data);
+        }
+
+        @Override
+        public void run() {
+            //do nothing
+        }
+    }
+}
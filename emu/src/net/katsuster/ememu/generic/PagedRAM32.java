@@ -0,0 +1,481 @@
+package net.katsuster.ememu.generic;
+
+import java.util.*;
+
+import net.katsuster.ememu.generic.bus.BusMaster64;
+
+/**
+ * 64 ビットアドレス、32 ビットデータ、ページ単位で確保する RAM
+ *
+ * <p>
+ * RAM をページに分割し、各ページは最初に書き込まれたときに確保します。
+ * 一度も書き込まれていないページは全てのページで共有する
+ * ゼロページを指しており、読み出すと 0 が得られます。
+ * </p>
+ *
+ * <p>
+ * 大きな RAM を作成してもゲストが触れた分しかメモリを消費しません。
+ * </p>
+ *
+ * <p>
+ * fork, shareFrom で他の RAM とページを共有できます。
+ * 共有中のページは読み出し専用として扱い、
+ * 書き込まれたときにそのページだけを複製します（コピーオンライト）。
+ * 起動済みの RAM から多数の RAM を作成しても、
+ * 消費するメモリはそれぞれが書き換えた分だけで済みます。
+ * </p>
+ */
+public class PagedRAM32 extends RAM {
+    //データ幅（バイト単位）
+    public static final int LEN_WORD = 4;
+    //データ幅（ビット単位）
+    public static final int LEN_WORD_BITS = LEN_WORD * 8;
+
+    //ページサイズ（バイト単位）
+    public static final int PAGE_SIZE_4K = 4 * 1024;
+    public static final int PAGE_SIZE_64K = 64 * 1024;
+
+    //ページサイズごとのゼロページ
+    private static final Map<Integer, int[]> zeroPages = new HashMap<>();
+
+    private int pageSize;
+    private int pageShift;
+    private int pageMask;
+    private int[] zeroPage;
+    private int[][] pages;
+    //ページごとに、共有中で書き込み前に複製が必要なページ
+    //（ゼロページ、または他の RAM と共有するページ）
+    //ページが自身の確保したページと入れ替わっていれば直接書き込める
+    private int[][] shared;
+    private int words;
+    private int allocated;
+
+    /**
+     * 64KB ページの RAM を作成します。
+     *
+     * @param size RAM サイズ（バイト単位）
+     */
+    public PagedRAM32(int size) {
+        this(size, PAGE_SIZE_64K);
+    }
+
+    /**
+     * RAM を作成します。
+     *
+     * @param size  RAM サイズ（バイト単位）
+     * @param psize ページサイズ（バイト単位、2 のべき乗）
+     */
+    public PagedRAM32(int size, int psize) {
+        super(size);
+
+        if (psize < LEN_WORD || Integer.bitCount(psize) != 1) {
+            throw new IllegalArgumentException(String.format(
+                    "page size %d is not power of 2.", psize));
+        }
+
+        this.pageSize = psize;
+        this.pageShift = Integer.numberOfTrailingZeros(psize / LEN_WORD);
+        this.pageMask = (psize / LEN_WORD) - 1;
+        this.zeroPage = getZeroPage(psize / LEN_WORD);
+        this.words = size / LEN_WORD;
+        this.pages = new int[(size + psize - 1) / psize][];
+        Arrays.fill(pages, zeroPage);
+        this.shared = pages.clone();
+        this.allocated = 0;
+    }
+
+    /**
+     * 指定したワード数のゼロページを取得します。
+     *
+     * @param len ページのワード数
+     * @return ゼロページ
+     */
+    private static int[] getZeroPage(int len) {
+        synchronized (zeroPages) {
+            int[] p = zeroPages.get(len);
+
+            if (p == null) {
+                p = new int[len];
+                zeroPages.put(len, p);
+            }
+
+            return p;
+        }
+    }
+
+    /**
+     * ページサイズを取得します。
+     *
+     * @return ページサイズ（バイト単位）
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * ページ数を取得します。
+     *
+     * @return ページ数
+     */
+    public int getPages() {
+        return pages.length;
+    }
+
+    /**
+     * 確保済みのページ数を取得します。
+     *
+     * 他の RAM と共有しているページは含みません。
+     *
+     * @return 確保済みのページ数
+     */
+    public int getAllocatedPages() {
+        return allocated;
+    }
+
+    /**
+     * 指定したページが確保済みかどうかを取得します。
+     *
+     * @param n ページ番号
+     * @return 確保済みであれば true、
+     * ゼロページのまま、または他の RAM と共有していれば false
+     */
+    public boolean isAllocatedPage(int n) {
+        return pages[n] != shared[n];
+    }
+
+    /**
+     * 全てのページを共有する RAM を作成します。
+     *
+     * この RAM と作成した RAM は、以降どちらかが書き込んだページのみ複製します。
+     * データの複製は行わないため、RAM の大きさによらず高速に作成できます。
+     *
+     * @return 全てのページを共有する RAM
+     */
+    public PagedRAM32 fork() {
+        PagedRAM32 r = new PagedRAM32(getSize(), getPageSize());
+
+        r.shareFrom(this);
+
+        return r;
+    }
+
+    /**
+     * 指定した RAM と全てのページを共有し、同じ内容にします。
+     *
+     * この RAM がそれまでに確保したページは破棄されます。
+     * 共有元の RAM に書き込むコアは停止してから呼び出してください。
+     *
+     * @param base 共有元の RAM、大きさとページサイズが同じである必要があります
+     */
+    public void shareFrom(PagedRAM32 base) {
+        if (base == this) {
+            return;
+        }
+        if (base.getSize() != getSize() || base.getPageSize() != getPageSize()) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot share pages of RAM size:%d page:%d with size:%d page:%d.",
+                    base.getSize(), base.getPageSize(), getSize(), getPageSize()));
+        }
+
+        synchronized (base) {
+            synchronized (this) {
+                for (int i = 0; i < pages.length; i++) {
+                    base.shared[i] = base.pages[i];
+                    shared[i] = base.pages[i];
+                    pages[i] = base.pages[i];
+                }
+                allocated = 0;
+                base.allocated = 0;
+            }
+        }
+
+        //内容が変わったため全てのページを書き込まれたものとする
+        markDirty(0, getSize());
+    }
+
+    /**
+     * バイトアドレスを RAM のワードアドレスに変換します。
+     *
+     * @param addr バイトアドレス
+     * @return RAM のワードアドレス
+     */
+    protected int getWordAddress(long addr) {
+        return (int)(addr / LEN_WORD);
+    }
+
+    /**
+     * RAM のワード数を取得します。
+     *
+     * @return RAM のワード数
+     */
+    protected int getWords() {
+        return words;
+    }
+
+    @Override
+    public byte read8(BusMaster64 m, long addr) {
+        int v = readWord(addr);
+
+        return (byte)BitOp.readMasked(addr, v, LEN_WORD_BITS, 8);
+    }
+
+    @Override
+    public short read16(BusMaster64 m, long addr) {
+        int v = readWord(addr);
+
+        return (short)BitOp.readMasked(addr, v, LEN_WORD_BITS, 16);
+    }
+
+    @Override
+    public int read32(BusMaster64 m, long addr) {
+        return readWord(addr);
+    }
+
+    @Override
+    public long read64(BusMaster64 m, long addr) {
+        long data;
+
+        data = (((long)readWord(addr + 0) & 0xffffffffL) << 0) |
+                (((long)readWord(addr + 4) & 0xffffffffL) << 32);
+
+        return data;
+    }
+
+    @Override
+    public void write8(BusMaster64 m, long addr, byte data) {
+        int v = readWord(addr);
+        int w = (int)BitOp.writeMasked(addr, v, data, LEN_WORD_BITS, 8);
+
+        writeWord(addr, w);
+    }
+
+    @Override
+    public void write16(BusMaster64 m, long addr, short data) {
+        int v = readWord(addr);
+        int w = (int)BitOp.writeMasked(addr, v, data, LEN_WORD_BITS, 16);
+
+        writeWord(addr, w);
+    }
+
+    @Override
+    public void write32(BusMaster64 m, long addr, int data) {
+        writeWord(addr, data);
+    }
+
+    @Override
+    public void write64(BusMaster64 m, long addr, long data) {
+        writeWord(addr + 0, (int)(data >>> 0));
+        writeWord(addr + 4, (int)(data >>> 32));
+    }
+
+    public int readWord(long addr) {
+        int wordAddr;
+
+        addr &= BitOp.getAddressMask(LEN_WORD_BITS);
+        checkAddress(addr, LEN_WORD);
+
+        wordAddr = getWordAddress(addr);
+        if (wordAddr >= words) {
+            throw new ArrayIndexOutOfBoundsException(wordAddr);
+        }
+
+        return pages[wordAddr >>> pageShift][wordAddr & pageMask];
+    }
+
+    public void writeWord(long addr, int data) {
+        int wordAddr;
+        int[] p;
+
+        addr &= BitOp.getAddressMask(LEN_WORD_BITS);
+        checkAddress(addr, LEN_WORD);
+
+        wordAddr = getWordAddress(addr);
+        if (wordAddr >= words) {
+            throw new ArrayIndexOutOfBoundsException(wordAddr);
+        }
+
+        p = pages[wordAddr >>> pageShift];
+        if (p == shared[wordAddr >>> pageShift]) {
+            if (p == zeroPage && data == 0) {
+                //ゼロページに 0 を書いても変化しない
+                return;
+            }
+            p = allocatePage(wordAddr >>> pageShift);
+        }
+
+        p[wordAddr & pageMask] = data;
+        markDirty(addr, LEN_WORD);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * ワード境界に揃った領域はページを直接読み出します。
+     * </p>
+     */
+    @Override
+    public void readBlock(long addr, byte[] b, int off, int len) {
+        int w;
+
+        if ((addr & 3) != 0 || (len & 3) != 0) {
+            super.readBlock(addr, b, off, len);
+            return;
+        }
+        w = checkBlock(addr, len);
+
+        for (int i = 0; i < len; i += 4, w++) {
+            int v = pages[w >>> pageShift][w & pageMask];
+
+            b[off + i + 0] = (byte)(v >>> 0);
+            b[off + i + 1] = (byte)(v >>> 8);
+            b[off + i + 2] = (byte)(v >>> 16);
+            b[off + i + 3] = (byte)(v >>> 24);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * ワード境界に揃った領域はページに直接書き込みます。
+     * ゼロページに 0 を書き込む場合はページを確保しません。
+     * </p>
+     */
+    @Override
+    public void writeBlock(long addr, byte[] b, int off, int len) {
+        boolean written = false;
+        int w;
+
+        if ((addr & 3) != 0 || (len & 3) != 0) {
+            super.writeBlock(addr, b, off, len);
+            return;
+        }
+        w = checkBlock(addr, len);
+
+        for (int i = 0; i < len; i += 4, w++) {
+            int v = ((b[off + i + 0] & 0xff) << 0) |
+                    ((b[off + i + 1] & 0xff) << 8) |
+                    ((b[off + i + 2] & 0xff) << 16) |
+                    ((b[off + i + 3] & 0xff) << 24);
+            int[] p = pages[w >>> pageShift];
+
+            if (p == shared[w >>> pageShift]) {
+                if (p == zeroPage && v == 0) {
+                    continue;
+                }
+                p = allocatePage(w >>> pageShift);
+            }
+            p[w & pageMask] = v;
+            written = true;
+        }
+
+        if (written) {
+            markDirty(addr, len);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * ワード境界に揃った領域はページを直接埋めます。
+     * ゼロページのままのページは確保せずに飛ばします。
+     * 共有中のページは、ページ全体を埋める場合は複製せずにゼロページに戻し、
+     * 一部を埋める場合のみ複製します。
+     * </p>
+     */
+    @Override
+    public void clearBlock(long addr, int len) {
+        boolean written = false;
+        int w, end;
+
+        if ((addr & 3) != 0 || (len & 3) != 0) {
+            super.clearBlock(addr, len);
+            return;
+        }
+        w = checkBlock(addr, len);
+        end = w + len / LEN_WORD;
+
+        while (w < end) {
+            int n = w >>> pageShift;
+            int next = Math.min((n + 1) << pageShift, end);
+            int[] p = pages[n];
+
+            if (p != zeroPage) {
+                if (p == shared[n] && next - w == zeroPage.length) {
+                    p = releasePage(n);
+                } else if (p == shared[n]) {
+                    p = allocatePage(n);
+                }
+                if (p != zeroPage) {
+                    Arrays.fill(p, w & pageMask, ((next - 1) & pageMask) + 1, 0);
+                }
+                written = true;
+            }
+            w = next;
+        }
+
+        if (written) {
+            markDirty(addr, len);
+        }
+    }
+
+    /**
+     * 連続した領域が RAM に収まるか検査します。
+     *
+     * @param addr 開始アドレス（ワード境界）
+     * @param len  長さ（バイト単位）
+     * @return 開始アドレスのワードアドレス
+     */
+    private int checkBlock(long addr, int len) {
+        if (addr < 0 || len < 0 || addr + len > (long)words * LEN_WORD) {
+            throw new ArrayIndexOutOfBoundsException(String.format(
+                    "block 0x%08x-0x%08x is out of RAM.", addr, addr + len));
+        }
+
+        return getWordAddress(addr);
+    }
+
+    /**
+     * ページを確保します。
+     *
+     * ゼロページであれば新たなページを、
+     * 共有中のページであれば複製したページを確保します。
+     *
+     * @param n ページ番号
+     * @return 確保したページ
+     */
+    private synchronized int[] allocatePage(int n) {
+        int[] p = pages[n];
+
+        if (p == shared[n]) {
+            if (p == zeroPage) {
+                p = new int[zeroPage.length];
+            } else {
+                p = p.clone();
+            }
+            pages[n] = p;
+            allocated++;
+        }
+
+        return p;
+    }
+
+    /**
+     * 共有中のページの共有をやめ、ゼロページに戻します。
+     *
+     * 既に確保済みのページであれば何もしません。
+     *
+     * @param n ページ番号
+     * @return 戻した後のページ、確保済みのページであればそのページ
+     */
+    private synchronized int[] releasePage(int n) {
+        if (pages[n] == shared[n]) {
+            pages[n] = zeroPage;
+            shared[n] = zeroPage;
+        }
+
+        return pages[n];
+    }
+}
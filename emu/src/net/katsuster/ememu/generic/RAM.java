@@ -1,13 +1,43 @@
 package net.katsuster.ememu.generic;
 
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
 import net.katsuster.ememu.generic.bus.BusMaster64;
 import net.katsuster.ememu.generic.core.SlaveCore64;
 
 /**
  * 64 ビットアドレス RAM
+ *
+ * <p>
+ * 書き込まれたページ（DIRTY_PAGE_SIZE 単位）を記録しています。
+ * 記録は fetchAndClearDirty で取り出すと同時に消去されます。
+ * </p>
+ *
+ * <p>
+ * スナップショットには SNAPSHOT_CHUNK_SIZE 単位で圧縮して保存します。
+ * 全て 0 のチャンクは中身を保存しません。
+ * </p>
  */
-abstract public class RAM extends SlaveCore64 {
+abstract public class RAM extends SlaveCore64 implements Snapshottable {
+    //書き込みを記録するページのサイズ（バイト単位）
+    public static final int DIRTY_PAGE_SHIFT = 12;
+    public static final int DIRTY_PAGE_SIZE = 1 << DIRTY_PAGE_SHIFT;
+
+    //スナップショットの圧縮単位（バイト単位）
+    public static final int SNAPSHOT_CHUNK_SIZE = 64 * 1024;
+    //スナップショットのチャンクの種類
+    private static final int CHUNK_ZERO = 0;
+    private static final int CHUNK_DEFLATE = 1;
+
     private int size;
+    //書き込まれたページのビットマップ
+    private AtomicLongArray dirty;
+    //ページごとの書き込み監視、監視していなければ null
+    private volatile RAMWriteWatcher[] watchers;
 
     /**
      * RAM を作成します。
@@ -20,6 +50,7 @@ abstract public class RAM extends SlaveCore64 {
         }
 
         this.size = size;
+        this.dirty = new AtomicLongArray((getDirtyPages() + 63) / 64);
     }
 
     /**
@@ -68,6 +99,469 @@ abstract public class RAM extends SlaveCore64 {
         }
     }
 
+    /**
+     * 書き込みを記録するページの数を取得します。
+     *
+     * @return ページ数
+     */
+    public int getDirtyPages() {
+        return (int)(((long)size + DIRTY_PAGE_SIZE - 1) >>> DIRTY_PAGE_SHIFT);
+    }
+
+    /**
+     * 指定した範囲を含むページを、書き込まれたページとして記録します。
+     *
+     * 書き込み監視が設定されていれば、監視対象のページについて通知します。
+     *
+     * @param addr 書き込んだアドレス（RAM 内のバイトアドレス）
+     * @param len  書き込んだ長さ（バイト単位）
+     */
+    protected void markDirty(long addr, int len) {
+        int st = (int)(addr >>> DIRTY_PAGE_SHIFT);
+        int ed = (int)((addr + len - 1) >>> DIRTY_PAGE_SHIFT);
+        RAMWriteWatcher[] w;
+
+        for (int page = st; page <= ed; page++) {
+            int ind = page >>> 6;
+            long bit = 1L << page;
+            long v = dirty.get(ind);
+
+            while ((v & bit) == 0) {
+                if (dirty.compareAndSet(ind, v, v | bit)) {
+                    break;
+                }
+                v = dirty.get(ind);
+            }
+        }
+
+        w = watchers;
+        if (w != null) {
+            for (int page = st; page <= ed; page++) {
+                if (w[page] != null) {
+                    w[page].pageWritten(this, page, addr);
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定したページが書き込まれたかどうかを取得します。
+     *
+     * @param page ページ番号
+     * @return 前回記録を消去してから書き込まれていれば true、そうでなければ false
+     */
+    public boolean isDirty(int page) {
+        return (dirty.get(page >>> 6) & (1L << page)) != 0;
+    }
+
+    /**
+     * 指定した範囲のページについて、書き込まれたページを取得し、
+     * 同時に記録を消去します。
+     *
+     * 取得と消去は 64 ページ単位で不可分に行われるため、
+     * 実行中に書き込まれたページを取りこぼすことはありません。
+     *
+     * @param start 最初のページ番号
+     * @param end   最後のページ番号（このページを含む）
+     * @return 書き込まれたページの番号を立てたビット集合
+     */
+    public BitSet fetchAndClearDirty(int start, int end) {
+        BitSet result = new BitSet(getDirtyPages());
+
+        if (start < 0 || end >= getDirtyPages() || start > end) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal page range %d - %d.", start, end));
+        }
+
+        for (int ind = start >>> 6; ind <= end >>> 6; ind++) {
+            long mask = -1L;
+            long v;
+
+            if (ind == start >>> 6) {
+                mask &= -1L << (start & 63);
+            }
+            if (ind == end >>> 6) {
+                mask &= -1L >>> (63 - (end & 63));
+            }
+
+            do {
+                v = dirty.get(ind);
+                if ((v & mask) == 0) {
+                    break;
+                }
+            } while (!dirty.compareAndSet(ind, v, v & ~mask));
+
+            v &= mask;
+            while (v != 0) {
+                int b = Long.numberOfTrailingZeros(v);
+
+                result.set((ind << 6) + b);
+                v &= v - 1;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 全てのページについて、書き込まれたページを取得し、
+     * 同時に記録を消去します。
+     *
+     * @return 書き込まれたページの番号を立てたビット集合
+     */
+    public BitSet fetchAndClearDirty() {
+        return fetchAndClearDirty(0, getDirtyPages() - 1);
+    }
+
+    /**
+     * 指定したページの書き込み監視を設定します。
+     *
+     * @param page ページ番号
+     * @param w    書き込み監視、監視を解除する場合は null
+     */
+    public synchronized void setWriteWatcher(int page, RAMWriteWatcher w) {
+        RAMWriteWatcher[] ws = watchers;
+        boolean empty = true;
+
+        if (ws == null) {
+            if (w == null) {
+                return;
+            }
+            ws = new RAMWriteWatcher[getDirtyPages()];
+        } else {
+            ws = ws.clone();
+        }
+        ws[page] = w;
+
+        for (RAMWriteWatcher e : ws) {
+            if (e != null) {
+                empty = false;
+                break;
+            }
+        }
+
+        //監視するページがなければ書き込み時の検査を省く
+        watchers = empty ? null : ws;
+    }
+
+    /**
+     * 指定したページの書き込み監視を取得します。
+     *
+     * @param page ページ番号
+     * @return 書き込み監視、監視していなければ null
+     */
+    public RAMWriteWatcher getWriteWatcher(int page) {
+        RAMWriteWatcher[] ws = watchers;
+
+        return (ws == null) ? null : ws[page];
+    }
+
+    /**
+     * 指定したアドレスから連続した領域を読み出します。
+     *
+     * データはリトルエンディアンのバイト列として格納されます。
+     *
+     * @param addr 読み出しを開始するアドレス（RAM 内のバイトアドレス）
+     * @param b    読み出したデータを格納する配列
+     * @param off  格納を開始する配列の位置
+     * @param len  読み出す長さ（バイト単位）
+     */
+    public void readBlock(long addr, byte[] b, int off, int len) {
+        int i = 0;
+
+        if ((addr & 3) == 0) {
+            for (; i + 4 <= len; i += 4) {
+                int v = read32(null, addr + i);
+
+                b[off + i + 0] = (byte)(v >>> 0);
+                b[off + i + 1] = (byte)(v >>> 8);
+                b[off + i + 2] = (byte)(v >>> 16);
+                b[off + i + 3] = (byte)(v >>> 24);
+            }
+        }
+        for (; i < len; i++) {
+            b[off + i] = read8(null, addr + i);
+        }
+    }
+
+    /**
+     * 指定したアドレスから連続した領域に書き込みます。
+     *
+     * データはリトルエンディアンのバイト列として解釈されます。
+     *
+     * @param addr 書き込みを開始するアドレス（RAM 内のバイトアドレス）
+     * @param b    書き込むデータを格納した配列
+     * @param off  データの開始位置
+     * @param len  書き込む長さ（バイト単位）
+     */
+    public void writeBlock(long addr, byte[] b, int off, int len) {
+        int i = 0;
+
+        if ((addr & 3) == 0) {
+            for (; i + 4 <= len; i += 4) {
+                int v = ((b[off + i + 0] & 0xff) << 0) |
+                        ((b[off + i + 1] & 0xff) << 8) |
+                        ((b[off + i + 2] & 0xff) << 16) |
+                        ((b[off + i + 3] & 0xff) << 24);
+
+                write32(null, addr + i, v);
+            }
+        }
+        for (; i < len; i++) {
+            write8(null, addr + i, b[off + i]);
+        }
+    }
+
+    /**
+     * 指定したアドレスから連続した領域を 0 で埋めます。
+     *
+     * @param addr 開始アドレス（RAM 内のバイトアドレス）
+     * @param len  長さ（バイト単位）
+     */
+    public void clearBlock(long addr, int len) {
+        writeBlock(addr, new byte[len], 0, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * RAM を SNAPSHOT_CHUNK_SIZE ごとのチャンクに区切り、
+     * スレッドプールで並列に圧縮してからアドレス順に書き込みます。
+     * 圧縮待ちのチャンク数はスレッド数の 2倍までに制限します。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        ExecutorService ex = out.getExecutor();
+        Deque<Future<byte[]>> queue = new ArrayDeque<>();
+        int chunks = getSnapshotChunks();
+        int window = out.getThreads() * 2;
+
+        out.writeInt(getSize());
+        out.writeInt(SNAPSHOT_CHUNK_SIZE);
+
+        for (int i = 0; i < chunks; i++) {
+            final int n = i;
+
+            queue.addLast(ex.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return compressChunk(n);
+                }
+            }));
+            if (queue.size() >= window) {
+                writeChunk(out, queue.removeFirst());
+            }
+        }
+        while (!queue.isEmpty()) {
+            writeChunk(out, queue.removeFirst());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * チャンクを順に読み出し、スレッドプールで並列に展開して書き戻します。
+     * 全て 0 のチャンクは 0 で埋めます。
+     * </p>
+     */
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        ExecutorService ex = in.getExecutor();
+        Deque<Future<?>> queue = new ArrayDeque<>();
+        int chunks = getSnapshotChunks();
+        int window = in.getThreads() * 2;
+
+        in.checkValue("RAM size", getSize(), in.readInt());
+        in.checkValue("RAM chunk size", SNAPSHOT_CHUNK_SIZE, in.readInt());
+
+        for (int i = 0; i < chunks; i++) {
+            final int n = i;
+            final byte[] data;
+            int type = in.readUnsignedByte();
+
+            switch (type) {
+            case CHUNK_ZERO:
+                data = null;
+                break;
+            case CHUNK_DEFLATE:
+                data = new byte[in.readInt()];
+                in.readFully(data);
+                break;
+            default:
+                throw new IOException(String.format(
+                        "Illegal RAM chunk type %d.", type));
+            }
+
+            queue.addLast(ex.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws DataFormatException {
+                    decompressChunk(n, data);
+                    return null;
+                }
+            }));
+            if (queue.size() >= window) {
+                waitChunk(queue.removeFirst());
+            }
+        }
+        while (!queue.isEmpty()) {
+            waitChunk(queue.removeFirst());
+        }
+    }
+
+    /**
+     * スナップショットのチャンク数を取得します。
+     *
+     * @return チャンク数
+     */
+    private int getSnapshotChunks() {
+        return (int)(((long)getSize() + SNAPSHOT_CHUNK_SIZE - 1) / SNAPSHOT_CHUNK_SIZE);
+    }
+
+    /**
+     * 指定したチャンクの長さを取得します。
+     *
+     * @param n チャンク番号
+     * @return チャンクの長さ（バイト単位）
+     */
+    private int getSnapshotChunkLength(int n) {
+        long st = (long)n * SNAPSHOT_CHUNK_SIZE;
+
+        return (int)Math.min(SNAPSHOT_CHUNK_SIZE, getSize() - st);
+    }
+
+    /**
+     * 指定したチャンクを圧縮します。
+     *
+     * @param n チャンク番号
+     * @return 圧縮したデータ、チャンクが全て 0 ならば null
+     */
+    private byte[] compressChunk(int n) {
+        int len = getSnapshotChunkLength(n);
+        byte[] raw = new byte[len];
+        boolean zero = true;
+
+        readBlock((long)n * SNAPSHOT_CHUNK_SIZE, raw, 0, len);
+        for (byte b : raw) {
+            if (b != 0) {
+                zero = false;
+                break;
+            }
+        }
+        if (zero) {
+            return null;
+        }
+
+        Deflater def = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(len / 4);
+        byte[] buf = new byte[4096];
+
+        try {
+            def.setInput(raw);
+            def.finish();
+            while (!def.finished()) {
+                int l = def.deflate(buf);
+                bout.write(buf, 0, l);
+            }
+        } finally {
+            def.end();
+        }
+
+        return bout.toByteArray();
+    }
+
+    /**
+     * 指定したチャンクを展開して書き戻します。
+     *
+     * @param n    チャンク番号
+     * @param data 圧縮されたデータ、チャンクが全て 0 ならば null
+     * @throws DataFormatException 圧縮データが壊れている場合
+     */
+    private void decompressChunk(int n, byte[] data) throws DataFormatException {
+        int len = getSnapshotChunkLength(n);
+
+        if (data == null) {
+            clearBlock((long)n * SNAPSHOT_CHUNK_SIZE, len);
+            return;
+        }
+
+        Inflater inf = new Inflater();
+        byte[] raw = new byte[len];
+        int pos = 0;
+
+        try {
+            inf.setInput(data);
+            while (pos < len && !inf.finished()) {
+                int l = inf.inflate(raw, pos, len - pos);
+                if (l == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                pos += l;
+            }
+        } finally {
+            inf.end();
+        }
+        if (pos != len) {
+            throw new DataFormatException(String.format(
+                    "RAM chunk %d is truncated (%d/%d bytes).", n, pos, len));
+        }
+
+        writeBlock((long)n * SNAPSHOT_CHUNK_SIZE, raw, 0, len);
+    }
+
+    /**
+     * 圧縮の完了を待って、チャンクを書き込みます。
+     *
+     * @param out 書き込み先のスナップショット
+     * @param f   圧縮中のチャンク
+     * @throws IOException 書き込みに失敗した場合、圧縮に失敗した場合
+     */
+    private static void writeChunk(SnapshotOutputStream out, Future<byte[]> f) throws IOException {
+        byte[] data = getChunkResult(f);
+
+        if (data == null) {
+            out.writeByte(CHUNK_ZERO);
+        } else {
+            out.writeByte(CHUNK_DEFLATE);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    /**
+     * チャンクの展開の完了を待ちます。
+     *
+     * @param f 展開中のチャンク
+     * @throws IOException 展開に失敗した場合
+     */
+    private static void waitChunk(Future<?> f) throws IOException {
+        getChunkResult(f);
+    }
+
+    /**
+     * チャンクの圧縮、展開の結果を取得します。
+     *
+     * @param f 処理中のチャンク
+     * @return 処理の結果
+     * @throws IOException 処理に失敗した場合、待機中に割り込まれた場合
+     */
+    private static <T> T getChunkResult(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while processing RAM chunk.");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+
+            if (c instanceof RuntimeException) {
+                throw (RuntimeException)c;
+            }
+            throw new IOException("Failed to process RAM chunk.", c);
+        }
+    }
+
     @Override
     public boolean tryAccess(BusMaster64 m, long addr, int len) {
         int wordAddr;
@@ -124,5 +124,6 @@ public class RAM16 extends RAM {
         wordAddr = getWordAddress(addr);
 
         words[wordAddr] = data;
+        markDirty(addr, LEN_WORD);
     }
 }
@@ -119,5 +119,6 @@ public class RAM32 extends RAM {
         wordAddr = getWordAddress(addr);
 
         words[wordAddr] = data;
+        markDirty(addr, LEN_WORD);
     }
 }
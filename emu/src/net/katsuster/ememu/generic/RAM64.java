@@ -118,5 +118,6 @@ public class RAM64 extends RAM {
         wordAddr = getWordAddress(addr);
 
         words[wordAddr] = data;
+        markDirty(addr, LEN_WORD);
     }
 }
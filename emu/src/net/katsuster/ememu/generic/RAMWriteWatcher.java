@@ -0,0 +1,19 @@
+package net.katsuster.ememu.generic;
+
+/**
+ * RAM のページへの書き込みを監視するインタフェース。
+ *
+ * 監視対象のページに書き込みが行われるたびに呼び出されます。
+ * 書き込みを行ったスレッドで呼び出されるため、
+ * 重い処理は行わないでください。
+ */
+public interface RAMWriteWatcher {
+    /**
+     * 監視しているページに書き込みが行われたことを通知します。
+     *
+     * @param ram  書き込まれた RAM
+     * @param page ページ番号（RAM.DIRTY_PAGE_SIZE 単位）
+     * @param addr 書き込まれたアドレス（RAM 内のバイトアドレス）
+     */
+    public abstract void pageWritten(RAM ram, int page, long addr);
+}
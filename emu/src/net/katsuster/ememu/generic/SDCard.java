@@ -1,17 +1,55 @@
 package net.katsuster.ememu.generic;
 
+import java.io.*;
+import java.util.*;
+
 import net.katsuster.ememu.generic.core.AbstractParentCore;
 import net.katsuster.ememu.generic.bus.BusMaster64;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * SD Card
  *
+ * <p>
+ * SPI モードで動作する SD メモリカード（SDHC）です。
+ * ディスクイメージのファイルを記憶媒体とし、
+ * CMD17, CMD18 でブロックを読み出し、CMD24, CMD25 でブロックを書き込みます。
+ * </p>
+ *
+ * <p>
+ * SPI のバスからは 1バイトずつ送受信しますが、
+ * データブロックは 1ブロック単位でディスクイメージから読み書きします。
+ * SPI のコントローラは {@link #transfer(byte[], int, byte[], int, int)} で
+ * 複数バイトのフレームをまとめて送受信することもできます。
+ * </p>
+ *
  * 参考: SD Specifications Part 1 Physical Layer
  * Simplified Specification Version 6.00
  * August 29, 2018
  */
 public class SDCard extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("sdcard");
+
     public static final int REG_IO  = 0x00;
+
+    //ブロックの大きさ（バイト単位）
+    public static final int BLOCK_SIZE = SDMemoryCard.BLOCK_SIZE;
+
+    //R1 レスポンス
+    public static final int R1_PARAMETER_ERROR = 0x40;
+
+    //データトークン
+    public static final int TOKEN_START_BLOCK       = 0xfe;
+    public static final int TOKEN_START_BLOCK_MULTI = 0xfc;
+    public static final int TOKEN_STOP_TRAN         = 0xfd;
+    //データエラートークン
+    public static final int TOKEN_OUT_OF_RANGE      = 0x08;
+
+    //データレスポンス
+    public static final int DATA_ACCEPTED    = 0x05;
+    public static final int DATA_WRITE_ERROR = 0x0d;
+
+    private BlockStorage storage;
     private SDCardState st;
     private int blockAddr;
     private int blockLen;
@@ -21,9 +59,193 @@ public class SDCard extends AbstractParentCore {
 
         setSlaveCore(new SDCardSlave());
 
+        storage = new BlockStorage(n, 1);
         st = new CmdState();
     }
 
+    /**
+     * カードの記憶媒体を取得します。
+     *
+     * @return 記憶媒体
+     */
+    public BlockStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * カードが挿入されているかどうかを取得します。
+     *
+     * @return 挿入されていれば true、そうでなければ false
+     */
+    public boolean isInserted() {
+        return storage.isOpened();
+    }
+
+    /**
+     * 1バイト送信し、同時にカードが送信した 1バイトを受信します。
+     *
+     * @param b 送信するデータ
+     * @return 受信したデータ
+     */
+    public synchronized int transfer(int b) {
+        st.writeData(b & 0xff);
+
+        return st.readData() & 0xff;
+    }
+
+    /**
+     * 複数バイトのフレームを送受信します。
+     *
+     * <p>
+     * 1バイトずつ {@link #transfer(int)} を呼び出した場合と同じ結果になりますが、
+     * データブロックの送受信は配列をまとめてコピーします。
+     * </p>
+     *
+     * @param tx    送信するデータ、null ならば 0xff を送信します
+     * @param txOff 送信するデータの開始位置
+     * @param rx    受信したデータを格納する配列、null ならば受信したデータを捨てます
+     * @param rxOff 格納を開始する配列の位置
+     * @param len   送受信する長さ（バイト単位）
+     */
+    public synchronized void transfer(byte[] tx, int txOff, byte[] rx, int rxOff, int len) {
+        while (len > 0) {
+            int n = st.transferFrame(tx, txOff, rx, rxOff, len);
+
+            if (n == 0) {
+                int r = transfer((tx == null) ? 0xff : tx[txOff]);
+
+                if (rx != null) {
+                    rx[rxOff] = (byte)r;
+                }
+                n = 1;
+            }
+
+            txOff += n;
+            rxOff += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * ブロックが記憶媒体に収まっているかどうかを取得します。
+     *
+     * @param b ブロックの番号
+     * @return 収まっていれば true、そうでなければ false
+     */
+    private boolean isValidBlock(long b) {
+        return (b + 1) * BLOCK_SIZE <= storage.getCapacity();
+    }
+
+    /**
+     * 記憶媒体からブロックを読み出します。
+     *
+     * @param b ブロックの番号
+     * @return 読み出したデータ、読み出せなかった場合は null
+     */
+    private byte[] readBlock(long b) {
+        byte[] f = new byte[BLOCK_SIZE];
+
+        try {
+            storage.read(b * BLOCK_SIZE, f, 0, f.length);
+        } catch (IOException e) {
+            log.debug("read block 0x%x: %s\n", b, e.getMessage());
+            return null;
+        }
+
+        return f;
+    }
+
+    /**
+     * 記憶媒体にブロックを書き込みます。
+     *
+     * @param b ブロックの番号
+     * @param f 書き込むデータ
+     * @return 書き込めたならば true、そうでなければ false
+     */
+    private boolean writeBlock(long b, byte[] f) {
+        try {
+            storage.write(b * BLOCK_SIZE, f, 0, f.length);
+        } catch (IOException e) {
+            log.debug("write block 0x%x: %s\n", b, e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * レジスタの値をデータブロックとして送信する順に並べます。
+     *
+     * @param reg レジスタの値、上位のワードから順に格納します
+     * @return データブロック
+     */
+    private static byte[] toBytes(int[] reg) {
+        byte[] b = new byte[reg.length * 4];
+
+        for (int i = 0; i < reg.length; i++) {
+            b[i * 4 + 0] = (byte)(reg[i] >>> 24);
+            b[i * 4 + 1] = (byte)(reg[i] >>> 16);
+            b[i * 4 + 2] = (byte)(reg[i] >>> 8);
+            b[i * 4 + 3] = (byte)reg[i];
+        }
+
+        return b;
+    }
+
+    /**
+     * データブロックの CRC（CRC-16-CCITT）を計算します。
+     *
+     * @param b   データブロック
+     * @param off データの開始位置
+     * @param len データの長さ（バイト単位）
+     * @return CRC
+     */
+    public static int getCRC16(byte[] b, int off, int len) {
+        int crc = 0;
+
+        for (int i = off; i < off + len; i++) {
+            crc ^= (b[i] & 0xff) << 8;
+            for (int j = 0; j < 8; j++) {
+                if ((crc & 0x8000) != 0) {
+                    crc = (crc << 1) ^ 0x1021;
+                } else {
+                    crc <<= 1;
+                }
+            }
+        }
+
+        return crc & 0xffff;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * コマンドの送受信の途中の状態は保存せず、
+     * 復元後はコマンド待ちの状態から始めます。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        synchronized (this) {
+            out.writeInt(blockAddr);
+            out.writeInt(blockLen);
+        }
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        synchronized (this) {
+            blockAddr = in.readInt();
+            blockLen = in.readInt();
+            st = new CmdState();
+        }
+    }
+
     class SDCardState {
         public SDCardState() {
 
@@ -36,6 +258,20 @@ public class SDCard extends AbstractParentCore {
         public void writeData(int b) {
 
         }
+
+        /**
+         * データブロックの一部をまとめて送受信します。
+         *
+         * @param tx    送信するデータ、null ならば 0xff を送信します
+         * @param txOff 送信するデータの開始位置
+         * @param rx    受信したデータを格納する配列、null ならば捨てます
+         * @param rxOff 格納を開始する配列の位置
+         * @param len   送受信する長さの上限（バイト単位）
+         * @return 送受信した長さ、まとめて送受信できない場合は 0
+         */
+        public int transferFrame(byte[] tx, int txOff, byte[] rx, int rxOff, int len) {
+            return 0;
+        }
     }
 
     class CmdStateCommon extends SDCardState {
@@ -114,6 +350,7 @@ public class SDCard extends AbstractParentCore {
         @Override
         public void recvCommand() {
             int[] dat;
+            long block = arg & 0xffffffffL;
 
             switch (cmd) {
             case 0x00:
@@ -134,9 +371,36 @@ public class SDCard extends AbstractParentCore {
                 dat[4] = arg & 0xff;
                 st = new RespState(dat, new CmdState());
                 break;
+            case 0x09:
+                //CMD 9: SEND_CSD
+                dat = new int[1];
+                dat[0] = 0x00;
+                st = new RespState(dat, new ReadState(
+                        toBytes(SDMemoryCard.getCSD(storage.getCapacity()))));
+                break;
+            case 0x0a:
+                //CMD 10: SEND_CID
+                dat = new int[1];
+                dat[0] = 0x00;
+                st = new RespState(dat, new ReadState(
+                        toBytes(SDMemoryCard.getCID())));
+                break;
+            case 0x0c:
+                //CMD 12: STOP_TRANSMISSION
+                dat = new int[1];
+                dat[0] = 0x00;
+                st = new RespState(dat, new CmdState());
+                break;
+            case 0x0d:
+                //CMD 13: SEND_STATUS
+                dat = new int[2];
+                dat[0] = 0x00;
+                dat[1] = 0x00;
+                st = new RespState(dat, new CmdState());
+                break;
             case 0x10:
                 //CMD 16: SET_BLOCKLEN
-                System.out.printf("CMD16: len 0x%x\n", arg);
+                log.debug("CMD16: len 0x%x\n", arg);
 
                 blockLen = arg;
 
@@ -144,15 +408,42 @@ public class SDCard extends AbstractParentCore {
                 dat[0] = 0x00;
                 st = new RespState(dat, new CmdState());
                 break;
+            case 0x11:
             case 0x12:
+                //CMD 17: READ_SINGLE_BLOCK
                 //CMD 18: READ_MULTIPLE_BLOCK
-                System.out.printf("CMD18: addr 0x%x\n", arg);
+                log.debug("CMD%d: addr 0x%x\n", cmd, arg);
 
                 blockAddr = arg;
 
                 dat = new int[1];
-                dat[0] = 0x01;
-                st = new RespState(dat, new CmdState());
+                if (!isValidBlock(block)) {
+                    dat[0] = R1_PARAMETER_ERROR;
+                    st = new RespState(dat, new CmdState());
+                } else if (cmd == 0x11) {
+                    dat[0] = 0x00;
+                    st = new RespState(dat, new ReadState(readBlock(block)));
+                } else {
+                    dat[0] = 0x00;
+                    st = new RespState(dat, new ReadState(block));
+                }
+                break;
+            case 0x18:
+            case 0x19:
+                //CMD 24: WRITE_BLOCK
+                //CMD 25: WRITE_MULTIPLE_BLOCK
+                log.debug("CMD%d: addr 0x%x\n", cmd, arg);
+
+                blockAddr = arg;
+
+                dat = new int[1];
+                if (!isValidBlock(block)) {
+                    dat[0] = R1_PARAMETER_ERROR;
+                    st = new RespState(dat, new CmdState());
+                } else {
+                    dat[0] = 0x00;
+                    st = new RespState(dat, new WriteState(block, cmd == 0x19));
+                }
                 break;
             case 0x37:
                 //CMD 55: APP_CMD
@@ -160,6 +451,26 @@ public class SDCard extends AbstractParentCore {
                 dat[0] = 0x1;
                 st = new RespState(dat, new AcmdState());
                 break;
+            case 0x3a:
+                //CMD 58: READ_OCR
+                int ocr = SDMemoryCard.OCR_BUSY | SDMemoryCard.OCR_CCS |
+                        SDMemoryCard.OCR_VOLTAGES;
+
+                dat = new int[5];
+                dat[0] = 0x00;
+                dat[1] = (ocr >>> 24) & 0xff;
+                dat[2] = (ocr >>> 16) & 0xff;
+                dat[3] = (ocr >>> 8) & 0xff;
+                dat[4] = ocr & 0xff;
+                st = new RespState(dat, new CmdState());
+                break;
+            case 0x3b:
+                //CMD 59: CRC_ON_OFF
+                //データブロックには常に CRC を付加し、受信したデータの CRC は確認しない
+                dat = new int[1];
+                dat[0] = 0x00;
+                st = new RespState(dat, new CmdState());
+                break;
             default:
                 //Do not support
                 super.recvCommand();
@@ -178,6 +489,14 @@ public class SDCard extends AbstractParentCore {
             int[] dat;
 
             switch (cmd) {
+            case 0x0d:
+                //ACMD 13: SD_STATUS
+                dat = new int[2];
+                dat[0] = 0x00;
+                dat[1] = 0x00;
+                st = new RespState(dat, new ReadState(
+                        new byte[SDMemoryCard.SSR_SIZE]));
+                break;
             case 0x29:
                 //ACMD 41: SD_SEND_OP_COND
                 int hsc = BitOp.getField32(arg, 30, 1);
@@ -185,7 +504,7 @@ public class SDCard extends AbstractParentCore {
                 int s18r = BitOp.getField32(arg, 24, 1);
                 int ocr = BitOp.getField32(arg, 8, 16);
 
-                System.out.printf("ACMD41: arg 0x%x\n" +
+                log.debug("ACMD41: arg 0x%x\n" +
                                 "  %s: 0x%x, \n" +
                                 "  %s: 0x%x, \n" +
                                 "  %s: 0x%x, \n" +
@@ -200,6 +519,12 @@ public class SDCard extends AbstractParentCore {
                 dat[0] = 0x00;
                 st = new RespState(dat, new CmdState());
                 break;
+            case 0x33:
+                //ACMD 51: SEND_SCR
+                dat = new int[1];
+                dat[0] = 0x00;
+                st = new RespState(dat, new ReadState(SDMemoryCard.getSCR()));
+                break;
             default:
                 //Do not support
                 super.recvCommand();
@@ -221,19 +546,227 @@ public class SDCard extends AbstractParentCore {
 
         @Override
         public int readData() {
+            int result = 0xff;
+
+            if (pos < resp.length) {
+                result = resp[pos];
+                pos++;
+            }
             if (pos >= resp.length) {
+                //最後のバイトを送信したら、次のバイトから次の状態に移る
                 st = nextState;
+            }
+
+            return result;
+        }
+
+        @Override
+        public void writeData(int b) {
+
+        }
+    }
+
+    /**
+     * データブロックを送信する状態です。
+     *
+     * <p>
+     * 1バイトの間隔を空けてデータトークン、データ、CRC の順に送信します。
+     * 複数ブロックの読み出しでは CMD12 を受信するまで次のブロックを送信し続けます。
+     * </p>
+     */
+    class ReadState extends CmdState {
+        //送信するデータ、ブロックを読み出せなかった場合は null
+        private byte[] frame;
+        private int crcFrame;
+        //次に読み出すブロックの番号、複数ブロックの読み出しでなければ -1
+        private long nextBlock;
+        //0: 間隔、1: データトークン、2 以降: データと CRC
+        private int dpos;
+
+        /**
+         * 1つのデータブロックを送信します。
+         *
+         * @param f 送信するデータ
+         */
+        public ReadState(byte[] f) {
+            nextBlock = -1;
+            setFrame(f);
+        }
+
+        /**
+         * 指定したブロックから順に、複数のデータブロックを送信します。
+         *
+         * @param b 最初のブロックの番号
+         */
+        public ReadState(long b) {
+            nextBlock = b + 1;
+            setFrame(readBlock(b));
+        }
+
+        private void setFrame(byte[] f) {
+            frame = f;
+            if (frame != null) {
+                crcFrame = getCRC16(frame, 0, frame.length);
+            }
+            dpos = 0;
+        }
+
+        @Override
+        public int readData() {
+            int result;
+
+            if (pos != 0) {
+                //コマンドを受信している
+                return super.readData();
+            }
+
+            if (dpos == 0) {
+                result = 0xff;
+            } else if (dpos == 1) {
+                result = (frame == null) ? TOKEN_OUT_OF_RANGE : TOKEN_START_BLOCK;
+            } else if (frame == null) {
+                //エラートークンを送信した後は CMD12 を待つ
                 return 0xff;
+            } else if (dpos < frame.length + 2) {
+                result = frame[dpos - 2] & 0xff;
+            } else if (dpos == frame.length + 2) {
+                result = (crcFrame >>> 8) & 0xff;
             } else {
-                int result = resp[pos];
-                pos++;
+                result = crcFrame & 0xff;
+                if (nextBlock < 0) {
+                    st = new CmdState();
+                } else {
+                    setFrame(readBlock(nextBlock));
+                    nextBlock++;
+                }
                 return result;
             }
+            dpos++;
+
+            return result;
+        }
+
+        @Override
+        public int transferFrame(byte[] tx, int txOff, byte[] rx, int rxOff, int len) {
+            int n;
+
+            if (pos != 0 || frame == null || dpos < 2 || frame.length + 2 <= dpos) {
+                return 0;
+            }
+
+            //0xff 以外を受信したらコマンドの始まりなので 1バイトずつ処理する
+            n = Math.min(len, frame.length + 2 - dpos);
+            if (tx != null) {
+                for (int i = 0; i < n; i++) {
+                    if (tx[txOff + i] != (byte)0xff) {
+                        n = i;
+                        break;
+                    }
+                }
+            }
+            if (rx != null) {
+                System.arraycopy(frame, dpos - 2, rx, rxOff, n);
+            }
+            dpos += n;
+
+            return n;
+        }
+    }
+
+    /**
+     * データブロックを受信する状態です。
+     *
+     * <p>
+     * データトークン、データ、CRC の順に受信し、
+     * 1ブロック受信するごとに記憶媒体に書き込んでデータレスポンスを返します。
+     * 複数ブロックの書き込みでは Stop Tran トークンを受信するまで次のブロックを受信し続けます。
+     * </p>
+     */
+    class WriteState extends SDCardState {
+        private byte[] frame;
+        private long block;
+        private boolean multi;
+        //-1: データトークン待ち、0 以降: データと CRC
+        private int dpos;
+
+        /**
+         * データブロックを受信します。
+         *
+         * @param b 書き込むブロックの番号
+         * @param m 複数ブロックの書き込みならば true、そうでなければ false
+         */
+        public WriteState(long b, boolean m) {
+            frame = new byte[BLOCK_SIZE];
+            block = b;
+            multi = m;
+            dpos = -1;
+        }
+
+        @Override
+        public int readData() {
+            return 0xff;
         }
 
         @Override
         public void writeData(int b) {
+            int[] dat;
+            SDCardState next;
+
+            if (dpos < 0) {
+                if (multi && b == TOKEN_STOP_TRAN) {
+                    dat = new int[2];
+                    dat[0] = 0xff;
+                    //busy
+                    dat[1] = 0x00;
+                    st = new RespState(dat, new CmdState());
+                } else if (b == (multi ? TOKEN_START_BLOCK_MULTI : TOKEN_START_BLOCK)) {
+                    dpos = 0;
+                }
+                return;
+            }
 
+            if (dpos < frame.length) {
+                frame[dpos] = (byte)b;
+            }
+            dpos++;
+            if (dpos < frame.length + 2) {
+                return;
+            }
+
+            //CRC を受信した次のバイトでデータレスポンスを返す
+            dat = new int[3];
+            dat[0] = 0xff;
+            dat[1] = writeBlock(block, frame) ? DATA_ACCEPTED : DATA_WRITE_ERROR;
+            //busy
+            dat[2] = 0x00;
+            if (multi) {
+                next = new WriteState(block + 1, true);
+            } else {
+                next = new CmdState();
+            }
+            st = new RespState(dat, next);
+        }
+
+        @Override
+        public int transferFrame(byte[] tx, int txOff, byte[] rx, int rxOff, int len) {
+            int n;
+
+            if (dpos < 0 || frame.length <= dpos) {
+                return 0;
+            }
+
+            n = Math.min(len, frame.length - dpos);
+            if (tx != null) {
+                System.arraycopy(tx, txOff, frame, dpos, n);
+            } else {
+                Arrays.fill(frame, dpos, dpos + n, (byte)0xff);
+            }
+            if (rx != null) {
+                Arrays.fill(rx, rxOff, rxOff + n, (byte)0xff);
+            }
+            dpos += n;
+
+            return n;
         }
     }
 
@@ -244,14 +777,20 @@ public class SDCard extends AbstractParentCore {
 
         @Override
         public int readWord(BusMaster64 m, long addr) {
-            int result = st.readData() & 0xff;
+            int result;
+
+            synchronized (SDCard.this) {
+                result = st.readData() & 0xff;
+            }
 
             return result;
         }
 
         @Override
         public void writeWord(BusMaster64 m, long addr, int data) {
-            st.writeData(data & 0xff);
+            synchronized (SDCard.this) {
+                st.writeData(data & 0xff);
+            }
         }
     }
 }
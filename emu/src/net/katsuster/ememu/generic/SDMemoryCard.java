@@ -0,0 +1,528 @@
+package net.katsuster.ememu.generic;
+
+import java.io.*;
+
+import net.katsuster.ememu.generic.log.*;
+
+/**
+ * SD バスモードで動作する SD メモリカード（SDHC）
+ *
+ * <p>
+ * ホストコントローラからコマンドを受け取り、レスポンスを返します。
+ * データの転送はホストコントローラが {@link #getStorage()} の記憶媒体に対して行い、
+ * カードは転送する位置と状態の管理のみを行います。
+ * </p>
+ *
+ * <p>
+ * 記憶媒体を開いていなければカードが挿入されていないものとし、
+ * 全てのコマンドに応答しません。
+ * </p>
+ *
+ * <p>
+ * 参考: SD Specifications Part 1 Physical Layer
+ * Simplified Specification Version 6.00
+ * August 29, 2018
+ * </p>
+ */
+public class SDMemoryCard {
+    private static final Logger log = Log.getLogger("sdcard");
+
+    //ブロックの大きさ（バイト単位）
+    public static final int BLOCK_SIZE = 512;
+    //C_SIZE の単位（バイト単位）
+    public static final int C_SIZE_UNIT = 512 * 1024;
+
+    //current state
+    public static final int STATE_IDLE  = 0;
+    public static final int STATE_READY = 1;
+    public static final int STATE_IDENT = 2;
+    public static final int STATE_STBY  = 3;
+    public static final int STATE_TRAN  = 4;
+    public static final int STATE_DATA  = 5;
+    public static final int STATE_RCV   = 6;
+    public static final int STATE_PRG   = 7;
+    public static final int STATE_DIS   = 8;
+
+    //card status
+    public static final int CS_OUT_OF_RANGE    = 1 << 31;
+    public static final int CS_ADDRESS_ERROR   = 1 << 30;
+    public static final int CS_WP_VIOLATION    = 1 << 26;
+    public static final int CS_ILLEGAL_COMMAND = 1 << 22;
+    public static final int CS_READY_FOR_DATA  = 1 << 8;
+    public static final int CS_APP_CMD         = 1 << 5;
+
+    //OCR
+    public static final int OCR_BUSY     = 1 << 31;
+    public static final int OCR_CCS      = 1 << 30;
+    //2.7V - 3.6V
+    public static final int OCR_VOLTAGES = 0x00ff8000;
+
+    //data transfer
+    public static final int DATA_NONE  = 0;
+    public static final int DATA_READ  = 1;
+    public static final int DATA_WRITE = 2;
+
+    //SCR の大きさ（バイト単位）
+    public static final int SCR_SIZE = 8;
+    //SD Status の大きさ（バイト単位）
+    public static final int SSR_SIZE = 64;
+
+    private BlockStorage storage;
+    private int state;
+    private int rca;
+    private boolean appCmd;
+    //前回のコマンドで発生したエラー、次のコマンドのレスポンスで返す
+    private int errors;
+
+    private int dataDir;
+    //次に転送するブロックの位置（バイト単位）
+    private long dataAddr;
+    //複数ブロックの転送ならば true
+    private boolean dataMulti;
+    //レジスタを読み出す場合の内容、ブロックの読み出しならば null
+    private byte[] dataReg;
+
+    /**
+     * SD メモリカードを作成します。
+     *
+     * @param s 記憶媒体
+     */
+    public SDMemoryCard(BlockStorage s) {
+        storage = s;
+
+        reset();
+    }
+
+    /**
+     * カードの記憶媒体を取得します。
+     *
+     * @return 記憶媒体
+     */
+    public BlockStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * カードが挿入されているかどうかを取得します。
+     *
+     * @return 挿入されていれば true、そうでなければ false
+     */
+    public boolean isInserted() {
+        return storage.isOpened();
+    }
+
+    /**
+     * カードをリセットし、アイドル状態にします。
+     */
+    public synchronized void reset() {
+        state = STATE_IDLE;
+        rca = 0;
+        appCmd = false;
+        errors = 0;
+        endData();
+    }
+
+    /**
+     * カードの現在の状態を取得します。
+     *
+     * @return カードの状態（STATE_xxx）
+     */
+    public synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * カードに割り当てられた相対アドレスを取得します。
+     *
+     * @return RCA
+     */
+    public synchronized int getRCA() {
+        return rca;
+    }
+
+    /**
+     * コマンドを実行し、レスポンスを返します。
+     *
+     * R2 レスポンスはビット 127-96 を先頭とする 4ワード、
+     * その他のレスポンスは 1ワードです。
+     *
+     * @param cmd コマンドの番号
+     * @param arg コマンドの引数
+     * @return レスポンス、カードが応答しなければ null
+     */
+    public synchronized int[] command(int cmd, int arg) {
+        boolean acmd = appCmd;
+        int[] resp;
+
+        if (!isInserted()) {
+            return null;
+        }
+
+        appCmd = false;
+        if (acmd) {
+            resp = appCommand(cmd, arg);
+            if (resp != null) {
+                return resp;
+            }
+            //アプリケーションコマンドでなければ通常のコマンドとして扱う
+        }
+
+        switch (cmd) {
+        case 0:
+            //GO_IDLE_STATE
+            reset();
+            return new int[0];
+        case 2:
+            //ALL_SEND_CID
+            if (state != STATE_READY) {
+                return illegal(cmd);
+            }
+            state = STATE_IDENT;
+            return getCID();
+        case 3:
+            //SEND_RELATIVE_ADDR
+            if (state != STATE_IDENT && state != STATE_STBY) {
+                return illegal(cmd);
+            }
+            state = STATE_STBY;
+            rca = (rca + 0x4567) & 0xffff;
+            if (rca == 0) {
+                rca = 0x4567;
+            }
+            return new int[] {(rca << 16) | getR6Status()};
+        case 7:
+            //SELECT/DESELECT_CARD
+            if ((arg >>> 16) == rca && state == STATE_STBY) {
+                state = STATE_TRAN;
+                return r1(cmd);
+            } else if ((arg >>> 16) != rca && state != STATE_IDLE &&
+                    state != STATE_READY && state != STATE_IDENT) {
+                //選択されていなければ応答しない
+                state = STATE_STBY;
+                return null;
+            }
+            return illegal(cmd);
+        case 8:
+            //SEND_IF_COND
+            if (state != STATE_IDLE) {
+                return illegal(cmd);
+            }
+            return new int[] {arg & 0xfff};
+        case 9:
+            //SEND_CSD
+            if (state != STATE_STBY || (arg >>> 16) != rca) {
+                return illegal(cmd);
+            }
+            return getCSD(storage.getCapacity());
+        case 10:
+            //SEND_CID
+            if (state != STATE_STBY || (arg >>> 16) != rca) {
+                return illegal(cmd);
+            }
+            return getCID();
+        case 12:
+            //STOP_TRANSMISSION
+            if (state != STATE_DATA && state != STATE_RCV) {
+                return illegal(cmd);
+            }
+            endData();
+            state = STATE_TRAN;
+            return r1(cmd);
+        case 13:
+            //SEND_STATUS
+            if ((arg >>> 16) != rca) {
+                return null;
+            }
+            return r1(cmd);
+        case 16:
+            //SET_BLOCKLEN, SDHC はブロック長が 512バイト固定
+            if (state != STATE_TRAN) {
+                return illegal(cmd);
+            }
+            return r1(cmd);
+        case 17:
+        case 18:
+            //READ_SINGLE_BLOCK, READ_MULTIPLE_BLOCK
+            return startBlocks(cmd, arg, DATA_READ, cmd == 18);
+        case 24:
+        case 25:
+            //WRITE_BLOCK, WRITE_MULTIPLE_BLOCK
+            if (storage.isReadOnly()) {
+                errors |= CS_WP_VIOLATION;
+                return r1(cmd);
+            }
+            return startBlocks(cmd, arg, DATA_WRITE, cmd == 25);
+        case 55:
+            //APP_CMD
+            if (state != STATE_IDLE && (arg >>> 16) != rca) {
+                return null;
+            }
+            appCmd = true;
+            return r1(cmd);
+        default:
+            //SDIO (CMD5, 52, 53) や MMC のコマンドには応答しない
+            log.debug("sdcard: unsupported CMD%d arg 0x%08x.\n", cmd, arg);
+            return null;
+        }
+    }
+
+    /**
+     * アプリケーションコマンド（ACMD）を実行します。
+     *
+     * @param cmd コマンドの番号
+     * @param arg コマンドの引数
+     * @return レスポンス、アプリケーションコマンドでなければ null
+     */
+    private int[] appCommand(int cmd, int arg) {
+        switch (cmd) {
+        case 6:
+            //SET_BUS_WIDTH
+            if (state != STATE_TRAN) {
+                return illegal(cmd);
+            }
+            return r1(cmd);
+        case 13:
+            //SD_STATUS
+            if (state != STATE_TRAN) {
+                return illegal(cmd);
+            }
+            return startRegister(cmd, new byte[SSR_SIZE]);
+        case 41:
+            //SD_SEND_OP_COND
+            if (state != STATE_IDLE) {
+                return illegal(cmd);
+            }
+            if ((arg & OCR_VOLTAGES) != 0) {
+                //電源の投入はすぐに終わったものとする
+                state = STATE_READY;
+                return new int[] {OCR_BUSY | OCR_CCS | OCR_VOLTAGES};
+            }
+            return new int[] {OCR_VOLTAGES};
+        case 51:
+            //SEND_SCR
+            if (state != STATE_TRAN) {
+                return illegal(cmd);
+            }
+            return startRegister(cmd, getSCR());
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * ブロックの転送を開始します。
+     *
+     * @param cmd   コマンドの番号
+     * @param arg   ブロックの番号
+     * @param dir   転送の方向
+     * @param multi 複数ブロックの転送ならば true
+     * @return レスポンス
+     */
+    private int[] startBlocks(int cmd, int arg, int dir, boolean multi) {
+        long addr = (arg & 0xffffffffL) * BLOCK_SIZE;
+
+        if (state != STATE_TRAN) {
+            return illegal(cmd);
+        }
+        if (addr >= storage.getCapacity()) {
+            errors |= CS_OUT_OF_RANGE;
+            return r1(cmd);
+        }
+
+        state = (dir == DATA_READ) ? STATE_DATA : STATE_RCV;
+        dataDir = dir;
+        dataAddr = addr;
+        dataMulti = multi;
+        dataReg = null;
+
+        return r1(cmd);
+    }
+
+    /**
+     * レジスタの読み出しを開始します。
+     *
+     * @param cmd コマンドの番号
+     * @param reg レジスタの内容
+     * @return レスポンス
+     */
+    private int[] startRegister(int cmd, byte[] reg) {
+        int[] resp = r1(cmd);
+
+        state = STATE_DATA;
+        dataDir = DATA_READ;
+        dataAddr = 0;
+        dataMulti = false;
+        dataReg = reg;
+
+        return resp;
+    }
+
+    private void endData() {
+        dataDir = DATA_NONE;
+        dataAddr = 0;
+        dataMulti = false;
+        dataReg = null;
+    }
+
+    /**
+     * データ転送の方向を取得します。
+     *
+     * @return 転送していなければ DATA_NONE、
+     * カードからの読み出しならば DATA_READ、カードへの書き込みならば DATA_WRITE
+     */
+    public synchronized int getDataDirection() {
+        return dataDir;
+    }
+
+    /**
+     * 読み出すレジスタの内容を取得します。
+     *
+     * @return レジスタの内容、ブロックの読み出しならば null
+     */
+    public synchronized byte[] getRegisterData() {
+        return dataReg;
+    }
+
+    /**
+     * データの転送を進めます。
+     *
+     * 記憶媒体を読み書きする位置を返し、次に転送する位置を更新します。
+     * 単一ブロックの転送やレジスタの読み出しであれば、転送を終えて転送状態に戻ります。
+     *
+     * @param len 転送する長さ（バイト単位）
+     * @return 記憶媒体を読み書きする位置（バイト単位）、レジスタの読み出しならば 0
+     */
+    public synchronized long advanceData(int len) {
+        long addr = dataAddr;
+
+        if (dataMulti) {
+            dataAddr += len;
+        } else if (dataDir != DATA_NONE) {
+            endData();
+            state = STATE_TRAN;
+        }
+
+        return addr;
+    }
+
+    private int[] r1(int cmd) {
+        int st = getCardStatus();
+
+        errors = 0;
+
+        return new int[] {st};
+    }
+
+    private int[] illegal(int cmd) {
+        log.debug("sdcard: illegal CMD%d in state %d.\n", cmd, state);
+        errors |= CS_ILLEGAL_COMMAND;
+
+        return null;
+    }
+
+    /**
+     * カードステータス（R1 レスポンス）を取得します。
+     *
+     * @return カードステータス
+     */
+    private int getCardStatus() {
+        int st = errors;
+
+        st |= state << 9;
+        if (state == STATE_TRAN || state == STATE_RCV) {
+            st |= CS_READY_FOR_DATA;
+        }
+        if (appCmd) {
+            st |= CS_APP_CMD;
+        }
+
+        return st;
+    }
+
+    /**
+     * R6 レスポンスのカードステータス（下位 16ビット）を取得します。
+     *
+     * @return カードステータス
+     */
+    private int getR6Status() {
+        int st = getCardStatus();
+
+        //23, 22, 19, 12:0 ビットのみ
+        return ((st >>> 8) & 0xc000) | ((st >>> 6) & 0x2000) | (st & 0x1fff);
+    }
+
+    /**
+     * CID レジスタを取得します。
+     *
+     * @return CID
+     */
+    static int[] getCID() {
+        //MID, OID "EM", PNM "EMEMU", PRV 1.0, PSN, MDT 2020/01
+        return new int[] {
+                0x00454d45, 0x4d454d55, 0x10000000, 0x01014101,
+        };
+    }
+
+    /**
+     * CSD レジスタ（Version 2.0）を取得します。
+     *
+     * @param capacity カードの容量（バイト単位）
+     * @return CSD
+     */
+    static int[] getCSD(long capacity) {
+        long csize = capacity / C_SIZE_UNIT - 1;
+
+        if (csize < 0) {
+            csize = 0;
+        }
+
+        //CSD_STRUCTURE 1, TAAC 0x0e, TRAN_SPEED 0x32,
+        //CCC 0x1b5, READ_BL_LEN 9, C_SIZE, ERASE_BLK_EN 1,
+        //SECTOR_SIZE 0x7f, R2W_FACTOR 2, WRITE_BL_LEN 9
+        return new int[] {
+                0x400e0032,
+                0x1b590000 | (int)((csize >>> 16) & 0x3f),
+                ((int)csize << 16) | 0x7f80,
+                0x0a400001,
+        };
+    }
+
+    /**
+     * SCR レジスタを取得します。
+     *
+     * @return SCR
+     */
+    static byte[] getSCR() {
+        byte[] b = new byte[SCR_SIZE];
+
+        //SCR_STRUCTURE 0, SD_SPEC 0, SD_BUS_WIDTHS 1bit, 4bit
+        b[1] = 0x05;
+
+        return b;
+    }
+
+    /**
+     * カードの状態を保存します。
+     *
+     * データ転送の途中の状態は保存しません。
+     *
+     * @param out 出力先
+     * @throws IOException 保存に失敗した場合
+     */
+    public synchronized void saveState(SnapshotOutputStream out) throws IOException {
+        out.writeInt((state == STATE_DATA || state == STATE_RCV) ? STATE_TRAN : state);
+        out.writeInt(rca);
+    }
+
+    /**
+     * カードの状態を復元します。
+     *
+     * @param in 入力元
+     * @throws IOException 復元に失敗した場合
+     */
+    public synchronized void loadState(SnapshotInputStream in) throws IOException {
+        reset();
+        state = in.readInt();
+        rca = in.readInt();
+    }
+}
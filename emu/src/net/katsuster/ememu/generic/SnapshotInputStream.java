@@ -0,0 +1,172 @@
+package net.katsuster.ememu.generic;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * スナップショットの読み出し用ストリーム。
+ *
+ * <p>
+ * SnapshotOutputStream で書き込んだセクションを同じ順に読み出します。
+ * RAM のように大きなデータを展開するためのスレッドプールを持ちます。
+ * </p>
+ */
+public class SnapshotInputStream extends DataInputStream {
+    //ファイルの先頭に置く識別子 'EMSS' とバージョン
+    public static final int MAGIC = 0x454d5353;
+    public static final int VERSION = 1;
+
+    private ExecutorService executor;
+    private int threads;
+
+    /**
+     * 利用可能なプロセッサ数のスレッドで展開するストリームを作成します。
+     *
+     * @param in 読み出し元のストリーム
+     * @throws IOException 読み出しに失敗した場合、ヘッダが不正な場合
+     */
+    public SnapshotInputStream(InputStream in) throws IOException {
+        this(in, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * ストリームを作成し、ヘッダを読み出します。
+     *
+     * @param in 読み出し元のストリーム
+     * @param n  展開に用いるスレッド数
+     * @throws IOException 読み出しに失敗した場合、ヘッダが不正な場合
+     */
+    public SnapshotInputStream(InputStream in, int n) throws IOException {
+        super(new BufferedInputStream(in));
+
+        int magic = readInt();
+        int ver = readInt();
+
+        if (magic != MAGIC) {
+            throw new IOException(String.format(
+                    "Not a snapshot (magic 0x%08x).", magic));
+        }
+        if (ver != VERSION) {
+            throw new IOException(String.format(
+                    "Unsupported snapshot version %d.", ver));
+        }
+
+        threads = Math.max(1, n);
+        executor = newExecutor(threads);
+    }
+
+    /**
+     * 圧縮、展開に用いるスレッドプールを作成します。
+     *
+     * スレッドはデーモンスレッドとし、
+     * ストリームを閉じ忘れても JVM の終了を妨げないようにします。
+     *
+     * @param n スレッド数
+     * @return スレッドプール
+     */
+    static ExecutorService newExecutor(int n) {
+        return Executors.newFixedThreadPool(n, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "snapshot");
+
+                t.setDaemon(true);
+
+                return t;
+            }
+        });
+    }
+
+    /**
+     * 展開に用いるスレッドプールを取得します。
+     *
+     * @return スレッドプール
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 展開に用いるスレッド数を取得します。
+     *
+     * @return スレッド数
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * セクションの開始を読み出し、名前が一致するか検査します。
+     *
+     * @param name 期待するセクション名
+     * @throws IOException 読み出しに失敗した場合、名前が一致しない場合
+     */
+    public void readSection(String name) throws IOException {
+        String s = readUTF();
+
+        if (!s.equals(name)) {
+            throw new IOException(String.format(
+                    "Snapshot section mismatch, expected '%s' but '%s'.",
+                    name, s));
+        }
+    }
+
+    /**
+     * writeString で書き込んだ文字列を読み出します。
+     *
+     * @return 文字列、null が書き込まれていた場合は null
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public String readString() throws IOException {
+        int len = readInt();
+        StringBuilder b;
+
+        if (len < 0) {
+            return null;
+        }
+
+        b = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            b.append(readChar());
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * セクションを読み出し、状態を復元します。
+     *
+     * @param name 期待するセクション名
+     * @param s    状態を復元するオブジェクト
+     * @throws IOException 読み出しに失敗した場合、名前が一致しない場合
+     */
+    public void readState(String name, Snapshottable s) throws IOException {
+        readSection(name);
+        s.loadState(this);
+    }
+
+    /**
+     * 読み出した値が期待する値と一致するか検査します。
+     *
+     * @param what   値の説明
+     * @param expect 期待する値
+     * @param actual 読み出した値
+     * @throws IOException 一致しない場合
+     */
+    public void checkValue(String what, long expect, long actual) throws IOException {
+        if (expect != actual) {
+            throw new IOException(String.format(
+                    "Snapshot %s mismatch, expected %d but %d.",
+                    what, expect, actual));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.katsuster.ememu.generic;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * スナップショットの書き込み用ストリーム。
+ *
+ * <p>
+ * 各コア、デバイスの状態を名前付きのセクションとして順に書き込みます。
+ * RAM のように大きなデータを圧縮するためのスレッドプールを持ちます。
+ * </p>
+ */
+public class SnapshotOutputStream extends DataOutputStream {
+    private ExecutorService executor;
+    private int threads;
+
+    /**
+     * 利用可能なプロセッサ数のスレッドで圧縮するストリームを作成します。
+     *
+     * @param out 書き込み先のストリーム
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public SnapshotOutputStream(OutputStream out) throws IOException {
+        this(out, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * ストリームを作成し、ヘッダを書き込みます。
+     *
+     * @param out 書き込み先のストリーム
+     * @param n   圧縮に用いるスレッド数
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public SnapshotOutputStream(OutputStream out, int n) throws IOException {
+        super(new BufferedOutputStream(out));
+
+        threads = Math.max(1, n);
+        executor = SnapshotInputStream.newExecutor(threads);
+
+        writeInt(SnapshotInputStream.MAGIC);
+        writeInt(SnapshotInputStream.VERSION);
+    }
+
+    /**
+     * 圧縮に用いるスレッドプールを取得します。
+     *
+     * @return スレッドプール
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 圧縮に用いるスレッド数を取得します。
+     *
+     * @return スレッド数
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * セクションの開始を書き込みます。
+     *
+     * @param name セクション名
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void writeSection(String name) throws IOException {
+        writeUTF(name);
+    }
+
+    /**
+     * 長さの制限なく文字列を書き込みます。
+     *
+     * @param str 文字列、null も書き込めます
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void writeString(String str) throws IOException {
+        if (str == null) {
+            writeInt(-1);
+            return;
+        }
+
+        writeInt(str.length());
+        writeChars(str);
+    }
+
+    /**
+     * 状態を保存できるオブジェクトを、セクションとして書き込みます。
+     *
+     * @param name セクション名
+     * @param s    状態を保存するオブジェクト
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void writeState(String name, Snapshottable s) throws IOException {
+        writeSection(name);
+        s.saveState(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
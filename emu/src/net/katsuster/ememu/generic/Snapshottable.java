@@ -0,0 +1,31 @@
+package net.katsuster.ememu.generic;
+
+import java.io.*;
+
+/**
+ * スナップショットに状態を保存、復元できるコア、デバイス。
+ *
+ * <p>
+ * 保存と復元はコアが停止している間に行ってください。
+ * 復元時は保存時と同じ構成のボードに対して、
+ * 保存時と同じ順序で状態を読み出す必要があります。
+ * </p>
+ */
+public interface Snapshottable {
+    /**
+     * 現在の状態をスナップショットに書き込みます。
+     *
+     * @param out 書き込み先のスナップショット
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public abstract void saveState(SnapshotOutputStream out) throws IOException;
+
+    /**
+     * スナップショットから状態を読み出して復元します。
+     *
+     * @param in 読み出し元のスナップショット
+     * @throws IOException 読み出しに失敗した場合、
+     *                     スナップショットの内容が構成と一致しない場合
+     */
+    public abstract void loadState(SnapshotInputStream in) throws IOException;
+}
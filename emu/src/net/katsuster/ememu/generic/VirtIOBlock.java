@@ -0,0 +1,780 @@
+package net.katsuster.ememu.generic;
+
+import java.io.*;
+import java.nio.charset.*;
+
+import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.core.*;
+import net.katsuster.ememu.generic.log.*;
+
+/**
+ * virtio-mmio ブロックデバイス
+ *
+ * <p>
+ * ディスクイメージのファイルをメモリにマップして記憶媒体とします（{@link BlockStorage}）。
+ * ゲストがキューに要求を積んで通知すると、
+ * ゲストのメモリ上のディスクリプタリングから直接要求を取り出し、
+ * ワーカースレッドで並行して処理します。
+ * 完了した要求から順に used リングに返し、割り込みを発生させます。
+ * </p>
+ *
+ * <p>
+ * キューは 1つのみ、ディスクリプタの間接参照（VIRTIO_F_INDIRECT_DESC）には対応しません。
+ * 要求のヘッダ、データ、ステータスはそれぞれ別のディスクリプタに置かれている必要があります。
+ * </p>
+ *
+ * <p>
+ * 参考: Virtual I/O Device (VIRTIO) Version 1.0
+ * 4.2 Virtio Over MMIO, 5.2 Block Device
+ * </p>
+ */
+public class VirtIOBlock extends AbstractParentCore implements INTSource {
+    private static final Logger log = Log.getLogger("virtio.blk");
+
+    public static final int REG_MagicValue        = 0x000;
+    public static final int REG_Version           = 0x004;
+    public static final int REG_DeviceID          = 0x008;
+    public static final int REG_VendorID          = 0x00c;
+    public static final int REG_DeviceFeatures    = 0x010;
+    public static final int REG_DeviceFeaturesSel = 0x014;
+    public static final int REG_DriverFeatures    = 0x020;
+    public static final int REG_DriverFeaturesSel = 0x024;
+    public static final int REG_QueueSel          = 0x030;
+    public static final int REG_QueueNumMax       = 0x034;
+    public static final int REG_QueueNum          = 0x038;
+    public static final int REG_QueueReady        = 0x044;
+    public static final int REG_QueueNotify       = 0x050;
+    public static final int REG_InterruptStatus   = 0x060;
+    public static final int REG_InterruptACK      = 0x064;
+    public static final int REG_Status            = 0x070;
+    public static final int REG_QueueDescLow      = 0x080;
+    public static final int REG_QueueDescHigh     = 0x084;
+    public static final int REG_QueueDriverLow    = 0x090;
+    public static final int REG_QueueDriverHigh   = 0x094;
+    public static final int REG_QueueDeviceLow    = 0x0a0;
+    public static final int REG_QueueDeviceHigh   = 0x0a4;
+    public static final int REG_ConfigGeneration  = 0x0fc;
+
+    //0x100-0x13f: virtio_blk_config
+    public static final int REG_Config            = 0x100;
+    public static final int REG_CapacityLow       = 0x100;
+    public static final int REG_CapacityHigh      = 0x104;
+    public static final int REG_BlkSize           = 0x114;
+    public static final int CONFIG_SIZE           = 0x40;
+
+    //"virt"
+    public static final int MAGIC_VALUE = 0x74726976;
+    public static final int VERSION = 2;
+    public static final int DEVICE_ID_BLOCK = 2;
+    //"EMEM"
+    public static final int VENDOR_ID = 0x4d454d45;
+
+    //feature bits
+    public static final int F_RO        = 5;
+    public static final int F_BLK_SIZE  = 6;
+    public static final int F_FLUSH     = 9;
+    public static final int F_VERSION_1 = 32;
+
+    //interrupt status bits
+    public static final int INT_USED_RING = 0;
+    public static final int INT_CONFIG    = 1;
+
+    //descriptor flags
+    public static final int DESC_F_NEXT  = 1;
+    public static final int DESC_F_WRITE = 2;
+
+    //request types
+    public static final int T_IN     = 0;
+    public static final int T_OUT    = 1;
+    public static final int T_FLUSH  = 4;
+    public static final int T_GET_ID = 8;
+
+    //request status
+    public static final int S_OK     = 0;
+    public static final int S_IOERR  = 1;
+    public static final int S_UNSUPP = 2;
+
+    //セクタの大きさ（バイト単位）
+    public static final int SECTOR_SIZE = BlockStorage.SECTOR_SIZE;
+    //キューの最大の段数
+    public static final int QUEUE_NUM_MAX = 128;
+    //要求を並行して処理するワーカースレッドの数
+    public static final int WORKERS = 4;
+    //ゲストのメモリと一度に転送する大きさ
+    public static final int BLOCK_SIZE = 64 * 1024;
+    //要求ヘッダの大きさ
+    public static final int HEADER_SIZE = 16;
+    //デバイス ID 文字列の大きさ
+    public static final int ID_BYTES = 20;
+
+    private INTDestination intDst = new NullINTDestination();
+
+    private int status;
+    private int devFeaturesSel;
+    private int drvFeaturesSel;
+    private long drvFeatures;
+    private int queueSel;
+    private int intStatus;
+    private Virtqueue vq;
+
+    //リセット、スナップショットの復元ごとに増やし、それ以前の要求の完了を捨てる
+    private int generation;
+    //avail リングからの取り出しを順序付けるロック
+    private final Object availLock = new Object();
+    //used リングへの書き込みを順序付けるロック
+    private final Object usedLock = new Object();
+
+    private BlockStorage storage;
+
+    /**
+     * virtqueue の状態です。
+     */
+    private static class Virtqueue {
+        private int num;
+        private boolean ready;
+        private long desc;
+        private long driver;
+        private long device;
+        //次に取り出す avail リングの位置
+        private int lastAvail;
+        //次に書き込む used リングの位置
+        private int usedIdx;
+    }
+
+    public VirtIOBlock(String n) {
+        super(n);
+
+        vq = new Virtqueue();
+        storage = new BlockStorage(n, WORKERS);
+
+        setSlaveCore(new VirtIOBlockSlave());
+    }
+
+    /**
+     * ディスクイメージのファイルを開き、メモリにマップします。
+     *
+     * ファイルの末尾のセクタに満たない部分は使いません。
+     *
+     * @param f  ディスクイメージのファイル
+     * @param ro 読み出し専用とするならば true、そうでなければ false
+     * @throws IOException ファイルを開けなかった場合
+     */
+    public void open(File f, boolean ro) throws IOException {
+        storage.open(f, ro);
+    }
+
+    /**
+     * ディスクイメージのファイルを閉じます。
+     *
+     * 処理中の要求の完了を待ち、変更をファイルに書き戻します。
+     *
+     * @throws IOException 書き戻しに失敗した場合
+     */
+    public void close() throws IOException {
+        storage.close();
+    }
+
+    /**
+     * ディスクイメージを記憶媒体とするブロックストレージを取得します。
+     *
+     * @return ブロックストレージ
+     */
+    public BlockStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * ディスクの大きさを取得します。
+     *
+     * @return ディスクの大きさ（バイト単位）
+     */
+    public long getCapacity() {
+        return storage.getCapacity();
+    }
+
+    /**
+     * 処理中の要求が全て完了するまで待ちます。
+     *
+     * CPU がバスのロックを獲得したまま呼び出してはいけません。
+     *
+     * @throws InterruptedIOException 待っている間に割り込まれた場合
+     */
+    public void waitIdle() throws InterruptedIOException {
+        storage.waitIdle();
+    }
+
+    /**
+     * デバイスをリセットします。
+     *
+     * 処理中の要求は完了しても used リングに返しません。
+     */
+    private synchronized void reset() {
+        status = 0;
+        devFeaturesSel = 0;
+        drvFeaturesSel = 0;
+        drvFeatures = 0;
+        queueSel = 0;
+        intStatus = 0;
+        vq = new Virtqueue();
+        generation++;
+    }
+
+    /**
+     * デバイスの機能ビットを取得します。
+     *
+     * @return 機能ビット
+     */
+    private synchronized long getDeviceFeatures() {
+        long f = 0;
+
+        f |= 1L << F_VERSION_1;
+        f |= 1L << F_BLK_SIZE;
+        f |= 1L << F_FLUSH;
+        if (storage.isReadOnly()) {
+            f |= 1L << F_RO;
+        }
+
+        return f;
+    }
+
+    /**
+     * avail リングに積まれた要求を取り出し、ワーカースレッドに渡します。
+     */
+    private void notifyQueue() {
+        Bus64 bus = getSlaveCore().getMasterBus();
+        long desc, driver;
+        int gen, num, last, idx;
+
+        //CPU はバスのロックを獲得してからレジスタにアクセスするため、
+        //デバイスのロックを獲得したままバスにアクセスしてはいけない
+        synchronized (availLock) {
+            synchronized (this) {
+                if (!vq.ready || vq.num == 0) {
+                    return;
+                }
+                gen = generation;
+                desc = vq.desc;
+                driver = vq.driver;
+                num = vq.num;
+                last = vq.lastAvail;
+            }
+
+            idx = bus.read16(null, driver + 2) & 0xffff;
+            while (last != idx) {
+                int head = bus.read16(null, driver + 4 + 2L * (last % num)) & 0xffff;
+
+                last = (last + 1) & 0xffff;
+                if (!storage.submit(new Request(gen, desc, num, head))) {
+                    //停止後の通知は無視する
+                    break;
+                }
+            }
+
+            synchronized (this) {
+                if (gen == generation) {
+                    //リセットされていれば、新しい virtqueue の位置は進めない
+                    vq.lastAvail = last;
+                }
+            }
+        }
+    }
+
+    /**
+     * 完了した要求を used リングに返し、割り込みを発生させます。
+     *
+     * @param gen  要求を取り出したときの世代
+     * @param head 要求の先頭のディスクリプタの番号
+     * @param len  デバイスが書き込んだ大きさ（バイト単位）
+     */
+    private void complete(int gen, int head, int len) {
+        Bus64 bus = getSlaveCore().getMasterBus();
+        long device, elem;
+        int idx;
+
+        //CPU はバスのロックを獲得してからレジスタにアクセスするため、
+        //デバイスのロックを獲得したままバスにアクセスしてはいけない
+        synchronized (usedLock) {
+            synchronized (this) {
+                if (gen != generation) {
+                    //リセットより前の要求は返さない
+                    return;
+                }
+                device = vq.device;
+                elem = device + 4 + 8L * (vq.usedIdx % vq.num);
+                vq.usedIdx = (vq.usedIdx + 1) & 0xffff;
+                idx = vq.usedIdx;
+            }
+
+            bus.write32(null, elem, head);
+            bus.write32(null, elem + 4, len);
+            //要素を書いてからインデックスを進める
+            bus.write16(null, device + 2, (short)idx);
+        }
+
+        synchronized (this) {
+            if (gen == generation) {
+                intStatus |= 1 << INT_USED_RING;
+            }
+        }
+
+        intDst.setRaisedInterrupt(true);
+    }
+
+    /**
+     * ワーカースレッドで処理する要求です。
+     */
+    private class Request implements Runnable {
+        private int gen;
+        private long desc;
+        private int num;
+        private int head;
+
+        public Request(int g, long d, int n, int h) {
+            gen = g;
+            desc = d;
+            num = n;
+            head = h;
+        }
+
+        @Override
+        public void run() {
+            int len = 0;
+
+            try {
+                len = process();
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+            } finally {
+                complete(gen, head, len);
+            }
+        }
+
+        /**
+         * ディスクリプタのチェーンをたどって要求を処理します。
+         *
+         * @return デバイスが書き込んだ大きさ（バイト単位）
+         */
+        private int process() {
+            Bus64 bus = getSlaveCore().getMasterBus();
+            long[] addrs = new long[num];
+            int[] lens = new int[num];
+            boolean[] writes = new boolean[num];
+            int cnt = 0, i = head;
+            int type, st, written = 0;
+            long sector;
+
+            //チェーンをたどる、ループしていればキューの段数で打ち切る
+            while (cnt < num && i < num) {
+                long d = desc + 16L * i;
+                int flags = bus.read16(null, d + 12) & 0xffff;
+
+                addrs[cnt] = bus.read64(null, d);
+                lens[cnt] = bus.read32(null, d + 8);
+                writes[cnt] = (flags & DESC_F_WRITE) != 0;
+                cnt++;
+                if ((flags & DESC_F_NEXT) == 0) {
+                    break;
+                }
+                i = bus.read16(null, d + 14) & 0xffff;
+            }
+            if (cnt < 2 || lens[0] < HEADER_SIZE || writes[0] ||
+                    !writes[cnt - 1] || lens[cnt - 1] < 1) {
+                log.warn("virtio-blk: broken request at desc %d.\n", head);
+                return 0;
+            }
+
+            type = bus.read32(null, addrs[0]);
+            sector = bus.read64(null, addrs[0] + 8);
+
+            switch (type) {
+            case T_IN:
+            case T_OUT:
+                st = transfer(bus, type == T_OUT, sector,
+                        addrs, lens, writes, cnt);
+                if (st == S_OK && type == T_IN) {
+                    for (int j = 1; j < cnt - 1; j++) {
+                        written += lens[j];
+                    }
+                }
+                break;
+            case T_FLUSH:
+                storage.flush();
+                st = S_OK;
+                break;
+            case T_GET_ID:
+                st = S_IOERR;
+                if (cnt > 2 && writes[1]) {
+                    byte[] id = new byte[ID_BYTES];
+                    byte[] name = getName().getBytes(StandardCharsets.US_ASCII);
+                    int n = Math.min(lens[1], ID_BYTES);
+
+                    System.arraycopy(name, 0, id, 0, Math.min(name.length, ID_BYTES));
+                    bus.writeBlock(null, addrs[1], id, 0, n);
+                    written += n;
+                    st = S_OK;
+                }
+                break;
+            default:
+                st = S_UNSUPP;
+                break;
+            }
+
+            //ステータスはステータス用のディスクリプタの最後の 1バイト
+            bus.write8(null, addrs[cnt - 1] + lens[cnt - 1] - 1, (byte)st);
+
+            return written + 1;
+        }
+
+        /**
+         * データのディスクリプタとディスクの間で転送します。
+         *
+         * @return 要求のステータス
+         */
+        private int transfer(Bus64 bus, boolean out, long sector, long[] addrs,
+                             int[] lens, boolean[] writes, int cnt) {
+            byte[] buf = new byte[BLOCK_SIZE];
+            long pos = sector * SECTOR_SIZE;
+            long cap = storage.getCapacity();
+            long total = 0;
+
+            for (int j = 1; j < cnt - 1; j++) {
+                //読み出しはゲストが書き込み可能、書き込みは読み出し可能なバッファを使う
+                if (writes[j] == out) {
+                    return S_IOERR;
+                }
+                total += lens[j] & 0xffffffffL;
+            }
+            if (out && storage.isReadOnly()) {
+                return S_IOERR;
+            }
+            if (sector < 0 || sector > cap / SECTOR_SIZE ||
+                    total > cap - pos) {
+                log.warn("virtio-blk: sector %d, %d bytes is out of disk.\n",
+                        sector, total);
+                return S_IOERR;
+            }
+
+            try {
+                for (int j = 1; j < cnt - 1; j++) {
+                    for (int k = 0; k < lens[j]; k += BLOCK_SIZE) {
+                        int n = Math.min(BLOCK_SIZE, lens[j] - k);
+
+                        if (out) {
+                            bus.readBlock(null, addrs[j] + k, buf, 0, n);
+                            storage.write(pos, buf, 0, n);
+                        } else {
+                            storage.read(pos, buf, 0, n);
+                            bus.writeBlock(null, addrs[j] + k, buf, 0, n);
+                        }
+                        pos += n;
+                    }
+                }
+            } catch (IOException e) {
+                //転送中にディスクが閉じられた場合
+                log.warn("virtio-blk: %s\n", e.getMessage());
+                return S_IOERR;
+            }
+
+            return S_OK;
+        }
+    }
+
+    @Override
+    public INTDestination getINTDestination() {
+        return intDst;
+    }
+
+    @Override
+    public void connectINTDestination(INTDestination c) {
+        intDst = c;
+    }
+
+    @Override
+    public void disconnectINTDestination() {
+        intDst = new NullINTDestination();
+    }
+
+    @Override
+    public synchronized boolean isAssert() {
+        return intStatus != 0;
+    }
+
+    @Override
+    public String getIRQMessage() {
+        return "virtio-blk";
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * 処理中の要求の完了を待ってから保存します。
+     * ディスクイメージの内容は保存しません。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        //完了処理がデバイスのロックを獲得するため、ロックの外で待つ
+        waitIdle();
+        synchronized (this) {
+            out.writeInt(status);
+            out.writeInt(devFeaturesSel);
+            out.writeInt(drvFeaturesSel);
+            out.writeLong(drvFeatures);
+            out.writeInt(queueSel);
+            out.writeInt(intStatus);
+            out.writeInt(vq.num);
+            out.writeBoolean(vq.ready);
+            out.writeLong(vq.desc);
+            out.writeLong(vq.driver);
+            out.writeLong(vq.device);
+            out.writeInt(vq.lastAvail);
+            out.writeInt(vq.usedIdx);
+        }
+    }
+
+    @Override
+    public synchronized void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        reset();
+        status = in.readInt();
+        devFeaturesSel = in.readInt();
+        drvFeaturesSel = in.readInt();
+        drvFeatures = in.readLong();
+        queueSel = in.readInt();
+        intStatus = in.readInt();
+        vq.num = in.readInt();
+        vq.ready = in.readBoolean();
+        vq.desc = in.readLong();
+        vq.driver = in.readLong();
+        vq.device = in.readLong();
+        vq.lastAvail = in.readInt();
+        vq.usedIdx = in.readInt();
+    }
+
+    class VirtIOBlockSlave extends Controller32 {
+        public VirtIOBlockSlave() {
+            addReg(REG_MagicValue, "MagicValue", MAGIC_VALUE);
+            addReg(REG_Version, "Version", VERSION);
+            addReg(REG_DeviceID, "DeviceID", DEVICE_ID_BLOCK);
+            addReg(REG_VendorID, "VendorID", VENDOR_ID);
+            addReg(REG_DeviceFeatures, "DeviceFeatures");
+            addReg(REG_DeviceFeaturesSel, "DeviceFeaturesSel");
+            addReg(REG_DriverFeatures, "DriverFeatures");
+            addReg(REG_DriverFeaturesSel, "DriverFeaturesSel");
+            addReg(REG_QueueSel, "QueueSel");
+            addReg(REG_QueueNumMax, "QueueNumMax");
+            addReg(REG_QueueNum, "QueueNum");
+            addReg(REG_QueueReady, "QueueReady");
+            addReg(REG_QueueNotify, "QueueNotify");
+            addReg(REG_InterruptStatus, "InterruptStatus");
+            addReg(REG_InterruptACK, "InterruptACK");
+            addReg(REG_Status, "Status");
+            addReg(REG_QueueDescLow, "QueueDescLow");
+            addReg(REG_QueueDescHigh, "QueueDescHigh");
+            addReg(REG_QueueDriverLow, "QueueDriverLow");
+            addReg(REG_QueueDriverHigh, "QueueDriverHigh");
+            addReg(REG_QueueDeviceLow, "QueueDeviceLow");
+            addReg(REG_QueueDeviceHigh, "QueueDeviceHigh");
+            addReg(REG_ConfigGeneration, "ConfigGeneration");
+            for (int i = 0; i < CONFIG_SIZE; i += 4) {
+                addReg(REG_Config + i, String.format("Config%02x", i));
+            }
+        }
+
+        @Override
+        public int readWord(BusMaster64 m, long addr) {
+            int regaddr;
+            int result;
+
+            regaddr = (int)(addr & BitOp.getAddressMask(LEN_WORD_BITS));
+
+            synchronized (VirtIOBlock.this) {
+                switch (regaddr) {
+                case REG_DeviceFeatures:
+                    if (devFeaturesSel == 0) {
+                        result = (int)getDeviceFeatures();
+                    } else if (devFeaturesSel == 1) {
+                        result = (int)(getDeviceFeatures() >>> 32);
+                    } else {
+                        result = 0;
+                    }
+                    break;
+                case REG_DeviceFeaturesSel:
+                    result = devFeaturesSel;
+                    break;
+                case REG_DriverFeatures:
+                case REG_DriverFeaturesSel:
+                case REG_QueueNotify:
+                case REG_InterruptACK:
+                case REG_QueueSel:
+                    //write only
+                    result = 0;
+                    break;
+                case REG_QueueNumMax:
+                    result = (queueSel == 0) ? QUEUE_NUM_MAX : 0;
+                    break;
+                case REG_QueueNum:
+                    result = vq.num;
+                    break;
+                case REG_QueueReady:
+                    result = vq.ready ? 1 : 0;
+                    break;
+                case REG_InterruptStatus:
+                    result = intStatus;
+                    break;
+                case REG_Status:
+                    result = status;
+                    break;
+                case REG_QueueDescLow:
+                    result = (int)vq.desc;
+                    break;
+                case REG_QueueDescHigh:
+                    result = (int)(vq.desc >>> 32);
+                    break;
+                case REG_QueueDriverLow:
+                    result = (int)vq.driver;
+                    break;
+                case REG_QueueDriverHigh:
+                    result = (int)(vq.driver >>> 32);
+                    break;
+                case REG_QueueDeviceLow:
+                    result = (int)vq.device;
+                    break;
+                case REG_QueueDeviceHigh:
+                    result = (int)(vq.device >>> 32);
+                    break;
+                case REG_ConfigGeneration:
+                    result = 0;
+                    break;
+                case REG_CapacityLow:
+                    result = (int)(storage.getCapacity() / SECTOR_SIZE);
+                    break;
+                case REG_CapacityHigh:
+                    result = (int)(storage.getCapacity() / SECTOR_SIZE >>> 32);
+                    break;
+                case REG_BlkSize:
+                    result = SECTOR_SIZE;
+                    break;
+                default:
+                    if (REG_Config <= regaddr && regaddr < REG_Config + CONFIG_SIZE) {
+                        //未対応の設定は 0
+                        result = 0;
+                    } else {
+                        result = super.readWord(m, regaddr);
+                    }
+                    break;
+                }
+            }
+
+            return result;
+        }
+
+        @Override
+        public void writeWord(BusMaster64 m, long addr, int data) {
+            int regaddr;
+
+            regaddr = (int)(addr & BitOp.getAddressMask(LEN_WORD_BITS));
+
+            if (regaddr == REG_QueueNotify) {
+                //avail リングを読むためにバスにアクセスするので、
+                //デバイスのロックを獲得せずに呼び出す
+                if (data == 0) {
+                    notifyQueue();
+                }
+                return;
+            }
+
+            synchronized (VirtIOBlock.this) {
+                switch (regaddr) {
+                case REG_DeviceFeaturesSel:
+                    devFeaturesSel = data;
+                    break;
+                case REG_DriverFeatures:
+                    if (drvFeaturesSel == 0) {
+                        drvFeatures = (drvFeatures & ~0xffffffffL) | (data & 0xffffffffL);
+                    } else if (drvFeaturesSel == 1) {
+                        drvFeatures = (drvFeatures & 0xffffffffL) | ((long)data << 32);
+                    }
+                    break;
+                case REG_DriverFeaturesSel:
+                    drvFeaturesSel = data;
+                    break;
+                case REG_QueueSel:
+                    queueSel = data;
+                    break;
+                case REG_QueueNum:
+                    if (queueSel == 0 && data > 0 && data <= QUEUE_NUM_MAX) {
+                        vq.num = data;
+                    }
+                    break;
+                case REG_QueueReady:
+                    if (queueSel == 0) {
+                        vq.ready = (data & 1) != 0;
+                    }
+                    break;
+                case REG_InterruptACK:
+                    intStatus &= ~data;
+                    break;
+                case REG_Status:
+                    if (data == 0) {
+                        reset();
+                    } else {
+                        status = data;
+                    }
+                    break;
+                case REG_QueueDescLow:
+                    vq.desc = (vq.desc & ~0xffffffffL) | (data & 0xffffffffL);
+                    break;
+                case REG_QueueDescHigh:
+                    vq.desc = (vq.desc & 0xffffffffL) | ((long)data << 32);
+                    break;
+                case REG_QueueDriverLow:
+                    vq.driver = (vq.driver & ~0xffffffffL) | (data & 0xffffffffL);
+                    break;
+                case REG_QueueDriverHigh:
+                    vq.driver = (vq.driver & 0xffffffffL) | ((long)data << 32);
+                    break;
+                case REG_QueueDeviceLow:
+                    vq.device = (vq.device & ~0xffffffffL) | (data & 0xffffffffL);
+                    break;
+                case REG_QueueDeviceHigh:
+                    vq.device = (vq.device & 0xffffffffL) | ((long)data << 32);
+                    break;
+                case REG_MagicValue:
+                case REG_Version:
+                case REG_DeviceID:
+                case REG_VendorID:
+                case REG_DeviceFeatures:
+                case REG_QueueNumMax:
+                case REG_InterruptStatus:
+                case REG_ConfigGeneration:
+                    //read only, ignored
+                    break;
+                default:
+                    if (REG_Config <= regaddr && regaddr < REG_Config + CONFIG_SIZE) {
+                        //read only, ignored
+                        break;
+                    }
+                    super.writeWord(m, regaddr, data);
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            //do nothing
+        }
+
+        @Override
+        public void halt() {
+            super.halt();
+
+            storage.shutdown();
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package net.katsuster.ememu.generic.bus;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
+import net.katsuster.ememu.generic.RAM;
 import net.katsuster.ememu.generic.core.*;
 
 /**
@@ -15,8 +17,11 @@ public class Bus64 implements BusSlave64 {
     private List<MasterCore64> masterList;
     //全スレーブコアを管理するリスト
     private List<SlaveCoreAddress> slaveList;
-    //32bit アドレス内のスレーブコアに高速にアクセスするためのテーブル
-    private SlaveCoreAddress[] slaves;
+    //64bit アドレス全域のスレーブコアを開始アドレス順に並べた表
+    //二分探索で検索し、追加、削除のたびに作り直します
+    private volatile SlaveCoreAddress[] slaves;
+    //コアを実行する方式
+    private CoreExecutor executor;
     //直前にアクセスしたスレーブコアのキャッシュ
     private SlaveCoreAddress cachedSlave;
     private long cacheHit;
@@ -26,12 +31,73 @@ public class Bus64 implements BusSlave64 {
         rwlock = new ReentrantReadWriteLock();
         masterList = new ArrayList<>();
         slaveList = new ArrayList<>();
-        //4KB ごとにスレーブコアを記録するため、
-        //2^32 / 2^12 = 2^20 の要素が必要となる
-        slaves = new SlaveCoreAddress[1024 * 1024];
+        slaves = new SlaveCoreAddress[0];
+        executor = new ThreadCoreExecutor();
         cachedSlave = new InvalidSlaveCoreAddress();
     }
 
+    /**
+     * コアを実行する方式を取得します。
+     *
+     * @return コアを実行する方式
+     */
+    public CoreExecutor getCoreExecutor() {
+        return executor;
+    }
+
+    /**
+     * コアを実行する方式を設定します。
+     *
+     * コアを起動する前に設定してください。
+     * デフォルトでは各コアを専用のスレッドで実行します。
+     *
+     * @param e コアを実行する方式
+     */
+    public void setCoreExecutor(CoreExecutor e) {
+        executor = e;
+    }
+
+    /**
+     * スレーブコアの検索が直前のスレーブコアに一致した回数を取得します。
+     *
+     * @return 回数
+     */
+    public long getCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * スレーブコアの検索が直前のスレーブコアに一致しなかった回数を取得します。
+     *
+     * @return 回数
+     */
+    public long getCacheMiss() {
+        return cacheMiss;
+    }
+
+    /**
+     * RAM 以外のスレーブコアごとのアクセス数を取得します。
+     *
+     * @return 「開始アドレス-終了アドレス クラス名 read:回数 write:回数」の形式の文字列の配列、
+     * 開始アドレス順に並びます
+     */
+    public String[] getIOAccesses() {
+        SlaveCoreAddress[] tbl = slaves;
+        List<String> r = new ArrayList<>();
+
+        for (SlaveCoreAddress sca : tbl) {
+            if (!sca.isIO()) {
+                continue;
+            }
+            r.add(String.format("0x%08x-0x%08x %s read:%d write:%d",
+                    sca.getStartAddress(), sca.getEndAddress(),
+                    sca.getCore().getClass().getSimpleName(),
+                    sca.reads.get(), sca.writes.get()));
+        }
+
+        return r.toArray(new String[0]);
+    }
+
     /**
      * バスのマスターコアを追加します。
      *
@@ -61,7 +127,7 @@ public class Bus64 implements BusSlave64 {
     public void startAllMasterCores() {
         for (MasterCore64 mc : masterList) {
             mc.setName(mc.getClass().getName());
-            mc.start();
+            executor.start(mc);
         }
     }
 
@@ -115,6 +181,7 @@ public class Bus64 implements BusSlave64 {
     public byte read8(BusMaster64 m, long addr) {
         SlaveCoreAddress sca;
         long offSt;
+        byte v;
 
         sca = findSlaveCoreAddress(addr, addr);
         if (sca == null) {
@@ -126,16 +193,22 @@ public class Bus64 implements BusSlave64 {
 
         rwlock.readLock().lock();
         try {
-            return sca.getCore().read8(m, offSt);
+            v = sca.getCore().read8(m, offSt);
         } finally {
             rwlock.readLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, false, addr, 1, v & 0xffL);
+        }
+
+        return v;
     }
 
     @Override
     public short read16(BusMaster64 m, long addr) {
         SlaveCoreAddress sca;
         long offSt;
+        short v;
 
         sca = findSlaveCoreAddress(addr, addr + 1);
         if (sca == null) {
@@ -147,16 +220,22 @@ public class Bus64 implements BusSlave64 {
 
         rwlock.readLock().lock();
         try {
-            return sca.getCore().read16(m, offSt);
+            v = sca.getCore().read16(m, offSt);
         } finally {
             rwlock.readLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, false, addr, 2, v & 0xffffL);
+        }
+
+        return v;
     }
 
     @Override
     public int read32(BusMaster64 m, long addr) {
         SlaveCoreAddress sca;
         long offSt;
+        int v;
 
         sca = findSlaveCoreAddress(addr, addr + 3);
         if (sca == null) {
@@ -168,16 +247,22 @@ public class Bus64 implements BusSlave64 {
 
         rwlock.readLock().lock();
         try {
-            return sca.getCore().read32(m, offSt);
+            v = sca.getCore().read32(m, offSt);
         } finally {
             rwlock.readLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, false, addr, 4, v & 0xffffffffL);
+        }
+
+        return v;
     }
 
     @Override
     public long read64(BusMaster64 m, long addr) {
         SlaveCoreAddress sca;
         long offSt;
+        long v;
 
         sca = findSlaveCoreAddress(addr, addr + 7);
         if (sca == null) {
@@ -189,16 +274,22 @@ public class Bus64 implements BusSlave64 {
 
         rwlock.readLock().lock();
         try {
-            return sca.getCore().read64(m, offSt);
+            v = sca.getCore().read64(m, offSt);
         } finally {
             rwlock.readLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, false, addr, 8, v);
+        }
+
+        return v;
     }
 
     @Override
     public short read_ua16(BusMaster64 m, long addr) {
         SlaveCoreAddress sca;
         long offSt;
+        short v;
 
         sca = findSlaveCoreAddress(addr, addr + 1);
         if (sca == null) {
@@ -210,16 +301,22 @@ public class Bus64 implements BusSlave64 {
 
         rwlock.readLock().lock();
         try {
-            return sca.getCore().read_ua16(m, offSt);
+            v = sca.getCore().read_ua16(m, offSt);
         } finally {
             rwlock.readLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, false, addr, 2, v & 0xffffL);
+        }
+
+        return v;
     }
 
     @Override
     public int read_ua32(BusMaster64 m, long addr) {
         SlaveCoreAddress sca;
         long offSt;
+        int v;
 
         sca = findSlaveCoreAddress(addr, addr + 3);
         if (sca == null) {
@@ -231,16 +328,22 @@ public class Bus64 implements BusSlave64 {
 
         rwlock.readLock().lock();
         try {
-            return sca.getCore().read_ua32(m, offSt);
+            v = sca.getCore().read_ua32(m, offSt);
         } finally {
             rwlock.readLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, false, addr, 4, v & 0xffffffffL);
+        }
+
+        return v;
     }
 
     @Override
     public long read_ua64(BusMaster64 m, long addr) {
         SlaveCoreAddress sca;
         long offSt;
+        long v;
 
         sca = findSlaveCoreAddress(addr, addr + 7);
         if (sca == null) {
@@ -252,10 +355,15 @@ public class Bus64 implements BusSlave64 {
 
         rwlock.readLock().lock();
         try {
-            return sca.getCore().read_ua64(m, offSt);
+            v = sca.getCore().read_ua64(m, offSt);
         } finally {
             rwlock.readLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, false, addr, 8, v);
+        }
+
+        return v;
     }
 
     @Override
@@ -295,6 +403,9 @@ public class Bus64 implements BusSlave64 {
         } finally {
             rwlock.writeLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, true, addr, 1, data & 0xffL);
+        }
     }
 
     @Override
@@ -316,6 +427,9 @@ public class Bus64 implements BusSlave64 {
         } finally {
             rwlock.writeLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, true, addr, 2, data & 0xffffL);
+        }
     }
 
     @Override
@@ -337,6 +451,9 @@ public class Bus64 implements BusSlave64 {
         } finally {
             rwlock.writeLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, true, addr, 4, data & 0xffffffffL);
+        }
     }
 
     @Override
@@ -358,6 +475,9 @@ public class Bus64 implements BusSlave64 {
         } finally {
             rwlock.writeLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, true, addr, 8, data);
+        }
     }
 
     @Override
@@ -379,6 +499,9 @@ public class Bus64 implements BusSlave64 {
         } finally {
             rwlock.writeLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, true, addr, 2, data & 0xffffL);
+        }
     }
 
     @Override
@@ -400,6 +523,9 @@ public class Bus64 implements BusSlave64 {
         } finally {
             rwlock.writeLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, true, addr, 4, data & 0xffffffffL);
+        }
     }
 
     @Override
@@ -421,6 +547,135 @@ public class Bus64 implements BusSlave64 {
         } finally {
             rwlock.writeLock().unlock();
         }
+        if (sca.isIO()) {
+            traceIO(sca, m, true, addr, 8, data);
+        }
+    }
+
+    /**
+     * 指定したアドレスから連続した領域を読み出します。
+     *
+     * 領域全体が 1つの RAM に含まれる場合は RAM からまとめて読み出します。
+     * そうでなければ 1バイトずつ読み出します。
+     *
+     * @param m    アクセスするマスターコア
+     * @param addr 読み出しを開始するアドレス
+     * @param b    読み出したデータを格納する配列
+     * @param off  格納を開始する配列の位置
+     * @param len  読み出す長さ（バイト単位）
+     */
+    public void readBlock(BusMaster64 m, long addr, byte[] b, int off, int len) {
+        SlaveCoreAddress sca;
+
+        if (len <= 0) {
+            return;
+        }
+
+        sca = findSlaveCoreAddress(addr, addr + len - 1);
+        if (sca == null || !(sca.getCore() instanceof RAM)) {
+            for (int i = 0; i < len; i++) {
+                b[off + i] = read8(m, addr + i);
+            }
+            return;
+        }
+
+        rwlock.readLock().lock();
+        try {
+            ((RAM)sca.getCore()).readBlock(addr - sca.getStartAddress(), b, off, len);
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 指定したアドレスから連続した領域に書き込みます。
+     *
+     * 領域全体が 1つの RAM に含まれる場合は RAM にまとめて書き込みます。
+     * そうでなければ 1バイトずつ書き込みます。
+     *
+     * @param m    アクセスするマスターコア
+     * @param addr 書き込みを開始するアドレス
+     * @param b    書き込むデータを格納した配列
+     * @param off  データの開始位置
+     * @param len  書き込む長さ（バイト単位）
+     */
+    public void writeBlock(BusMaster64 m, long addr, byte[] b, int off, int len) {
+        SlaveCoreAddress sca;
+
+        if (len <= 0) {
+            return;
+        }
+
+        sca = findSlaveCoreAddress(addr, addr + len - 1);
+        if (sca == null || !(sca.getCore() instanceof RAM)) {
+            for (int i = 0; i < len; i++) {
+                write8(m, addr + i, b[off + i]);
+            }
+            return;
+        }
+
+        rwlock.writeLock().lock();
+        try {
+            ((RAM)sca.getCore()).writeBlock(addr - sca.getStartAddress(), b, off, len);
+        } finally {
+            rwlock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 指定したアドレスから連続した領域を 0 で埋めます。
+     *
+     * 領域全体が 1つの RAM に含まれる場合は RAM にまとめて書き込みます。
+     * そうでなければ 1バイトずつ書き込みます。
+     *
+     * @param m    アクセスするマスターコア
+     * @param addr 開始アドレス
+     * @param len  長さ（バイト単位）
+     */
+    public void clearBlock(BusMaster64 m, long addr, long len) {
+        SlaveCoreAddress sca;
+
+        if (len <= 0) {
+            return;
+        }
+
+        sca = findSlaveCoreAddress(addr, addr + len - 1);
+        if (sca == null || !(sca.getCore() instanceof RAM)) {
+            for (long i = 0; i < len; i++) {
+                write8(m, addr + i, (byte)0);
+            }
+            return;
+        }
+
+        rwlock.writeLock().lock();
+        try {
+            //RAM の大きさは int に収まるため、len も int に収まる
+            ((RAM)sca.getCore()).clearBlock(addr - sca.getStartAddress(), (int)len);
+        } finally {
+            rwlock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * I/O 領域へのアクセスを数え、アクセスした CPU のフライトレコーダに記録します。
+     *
+     * @param sca   アクセスしたスレーブコアアドレス
+     * @param m     アクセスしたマスターコア
+     * @param write 書き込みならば true、読み出しならば false
+     * @param addr  アドレス
+     * @param size  サイズ（バイト単位）
+     * @param data  読み出した値、または書き込んだ値
+     */
+    private static void traceIO(SlaveCoreAddress sca, BusMaster64 m,
+                                boolean write, long addr, int size, long data) {
+        if (write) {
+            sca.writes.incrementAndGet();
+        } else {
+            sca.reads.incrementAndGet();
+        }
+        if (m instanceof CPU) {
+            ((CPU)m).traceIO(write, addr, size, data);
+        }
     }
 
     /**
@@ -440,26 +695,24 @@ public class Bus64 implements BusSlave64 {
     public void addSlaveCore(SlaveCore64 c, long start, long end) {
         SlaveCoreAddress sca;
 
-        sca = findSlaveCoreAddress(start, end);
-        if (sca != null) {
-            throw new IllegalArgumentException("Already exists on " +
-                    String.format("0x%08x - 0x%08x.",
-                            sca.getStartAddress(), sca.getEndAddress()));
+        if (c == null) {
+            throw new IllegalArgumentException("Slave core is null.");
         }
 
-        //32bit アドレス範囲内のスレーブコアならばテーブルにも記録する
         sca = new SlaveCoreAddress(c, start, end);
-        for (long i = start; i <= end; i += 4096) {
-            int ind = (int) (i >>> 12);
-            if (ind > 0xfffff) {
-                //32bit アドレスの範囲外
-                break;
+
+        synchronized (this) {
+            SlaveCoreAddress over = findOverlapped(start, end);
+            if (over != null) {
+                throw new IllegalArgumentException("Already exists on " +
+                        String.format("0x%08x - 0x%08x.",
+                                over.getStartAddress(), over.getEndAddress()));
             }
-            slaves[ind] = sca;
-        }
 
-        //リストにスレーブコアを記録する
-        slaveList.add(new SlaveCoreAddress(c, start, end));
+            //リストにスレーブコアを記録し、表を作り直す
+            slaveList.add(sca);
+            updateSlaveTable();
+        }
         c.setMasterBus(this);
     }
 
@@ -495,41 +748,98 @@ public class Bus64 implements BusSlave64 {
     public boolean removeSlaveCore(SlaveCore64 c) {
         boolean result = false;
 
-        //32bit アドレス範囲内のスレーブコアならばテーブルから消去する
-        for (long i = 0; i <= 0xffffffffL; i += 4096) {
-            int ind = (int) (i >>> 12);
+        synchronized (this) {
+            //リストからスレーブコアを消去する
+            Iterator<SlaveCoreAddress> it = slaveList.iterator();
+            while (it.hasNext()) {
+                SlaveCore64 sc = it.next().getCore();
 
-            if (slaves[ind] == null || slaves[ind].getCore() == null) {
-                continue;
+                if (sc.equals(c)) {
+                    it.remove();
+                    sc.setMasterBus(null);
+                    result = true;
+                }
             }
 
-            if (slaves[ind].getCore().equals(c)) {
-                slaves[ind] = null;
+            if (result) {
+                updateSlaveTable();
             }
         }
 
-        //リストからスレーブコアを消去する
-        out: while (true) {
-            boolean found = false;
+        return result;
+    }
 
-            for (SlaveCoreAddress sca : slaveList) {
-                SlaveCore64 sc = sca.getCore();
+    /**
+     * スレーブコアの表を作り直します。
+     *
+     * 表はスレーブコアを開始アドレス順（符号無し）に並べたものです。
+     * 検索中のスレッドは古い表を使い続けるため、表は都度新しく作成します。
+     */
+    private void updateSlaveTable() {
+        SlaveCoreAddress[] tbl = slaveList.toArray(
+                new SlaveCoreAddress[slaveList.size()]);
 
-                if (sc.equals(c)) {
-                    slaveList.remove(sca);
-                    sc.setMasterBus(null);
-                    found = true;
-                    result = true;
+        Arrays.sort(tbl, new Comparator<SlaveCoreAddress>() {
+            @Override
+            public int compare(SlaveCoreAddress a, SlaveCoreAddress b) {
+                long sa = a.getStartAddress() ^ Long.MIN_VALUE;
+                long sb = b.getStartAddress() ^ Long.MIN_VALUE;
 
-                    break;
-                }
+                return (sa < sb) ? -1 : ((sa == sb) ? 0 : 1);
             }
-            if (!found) {
-                break out;
+        });
+
+        slaves = tbl;
+        cachedSlave = new InvalidSlaveCoreAddress();
+    }
+
+    /**
+     * 表の中から、開始アドレスが指定したアドレス以下で、
+     * 最も大きいスレーブコアアドレスの位置を二分探索します。
+     *
+     * @param tbl  スレーブコアの表
+     * @param addr アドレス
+     * @return 見つかった位置、なければ -1
+     */
+    private static int searchSlaveTable(SlaveCoreAddress[] tbl, long addr) {
+        long key = addr ^ Long.MIN_VALUE;
+        int lo = 0, hi = tbl.length - 1, found = -1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if ((tbl[mid].getStartAddress() ^ Long.MIN_VALUE) <= key) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
             }
         }
 
-        return result;
+        return found;
+    }
+
+    /**
+     * 指定したアドレスの範囲と、一部でも重なるスレーブコアアドレスを検索します。
+     *
+     * @param start 開始アドレス
+     * @param end   終了アドレス
+     * @return 重なるスレーブコアアドレス、なければ null
+     */
+    private SlaveCoreAddress findOverlapped(long start, long end) {
+        SlaveCoreAddress[] tbl = slaves;
+        int ind;
+
+        //表は重なりがないので、終了アドレスの直前にある 1つだけ調べれば良い
+        ind = searchSlaveTable(tbl, end);
+        if (ind < 0) {
+            return null;
+        }
+        if ((tbl[ind].getEndAddress() ^ Long.MIN_VALUE) < (start ^ Long.MIN_VALUE)) {
+            return null;
+        }
+
+        return tbl[ind];
     }
 
     /**
@@ -541,33 +851,31 @@ public class Bus64 implements BusSlave64 {
      * @return 指定したアドレスに割り当てられているスレーブコアアドレス、
      * 何も割り当てられていなければ null
      */
-    synchronized protected SlaveCoreAddress findSlaveCoreAddress(long start, long end) {
-        if (cachedSlave.contains(start, end)) {
+    protected SlaveCoreAddress findSlaveCoreAddress(long start, long end) {
+        SlaveCoreAddress sca = cachedSlave;
+        SlaveCoreAddress[] tbl;
+        int ind;
+
+        if (sca.contains(start, end)) {
             cacheHit++;
-            return cachedSlave;
+            return sca;
         }
         cacheMiss++;
 
-        //テーブルから探索する
-        int ind = (int) (start >>> 12);
-        if (ind <= 0xfffff) {
-            if (slaves[ind] != null) {
-                cachedSlave = slaves[ind];
-            }
-            if (cachedSlave.contains(start, end)) {
-                return slaves[ind];
-            }
+        //表から二分探索する
+        tbl = slaves;
+        ind = searchSlaveTable(tbl, start);
+        if (ind < 0) {
+            return null;
         }
 
-        //リストから線形探索する
-        for (SlaveCoreAddress sca : slaveList) {
-            if (sca.contains(start, end)) {
-                cachedSlave = sca;
-                return sca;
-            }
+        sca = tbl[ind];
+        if (!sca.contains(start, end)) {
+            return null;
         }
+        cachedSlave = sca;
 
-        return null;
+        return sca;
     }
 
     /**
@@ -578,7 +886,7 @@ public class Bus64 implements BusSlave64 {
             SlaveCore64 sc = sca.getCore();
 
             sc.setName(sc.getClass().getName());
-            sc.start();
+            executor.start(sc);
         }
     }
 
@@ -599,6 +907,11 @@ public class Bus64 implements BusSlave64 {
         private SlaveCore64 slave;
         private long start;
         private long end;
+        //RAM 以外の I/O 領域ならば true
+        private boolean io;
+        //I/O 領域の読み出し、書き込みの回数
+        private AtomicLong reads;
+        private AtomicLong writes;
 
         /**
          * 指定したアドレスの範囲にスレーブコアを割り当てます。
@@ -608,7 +921,7 @@ public class Bus64 implements BusSlave64 {
          * @param ed    終了アドレス
          */
         public SlaveCoreAddress(SlaveCore64 slave, long st, long ed) {
-            if (st > ed) {
+            if ((st ^ Long.MIN_VALUE) > (ed ^ Long.MIN_VALUE)) {
                 throw new IllegalArgumentException("Invalid address" +
                         String.format("st(0x%08x) > ed(0x%08x).", st, ed));
             }
@@ -616,6 +929,18 @@ public class Bus64 implements BusSlave64 {
             this.slave = slave;
             this.start = st;
             this.end = ed;
+            this.io = (slave != null) && !(slave instanceof RAM);
+            this.reads = new AtomicLong();
+            this.writes = new AtomicLong();
+        }
+
+        /**
+         * RAM 以外の I/O 領域かどうかを取得します。
+         *
+         * @return I/O 領域ならば true、RAM ならば false
+         */
+        public boolean isIO() {
+            return io;
         }
 
         /**
@@ -662,12 +987,14 @@ public class Bus64 implements BusSlave64 {
          * @return 指定したアドレスを含むなら true、含まないなら false
          */
         public boolean contains(long st, long ed) {
-            if (st > ed) {
+            if ((st ^ Long.MIN_VALUE) > (ed ^ Long.MIN_VALUE)) {
                 throw new IllegalArgumentException("st(" + st + ") is " +
                         "larger than ed(" + ed + ").");
             }
 
-            return start <= st && ed <= end;
+            //アドレスは符号無しとして比較する
+            return (start ^ Long.MIN_VALUE) <= (st ^ Long.MIN_VALUE) &&
+                    (ed ^ Long.MIN_VALUE) <= (end ^ Long.MIN_VALUE);
         }
     }
 
@@ -7,10 +7,17 @@ package net.katsuster.ememu.generic.core;
  * 自身のタイミングで動作します。
  * 外部からの停止要求を受け付け、停止する努力をします。
  * </p>
+ *
+ * <p>
+ * コアをどのスレッドで実行するかは CoreExecutor が決めます。
+ * 専用のスレッドで実行する場合は run を、
+ * 1つのスレッドで他のコアと交互に実行する場合は runSlice を呼び出します。
+ * </p>
  */
 public abstract class AbstractCore extends Thread
         implements Core {
     private boolean halted = false;
+    private volatile boolean cooperative = false;
 
     @Override
     public void init() {
@@ -29,4 +36,42 @@ public abstract class AbstractCore extends Thread
             notifyAll();
         }
     }
+
+    /**
+     * 1つのスレッドで他のコアと交互に実行されているかどうかを取得します。
+     *
+     * 交互に実行されている場合、コアはブロックしてはいけません。
+     *
+     * @return 交互に実行されていれば true、専用のスレッドで実行されていれば false
+     */
+    public boolean isCooperative() {
+        return cooperative;
+    }
+
+    /**
+     * 1つのスレッドで他のコアと交互に実行されているかどうかを設定します。
+     *
+     * @param b 交互に実行されていれば true、専用のスレッドで実行されていれば false
+     */
+    public void setCooperative(boolean b) {
+        cooperative = b;
+    }
+
+    /**
+     * コアを少しだけ実行して戻ります。
+     *
+     * <p>
+     * 1つのスレッドで他のコアと交互に実行する場合に、run の代わりに呼び出されます。
+     * ブロックせず、短い時間で戻る必要があります。
+     * </p>
+     *
+     * <p>
+     * 自身のタイミングで行う処理がないコアは何もしません。
+     * </p>
+     *
+     * @return 処理を進めた場合は true、待つべき処理しかなかった場合は false
+     */
+    public boolean runSlice() {
+        return false;
+    }
 }
@@ -1,6 +1,20 @@
 package net.katsuster.ememu.generic.core;
 
-abstract public class AbstractParentCore implements ParentCore {
+import java.io.*;
+
+import net.katsuster.ememu.generic.*;
+
+/**
+ * バスマスター、バススレーブとなるコアを持つ親コア。
+ *
+ * <p>
+ * スナップショットにはスレーブコア、マスターコアのうち、
+ * 状態を保存できるコアの状態を保存します。
+ * 親コア自身が状態を持つ場合は saveState, loadState をオーバーライドし、
+ * 最初に super の実装を呼び出してください。
+ * </p>
+ */
+abstract public class AbstractParentCore implements ParentCore, Snapshottable {
     private String name;
     private MasterCore64 master;
     private SlaveCore64 slave;
@@ -41,4 +55,24 @@ abstract public class AbstractParentCore implements ParentCore {
     public void setSlaveCore(SlaveCore64 c) {
         slave = c;
     }
+
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        if (slave instanceof Snapshottable) {
+            ((Snapshottable)slave).saveState(out);
+        }
+        if (master instanceof Snapshottable) {
+            ((Snapshottable)master).saveState(out);
+        }
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        if (slave instanceof Snapshottable) {
+            ((Snapshottable)slave).loadState(in);
+        }
+        if (master instanceof Snapshottable) {
+            ((Snapshottable)master).loadState(in);
+        }
+    }
 }
@@ -1,10 +1,28 @@
 package net.katsuster.ememu.generic.core;
 
+import java.io.*;
+
+import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.log.*;
+import net.katsuster.ememu.generic.stats.*;
+import net.katsuster.ememu.generic.trace.*;
+
 /**
  * CPU の基本クラス
+ *
+ * <p>
+ * スナップショットには割り込みの状態を保存します。
+ * レジスタなどアーキテクチャ固有の状態は、
+ * サブクラスが saveState, loadState をオーバーライドして保存してください。
+ * </p>
  */
 public abstract class CPU extends MasterCore64
-        implements INTDestination {
+        implements INTDestination, Snapshottable {
+    private static final Logger log = Log.getLogger("cpu");
+
+    //交互に実行する場合、1回の runSlice で実行する命令数
+    public static final int SLICE_STEPS = 4096;
+
     private int threadId;
     private boolean fEnabledDisasm;
     private boolean fPrintInstruction;
@@ -12,6 +30,14 @@ public abstract class CPU extends MasterCore64
     private boolean raisedException;
     private boolean raisedInterrupt;
     private boolean jumped;
+    private boolean waitingInterrupt;
+    private TraceRecorder trace;
+    private FlightRecorder flight;
+    private PCHistogram profile;
+    private CPUStats stats;
+    private volatile boolean sampleRequested;
+    private CPU disasmCPU;
+    private StringBuilder disasmCapture;
 
     public CPU() {
         threadId = -1;
@@ -21,6 +47,14 @@ public abstract class CPU extends MasterCore64
         raisedException = false;
         raisedInterrupt = false;
         jumped = false;
+        waitingInterrupt = false;
+        trace = null;
+        flight = new FlightRecorder();
+        profile = null;
+        stats = null;
+        sampleRequested = false;
+        disasmCPU = null;
+        disasmCapture = null;
     }
 
     /**
@@ -65,6 +99,374 @@ public abstract class CPU extends MasterCore64
         fPrintRegs = b;
     }
 
+    /**
+     * 命令トレースの記録先を取得します。
+     *
+     * @return 命令トレースの記録先、記録しない場合は null
+     */
+    public TraceRecorder getTrace() {
+        return trace;
+    }
+
+    /**
+     * 命令トレースの記録先を設定します。
+     *
+     * CPU の実行中には変更しないでください。
+     *
+     * @param r 命令トレースの記録先、記録しない場合は null
+     */
+    public void setTrace(TraceRecorder r) {
+        trace = r;
+    }
+
+    /**
+     * フライトレコーダを取得します。
+     *
+     * @return フライトレコーダ、記録しない場合は null
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flight;
+    }
+
+    /**
+     * フライトレコーダを設定します。
+     *
+     * CPU の実行中には変更しないでください。
+     *
+     * @param r フライトレコーダ、記録しない場合は null
+     */
+    public void setFlightRecorder(FlightRecorder r) {
+        flight = r;
+    }
+
+    /**
+     * サンプリングプロファイラのヒストグラムを取得します。
+     *
+     * @return ヒストグラム、サンプリングしない場合は null
+     */
+    public PCHistogram getProfile() {
+        return profile;
+    }
+
+    /**
+     * サンプリングプロファイラのヒストグラムを設定します。
+     *
+     * @param h ヒストグラム、サンプリングしない場合は null
+     */
+    public void setProfile(PCHistogram h) {
+        profile = h;
+    }
+
+    /**
+     * 実行統計を取得します。
+     *
+     * @return 実行統計、数えない場合は null
+     */
+    public CPUStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 実行統計を設定します。
+     *
+     * CPU の実行中には変更しないでください。
+     *
+     * @param s 実行統計、数えない場合は null
+     */
+    public void setStats(CPUStats s) {
+        stats = s;
+    }
+
+    /**
+     * 命令の実行を実行統計に数えます。
+     *
+     * @param op 命令の種類の番号
+     */
+    protected void countInstruction(int op) {
+        CPUStats s = stats;
+
+        if (s != null) {
+            s.instruction(op);
+        }
+    }
+
+    /**
+     * 指定した例外番号が割り込みかどうかを取得します。
+     *
+     * @param num 例外番号
+     * @return 割り込みならば true、そうでなければ false
+     */
+    protected boolean isInterrupt(int num) {
+        return false;
+    }
+
+    /**
+     * 次に実行する命令の PC をヒストグラムに記録するよう要求します。
+     *
+     * プロファイラのスレッドから呼び出されます。
+     *
+     * @return 要求した場合は true、
+     * 前回の要求をまだ処理していない場合は false
+     */
+    public boolean requestSample() {
+        if (sampleRequested) {
+            return false;
+        }
+        sampleRequested = true;
+
+        return true;
+    }
+
+    /**
+     * 要求されたサンプルを記録します。
+     *
+     * @param pc 命令のアドレス
+     */
+    private void takeSample(long pc) {
+        PCHistogram h = profile;
+
+        if (h != null) {
+            h.add(pc, getPrivilegeMode());
+        }
+        sampleRequested = false;
+    }
+
+    /**
+     * 実行する命令をフライトレコーダと命令トレースに記録します。
+     *
+     * プロファイラにサンプルを要求されていれば、ヒストグラムにも記録します。
+     *
+     * @param pc   命令のアドレス
+     * @param inst 命令
+     */
+    protected void traceInstruction(long pc, Inst32 inst) {
+        FlightRecorder f = flight;
+        int mode;
+
+        if (sampleRequested) {
+            takeSample(pc);
+        }
+        if (f == null && trace == null) {
+            return;
+        }
+
+        mode = getInstructionMode();
+        if (f != null) {
+            f.instruction(pc, inst.getInst(), inst.getLength(), mode);
+        }
+        if (trace != null) {
+            trace.instruction(pc, inst, mode);
+        }
+    }
+
+    /**
+     * 例外の要求をフライトレコーダと実行統計に記録します。
+     *
+     * @param num    例外番号
+     * @param dbgmsg デバッグ用のメッセージ
+     */
+    protected void traceException(int num, String dbgmsg) {
+        if (flight != null) {
+            flight.exception(num, dbgmsg);
+        }
+        if (stats != null) {
+            stats.exception(isInterrupt(num));
+        }
+    }
+
+    /**
+     * I/O 領域へのアクセスをフライトレコーダに記録します。
+     *
+     * バスから呼び出されます。
+     *
+     * @param write 書き込みならば true、読み出しならば false
+     * @param addr  アドレス
+     * @param size  サイズ（バイト単位）
+     * @param data  読み出した値、または書き込んだ値
+     */
+    public void traceIO(boolean write, long addr, int size, long data) {
+        if (flight != null) {
+            flight.io(write, addr, size, data);
+        }
+    }
+
+    /**
+     * フライトレコーダの記録を逆アセンブルして出力します。
+     *
+     * 実行中の CPU に対しても呼び出せます。
+     *
+     * @param ps 出力先
+     */
+    public void dumpFlightRecorder(PrintStream ps) {
+        FlightRecorder f = flight;
+
+        if (f == null) {
+            return;
+        }
+
+        synchronized (f) {
+            if (disasmCPU == null) {
+                disasmCPU = newDisassembler();
+                disasmCPU.setThreadID(getThreadID());
+                disasmCPU.setPrintInstruction(true);
+            }
+            f.dump(ps, getThreadID(), disasmCPU);
+        }
+    }
+
+    /**
+     * 逆アセンブルに使う CPU を作成します。
+     *
+     * 実行中の CPU のレジスタを書き換えずに逆アセンブルするために使います。
+     *
+     * @return 同じ種類の CPU
+     */
+    protected abstract CPU newDisassembler();
+
+    /**
+     * 命令の実行で変化したレジスタを命令トレースに記録します。
+     */
+    protected void traceRegisters() {
+        if (trace != null && trace.isTraceRegs()) {
+            trace.registers(this);
+        }
+    }
+
+    /**
+     * メモリへの書き込みを命令トレースに記録します。
+     *
+     * @param addr アドレス
+     * @param size サイズ（バイト単位）
+     * @param data 書き込んだ値
+     */
+    private void traceMemory(long addr, int size, long data) {
+        if (trace != null && trace.isTraceMemory()) {
+            trace.memory(addr, size, data);
+        }
+    }
+
+    @Override
+    public void write8(long addr, byte data) {
+        super.write8(addr, data);
+        traceMemory(addr, 1, data & 0xffL);
+    }
+
+    @Override
+    public void write16(long addr, short data) {
+        super.write16(addr, data);
+        traceMemory(addr, 2, data & 0xffffL);
+    }
+
+    @Override
+    public void write32(long addr, int data) {
+        super.write32(addr, data);
+        traceMemory(addr, 4, data & 0xffffffffL);
+    }
+
+    @Override
+    public void write64(long addr, long data) {
+        super.write64(addr, data);
+        traceMemory(addr, 8, data);
+    }
+
+    @Override
+    public void write_ua16(long addr, short data) {
+        super.write_ua16(addr, data);
+        traceMemory(addr, 2, data & 0xffffL);
+    }
+
+    @Override
+    public void write_ua32(long addr, int data) {
+        super.write_ua32(addr, data);
+        traceMemory(addr, 4, data & 0xffffffffL);
+    }
+
+    @Override
+    public void write_ua64(long addr, long data) {
+        super.write_ua64(addr, data);
+        traceMemory(addr, 8, data);
+    }
+
+    /**
+     * 現在の命令セットを取得します。
+     *
+     * 命令のバイナリ値だけでは解釈が決まらないアーキテクチャで、
+     * 命令セットを区別するために使います。
+     *
+     * @return 命令セットを表す値、区別がなければ 0
+     */
+    public int getInstructionMode() {
+        return 0;
+    }
+
+    /**
+     * 現在の動作モード（特権レベル）を取得します。
+     *
+     * @return 動作モードを表す値、区別がなければ 0
+     */
+    public int getPrivilegeMode() {
+        return 0;
+    }
+
+    /**
+     * 動作モードの名前を取得します。
+     *
+     * @param mode 動作モード（getPrivilegeMode の値）
+     * @return 動作モードの名前
+     */
+    public String getPrivilegeModeName(int mode) {
+        return "-";
+    }
+
+    /**
+     * 汎用レジスタの数を取得します。
+     *
+     * @return 汎用レジスタの数
+     */
+    public abstract int getGeneralRegCount();
+
+    /**
+     * 汎用レジスタの値を取得します。
+     *
+     * @param n レジスタ番号
+     * @return レジスタの値（符号なしに拡張した値）
+     */
+    public abstract long getGeneralReg(int n);
+
+    /**
+     * 命令のバイナリ値を逆アセンブルします。
+     *
+     * 命令トレースの表示に使います。CPU のレジスタを書き換えるため、
+     * 実行中の CPU に対しては呼び出さないでください。
+     *
+     * @param pc   命令のアドレス
+     * @param inst 命令のバイナリ値
+     * @param len  命令の長さ（バイト単位）
+     * @param mode 命令セット（getInstructionMode の値）
+     * @return 逆アセンブルした文字列
+     */
+    public abstract String disassemble(long pc, int inst, int len, int mode);
+
+    /**
+     * 逆アセンブルした結果を表示せずに溜めるようにします。
+     */
+    protected void startDisasmCapture() {
+        disasmCapture = new StringBuilder();
+    }
+
+    /**
+     * 溜めた逆アセンブルの結果を取得し、表示するように戻します。
+     *
+     * @return 逆アセンブルした結果
+     */
+    protected String endDisasmCapture() {
+        String s = disasmCapture.toString();
+
+        disasmCapture = null;
+
+        return s;
+    }
+
     /**
      * 最後に行われた命令実行において、
      * CPU が例外を要求したかどうかを取得します。
@@ -99,6 +501,51 @@ public abstract class CPU extends MasterCore64
         }
     }
 
+    /**
+     * 割り込み待ちから復帰すべき割り込みが発生しているかどうかを取得します。
+     *
+     * @return 割り込みが発生していれば true、そうでなければ false
+     */
+    public boolean isInterruptPending() {
+        return isRaisedInterrupt();
+    }
+
+    /**
+     * 割り込み待ちの状態かどうかを取得します。
+     *
+     * @return 割り込み待ちならば true、そうでなければ false
+     */
+    public boolean isWaitingInterrupt() {
+        return waitingInterrupt;
+    }
+
+    /**
+     * 割り込み待ちの状態かどうかを設定します。
+     *
+     * 他のコアと交互に実行されている場合、割り込み待ちの命令はブロックせずに、
+     * 割り込み待ちの状態に設定して戻ります。
+     * 割り込みが発生するまで runSlice は命令を実行しません。
+     *
+     * @param b 割り込み待ちならば true、そうでなければ false
+     */
+    public void setWaitingInterrupt(boolean b) {
+        waitingInterrupt = b;
+    }
+
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        out.writeBoolean(isRaisedInterrupt());
+        out.writeBoolean(isJumped());
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        //命令の途中で保存することはないため、例外は常に処理済みとする
+        setRaisedException(false);
+        setRaisedInterrupt(in.readBoolean());
+        setJumped(in.readBoolean());
+    }
+
     /**
      * 指定されたアドレスからデータを読み出せるかどうかを取得します。
      *
@@ -334,14 +781,30 @@ public abstract class CPU extends MasterCore64
     /**
      * 逆アセンブルした命令を表示します。
      *
+     * ログの出力が追いつかなければ捨てられます（CPU は待ちません）。
+     * 欠落させずに記録するには命令トレース（emu.trace）を使ってください。
+     *
      * @param inst      ARM 命令
      * @param operation 命令の文字列表記
      * @param operand   オペランドの文字列表記
      */
     public void printDisasm(Inst32 inst, String operation, String operand) {
-        synchronized (System.out) {
-            printInstruction(inst, operation, operand);
-            printRegs();
+        StringBuilder b = new StringBuilder();
+
+        if (disasmCapture != null) {
+            disasmCapture.append(instructionToString(inst, operation, operand));
+            return;
+        }
+
+        //命令とレジスタを 1件のログにまとめ、他のログと混ざらないようにする
+        if (isPrintInstruction()) {
+            b.append(instructionToString(inst, operation, operand));
+        }
+        if (isPrintRegs()) {
+            b.append(regsToString());
+        }
+        if (b.length() > 0) {
+            log.info(b.toString());
         }
     }
 
@@ -357,7 +820,7 @@ public abstract class CPU extends MasterCore64
             return;
         }
 
-        System.out.print(instructionToString(inst, operation, operand));
+        log.info(instructionToString(inst, operation, operand));
     }
 
     /**
@@ -368,7 +831,7 @@ public abstract class CPU extends MasterCore64
             return;
         }
 
-        System.out.print(regsToString());
+        log.info(regsToString());
     }
 
     /**
@@ -447,16 +910,52 @@ public abstract class CPU extends MasterCore64
      */
     public abstract void step();
 
+    /**
+     * CPU が異常終了したときに、直前の状態を出力します。
+     */
+    private void dumpOnFault() {
+        setPrintRegs(true);
+        printRegs();
+
+        synchronized (System.err) {
+            dumpFlightRecorder(System.err);
+            System.err.flush();
+        }
+    }
+
     @Override
     public void run() {
         try {
             while (!shouldHalt()) {
                 step();
             }
-        } catch (IllegalArgumentException e) {
-            setPrintRegs(true);
-            printRegs();
+        } catch (RuntimeException e) {
+            dumpOnFault();
             throw e;
         }
     }
+
+    @Override
+    public boolean runSlice() {
+        if (isWaitingInterrupt()) {
+            if (!isInterruptPending()) {
+                return false;
+            }
+            setWaitingInterrupt(false);
+        }
+
+        try {
+            for (int i = 0; i < SLICE_STEPS; i++) {
+                if (shouldHalt() || isWaitingInterrupt()) {
+                    break;
+                }
+                step();
+            }
+        } catch (RuntimeException e) {
+            dumpOnFault();
+            throw e;
+        }
+
+        return true;
+    }
 }
@@ -0,0 +1,26 @@
+package net.katsuster.ememu.generic.core;
+
+/**
+ * コアを実行するスレッドを決める実行方式です。
+ *
+ * <p>
+ * バスはこのインタフェースを通してコアを起動し、
+ * ボードはコアの終了を待ちます。
+ * </p>
+ */
+public interface CoreExecutor {
+    /**
+     * コアの実行を開始します。
+     *
+     * @param c コア
+     */
+    public abstract void start(AbstractCore c);
+
+    /**
+     * コアの実行が終わるまで待ちます。
+     *
+     * @param c コア
+     * @throws InterruptedException 待っている間に割り込まれた場合
+     */
+    public abstract void join(AbstractCore c) throws InterruptedException;
+}
@@ -0,0 +1,148 @@
+package net.katsuster.ememu.generic.core;
+
+import java.util.*;
+
+/**
+ * 全てのコアを 1つのスレッドで交互に実行します。
+ *
+ * <p>
+ * 各コアの runSlice を順に呼び出します。
+ * どのコアも処理を進めなかった場合は少しの間スリープします。
+ * </p>
+ *
+ * <p>
+ * 複数のボードで 1つのインスタンスを共有すれば、
+ * それらのボードの全てのコアを 1つのスレッドで実行できます。
+ * 多数の小さなゲストを少ない CPU で実行する場合に使います。
+ * </p>
+ */
+public class RoundRobinCoreExecutor implements CoreExecutor {
+    //どのコアも処理を進めなかった場合にスリープする時間（ミリ秒単位）
+    public static final int IDLE_SLEEP = 1;
+
+    private String name;
+    private final List<AbstractCore> cores;
+    //スケジューラが参照するコアの一覧、追加、削除のたびに作り直します
+    private volatile AbstractCore[] running;
+    private Thread worker;
+
+    public RoundRobinCoreExecutor() {
+        this("roundrobin");
+    }
+
+    /**
+     * コアを交互に実行する実行方式を作成します。
+     *
+     * @param n コアを実行するスレッドの名前
+     */
+    public RoundRobinCoreExecutor(String n) {
+        name = n;
+        cores = new ArrayList<>();
+        running = new AbstractCore[0];
+        worker = null;
+    }
+
+    @Override
+    public synchronized void start(AbstractCore c) {
+        if (cores.contains(c)) {
+            throw new IllegalStateException(String.format(
+                    "Core '%s' is already started.", c.getName()));
+        }
+
+        c.setCooperative(true);
+        cores.add(c);
+        running = cores.toArray(new AbstractCore[0]);
+
+        if (worker == null) {
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        schedule();
+                    } finally {
+                        abort();
+                    }
+                }
+            }, name);
+            worker.start();
+        }
+    }
+
+    @Override
+    public synchronized void join(AbstractCore c) throws InterruptedException {
+        while (cores.contains(c)) {
+            wait();
+        }
+    }
+
+    /**
+     * 実行中のコアがなくなるまで、各コアを交互に実行します。
+     */
+    private void schedule() {
+        while (true) {
+            AbstractCore[] cs;
+            boolean progress = false;
+
+            synchronized (this) {
+                if (cores.isEmpty()) {
+                    worker = null;
+                    return;
+                }
+                cs = running;
+            }
+
+            for (AbstractCore c : cs) {
+                if (c.shouldHalt()) {
+                    finish(c);
+                    continue;
+                }
+
+                try {
+                    if (c.runSlice()) {
+                        progress = true;
+                    }
+                } catch (Throwable e) {
+                    //専用のスレッドで実行した場合と同様に、Error でもこのコアだけ終了する
+                    e.printStackTrace(System.err);
+                    finish(c);
+                }
+            }
+
+            if (!progress) {
+                try {
+                    Thread.sleep(IDLE_SLEEP);
+                } catch (InterruptedException e) {
+                    //ignored
+                }
+            }
+        }
+    }
+
+    /**
+     * コアの実行を終了します。
+     *
+     * @param c コア
+     */
+    private synchronized void finish(AbstractCore c) {
+        cores.remove(c);
+        running = cores.toArray(new AbstractCore[0]);
+        notifyAll();
+    }
+
+    /**
+     * スケジューラのスレッドが予期せず終了した場合に、
+     * 残った全てのコアの実行を終了し、join で待っているスレッドを起こします。
+     *
+     * 正常に終了した場合や、既に次のスレッドが動いている場合は何もしません。
+     */
+    private synchronized void abort() {
+        if (worker != Thread.currentThread()) {
+            return;
+        }
+
+        cores.clear();
+        running = new AbstractCore[0];
+        worker = null;
+        notifyAll();
+    }
+}
@@ -0,0 +1,21 @@
+package net.katsuster.ememu.generic.core;
+
+/**
+ * 各コアを専用のスレッドで実行します。
+ */
+public class ThreadCoreExecutor implements CoreExecutor {
+    public ThreadCoreExecutor() {
+
+    }
+
+    @Override
+    public void start(AbstractCore c) {
+        c.setCooperative(false);
+        c.start();
+    }
+
+    @Override
+    public void join(AbstractCore c) throws InterruptedException {
+        c.join();
+    }
+}
@@ -0,0 +1,106 @@
+package net.katsuster.ememu.generic.core;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * マスターコアを専用のスレッドで、
+ * スレーブコアを仮想スレッドで実行します。
+ *
+ * <p>
+ * デバイスのスレーブコアはほとんどの時間を待機して過ごすため、
+ * OS のスレッドを割り当てずに仮想スレッドで実行します。
+ * CPU などのマスターコアは常に動作するため、専用のスレッドで実行します。
+ * </p>
+ *
+ * <p>
+ * 仮想スレッドは Java 21 以降で利用できます。
+ * 仮想スレッドを利用できない Java で実行した場合は、
+ * スレーブコアも専用のスレッドで実行します。
+ * </p>
+ */
+public class VirtualThreadCoreExecutor implements CoreExecutor {
+    //Thread.ofVirtual(), Thread.Builder.name(String), Thread.Builder.unstarted(Runnable)
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderUnstarted;
+
+    static {
+        Method ov = null, bn = null, bu = null;
+
+        try {
+            Class<?> b = Class.forName("java.lang.Thread$Builder");
+
+            ov = Thread.class.getMethod("ofVirtual");
+            bn = b.getMethod("name", String.class);
+            bu = b.getMethod("unstarted", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            //仮想スレッドを利用できない
+            ov = null;
+        }
+
+        ofVirtual = ov;
+        builderName = bn;
+        builderUnstarted = bu;
+    }
+
+    //コアを実行しているスレッド
+    private final Map<AbstractCore, Thread> threads;
+
+    public VirtualThreadCoreExecutor() {
+        threads = new HashMap<>();
+    }
+
+    /**
+     * 仮想スレッドを利用できるかどうかを取得します。
+     *
+     * @return 利用できれば true、そうでなければ false
+     */
+    public static boolean isAvailable() {
+        return ofVirtual != null;
+    }
+
+    @Override
+    public void start(AbstractCore c) {
+        Thread t = c;
+
+        c.setCooperative(false);
+        if (c instanceof SlaveCore64 && isAvailable()) {
+            t = newVirtualThread(c);
+        }
+
+        synchronized (threads) {
+            threads.put(c, t);
+        }
+        t.start();
+    }
+
+    @Override
+    public void join(AbstractCore c) throws InterruptedException {
+        Thread t;
+
+        synchronized (threads) {
+            t = threads.get(c);
+        }
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    /**
+     * コアを実行する仮想スレッドを作成します。
+     *
+     * @param c コア
+     * @return 仮想スレッド
+     */
+    private static Thread newVirtualThread(AbstractCore c) {
+        try {
+            Object b = ofVirtual.invoke(null);
+
+            b = builderName.invoke(b, c.getName());
+            return (Thread)builderUnstarted.invoke(b, c);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Cannot create virtual thread.", e);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package net.katsuster.ememu.generic.log;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * ログの記録と出力を管理します。
+ *
+ * <p>
+ * ロガーは名前（"arm.uart", "riscv.spi" など、ドットで区切った分類）ごとに作成し、
+ * 分類ごとに記録する重要度を設定できます。
+ * 重要度を設定していない分類は、ドットで区切った親の分類の設定に従い、
+ * どの親にも設定がなければデフォルトの重要度（INFO）に従います。
+ * </p>
+ *
+ * <p>
+ * 重要度はシステムプロパティ ememu.log で指定できます。
+ * "debug"（デフォルトの重要度）、"riscv.spi=trace,arm=warn"（分類ごと）
+ * のように、カンマで区切って指定します。
+ * </p>
+ *
+ * <p>
+ * 記録したログは固定長のキュー（配列のリングバッファ）に入れ、
+ * 出力用のスレッドがまとめて出力します。
+ * キューが一杯のときは待たずにログを捨て、捨てた件数を後で出力します。
+ * ログを記録したスレッド（エミュレートしている CPU など）を待たせることはありません。
+ * </p>
+ */
+public class Log {
+    //設定を指定するシステムプロパティ
+    public static final String CONFIG_PROPERTY = "ememu.log";
+    //出力待ちのログを保持する件数
+    public static final int QUEUE_SIZE = 8192;
+    //flush で出力を待つ最大の時間（ミリ秒単位）
+    public static final int FLUSH_TIMEOUT = 1000;
+
+    private static final Map<String, Logger> loggers = new HashMap<>();
+    private static final Map<String, LogLevel> levels = new HashMap<>();
+    private static LogLevel defaultLevel = LogLevel.INFO;
+
+    private static final BlockingQueue<LogRecord> queue =
+            new ArrayBlockingQueue<>(QUEUE_SIZE);
+    //キューに入れて、まだ出力していないログの件数
+    private static final AtomicLong pending = new AtomicLong();
+    //キューが一杯で捨て、まだ報告していないログの件数
+    private static final AtomicLong dropped = new AtomicLong();
+    //キューが一杯で捨てたログの件数の合計
+    private static final AtomicLong droppedTotal = new AtomicLong();
+    private static volatile LogSink sink = new PrintStreamLogSink(System.out, System.err);
+    private static volatile Thread writer;
+
+    static {
+        String conf = System.getProperty(CONFIG_PROPERTY);
+
+        if (conf != null) {
+            try {
+                configure(conf);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, "ememu log flush"));
+    }
+
+    private Log() {
+        //do nothing
+    }
+
+    /**
+     * 指定した名前のロガーを取得します。
+     *
+     * @param name ロガーの名前
+     * @return ロガー
+     */
+    public static synchronized Logger getLogger(String name) {
+        Logger l = loggers.get(name);
+
+        if (l == null) {
+            l = new Logger(name, resolveLevel(name));
+            loggers.put(name, l);
+        }
+
+        return l;
+    }
+
+    /**
+     * デフォルトの重要度を設定します。
+     *
+     * @param lv 重要度
+     */
+    public static synchronized void setDefaultLevel(LogLevel lv) {
+        defaultLevel = lv;
+        updateLevels();
+    }
+
+    /**
+     * 指定した分類と、その下の分類の重要度を設定します。
+     *
+     * @param name 分類の名前
+     * @param lv   重要度、null ならば設定を削除して親の分類の設定に従う
+     */
+    public static synchronized void setLevel(String name, LogLevel lv) {
+        if (lv == null) {
+            levels.remove(name);
+        } else {
+            levels.put(name, lv);
+        }
+        updateLevels();
+    }
+
+    /**
+     * 文字列で指定した重要度を設定します。
+     *
+     * "info"（デフォルトの重要度）、"riscv.spi=trace"（分類ごと）を
+     * カンマで区切って指定します。
+     *
+     * @param conf 設定
+     */
+    public static synchronized void configure(String conf) {
+        for (String ent : conf.split(",")) {
+            String[] kv = ent.trim().split("=", 2);
+
+            if (kv[0].isEmpty()) {
+                continue;
+            }
+            if (kv.length == 1) {
+                setDefaultLevel(parseLevel(kv[0]));
+            } else {
+                setLevel(kv[0].trim(), parseLevel(kv[1]));
+            }
+        }
+    }
+
+    /**
+     * 重要度の名前を解釈します。
+     *
+     * @param s 重要度の名前（大文字小文字は区別しない）
+     * @return 重要度
+     */
+    private static LogLevel parseLevel(String s) {
+        try {
+            return LogLevel.valueOf(s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format(
+                    "Unknown log level '%s'.", s));
+        }
+    }
+
+    /**
+     * 指定した名前のロガーが従う重要度を求めます。
+     *
+     * @param name ロガーの名前
+     * @return 重要度
+     */
+    private static LogLevel resolveLevel(String name) {
+        String n = name;
+
+        while (true) {
+            LogLevel lv = levels.get(n);
+            int pos;
+
+            if (lv != null) {
+                return lv;
+            }
+
+            pos = n.lastIndexOf('.');
+            if (pos < 0) {
+                return defaultLevel;
+            }
+            n = n.substring(0, pos);
+        }
+    }
+
+    /**
+     * 全てのロガーの重要度を設定に合わせます。
+     */
+    private static void updateLevels() {
+        for (Logger l : loggers.values()) {
+            l.setLevel(resolveLevel(l.getName()));
+        }
+    }
+
+    /**
+     * ログの出力先を取得します。
+     *
+     * @return ログの出力先
+     */
+    public static LogSink getSink() {
+        return sink;
+    }
+
+    /**
+     * ログの出力先を設定します。
+     *
+     * @param s ログの出力先
+     */
+    public static void setSink(LogSink s) {
+        flush();
+        sink = s;
+    }
+
+    /**
+     * ログを出力用のキューに入れます。
+     *
+     * キューが一杯のときは待たずにログを捨てます。
+     *
+     * @param r ログ
+     * @return キューに入れた場合は true、捨てた場合は false
+     */
+    static boolean enqueue(LogRecord r) {
+        if (writer == null) {
+            startWriter();
+        }
+
+        pending.incrementAndGet();
+        if (queue.offer(r)) {
+            return true;
+        }
+
+        pending.decrementAndGet();
+        dropped.incrementAndGet();
+        droppedTotal.incrementAndGet();
+
+        return false;
+    }
+
+    /**
+     * キューが一杯で捨てたログの件数を取得します。
+     *
+     * @return これまでに捨てたログの件数
+     */
+    public static long getDroppedCount() {
+        return droppedTotal.get();
+    }
+
+    /**
+     * 出力用のスレッドを開始します。
+     */
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "ememu log writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * キューのログを出力し続けます。
+     */
+    private static void writeLoop() {
+        List<LogRecord> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                //ignored
+                continue;
+            }
+            queue.drainTo(batch);
+
+            LogSink s = sink;
+            long d = dropped.getAndSet(0);
+            try {
+                if (d > 0) {
+                    s.write(new LogRecord(LogLevel.WARN, "log",
+                            "%d log records were dropped.\n", new Object[] {d}));
+                }
+                for (LogRecord r : batch) {
+                    s.write(r);
+                }
+                if (queue.isEmpty()) {
+                    s.flush();
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+            }
+
+            pending.addAndGet(-batch.size());
+            batch.clear();
+
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * キューに入っているログを全て出力するまで待ちます。
+     *
+     * 出力先が書き込めずに詰まっている場合は、一定時間で諦めます。
+     */
+    public static void flush() {
+        long limit = System.currentTimeMillis() + FLUSH_TIMEOUT;
+
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                long t = limit - System.currentTimeMillis();
+
+                if (t <= 0) {
+                    break;
+                }
+
+                try {
+                    pending.wait(t);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+}
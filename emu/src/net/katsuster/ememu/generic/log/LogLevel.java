@@ -0,0 +1,15 @@
+package net.katsuster.ememu.generic.log;
+
+/**
+ * ログの重要度。
+ *
+ * 後ろほど重要度が高く、ロガーに設定した重要度以上のログのみ記録されます。
+ */
+public enum LogLevel {
+    TRACE,
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    OFF,
+}
@@ -0,0 +1,90 @@
+package net.katsuster.ememu.generic.log;
+
+import java.util.*;
+
+/**
+ * 1件のログです。
+ *
+ * <p>
+ * 書式の整形は出力する側（LogSink）で行います。
+ * 引数には記録した後に変化しない値（数値、文字列など）を渡してください。
+ * </p>
+ */
+public class LogRecord {
+    private long time;
+    private LogLevel level;
+    private String name;
+    private String thread;
+    private String format;
+    private Object[] args;
+
+    /**
+     * ログを作成します。
+     *
+     * @param lv   重要度
+     * @param n    ロガーの名前
+     * @param fmt  書式
+     * @param args 書式の引数
+     */
+    public LogRecord(LogLevel lv, String n, String fmt, Object[] args) {
+        this.time = System.currentTimeMillis();
+        this.level = lv;
+        this.name = n;
+        this.thread = Thread.currentThread().getName();
+        this.format = fmt;
+        this.args = args;
+    }
+
+    /**
+     * ログを記録した時刻を取得します。
+     *
+     * @return 時刻（System.currentTimeMillis の値）
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * 重要度を取得します。
+     *
+     * @return 重要度
+     */
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * ロガーの名前を取得します。
+     *
+     * @return ロガーの名前
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * ログを記録したスレッドの名前を取得します。
+     *
+     * @return スレッドの名前
+     */
+    public String getThread() {
+        return thread;
+    }
+
+    /**
+     * 書式を整形したメッセージを取得します。
+     *
+     * @return メッセージ
+     */
+    public String getMessage() {
+        if (args == null || args.length == 0) {
+            return format;
+        }
+
+        try {
+            return String.format(format, args);
+        } catch (IllegalFormatException e) {
+            return format + " " + Arrays.toString(args);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.katsuster.ememu.generic.log;
+
+/**
+ * ログの出力先です。
+ *
+ * 出力用のスレッドから呼び出されます。
+ */
+public interface LogSink {
+    /**
+     * ログを出力します。
+     *
+     * @param r ログ
+     */
+    public abstract void write(LogRecord r);
+
+    /**
+     * 出力したログを書き出します。
+     *
+     * 溜まっていたログを全て出力した後に呼び出されます。
+     */
+    public abstract void flush();
+}
@@ -0,0 +1,263 @@
+package net.katsuster.ememu.generic.log;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * 分類ごとのロガーです。
+ *
+ * <p>
+ * Log.getLogger で取得します。
+ * 重要度は書式を整形する前に判定するため、記録しないログは比較 1回で済みます。
+ * 引数が 3つまでならば固定長の引数のメソッドが選ばれ、可変長引数の配列も作りません。
+ * 数値の引数のボクシングも避けたい箇所では isEnabled で判定してから呼び出してください。
+ * </p>
+ *
+ * <p>
+ * 書式は String.format の書式です。引数がなければ書式をそのままメッセージとします。
+ * </p>
+ *
+ * <p>
+ * ログは出力用のスレッドに渡されるため、呼び出したスレッドが出力を待つことはありません。
+ * 出力用のキューが一杯のときはログを捨て、ロガーごとに捨てた件数を数えます。
+ * </p>
+ */
+public class Logger {
+    private String name;
+    private volatile int level;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * ロガーを作成します。
+     *
+     * @param n  名前
+     * @param lv 重要度
+     */
+    Logger(String n, LogLevel lv) {
+        name = n;
+        level = lv.ordinal();
+    }
+
+    /**
+     * ロガーの名前を取得します。
+     *
+     * @return 名前
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 記録する最低の重要度を取得します。
+     *
+     * @return 重要度
+     */
+    public LogLevel getLevel() {
+        return LogLevel.values()[level];
+    }
+
+    /**
+     * 記録する最低の重要度を設定します。
+     *
+     * @param lv 重要度
+     */
+    void setLevel(LogLevel lv) {
+        level = lv.ordinal();
+    }
+
+    /**
+     * 出力用のキューが一杯で捨てた、このロガーのログの件数を取得します。
+     *
+     * @return 捨てたログの件数
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * 指定した重要度のログを記録するかどうかを取得します。
+     *
+     * @param lv 重要度
+     * @return 記録する場合は true、記録しない場合は false
+     */
+    public boolean isEnabled(LogLevel lv) {
+        return lv.ordinal() >= level;
+    }
+
+    /**
+     * TRACE のログを記録するかどうかを取得します。
+     *
+     * @return 記録する場合は true、記録しない場合は false
+     */
+    public boolean isTrace() {
+        return LogLevel.TRACE.ordinal() >= level;
+    }
+
+    /**
+     * DEBUG のログを記録するかどうかを取得します。
+     *
+     * @return 記録する場合は true、記録しない場合は false
+     */
+    public boolean isDebug() {
+        return LogLevel.DEBUG.ordinal() >= level;
+    }
+
+    /**
+     * ログを記録します。
+     *
+     * @param lv   重要度
+     * @param fmt  書式
+     * @param args 書式の引数
+     */
+    public void log(LogLevel lv, String fmt, Object... args) {
+        if (lv.ordinal() < level) {
+            return;
+        }
+
+        put(new LogRecord(lv, name, fmt, args));
+    }
+
+    /**
+     * ログを出力用のキューに入れ、捨てた場合は件数を数えます。
+     *
+     * @param r ログ
+     */
+    private void put(LogRecord r) {
+        if (!Log.enqueue(r)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    //以降は引数の数ごとに、重要度を判定してから引数の配列を作る
+
+    public void log(LogLevel lv, String fmt) {
+        if (lv.ordinal() < level) {
+            return;
+        }
+
+        put(new LogRecord(lv, name, fmt, null));
+    }
+
+    public void log(LogLevel lv, String fmt, Object a0) {
+        if (lv.ordinal() < level) {
+            return;
+        }
+
+        put(new LogRecord(lv, name, fmt, new Object[] {a0}));
+    }
+
+    public void log(LogLevel lv, String fmt, Object a0, Object a1) {
+        if (lv.ordinal() < level) {
+            return;
+        }
+
+        put(new LogRecord(lv, name, fmt, new Object[] {a0, a1}));
+    }
+
+    public void log(LogLevel lv, String fmt, Object a0, Object a1, Object a2) {
+        if (lv.ordinal() < level) {
+            return;
+        }
+
+        put(new LogRecord(lv, name, fmt, new Object[] {a0, a1, a2}));
+    }
+
+    public void trace(String fmt) {
+        log(LogLevel.TRACE, fmt);
+    }
+
+    public void trace(String fmt, Object a0) {
+        log(LogLevel.TRACE, fmt, a0);
+    }
+
+    public void trace(String fmt, Object a0, Object a1) {
+        log(LogLevel.TRACE, fmt, a0, a1);
+    }
+
+    public void trace(String fmt, Object a0, Object a1, Object a2) {
+        log(LogLevel.TRACE, fmt, a0, a1, a2);
+    }
+
+    public void trace(String fmt, Object... args) {
+        log(LogLevel.TRACE, fmt, args);
+    }
+
+    public void debug(String fmt) {
+        log(LogLevel.DEBUG, fmt);
+    }
+
+    public void debug(String fmt, Object a0) {
+        log(LogLevel.DEBUG, fmt, a0);
+    }
+
+    public void debug(String fmt, Object a0, Object a1) {
+        log(LogLevel.DEBUG, fmt, a0, a1);
+    }
+
+    public void debug(String fmt, Object a0, Object a1, Object a2) {
+        log(LogLevel.DEBUG, fmt, a0, a1, a2);
+    }
+
+    public void debug(String fmt, Object... args) {
+        log(LogLevel.DEBUG, fmt, args);
+    }
+
+    public void info(String fmt) {
+        log(LogLevel.INFO, fmt);
+    }
+
+    public void info(String fmt, Object a0) {
+        log(LogLevel.INFO, fmt, a0);
+    }
+
+    public void info(String fmt, Object a0, Object a1) {
+        log(LogLevel.INFO, fmt, a0, a1);
+    }
+
+    public void info(String fmt, Object a0, Object a1, Object a2) {
+        log(LogLevel.INFO, fmt, a0, a1, a2);
+    }
+
+    public void info(String fmt, Object... args) {
+        log(LogLevel.INFO, fmt, args);
+    }
+
+    public void warn(String fmt) {
+        log(LogLevel.WARN, fmt);
+    }
+
+    public void warn(String fmt, Object a0) {
+        log(LogLevel.WARN, fmt, a0);
+    }
+
+    public void warn(String fmt, Object a0, Object a1) {
+        log(LogLevel.WARN, fmt, a0, a1);
+    }
+
+    public void warn(String fmt, Object a0, Object a1, Object a2) {
+        log(LogLevel.WARN, fmt, a0, a1, a2);
+    }
+
+    public void warn(String fmt, Object... args) {
+        log(LogLevel.WARN, fmt, args);
+    }
+
+    public void error(String fmt) {
+        log(LogLevel.ERROR, fmt);
+    }
+
+    public void error(String fmt, Object a0) {
+        log(LogLevel.ERROR, fmt, a0);
+    }
+
+    public void error(String fmt, Object a0, Object a1) {
+        log(LogLevel.ERROR, fmt, a0, a1);
+    }
+
+    public void error(String fmt, Object a0, Object a1, Object a2) {
+        log(LogLevel.ERROR, fmt, a0, a1, a2);
+    }
+
+    public void error(String fmt, Object... args) {
+        log(LogLevel.ERROR, fmt, args);
+    }
+}
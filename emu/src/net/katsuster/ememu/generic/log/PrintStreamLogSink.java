@@ -0,0 +1,50 @@
+package net.katsuster.ememu.generic.log;
+
+import java.io.*;
+
+/**
+ * ログのメッセージをそのまま PrintStream に出力します。
+ *
+ * WARN 以上のログはエラー出力用のストリームに出力します。
+ */
+public class PrintStreamLogSink implements LogSink {
+    private PrintStream out;
+    private PrintStream err;
+
+    /**
+     * 出力先を指定してログの出力先を作成します。
+     *
+     * @param ps 全てのログの出力先
+     */
+    public PrintStreamLogSink(PrintStream ps) {
+        this(ps, ps);
+    }
+
+    /**
+     * 出力先を指定してログの出力先を作成します。
+     *
+     * @param ps  INFO 以下のログの出力先
+     * @param eps WARN 以上のログの出力先
+     */
+    public PrintStreamLogSink(PrintStream ps, PrintStream eps) {
+        out = ps;
+        err = eps;
+    }
+
+    @Override
+    public void write(LogRecord r) {
+        if (r.getLevel().compareTo(LogLevel.WARN) >= 0) {
+            err.print(r.getMessage());
+        } else {
+            out.print(r.getMessage());
+        }
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+        if (err != out) {
+            err.flush();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package net.katsuster.ememu.generic.net;
+
+/**
+ * Ethernet のフレームを受け付けるコア。
+ */
+public interface EtherDestination {
+    /**
+     * フレームを受け付けます。
+     *
+     * <p>
+     * 送信元のスレッドから呼び出されます。
+     * フレームのデータは他の受け手と共有しているため、変更してはいけません。
+     * </p>
+     *
+     * @param f フレーム
+     */
+    public abstract void receiveFrame(EtherFrame f);
+}
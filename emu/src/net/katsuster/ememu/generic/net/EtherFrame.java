@@ -0,0 +1,121 @@
+package net.katsuster.ememu.generic.net;
+
+/**
+ * Ethernet のフレーム
+ *
+ * <p>
+ * 宛先 MAC アドレスから始まり、FCS を含みません。
+ * 仮想スイッチは同じフレームを複製せずに全ての受け手に渡すため、
+ * 作成した後にデータを変更してはいけません。
+ * </p>
+ */
+public final class EtherFrame {
+    //ヘッダの長さ（宛先、送信元、タイプ）
+    public static final int HEADER_SIZE = 14;
+    //FCS を除いた最小の長さ
+    public static final int MIN_SIZE = 60;
+    //MAC アドレスの長さ
+    public static final int ADDR_SIZE = 6;
+    //ブロードキャストアドレス
+    public static final long BROADCAST = 0xffffffffffffL;
+
+    private final byte[] data;
+    private final int length;
+
+    /**
+     * フレームを作成します。
+     *
+     * 配列は複製しません。
+     *
+     * @param b フレームのデータ
+     */
+    public EtherFrame(byte[] b) {
+        this(b, b.length);
+    }
+
+    /**
+     * フレームを作成します。
+     *
+     * 配列は複製しません。
+     *
+     * @param b   フレームのデータ
+     * @param len フレームの長さ（バイト単位）
+     */
+    public EtherFrame(byte[] b, int len) {
+        if (len < HEADER_SIZE || b.length < len) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal frame length %d.", len));
+        }
+
+        data = b;
+        length = len;
+    }
+
+    /**
+     * フレームのデータを取得します。
+     *
+     * 返した配列は他の受け手と共有しているため、変更してはいけません。
+     *
+     * @return フレームのデータ
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * フレームの長さを取得します。
+     *
+     * @return フレームの長さ（バイト単位）
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * 宛先 MAC アドレスを取得します。
+     *
+     * @return 宛先 MAC アドレス（下位 48ビット）
+     */
+    public long getDestination() {
+        return getAddress(0);
+    }
+
+    /**
+     * 送信元 MAC アドレスを取得します。
+     *
+     * @return 送信元 MAC アドレス（下位 48ビット）
+     */
+    public long getSource() {
+        return getAddress(ADDR_SIZE);
+    }
+
+    /**
+     * 宛先がマルチキャストアドレスかどうかを取得します。
+     *
+     * ブロードキャストアドレスもマルチキャストアドレスに含みます。
+     *
+     * @return マルチキャストならば true、ユニキャストならば false
+     */
+    public boolean isMulticast() {
+        return (data[0] & 0x01) != 0;
+    }
+
+    /**
+     * 宛先がブロードキャストアドレスかどうかを取得します。
+     *
+     * @return ブロードキャストならば true、そうでなければ false
+     */
+    public boolean isBroadcast() {
+        return getDestination() == BROADCAST;
+    }
+
+    private long getAddress(int off) {
+        long result = 0;
+
+        for (int i = 0; i < ADDR_SIZE; i++) {
+            result = (result << 8) | (data[off + i] & 0xff);
+        }
+
+        return result;
+    }
+}
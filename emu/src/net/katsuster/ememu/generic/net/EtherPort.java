@@ -0,0 +1,32 @@
+package net.katsuster.ememu.generic.net;
+
+/**
+ * Ethernet のフレームを送受信するコア。
+ *
+ * <p>
+ * ネットワークインタフェースなど、フレームを送信する先を接続できるコアです。
+ * 送信先には仮想スイッチのポートやパケットキャプチャを接続します。
+ * </p>
+ */
+public interface EtherPort extends EtherDestination {
+    /**
+     * フレームの送信先を取得します。
+     *
+     * @return 送信先
+     */
+    public abstract EtherDestination getEtherDestination();
+
+    /**
+     * フレームの送信先を設定します。
+     *
+     * @param d 送信先
+     */
+    public abstract void connectEtherDestination(EtherDestination d);
+
+    /**
+     * フレームの送信先を解除します。
+     *
+     * 解除後に送信したフレームは捨てられます。
+     */
+    public abstract void disconnectEtherDestination();
+}
@@ -0,0 +1,181 @@
+package net.katsuster.ememu.generic.net;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.katsuster.ememu.generic.log.*;
+
+/**
+ * 仮想 Ethernet スイッチ
+ *
+ * <p>
+ * 同じプロセスで動作する複数のエミュレータのネットワークインタフェースをつなぎます。
+ * 送信元 MAC アドレスを学習し、宛先を学習済みのユニキャストはそのポートにのみ、
+ * それ以外のフレームは送信元以外の全てのポートに転送します。
+ * </p>
+ *
+ * <p>
+ * フレームは送信元のスレッドでそのまま受け手に渡し、データは複製しません。
+ * モニタとして追加した受け手（パケットキャプチャなど）には、
+ * スイッチを流れる全てのフレームを渡します。
+ * </p>
+ */
+public class EtherSwitch {
+    private static final Logger log = Log.getLogger("net.switch");
+
+    private static final Map<String, EtherSwitch> switches = new HashMap<>();
+
+    private String name;
+    private List<SwitchPort> ports;
+    private List<EtherDestination> monitors;
+    //MAC アドレスとそのアドレスから送信したポートの対応
+    private Map<Long, SwitchPort> table;
+
+    /**
+     * 仮想スイッチを作成します。
+     *
+     * @param n 名前
+     */
+    public EtherSwitch(String n) {
+        name = n;
+        ports = new CopyOnWriteArrayList<>();
+        monitors = new CopyOnWriteArrayList<>();
+        table = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 名前を指定してプロセスで共有する仮想スイッチを取得します。
+     *
+     * 同じ名前のスイッチがなければ作成します。
+     *
+     * @param n 名前
+     * @return 仮想スイッチ
+     */
+    public static EtherSwitch getSwitch(String n) {
+        EtherSwitch sw;
+
+        synchronized (switches) {
+            sw = switches.get(n);
+            if (sw == null) {
+                sw = new EtherSwitch(n);
+                switches.put(n, sw);
+            }
+        }
+
+        return sw;
+    }
+
+    /**
+     * 仮想スイッチの名前を取得します。
+     *
+     * @return 名前
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * ポートを接続します。
+     *
+     * ポートの送信先にはスイッチを設定します。
+     *
+     * @param p ポート
+     */
+    public void connect(EtherPort p) {
+        SwitchPort sp = new SwitchPort(p);
+
+        ports.add(sp);
+        p.connectEtherDestination(sp);
+
+        log.info("%s: connect port %d.\n", name, ports.size() - 1);
+    }
+
+    /**
+     * ポートを切断します。
+     *
+     * ポートの送信先も解除します。
+     *
+     * @param p ポート
+     */
+    public void disconnect(EtherPort p) {
+        for (SwitchPort sp : ports) {
+            if (sp.port != p) {
+                continue;
+            }
+
+            ports.remove(sp);
+            table.values().removeAll(Collections.singleton(sp));
+            p.disconnectEtherDestination();
+        }
+    }
+
+    /**
+     * 全てのフレームを受け取るモニタを追加します。
+     *
+     * @param d モニタ
+     */
+    public void addMonitor(EtherDestination d) {
+        monitors.add(d);
+    }
+
+    /**
+     * モニタを削除します。
+     *
+     * @param d モニタ
+     */
+    public void removeMonitor(EtherDestination d) {
+        monitors.remove(d);
+    }
+
+    /**
+     * フレームを転送します。
+     *
+     * @param in 受信したポート
+     * @param f  フレーム
+     */
+    private void forward(SwitchPort in, EtherFrame f) {
+        SwitchPort out;
+
+        //送信元がユニキャストアドレスならば学習する
+        if ((f.getData()[EtherFrame.ADDR_SIZE] & 0x01) == 0) {
+            table.put(f.getSource(), in);
+        }
+
+        for (EtherDestination d : monitors) {
+            d.receiveFrame(f);
+        }
+
+        if (!f.isMulticast()) {
+            out = table.get(f.getDestination());
+            if (out != null) {
+                if (out != in) {
+                    out.port.receiveFrame(f);
+                }
+                return;
+            }
+        }
+
+        //宛先が不明なユニキャスト、マルチキャスト、ブロードキャスト
+        for (SwitchPort p : ports) {
+            if (p != in) {
+                p.port.receiveFrame(f);
+            }
+        }
+    }
+
+    /**
+     * スイッチのポート、接続したポートが送信したフレームを受け付けます。
+     */
+    private class SwitchPort implements EtherDestination {
+        private EtherPort port;
+
+        public SwitchPort(EtherPort p) {
+            port = p;
+        }
+
+        @Override
+        public void receiveFrame(EtherFrame f) {
+            forward(this, f);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package net.katsuster.ememu.generic.net;
+
+/**
+ * フレームを受け付けて何もしないコア。
+ */
+public class NullEtherDestination implements EtherDestination {
+    @Override
+    public void receiveFrame(EtherFrame f) {
+        //do nothing
+    }
+}
@@ -0,0 +1,103 @@
+package net.katsuster.ememu.generic.net;
+
+import java.io.*;
+
+/**
+ * 受け付けたフレームを pcap 形式で書き出すパケットキャプチャ
+ *
+ * <p>
+ * 仮想スイッチのモニタ、またはネットワークインタフェースの送信先として接続します。
+ * 書き出しに失敗した場合、以降のフレームは書き出しません。
+ * </p>
+ *
+ * <p>
+ * 参考: libpcap File Format
+ * </p>
+ */
+public class PcapWriter implements EtherDestination, Closeable {
+    public static final int MAGIC = 0xa1b2c3d4;
+    public static final int VERSION_MAJOR = 2;
+    public static final int VERSION_MINOR = 4;
+    public static final int SNAPLEN = 65535;
+    //LINKTYPE_ETHERNET
+    public static final int LINKTYPE_ETHERNET = 1;
+
+    private OutputStream out;
+    private byte[] header;
+
+    /**
+     * パケットキャプチャを作成し、ファイルのヘッダを書き出します。
+     *
+     * @param o 出力先
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public PcapWriter(OutputStream o) throws IOException {
+        out = new BufferedOutputStream(o);
+        header = new byte[24];
+
+        putInt(header, 0, MAGIC);
+        putShort(header, 4, VERSION_MAJOR);
+        putShort(header, 6, VERSION_MINOR);
+        //thiszone, sigfigs
+        putInt(header, 8, 0);
+        putInt(header, 12, 0);
+        putInt(header, 16, SNAPLEN);
+        putInt(header, 20, LINKTYPE_ETHERNET);
+        out.write(header);
+
+        header = new byte[16];
+    }
+
+    @Override
+    public synchronized void receiveFrame(EtherFrame f) {
+        long us = System.currentTimeMillis() * 1000;
+
+        if (out == null) {
+            return;
+        }
+
+        putInt(header, 0, (int)(us / 1000000));
+        putInt(header, 4, (int)(us % 1000000));
+        putInt(header, 8, f.getLength());
+        putInt(header, 12, f.getLength());
+        try {
+            out.write(header);
+            out.write(f.getData(), 0, f.getLength());
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            out = null;
+        }
+    }
+
+    /**
+     * バッファに残っているフレームを書き出します。
+     *
+     * @throws IOException 書き出しに失敗した場合
+     */
+    public synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    //pcap はホストのバイトオーダーで書き出すが、ここでは常にリトルエンディアンとする
+    private static void putInt(byte[] b, int off, int v) {
+        b[off + 0] = (byte)v;
+        b[off + 1] = (byte)(v >>> 8);
+        b[off + 2] = (byte)(v >>> 16);
+        b[off + 3] = (byte)(v >>> 24);
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off + 0] = (byte)v;
+        b[off + 1] = (byte)(v >>> 8);
+    }
+}
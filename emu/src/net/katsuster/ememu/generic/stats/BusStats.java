@@ -0,0 +1,50 @@
+package net.katsuster.ememu.generic.stats;
+
+import net.katsuster.ememu.generic.bus.*;
+
+/**
+ * バスのアクセス統計です。
+ *
+ * <p>
+ * 値はバスが数えているものをそのまま返します。
+ * </p>
+ */
+public class BusStats implements BusStatsMBean {
+    private Bus64 bus;
+
+    /**
+     * バスのアクセス統計を作成します。
+     *
+     * @param b バス
+     */
+    public BusStats(Bus64 b) {
+        bus = b;
+    }
+
+    @Override
+    public long getCacheHit() {
+        return bus.getCacheHit();
+    }
+
+    @Override
+    public long getCacheMiss() {
+        return bus.getCacheMiss();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hit = bus.getCacheHit();
+        long total = hit + bus.getCacheMiss();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        return (double)hit / total;
+    }
+
+    @Override
+    public String[] getIOAccesses() {
+        return bus.getIOAccesses();
+    }
+}
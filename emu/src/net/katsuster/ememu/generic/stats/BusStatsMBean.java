@@ -0,0 +1,34 @@
+package net.katsuster.ememu.generic.stats;
+
+/**
+ * バスのアクセス統計を JMX に公開するインタフェースです。
+ */
+public interface BusStatsMBean {
+    /**
+     * スレーブコアの検索が直前のスレーブコアに一致した回数を取得します。
+     *
+     * @return 回数
+     */
+    public abstract long getCacheHit();
+
+    /**
+     * スレーブコアの検索が直前のスレーブコアに一致しなかった回数を取得します。
+     *
+     * @return 回数
+     */
+    public abstract long getCacheMiss();
+
+    /**
+     * スレーブコアの検索が直前のスレーブコアに一致した割合を取得します。
+     *
+     * @return 割合（0 から 1）
+     */
+    public abstract double getCacheHitRate();
+
+    /**
+     * RAM 以外のスレーブコアごとのアクセス数を取得します。
+     *
+     * @return スレーブコアごとのアクセス数を表す文字列の配列
+     */
+    public abstract String[] getIOAccesses();
+}
@@ -0,0 +1,153 @@
+package net.katsuster.ememu.generic.stats;
+
+import java.util.*;
+
+/**
+ * CPU の実行統計です。
+ *
+ * <p>
+ * 命令の数、命令の種類ごとの実行数、例外と割り込みの数を数えます。
+ * カウンタは CPU ごとに持ち、数えるのは CPU を実行するスレッドのみのため、
+ * 他の CPU と競合せず、ロックも不要です。
+ * 他のスレッドから読み出した値は多少古いことがあります。
+ * </p>
+ */
+public class CPUStats implements CPUStatsMBean {
+    //getTopOpcodes で返す命令の種類の数
+    public static final int TOP_OPCODES = 20;
+
+    private String[] opNames;
+    private long[] opCounts;
+    private long insts;
+    private long exceptions;
+    private long interrupts;
+
+    //命令の実行速度の計測
+    private long startTime;
+    private long lastInsts;
+    private long lastTime;
+    private volatile double mips;
+
+    /**
+     * 実行統計を作成します。
+     *
+     * @param ops 命令の種類、命令の種類の番号は ordinal() の値です
+     */
+    public CPUStats(Enum<?>[] ops) {
+        opNames = new String[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            opNames[i] = ops[i].name();
+        }
+        opCounts = new long[ops.length];
+        startTime = System.nanoTime();
+        lastTime = startTime;
+    }
+
+    /**
+     * 命令の実行を数えます。
+     *
+     * @param op 命令の種類の番号
+     */
+    public void instruction(int op) {
+        insts++;
+        opCounts[op]++;
+    }
+
+    /**
+     * 例外、または割り込みの要求を数えます。
+     *
+     * @param intr 割り込みならば true、例外ならば false
+     */
+    public void exception(boolean intr) {
+        if (intr) {
+            interrupts++;
+        } else {
+            exceptions++;
+        }
+    }
+
+    /**
+     * 前回の計測からの命令の実行速度を計測します。
+     *
+     * 定期的に 1つのスレッドから呼び出してください。
+     *
+     * @return 1秒あたりに実行した命令の数（百万命令単位）
+     */
+    public synchronized double measure() {
+        long n = insts;
+        long t = System.nanoTime();
+
+        if (t != lastTime) {
+            mips = (n - lastInsts) * 1000.0 / (t - lastTime);
+        }
+        lastInsts = n;
+        lastTime = t;
+
+        return mips;
+    }
+
+    @Override
+    public long getInstructions() {
+        return insts;
+    }
+
+    @Override
+    public double getMIPS() {
+        return mips;
+    }
+
+    @Override
+    public double getAverageMIPS() {
+        long t = System.nanoTime() - startTime;
+
+        if (t == 0) {
+            return 0;
+        }
+
+        return insts * 1000.0 / t;
+    }
+
+    @Override
+    public long getExceptions() {
+        return exceptions;
+    }
+
+    @Override
+    public long getInterrupts() {
+        return interrupts;
+    }
+
+    /**
+     * 命令の種類ごとの実行数を取得します。
+     *
+     * @return 命令の種類の番号ごとの実行数
+     */
+    public long[] getOpcodeCounts() {
+        return opCounts.clone();
+    }
+
+    @Override
+    public String[] getTopOpcodes() {
+        final long[] c = opCounts.clone();
+        List<Integer> ind = new ArrayList<>();
+        List<String> r = new ArrayList<>();
+
+        for (int i = 0; i < c.length; i++) {
+            if (c[i] != 0) {
+                ind.add(i);
+            }
+        }
+        Collections.sort(ind, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(c[b], c[a]);
+            }
+        });
+
+        for (int i = 0; i < ind.size() && i < TOP_OPCODES; i++) {
+            r.add(opNames[ind.get(i)] + " " + c[ind.get(i)]);
+        }
+
+        return r.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,48 @@
+package net.katsuster.ememu.generic.stats;
+
+/**
+ * CPU の実行統計を JMX に公開するインタフェースです。
+ */
+public interface CPUStatsMBean {
+    /**
+     * 実行した命令の数を取得します。
+     *
+     * @return 命令の数
+     */
+    public abstract long getInstructions();
+
+    /**
+     * 直近の計測間隔における命令の実行速度を取得します。
+     *
+     * @return 1秒あたりに実行した命令の数（百万命令単位）
+     */
+    public abstract double getMIPS();
+
+    /**
+     * 計測を開始してからの平均の命令の実行速度を取得します。
+     *
+     * @return 1秒あたりに実行した命令の数（百万命令単位）
+     */
+    public abstract double getAverageMIPS();
+
+    /**
+     * 要求された例外の数を取得します。割り込みは含みません。
+     *
+     * @return 例外の数
+     */
+    public abstract long getExceptions();
+
+    /**
+     * 要求された割り込みの数を取得します。
+     *
+     * @return 割り込みの数
+     */
+    public abstract long getInterrupts();
+
+    /**
+     * 実行した数の多い順に、命令の種類ごとの実行数を取得します。
+     *
+     * @return 「命令の種類 実行数」の形式の文字列の配列（最大 TOP_OPCODES 個）
+     */
+    public abstract String[] getTopOpcodes();
+}
@@ -0,0 +1,172 @@
+package net.katsuster.ememu.generic.stats;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import javax.management.*;
+
+import net.katsuster.ememu.generic.log.*;
+
+/**
+ * 実行統計を JMX に公開し、命令の実行速度を定期的に計測するスレッドです。
+ *
+ * <p>
+ * 実行中は CPU とバスの統計を次の名前で MBean サーバに登録します。
+ * </p>
+ *
+ * <pre>
+ * net.katsuster.ememu:type=CPU,name=エミュレータ名,id=CPU の番号
+ * net.katsuster.ememu:type=Bus,name=エミュレータ名
+ * </pre>
+ *
+ * <p>
+ * 出力間隔を指定した場合は、統計をテキストで定期的にログ（分類 stats）に出力します。
+ * </p>
+ */
+public class StatsMonitor extends Thread {
+    private static final Logger log = Log.getLogger("stats");
+
+    //MBean のドメイン
+    public static final String DOMAIN = "net.katsuster.ememu";
+    //命令の実行速度を計測する間隔（ミリ秒単位）
+    public static final long MEASURE_INTERVAL = 1000;
+
+    private String emuName;
+    private CPUStats[] cpus;
+    private BusStats bus;
+    private long dumpInterval;
+    private List<ObjectName> registered;
+    private volatile boolean halted;
+
+    /**
+     * 実行統計のモニタを作成します。
+     *
+     * @param name     エミュレータの名前
+     * @param c        CPU ごとの実行統計
+     * @param b        バスのアクセス統計
+     * @param interval テキストで出力する間隔（ミリ秒単位）、0 ならば出力しない
+     */
+    public StatsMonitor(String name, CPUStats[] c, BusStats b, long interval) {
+        super("stats monitor");
+        setDaemon(true);
+
+        this.emuName = name;
+        this.cpus = c.clone();
+        this.bus = b;
+        this.dumpInterval = interval;
+        this.registered = new ArrayList<>();
+        this.halted = false;
+    }
+
+    /**
+     * 実行統計を MBean サーバに登録します。
+     */
+    private void register() {
+        MBeanServer srv = ManagementFactory.getPlatformMBeanServer();
+        String base = DOMAIN + ":name=" + ObjectName.quote(emuName);
+
+        try {
+            for (int i = 0; i < cpus.length; i++) {
+                ObjectName on = new ObjectName(base + ",type=CPU,id=" + i);
+
+                srv.registerMBean(cpus[i], on);
+                registered.add(on);
+            }
+            if (bus != null) {
+                ObjectName on = new ObjectName(base + ",type=Bus");
+
+                srv.registerMBean(bus, on);
+                registered.add(on);
+            }
+        } catch (JMException e) {
+            log.warn("Cannot register MBean of '%s': %s\n", emuName, e);
+        }
+    }
+
+    /**
+     * 登録した実行統計を MBean サーバから削除します。
+     */
+    private void unregister() {
+        MBeanServer srv = ManagementFactory.getPlatformMBeanServer();
+
+        for (ObjectName on : registered) {
+            try {
+                srv.unregisterMBean(on);
+            } catch (JMException e) {
+                //既に削除されている
+            }
+        }
+        registered.clear();
+    }
+
+    @Override
+    public void run() {
+        long next = System.currentTimeMillis();
+        long nextDump = next + dumpInterval;
+
+        register();
+        try {
+            while (!halted) {
+                long now;
+
+                next += MEASURE_INTERVAL;
+                while (!halted && (now = System.currentTimeMillis()) < next) {
+                    LockSupport.parkNanos(this, (next - now) * 1000000L);
+                }
+                if (halted) {
+                    break;
+                }
+
+                for (CPUStats s : cpus) {
+                    s.measure();
+                }
+                if (dumpInterval > 0 && System.currentTimeMillis() >= nextDump) {
+                    log.info(toString());
+                    nextDump += dumpInterval;
+                }
+            }
+        } finally {
+            unregister();
+        }
+    }
+
+    /**
+     * 計測を終了し、終了を待ちます。
+     */
+    public void halt() {
+        halted = true;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+
+        b.append(String.format("stats of %s:\n", emuName));
+        for (int i = 0; i < cpus.length; i++) {
+            CPUStats s = cpus[i];
+
+            b.append(String.format("  cpu%d: %d insts, %.2f MIPS (avg %.2f), " +
+                            "%d exceptions, %d interrupts\n",
+                    i, s.getInstructions(), s.getMIPS(), s.getAverageMIPS(),
+                    s.getExceptions(), s.getInterrupts()));
+            b.append(String.format("    top: %s\n",
+                    Arrays.toString(s.getTopOpcodes())));
+        }
+        if (bus != null) {
+            b.append(String.format("  bus: slave cache hit %.2f%% (%d/%d)\n",
+                    bus.getCacheHitRate() * 100, bus.getCacheHit(),
+                    bus.getCacheHit() + bus.getCacheMiss()));
+            for (String s : bus.getIOAccesses()) {
+                b.append(String.format("    %s\n", s));
+            }
+        }
+
+        return b.toString();
+    }
+}
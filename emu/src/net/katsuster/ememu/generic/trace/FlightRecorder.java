@@ -0,0 +1,235 @@
+package net.katsuster.ememu.generic.trace;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import net.katsuster.ememu.generic.core.*;
+
+/**
+ * 直近に実行した命令、例外、I/O アクセスを記録するフライトレコーダです。
+ *
+ * <p>
+ * CPU ごとに固定長のリングバッファを持ち、古い記録から上書きします。
+ * 記録はプリミティブ型の配列に格納するためオブジェクトを確保せず、
+ * 常に有効にしたまま実行できます。
+ * </p>
+ *
+ * <p>
+ * エミュレータが異常終了したとき、ゲストがパニックしたとき、
+ * またはユーザが要求したときに、逆アセンブルして出力します。
+ * </p>
+ *
+ * <p>
+ * 記録は CPU を実行するスレッドのみが行います。
+ * 記録した数は記録するスレッドのみが書き換え、
+ * 他のスレッドには順序付きの書き込み（lazySet）で公開するため、
+ * 記録ごとにメモリフェンスは発生しません。
+ * 実行中の CPU の記録を出力した場合、出力中に上書きされた記録は
+ * 正しく表示されないことがあります。
+ * </p>
+ */
+public class FlightRecorder {
+    //記録の数の既定値
+    public static final int DEFAULT_SIZE = 4096;
+
+    //記録の種類
+    public static final int TYPE_INST = 1;
+    public static final int TYPE_EXCEPT = 2;
+    public static final int TYPE_IO_READ = 3;
+    public static final int TYPE_IO_WRITE = 4;
+
+    private int mask;
+    private byte[] types;
+    private long[] addrs;
+    private long[] values;
+    //命令の長さと命令セット、例外番号、I/O アクセスのサイズ
+    private int[] infos;
+    //例外の理由
+    private String[] notes;
+    //記録した数、記録するスレッドのみが読み書きする
+    private long count;
+    //他のスレッドに公開する記録した数
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * 既定の数の記録を保持するフライトレコーダを作成します。
+     */
+    public FlightRecorder() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * フライトレコーダを作成します。
+     *
+     * @param size 保持する記録の数（2 のべき乗）
+     */
+    public FlightRecorder(int size) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException(String.format(
+                    "size %d is not power of 2.", size));
+        }
+
+        mask = size - 1;
+        types = new byte[size];
+        addrs = new long[size];
+        values = new long[size];
+        infos = new int[size];
+        notes = new String[size];
+        count = 0;
+    }
+
+    /**
+     * 保持できる記録の数を取得します。
+     *
+     * @return 記録の数
+     */
+    public int size() {
+        return mask + 1;
+    }
+
+    /**
+     * これまでに記録した数を取得します。
+     *
+     * 上書きされて失われた記録も含みます。
+     *
+     * @return 記録した数
+     */
+    public long getCount() {
+        return published.get();
+    }
+
+    /**
+     * 全ての記録を消去します。
+     *
+     * 記録するスレッド、または CPU が停止している間に呼び出してください。
+     */
+    public void clear() {
+        count = 0;
+        published.set(0);
+    }
+
+    /**
+     * 記録を 1つ追加します。
+     *
+     * @param type  記録の種類（TYPE_xxxx）
+     * @param addr  アドレス
+     * @param value 値
+     * @param info  付加情報
+     * @param note  付加情報の文字列
+     */
+    private void put(int type, long addr, long value, int info, String note) {
+        long c = count;
+        int i = (int)c & mask;
+
+        types[i] = (byte)type;
+        addrs[i] = addr;
+        values[i] = value;
+        infos[i] = info;
+        notes[i] = note;
+        count = c + 1;
+        //記録を書き終えてから数を公開する
+        published.lazySet(c + 1);
+    }
+
+    /**
+     * 実行する命令を記録します。
+     *
+     * @param pc   命令のアドレス
+     * @param inst 命令のバイナリ値
+     * @param len  命令の長さ（バイト単位）
+     * @param mode 命令セット（CPU.getInstructionMode の値）
+     */
+    public void instruction(long pc, int inst, int len, int mode) {
+        put(TYPE_INST, pc, inst, (mode << 8) | len, null);
+    }
+
+    /**
+     * 例外の発生を記録します。
+     *
+     * @param num 例外番号
+     * @param msg 例外の理由
+     */
+    public void exception(int num, String msg) {
+        put(TYPE_EXCEPT, 0, 0, num, msg);
+    }
+
+    /**
+     * I/O 領域へのアクセスを記録します。
+     *
+     * @param write 書き込みならば true、読み出しならば false
+     * @param addr  アドレス
+     * @param size  サイズ（バイト単位）
+     * @param val   読み出した値、または書き込んだ値
+     */
+    public void io(boolean write, long addr, int size, long val) {
+        put(write ? TYPE_IO_WRITE : TYPE_IO_READ, addr, val, size, null);
+    }
+
+    /**
+     * 記録を古い順に出力します。
+     *
+     * @param ps  出力先
+     * @param id  CPU の番号
+     * @param dis 逆アセンブルに使う CPU、逆アセンブルしない場合は null
+     */
+    public void dump(PrintStream ps, int id, CPU dis) {
+        long c = published.get();
+        long st = Math.max(0, c - size());
+
+        ps.printf("flight recorder of cpu %d: last %d of %d events\n",
+                id, c - st, c);
+
+        for (long n = st; n < c; n++) {
+            int i = (int)n & mask;
+            long addr = addrs[i];
+            long val = values[i];
+            int info = infos[i];
+
+            switch (types[i]) {
+            case TYPE_INST:
+                printInstruction(ps, id, dis, addr, (int)val,
+                        info & 0xff, info >>> 8);
+                break;
+            case TYPE_EXCEPT:
+                ps.printf("        exception %d: %s\n", info, notes[i]);
+                break;
+            case TYPE_IO_READ:
+                ps.printf("        [0x%08x] -> 0x%0" + (info * 2) + "x (%d)\n",
+                        addr, val, info);
+                break;
+            case TYPE_IO_WRITE:
+                ps.printf("        [0x%08x] <- 0x%0" + (info * 2) + "x (%d)\n",
+                        addr, val, info);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * 命令を逆アセンブルして出力します。
+     *
+     * @param ps   出力先
+     * @param id   CPU の番号
+     * @param dis  逆アセンブルに使う CPU、逆アセンブルしない場合は null
+     * @param pc   命令のアドレス
+     * @param inst 命令のバイナリ値
+     * @param len  命令の長さ（バイト単位）
+     * @param mode 命令セット
+     */
+    private static void printInstruction(PrintStream ps, int id, CPU dis,
+                                         long pc, int inst, int len, int mode) {
+        if (dis != null) {
+            try {
+                ps.print(dis.disassemble(pc, inst, len, mode));
+                return;
+            } catch (RuntimeException ex) {
+                //逆アセンブルできない命令は値のみ出力する
+            }
+        }
+
+        ps.printf("%d: %08x:    %0" + (len * 2) + "x    (unknown)\n",
+                id, pc, inst);
+    }
+}
@@ -0,0 +1,164 @@
+package net.katsuster.ememu.generic.trace;
+
+/**
+ * PC と動作モードの組ごとにサンプル数を数えるヒストグラムです。
+ *
+ * <p>
+ * オープンアドレス法のハッシュ表で、ロックを使いません。
+ * 数えるのは 1つのスレッド（CPU を実行するスレッド）のみとし、
+ * 他のスレッドは実行中でも getEntries で読み出せます。
+ * 読み出した値は数えている最中の値を含むため、多少古いことがあります。
+ * </p>
+ */
+public class PCHistogram {
+    //表の大きさの初期値
+    public static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * ハッシュ表です。
+     *
+     * 拡張するときは新たな表を作って差し替えます。
+     */
+    private static class Table {
+        private long[] pcs;
+        private int[] modes;
+        private long[] counts;
+        private int mask;
+        private int used;
+
+        public Table(int capacity) {
+            pcs = new long[capacity];
+            modes = new int[capacity];
+            counts = new long[capacity];
+            mask = capacity - 1;
+            used = 0;
+        }
+    }
+
+    private volatile Table table;
+
+    public PCHistogram() {
+        table = new Table(INITIAL_CAPACITY);
+    }
+
+    /**
+     * PC と動作モードからハッシュ値を求めます。
+     *
+     * @param pc   PC
+     * @param mode 動作モード
+     * @return ハッシュ値
+     */
+    private static int hash(long pc, int mode) {
+        long h = (pc ^ ((long)mode << 48)) * 0x9e3779b97f4a7c15L;
+
+        return (int)(h >>> 32);
+    }
+
+    /**
+     * サンプルを 1つ数えます。
+     *
+     * @param pc   PC
+     * @param mode 動作モード
+     */
+    public void add(long pc, int mode) {
+        add(pc, mode, 1);
+    }
+
+    /**
+     * サンプルを数えます。
+     *
+     * @param pc   PC
+     * @param mode 動作モード
+     * @param n    サンプル数
+     */
+    public void add(long pc, int mode, long n) {
+        Table t = table;
+        int i = hash(pc, mode) & t.mask;
+
+        while (t.counts[i] != 0) {
+            if (t.pcs[i] == pc && t.modes[i] == mode) {
+                t.counts[i] += n;
+                return;
+            }
+            i = (i + 1) & t.mask;
+        }
+
+        if ((t.used + 1) * 2 > t.mask + 1) {
+            //半分以上埋まったら表を拡張する
+            t = grow(t);
+            i = hash(pc, mode) & t.mask;
+            while (t.counts[i] != 0) {
+                i = (i + 1) & t.mask;
+            }
+        }
+        t.pcs[i] = pc;
+        t.modes[i] = mode;
+        t.counts[i] = n;
+        t.used++;
+    }
+
+    /**
+     * 2倍の大きさの表に移し替えます。
+     *
+     * @param old 元の表
+     * @return 新たな表
+     */
+    private Table grow(Table old) {
+        Table t = new Table((old.mask + 1) * 2);
+
+        for (int j = 0; j <= old.mask; j++) {
+            int i;
+
+            if (old.counts[j] == 0) {
+                continue;
+            }
+            i = hash(old.pcs[j], old.modes[j]) & t.mask;
+            while (t.counts[i] != 0) {
+                i = (i + 1) & t.mask;
+            }
+            t.pcs[i] = old.pcs[j];
+            t.modes[i] = old.modes[j];
+            t.counts[i] = old.counts[j];
+            t.used++;
+        }
+        table = t;
+
+        return t;
+    }
+
+    /**
+     * 異なる PC と動作モードの組の数を取得します。
+     *
+     * @return 組の数
+     */
+    public int size() {
+        return table.used;
+    }
+
+    /**
+     * 全ての PC, 動作モード, サンプル数を取得します。
+     *
+     * @param pcs    PC を格納する配列、size() 以上の長さが必要です
+     * @param modes  動作モードを格納する配列
+     * @param counts サンプル数を格納する配列
+     * @return 格納した組の数
+     */
+    public int getEntries(long[] pcs, int[] modes, long[] counts) {
+        Table t = table;
+        int n = 0;
+
+        for (int j = 0; j <= t.mask && n < pcs.length; j++) {
+            long c = t.counts[j];
+
+            if (c == 0) {
+                continue;
+            }
+            pcs[n] = t.pcs[j];
+            modes[n] = t.modes[j];
+            counts[n] = c;
+            n++;
+        }
+
+        return n;
+    }
+}
@@ -0,0 +1,171 @@
+package net.katsuster.ememu.generic.trace;
+
+import java.io.*;
+import java.util.concurrent.locks.*;
+
+import net.katsuster.ememu.generic.core.*;
+
+/**
+ * 一定間隔で各 CPU の PC をサンプリングするプロファイラです。
+ *
+ * <p>
+ * プロファイラのスレッドは一定間隔で各 CPU にサンプルを要求するだけで、
+ * PC の記録は CPU 自身が次の命令を実行するときに行います。
+ * CPU が命令ごとに行う処理は、要求の有無を調べる volatile の読み出しのみです。
+ * </p>
+ *
+ * <p>
+ * 前回の要求が処理されないまま次のサンプリングを迎えた CPU は、
+ * 割り込み待ちなどで命令を実行していなかったものとして数えます。
+ * </p>
+ *
+ * <p>
+ * サンプルはテキスト形式で書き出します。
+ * </p>
+ *
+ * <pre>
+ * # ememu profile
+ * arch arm
+ * interval 1000
+ * # cpu mode pc samples
+ * 0 svc 00008024 1234
+ * 0 idle - 56
+ * </pre>
+ */
+public class SamplingProfiler extends Thread {
+    //サンプリング間隔の既定値（マイクロ秒単位）
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    private String arch;
+    private CPU[] cpus;
+    private long interval;
+    private PCHistogram[] hists;
+    private long[] idles;
+    private volatile boolean halted;
+
+    /**
+     * プロファイラを作成します。
+     *
+     * 作成した時点で各 CPU にヒストグラムを設定します。
+     *
+     * @param a        アーキテクチャ名
+     * @param c        サンプリングする CPU
+     * @param interval サンプリング間隔（マイクロ秒単位）
+     */
+    public SamplingProfiler(String a, CPU[] c, long interval) {
+        super("profiler");
+        setDaemon(true);
+
+        if (interval <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal interval %d.", interval));
+        }
+
+        this.arch = a;
+        this.cpus = c.clone();
+        this.interval = interval;
+        this.hists = new PCHistogram[cpus.length];
+        this.idles = new long[cpus.length];
+        this.halted = false;
+
+        for (int i = 0; i < cpus.length; i++) {
+            hists[i] = new PCHistogram();
+            cpus[i].setProfile(hists[i]);
+        }
+    }
+
+    /**
+     * 指定した CPU のヒストグラムを取得します。
+     *
+     * @param n CPU の番号
+     * @return ヒストグラム
+     */
+    public PCHistogram getHistogram(int n) {
+        return hists[n];
+    }
+
+    /**
+     * 指定した CPU が命令を実行していなかったサンプル数を取得します。
+     *
+     * @param n CPU の番号
+     * @return サンプル数
+     */
+    public long getIdle(int n) {
+        return idles[n];
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+
+        while (!halted) {
+            sample();
+
+            next += interval * 1000;
+            long rest = next - System.nanoTime();
+            if (rest > 0) {
+                LockSupport.parkNanos(this, rest);
+            } else {
+                //間に合わなかった分は取り戻さない
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * 全ての CPU にサンプルを 1つ要求します。
+     */
+    public void sample() {
+        for (int i = 0; i < cpus.length; i++) {
+            if (!cpus[i].requestSample()) {
+                idles[i]++;
+            }
+        }
+    }
+
+    /**
+     * サンプリングを終了し、CPU からヒストグラムを外します。
+     */
+    public void halt() {
+        halted = true;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (CPU c : cpus) {
+            c.setProfile(null);
+        }
+    }
+
+    /**
+     * サンプルを書き出します。
+     *
+     * @param ps 出力先
+     */
+    public void write(PrintStream ps) {
+        ps.printf("# ememu profile\n");
+        ps.printf("arch %s\n", arch);
+        ps.printf("interval %d\n", interval);
+        ps.printf("# cpu mode pc samples\n");
+
+        for (int i = 0; i < cpus.length; i++) {
+            PCHistogram h = hists[i];
+            int len = h.size();
+            long[] pcs = new long[len];
+            int[] modes = new int[len];
+            long[] counts = new long[len];
+            int n = h.getEntries(pcs, modes, counts);
+
+            for (int j = 0; j < n; j++) {
+                ps.printf("%d %s %08x %d\n", i,
+                        cpus[i].getPrivilegeModeName(modes[j]), pcs[j], counts[j]);
+            }
+            if (idles[i] != 0) {
+                ps.printf("%d idle - %d\n", i, idles[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package net.katsuster.ememu.generic.trace;
+
+import java.io.*;
+import java.math.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * アドレスから関数名を求める表です。
+ *
+ * <p>
+ * Linux の System.map、または ELF ファイルのシンボルテーブル（.symtab）から
+ * 関数のシンボルを読み込みます。
+ * </p>
+ */
+public class SymbolTable {
+    //ELF ヘッダの定数
+    public static final int ELFCLASS32 = 1;
+    public static final int ELFCLASS64 = 2;
+    public static final int ELFDATA2LSB = 1;
+    public static final int ELFDATA2MSB = 2;
+    public static final int EM_ARM = 40;
+    public static final int SHT_SYMTAB = 2;
+    public static final int STT_FUNC = 2;
+
+    private static class Symbol {
+        private long addr;
+        private long size;
+        private String name;
+
+        public Symbol(long a, long s, String n) {
+            addr = a;
+            size = s;
+            name = n;
+        }
+    }
+
+    private long[] addrs;
+    private long[] sizes;
+    private String[] names;
+
+    /**
+     * シンボルの一覧から表を作成します。
+     *
+     * @param syms シンボルの一覧
+     */
+    private SymbolTable(List<Symbol> syms) {
+        Collections.sort(syms, new Comparator<Symbol>() {
+            @Override
+            public int compare(Symbol a, Symbol b) {
+                return Long.compare(a.addr ^ Long.MIN_VALUE, b.addr ^ Long.MIN_VALUE);
+            }
+        });
+
+        addrs = new long[syms.size()];
+        sizes = new long[syms.size()];
+        names = new String[syms.size()];
+        for (int i = 0; i < syms.size(); i++) {
+            addrs[i] = syms.get(i).addr;
+            sizes[i] = syms.get(i).size;
+            names[i] = syms.get(i).name;
+        }
+    }
+
+    /**
+     * シンボルの数を取得します。
+     *
+     * @return シンボルの数
+     */
+    public int size() {
+        return addrs.length;
+    }
+
+    /**
+     * 指定したアドレスを含む関数の名前を取得します。
+     *
+     * 関数の大きさが分からない場合は、次の関数の先頭までを含むとみなします。
+     *
+     * @param addr アドレス
+     * @return 関数の名前、見つからなければ null
+     */
+    public String lookup(long addr) {
+        long key = addr ^ Long.MIN_VALUE;
+        int lo = 0, hi = addrs.length - 1, found = -1;
+
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if ((addrs[mid] ^ Long.MIN_VALUE) <= key) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        if (found < 0) {
+            return null;
+        }
+        if (sizes[found] != 0 && addr - addrs[found] >= sizes[found]) {
+            return null;
+        }
+
+        return names[found];
+    }
+
+    /**
+     * ファイルからシンボルを読み込みます。
+     *
+     * ELF ファイルであればシンボルテーブルを、
+     * そうでなければ System.map 形式のテキストとして読み込みます。
+     *
+     * @param f ファイル
+     * @return シンボルの表
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public static SymbolTable load(File f) throws IOException {
+        byte[] b = Files.readAllBytes(f.toPath());
+
+        if (b.length >= 4 && b[0] == 0x7f && b[1] == 'E' && b[2] == 'L' && b[3] == 'F') {
+            return loadELF(b);
+        } else {
+            return loadSystemMap(new ByteArrayInputStream(b));
+        }
+    }
+
+    /**
+     * System.map 形式のテキストからシンボルを読み込みます。
+     *
+     * 各行は「アドレス 種類 名前」の形式で、
+     * テキスト領域のシンボル（種類が t, T, w, W）のみ読み込みます。
+     *
+     * @param is 入力
+     * @return シンボルの表
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public static SymbolTable loadSystemMap(InputStream is) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(is,
+                StandardCharsets.UTF_8));
+        List<Symbol> syms = new ArrayList<>();
+        String line;
+
+        while ((line = r.readLine()) != null) {
+            String[] s = line.trim().split("\\s+");
+
+            if (s.length < 3 || s[1].length() != 1 ||
+                    "tTwW".indexOf(s[1].charAt(0)) < 0) {
+                continue;
+            }
+            try {
+                syms.add(new Symbol(new BigInteger(s[0], 16).longValue(), 0, s[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Broken System.map, '" + line + "'.");
+            }
+        }
+
+        return new SymbolTable(syms);
+    }
+
+    /**
+     * ELF ファイルのシンボルテーブルから関数のシンボルを読み込みます。
+     *
+     * @param b ELF ファイルの内容
+     * @return シンボルの表
+     * @throws IOException ELF ファイルが壊れている場合
+     */
+    public static SymbolTable loadELF(byte[] b) throws IOException {
+        return loadELF(ByteBuffer.wrap(b));
+    }
+
+    /**
+     * ELF ファイルのシンボルテーブルから関数のシンボルを読み込みます。
+     *
+     * @param b ELF ファイルの内容、現在位置をファイルの先頭とします
+     * @return シンボルの表
+     * @throws IOException ELF ファイルが壊れている場合
+     */
+    public static SymbolTable loadELF(ByteBuffer b) throws IOException {
+        ByteBuffer buf = b.slice();
+        List<Symbol> syms = new ArrayList<>();
+        boolean is64;
+        long shoff;
+        int shentsize, shnum, machine;
+
+        try {
+            if (buf.get(5) == ELFDATA2MSB) {
+                buf.order(ByteOrder.BIG_ENDIAN);
+            } else if (buf.get(5) == ELFDATA2LSB) {
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                throw new IOException("Unknown ELF data encoding " + buf.get(5) + ".");
+            }
+            if (buf.get(4) == ELFCLASS64) {
+                is64 = true;
+                shoff = buf.getLong(0x28);
+                shentsize = buf.getShort(0x3a) & 0xffff;
+                shnum = buf.getShort(0x3c) & 0xffff;
+            } else if (buf.get(4) == ELFCLASS32) {
+                is64 = false;
+                shoff = buf.getInt(0x20) & 0xffffffffL;
+                shentsize = buf.getShort(0x2e) & 0xffff;
+                shnum = buf.getShort(0x30) & 0xffff;
+            } else {
+                throw new IOException("Unknown ELF class " + buf.get(4) + ".");
+            }
+            machine = buf.getShort(0x12) & 0xffff;
+
+            for (int i = 0; i < shnum; i++) {
+                int sh = (int)(shoff + (long)i * shentsize);
+                int link, strsh;
+                long off, size, entsize, stroff;
+
+                if (buf.getInt(sh + 4) != SHT_SYMTAB) {
+                    continue;
+                }
+                if (is64) {
+                    off = buf.getLong(sh + 24);
+                    size = buf.getLong(sh + 32);
+                    link = buf.getInt(sh + 40);
+                    entsize = buf.getLong(sh + 56);
+                } else {
+                    off = buf.getInt(sh + 16) & 0xffffffffL;
+                    size = buf.getInt(sh + 20) & 0xffffffffL;
+                    link = buf.getInt(sh + 24);
+                    entsize = buf.getInt(sh + 36) & 0xffffffffL;
+                }
+                strsh = (int)(shoff + (long)link * shentsize);
+                stroff = is64 ? buf.getLong(strsh + 24) : buf.getInt(strsh + 16) & 0xffffffffL;
+                if (entsize == 0) {
+                    throw new IOException("Broken ELF, symbol entry size is 0.");
+                }
+
+                for (long e = off; e + entsize <= off + size; e += entsize) {
+                    int st = (int)e;
+                    int nameOff = buf.getInt(st);
+                    int info;
+                    long value, sz;
+
+                    if (is64) {
+                        info = buf.get(st + 4);
+                        value = buf.getLong(st + 8);
+                        sz = buf.getLong(st + 16);
+                    } else {
+                        value = buf.getInt(st + 4) & 0xffffffffL;
+                        sz = buf.getInt(st + 8) & 0xffffffffL;
+                        info = buf.get(st + 12);
+                    }
+                    if ((info & 0xf) != STT_FUNC || value == 0) {
+                        continue;
+                    }
+                    if (machine == EM_ARM) {
+                        //Thumb 関数のアドレスは最下位ビットが立っている
+                        value &= ~1L;
+                    }
+                    syms.add(new Symbol(value, sz,
+                            readString(buf, (int)(stroff + (nameOff & 0xffffffffL)))));
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Broken ELF, offset is out of file.", e);
+        }
+
+        return new SymbolTable(syms);
+    }
+
+    /**
+     * NUL 終端の文字列を読み出します。
+     *
+     * @param b   バイト列
+     * @param off 文字列の先頭
+     * @return 文字列
+     */
+    private static String readString(ByteBuffer b, int off) {
+        byte[] s;
+        int end = off;
+
+        while (b.get(end) != 0) {
+            end++;
+        }
+        s = new byte[end - off];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = b.get(off + i);
+        }
+
+        return new String(s, StandardCharsets.UTF_8);
+    }
+}
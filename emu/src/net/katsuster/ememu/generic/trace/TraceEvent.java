@@ -0,0 +1,114 @@
+package net.katsuster.ememu.generic.trace;
+
+/**
+ * TraceReader が読み出した 1つの記録です。
+ *
+ * TraceReader は同じインスタンスを使い回すため、
+ * 次の記録を読み出す前に必要な値を取り出してください。
+ */
+public class TraceEvent {
+    private int cpu;
+    private int type;
+    private long address;
+    private long value;
+    private int inst;
+    private int length;
+    private int mode;
+    private int reg;
+
+    /**
+     * 記録した CPU の番号を取得します。
+     *
+     * @return CPU の番号
+     */
+    public int getCPU() {
+        return cpu;
+    }
+
+    /**
+     * 記録の種類を取得します。
+     *
+     * @return TraceRecorder.REC_INST, REC_REG, REC_MEM のいずれか
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * 命令のアドレス、またはメモリに書き込んだアドレスを取得します。
+     *
+     * @return アドレス
+     */
+    public long getAddress() {
+        return address;
+    }
+
+    /**
+     * レジスタ、またはメモリに書き込んだ値を取得します。
+     *
+     * @return 値
+     */
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * 命令のバイナリ値を取得します。
+     *
+     * @return 命令
+     */
+    public int getInst() {
+        return inst;
+    }
+
+    /**
+     * 命令の長さ、またはメモリに書き込んだサイズを取得します。
+     *
+     * @return 長さ（バイト単位）
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * 命令セットを取得します。
+     *
+     * @return CPU.getInstructionMode の値
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * レジスタの番号を取得します。
+     *
+     * @return レジスタの番号
+     */
+    public int getReg() {
+        return reg;
+    }
+
+    void setInstruction(int c, long pc, int i, int len, int m) {
+        cpu = c;
+        type = TraceRecorder.REC_INST;
+        address = pc;
+        inst = i;
+        length = len;
+        mode = m;
+    }
+
+    void setRegister(int c, int r, long v) {
+        cpu = c;
+        type = TraceRecorder.REC_REG;
+        reg = r;
+        value = v;
+    }
+
+    void setMemory(int c, long addr, int size, long v) {
+        cpu = c;
+        type = TraceRecorder.REC_MEM;
+        address = addr;
+        length = size;
+        value = v;
+    }
+}
@@ -0,0 +1,212 @@
+package net.katsuster.ememu.generic.trace;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * TraceWriter が書き出した命令トレースを読み出します。
+ */
+public class TraceReader implements Closeable {
+    private DataInputStream in;
+    private String arch;
+    private long startTime;
+
+    //読み出し中のチャンク
+    private byte[] chunk;
+    private int chunkLen;
+    private int pos;
+    private int cpu;
+    private long nextPC;
+
+    private TraceEvent event;
+
+    /**
+     * 命令トレースをファイルから読み出します。
+     *
+     * @param f 読み出すファイル
+     * @throws IOException ファイルを開けない場合、命令トレースではない場合
+     */
+    public TraceReader(File f) throws IOException {
+        this(new FileInputStream(f));
+    }
+
+    /**
+     * 命令トレースをストリームから読み出します。
+     *
+     * @param is 読み出すストリーム
+     * @throws IOException 命令トレースではない場合
+     */
+    public TraceReader(InputStream is) throws IOException {
+        int magic, ver;
+
+        in = new DataInputStream(new GZIPInputStream(
+                new BufferedInputStream(is, 64 * 1024), 64 * 1024));
+
+        magic = in.readInt();
+        if (magic != TraceWriter.MAGIC) {
+            throw new IOException(String.format(
+                    "Not a trace file (magic 0x%08x).", magic));
+        }
+        ver = in.readUnsignedShort();
+        if (ver != TraceWriter.VERSION) {
+            throw new IOException(String.format(
+                    "Not support trace version %d.", ver));
+        }
+        arch = in.readUTF();
+        startTime = in.readLong();
+
+        chunk = new byte[0];
+        chunkLen = 0;
+        pos = 0;
+        event = new TraceEvent();
+    }
+
+    /**
+     * 記録したアーキテクチャ名を取得します。
+     *
+     * @return アーキテクチャ名
+     */
+    public String getArch() {
+        return arch;
+    }
+
+    /**
+     * 記録を開始した時刻を取得します。
+     *
+     * @return 時刻（ミリ秒）
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * 次の記録を読み出します。
+     *
+     * 返す TraceEvent は次の呼び出しで上書きされます。
+     *
+     * @return 記録、最後に達した場合は null
+     * @throws IOException 読み出しに失敗した場合、記録が壊れている場合
+     */
+    public TraceEvent next() throws IOException {
+        int tag;
+
+        while (pos >= chunkLen) {
+            if (!readChunk()) {
+                return null;
+            }
+        }
+
+        tag = chunk[pos++] & 0xff;
+        switch (tag & TraceRecorder.REC_MASK) {
+        case TraceRecorder.REC_INST: {
+            long pc;
+            int len, inst, mode;
+
+            if ((tag & TraceRecorder.INST_SEQ) != 0) {
+                pc = nextPC;
+            } else {
+                pc = getVarLong();
+            }
+            if ((tag & TraceRecorder.INST_16) != 0) {
+                len = 2;
+                inst = getLE(2);
+            } else {
+                len = 4;
+                inst = getLE(4);
+            }
+            mode = ((tag & TraceRecorder.INST_MODE) != 0) ? 1 : 0;
+            nextPC = pc + len;
+
+            event.setInstruction(cpu, pc, inst, len, mode);
+            break;
+        }
+        case TraceRecorder.REC_REG: {
+            int r;
+
+            check(1);
+            r = chunk[pos++] & 0xff;
+            event.setRegister(cpu, r, getVarLong());
+            break;
+        }
+        case TraceRecorder.REC_MEM: {
+            long addr = getVarLong();
+
+            event.setMemory(cpu, addr, 1 << ((tag >>> 4) & 0x3), getVarLong());
+            break;
+        }
+        default:
+            throw new IOException(String.format(
+                    "Broken trace, unknown record 0x%02x.", tag));
+        }
+
+        return event;
+    }
+
+    /**
+     * 次のチャンクを読み出します。
+     *
+     * @return 読み出した場合は true、最後に達した場合は false
+     * @throws IOException 読み出しに失敗した場合
+     */
+    private boolean readChunk() throws IOException {
+        int len;
+
+        try {
+            cpu = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        len = in.readInt();
+        if (len < 0) {
+            throw new IOException("Broken trace, negative chunk length.");
+        }
+        if (chunk.length < len) {
+            chunk = new byte[len];
+        }
+        in.readFully(chunk, 0, len);
+        chunkLen = len;
+        pos = 0;
+        nextPC = -1;
+
+        return true;
+    }
+
+    private void check(int n) throws IOException {
+        if (pos + n > chunkLen) {
+            throw new IOException("Broken trace, record crosses chunk boundary.");
+        }
+    }
+
+    private int getLE(int n) throws IOException {
+        int v = 0;
+
+        check(n);
+        for (int i = 0; i < n; i++) {
+            v |= (chunk[pos++] & 0xff) << (i * 8);
+        }
+
+        return v;
+    }
+
+    private long getVarLong() throws IOException {
+        long v = 0;
+
+        for (int sh = 0; sh < 64; sh += 7) {
+            int b;
+
+            check(1);
+            b = chunk[pos++] & 0xff;
+            v |= (long)(b & 0x7f) << sh;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+
+        throw new IOException("Broken trace, too long number.");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
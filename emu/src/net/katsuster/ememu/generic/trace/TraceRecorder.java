@@ -0,0 +1,248 @@
+package net.katsuster.ememu.generic.trace;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+import net.katsuster.ememu.generic.core.*;
+
+/**
+ * 1つの CPU の命令トレースを記録します。
+ *
+ * <p>
+ * CPU のスレッドからのみ呼び出してください。
+ * 記録はヒープ外のバッファに溜め、一杯になったら TraceWriter に渡して
+ * 空いているバッファに切り替えます。
+ * 空いているバッファがなければ、書き出しが終わるまで CPU を待たせます。
+ * </p>
+ *
+ * <p>
+ * 記録の形式は下記の通りです。数値は可変長（7ビットずつ、下位から、
+ * 最上位ビットが 1 なら続きがある）の符号なし整数、命令はリトルエンディアンです。
+ * </p>
+ *
+ * <pre>
+ * 命令:   byte タグ（REC_INST | INST_SEQ | INST_16 | INST_MODE）
+ *         [varint PC]（INST_SEQ の場合は直前の命令の次のアドレスなので省略）
+ *         命令（INST_16 なら 2バイト、そうでなければ 4バイト）
+ * レジスタ: byte タグ（REC_REG）、byte レジスタ番号、varint 実行後の値
+ * メモリ:   byte タグ（REC_MEM | log2(サイズ) &lt;&lt; 4）、varint アドレス、varint 値
+ * </pre>
+ */
+public class TraceRecorder {
+    //命令の実行で変化したレジスタを記録する
+    public static final int TRACE_REGS = 1;
+    //CPU がメモリに書き込んだ値を記録する
+    public static final int TRACE_MEM = 2;
+
+    //記録の種類（タグの下位 4ビット）
+    public static final int REC_INST = 1;
+    public static final int REC_REG = 2;
+    public static final int REC_MEM = 3;
+    public static final int REC_MASK = 0x0f;
+
+    //命令のタグのフラグ
+    public static final int INST_SEQ = 0x10;
+    public static final int INST_16 = 0x20;
+    public static final int INST_MODE = 0x40;
+
+    //1つの記録の最大の長さ
+    private static final int MAX_RECORD = 32;
+
+    private TraceWriter writer;
+    private int id;
+    private int flags;
+    private ByteBuffer buf;
+    private BlockingQueue<ByteBuffer> free;
+    private long nextPC;
+    private long[] regs;
+
+    /**
+     * TraceRecorder を作成します。TraceWriter.newRecorder を使ってください。
+     *
+     * @param w       書き出し先
+     * @param id      CPU の番号
+     * @param flags   命令以外に記録する内容
+     * @param size    バッファの大きさ
+     * @param buffers バッファの個数
+     */
+    TraceRecorder(TraceWriter w, int id, int flags, int size, int buffers) {
+        this.writer = w;
+        this.id = id;
+        this.flags = flags;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            ByteBuffer b = ByteBuffer.allocateDirect(size);
+
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            free.add(b);
+        }
+        this.buf = free.poll();
+        this.nextPC = -1;
+        this.regs = null;
+    }
+
+    /**
+     * CPU の番号を取得します。
+     *
+     * @return CPU の番号
+     */
+    public int getID() {
+        return id;
+    }
+
+    /**
+     * 命令の実行で変化したレジスタを記録するかどうかを取得します。
+     *
+     * @return 記録するなら true、記録しないなら false
+     */
+    public boolean isTraceRegs() {
+        return (flags & TRACE_REGS) != 0;
+    }
+
+    /**
+     * CPU がメモリに書き込んだ値を記録するかどうかを取得します。
+     *
+     * @return 記録するなら true、記録しないなら false
+     */
+    public boolean isTraceMemory() {
+        return (flags & TRACE_MEM) != 0;
+    }
+
+    /**
+     * 実行する命令を記録します。
+     *
+     * @param pc   命令のアドレス
+     * @param inst 命令
+     * @param mode 命令セット（CPU.getInstructionMode の値）
+     */
+    public void instruction(long pc, Inst32 inst, int mode) {
+        int len = inst.getLength();
+        int tag = REC_INST;
+
+        reserve();
+
+        if (pc == nextPC) {
+            tag |= INST_SEQ;
+        }
+        if (len == 2) {
+            tag |= INST_16;
+        }
+        if (mode != 0) {
+            tag |= INST_MODE;
+        }
+        buf.put((byte)tag);
+        if (pc != nextPC) {
+            putVarLong(pc);
+        }
+        if (len == 2) {
+            buf.putShort((short)inst.getInst());
+        } else {
+            buf.putInt(inst.getInst());
+        }
+
+        nextPC = pc + len;
+    }
+
+    /**
+     * 前回から変化したレジスタを記録します。
+     *
+     * 命令の実行後に呼び出してください。
+     *
+     * @param c レジスタを持つ CPU
+     */
+    public void registers(CPU c) {
+        int n = c.getGeneralRegCount();
+
+        if (regs == null || regs.length != n) {
+            regs = new long[n];
+        }
+
+        for (int i = 0; i < n; i++) {
+            long v = c.getGeneralReg(i);
+
+            if (v == regs[i]) {
+                continue;
+            }
+            regs[i] = v;
+
+            reserve();
+            buf.put((byte)REC_REG);
+            buf.put((byte)i);
+            putVarLong(v);
+        }
+    }
+
+    /**
+     * メモリへの書き込みを記録します。
+     *
+     * @param addr アドレス
+     * @param size 書き込んだサイズ（バイト単位、1, 2, 4, 8）
+     * @param val  書き込んだ値
+     */
+    public void memory(long addr, int size, long val) {
+        reserve();
+        buf.put((byte)(REC_MEM | (Integer.numberOfTrailingZeros(size) << 4)));
+        putVarLong(addr);
+        putVarLong(val);
+    }
+
+    /**
+     * 可変長の符号なし整数を記録します。
+     *
+     * @param v 値
+     */
+    private void putVarLong(long v) {
+        while ((v & ~0x7fL) != 0) {
+            buf.put((byte)((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    /**
+     * 1つの記録を書き込む空きを確保します。
+     */
+    private void reserve() {
+        if (buf.remaining() >= MAX_RECORD) {
+            return;
+        }
+
+        flush();
+    }
+
+    /**
+     * 記録済みのバッファを TraceWriter に渡し、空いているバッファに切り替えます。
+     */
+    public void flush() {
+        if (buf == null || buf.position() == 0) {
+            return;
+        }
+
+        boolean interrupted = false;
+
+        writer.submit(this, buf);
+        buf = null;
+        while (buf == null) {
+            try {
+                buf = free.take();
+            } catch (InterruptedException e) {
+                //記録を失わないよう、書き出しを待ち続ける
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        //チャンクの境界では PC を省略しない
+        nextPC = -1;
+    }
+
+    /**
+     * 書き出しが終わったバッファを返します。
+     *
+     * @param b 空のバッファ
+     */
+    void release(ByteBuffer b) {
+        free.add(b);
+    }
+}
@@ -0,0 +1,208 @@
+package net.katsuster.ememu.generic.trace;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * 命令トレースをファイルに書き出します。
+ *
+ * <p>
+ * CPU ごとに newRecorder で作成した TraceRecorder に記録させます。
+ * 各 TraceRecorder は記録をヒープ外のバッファに溜め、
+ * 一杯になったバッファをこのクラスの書き出し用のスレッドに渡します。
+ * 書き出し用のスレッドはバッファを gzip で圧縮してファイルに書き出します。
+ * </p>
+ *
+ * <p>
+ * ファイルの形式は下記の通りです。数値はビッグエンディアンです。
+ * </p>
+ *
+ * <pre>
+ * ヘッダ:
+ *   int    MAGIC
+ *   short  VERSION
+ *   UTF    アーキテクチャ名（"arm", "riscv"）
+ *   long   記録を開始した時刻（ミリ秒）
+ * チャンク（繰り返し）:
+ *   int    CPU の番号
+ *   int    長さ
+ *   byte[] TraceRecorder が記録したバイト列
+ * </pre>
+ *
+ * <p>
+ * ヘッダ以降の全体を gzip で圧縮します。
+ * チャンクの内容は TraceRecorder を参照してください。
+ * </p>
+ */
+public class TraceWriter implements Closeable {
+    //ファイルの識別子 "EMTR"
+    public static final int MAGIC = 0x454d5452;
+    public static final int VERSION = 1;
+
+    //CPU ごとのバッファの大きさと個数
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    public static final int BUFFERS = 4;
+
+    private DataOutputStream out;
+    private BlockingQueue<Chunk> queue;
+    private List<TraceRecorder> recorders;
+    private Thread writer;
+    private volatile IOException error;
+    private boolean closed;
+
+    /**
+     * 書き出し用のバッファと、それを記録した TraceRecorder の組です。
+     */
+    private static class Chunk {
+        private TraceRecorder recorder;
+        private ByteBuffer buffer;
+
+        public Chunk(TraceRecorder r, ByteBuffer b) {
+            recorder = r;
+            buffer = b;
+        }
+    }
+
+    //書き出し用のスレッドに終了を伝えるチャンク
+    private static final Chunk END = new Chunk(null, null);
+
+    /**
+     * 命令トレースをファイルに書き出します。
+     *
+     * @param f    書き出すファイル
+     * @param arch アーキテクチャ名
+     * @throws IOException ファイルを作成できなかった場合
+     */
+    public TraceWriter(File f, String arch) throws IOException {
+        this(new FileOutputStream(f), arch);
+    }
+
+    /**
+     * 命令トレースをストリームに書き出します。
+     *
+     * ストリームは close で閉じます。
+     *
+     * @param os   書き出すストリーム
+     * @param arch アーキテクチャ名
+     * @throws IOException ヘッダを書き出せなかった場合
+     */
+    public TraceWriter(OutputStream os, String arch) throws IOException {
+        out = new DataOutputStream(new GZIPOutputStream(
+                new BufferedOutputStream(os, 64 * 1024), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(arch);
+        out.writeLong(System.currentTimeMillis());
+
+        queue = new LinkedBlockingQueue<>();
+        recorders = new ArrayList<>();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "trace writer");
+        writer.start();
+    }
+
+    /**
+     * CPU の命令を記録する TraceRecorder を作成します。
+     *
+     * @param id    CPU の番号
+     * @param flags 命令以外に記録する内容（TraceRecorder.TRACE_xxxx の論理和）
+     * @return TraceRecorder
+     */
+    public synchronized TraceRecorder newRecorder(int id, int flags) {
+        TraceRecorder r = new TraceRecorder(this, id, flags, BUFFER_SIZE, BUFFERS);
+
+        recorders.add(r);
+
+        return r;
+    }
+
+    /**
+     * 記録済みのバッファを書き出し用のスレッドに渡します。
+     *
+     * @param r 記録した TraceRecorder
+     * @param b 記録済みのバッファ
+     */
+    void submit(TraceRecorder r, ByteBuffer b) {
+        queue.add(new Chunk(r, b));
+    }
+
+    /**
+     * 書き出し用のスレッドに渡したバッファを順に書き出します。
+     */
+    private void writeLoop() {
+        byte[] tmp = new byte[64 * 1024];
+
+        while (true) {
+            Chunk c;
+
+            try {
+                c = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (c == END) {
+                break;
+            }
+
+            ByteBuffer b = c.buffer;
+            b.flip();
+            try {
+                if (error == null) {
+                    out.writeInt(c.recorder.getID());
+                    out.writeInt(b.remaining());
+                    while (b.hasRemaining()) {
+                        int n = Math.min(b.remaining(), tmp.length);
+
+                        b.get(tmp, 0, n);
+                        out.write(tmp, 0, n);
+                    }
+                }
+            } catch (IOException e) {
+                //以降の記録は捨てて、close で報告する
+                error = e;
+            }
+            b.clear();
+            c.recorder.release(b);
+        }
+    }
+
+    /**
+     * 各 TraceRecorder に残っている記録を書き出してファイルを閉じます。
+     *
+     * 記録中の CPU を停止してから呼び出してください。
+     *
+     * @throws IOException 書き出しに失敗した場合
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            for (TraceRecorder r : recorders) {
+                r.flush();
+            }
+        }
+
+        queue.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while writing trace.");
+        }
+
+        out.close();
+        if (error != null) {
+            throw error;
+        }
+    }
+}
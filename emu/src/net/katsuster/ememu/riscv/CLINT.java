@@ -1,10 +1,15 @@
 package net.katsuster.ememu.riscv;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.BitOp;
 import net.katsuster.ememu.generic.Controller32;
+import net.katsuster.ememu.generic.SnapshotInputStream;
+import net.katsuster.ememu.generic.SnapshotOutputStream;
 import net.katsuster.ememu.generic.core.AbstractParentCore;
 import net.katsuster.ememu.generic.bus.BusMaster64;
 import net.katsuster.ememu.riscv.core.RV64;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * Core Local Interruptor (CLINT)
@@ -12,6 +17,8 @@ import net.katsuster.ememu.riscv.core.RV64;
  * 参考: SiFive FU540-C000 Manual: v1p0
  */
 public class CLINT extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("riscv.clint");
+
     public static final int NUM_REG_MSIP = 32;
     public static final long RTCCLK = 1000000; //1MHz
 
@@ -52,7 +59,26 @@ public class CLINT extends AbstractParentCore {
         setSlaveCore(new CLINTSlave());
     }
 
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        out.writeLong(mtime);
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        mtime = in.readLong();
+    }
+
     class CLINTSlave extends Controller32 {
+        //FIXME: 100Hz polling
+        private static final int TICK_HZ = 100;
+        //交互に実行する場合に、最後に mtime を進めた時刻（ナノ秒単位）
+        private long lastTick = 0;
+
         public CLINTSlave() {
             for (int i = 0; i < NUM_REG_MSIP; i++) {
                 addReg(REG_MSIP0 + i * 4, "MSIP" + i, 0x00000000);
@@ -126,7 +152,9 @@ public class CLINT extends AbstractParentCore {
                 cores[id].setXIP_XSIP(RV64.PRIV_M, b);
                 cores[id].interrupt();
 
-                System.out.printf("MSIP[%d] val:%08x\n", id, data);
+                if (log.isDebug()) {
+                    log.debug("MSIP[%d] val:%08x\n", id, data);
+                }
 
                 return;
             }
@@ -180,7 +208,7 @@ public class CLINT extends AbstractParentCore {
             case REG_MTIMECMP4_L:
                 break;
             case REG_MTIME_L:
-                System.out.printf("CLINT: wr MTIME: 0x%x\n", data);
+                log.debug("CLINT: wr MTIME: 0x%x\n", data);
                 return;
             default:
                 throw new IllegalArgumentException(String.format(
@@ -194,19 +222,42 @@ public class CLINT extends AbstractParentCore {
         @Override
         public void run() {
             while (!shouldHalt()) {
-                //FIXME: 100Hz polling
-                int hz = 100;
-
                 try {
-                    Thread.sleep(1000 / hz);
+                    Thread.sleep(1000 / TICK_HZ);
 
-                    synchronized (this) {
-                        mtime += RTCCLK / 100;
-                    }
+                    tick();
                 } catch (InterruptedException e) {
                     //ignore
                 }
             }
         }
+
+        @Override
+        public boolean runSlice() {
+            long now = System.nanoTime();
+            long period = 1000000000L / TICK_HZ;
+
+            if (lastTick == 0 || now - lastTick > 1000000000L) {
+                //初回、または長く実行されなかった場合は今からの時間を数える
+                lastTick = now;
+            }
+            if (now - lastTick < period) {
+                return false;
+            }
+            lastTick += period;
+
+            tick();
+
+            return true;
+        }
+
+        /**
+         * mtime を 1 / TICK_HZ 秒だけ進めます。
+         */
+        private void tick() {
+            synchronized (this) {
+                mtime += RTCCLK / TICK_HZ;
+            }
+        }
     }
 }
@@ -4,6 +4,8 @@ import net.katsuster.ememu.generic.BitOp;
 import net.katsuster.ememu.generic.Controller32;
 import net.katsuster.ememu.generic.core.AbstractParentCore;
 import net.katsuster.ememu.generic.bus.BusMaster64;
+import net.katsuster.ememu.generic.log.Log;
+import net.katsuster.ememu.generic.log.Logger;
 
 /**
  * DDR Controller
@@ -11,6 +13,8 @@ import net.katsuster.ememu.generic.bus.BusMaster64;
  * 参考: SiFive FU540-C000 Manual: v1p0
  */
 public class DDRController extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("riscv.ddrc");
+
     public static final int REG_CTRL000 = 0x0000;
     public static final int REG_CTRL264 = 0x0420;
 
@@ -98,7 +102,7 @@ public class DDRController extends AbstractParentCore {
                 case 120:
                 case 132:
                 case 136:
-                    System.out.printf("DDRC: wr CTRL%d 0x%x\n", i, data);
+                    log.debug("DDRC: wr CTRL%d 0x%x\n", i, data);
                     break;
                 }
 
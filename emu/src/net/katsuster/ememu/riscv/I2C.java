@@ -4,6 +4,8 @@ import net.katsuster.ememu.generic.BitOp;
 import net.katsuster.ememu.generic.Controller32;
 import net.katsuster.ememu.generic.core.AbstractParentCore;
 import net.katsuster.ememu.generic.bus.BusMaster64;
+import net.katsuster.ememu.generic.log.Log;
+import net.katsuster.ememu.generic.log.Logger;
 
 /**
  * Inter-Integrated Circuit (I2C)
@@ -12,6 +14,8 @@ import net.katsuster.ememu.generic.bus.BusMaster64;
  *       I2C-Master Core Specifications Rev.0.9
  */
 public class I2C extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("riscv.i2c");
+
     public static final int REG_PRERLO  = 0x0000;
     public static final int REG_PRERHI  = 0x0004;
     public static final int REG_CTR     = 0x0008;
@@ -43,7 +47,7 @@ public class I2C extends AbstractParentCore {
             switch (regaddr) {
             case REG_TXRRXR:
                 result = 0;
-                System.out.printf("I2C TXRX: read 0x%x\n", result);
+                log.debug("I2C TXRX: read 0x%x\n", result);
                 break;
             default:
                 result = super.readWord(m, regaddr);
@@ -61,15 +65,15 @@ public class I2C extends AbstractParentCore {
 
             switch (regaddr) {
             case REG_PRERLO:
-                System.out.printf("I2C PRERLO: write 0x%x\n", data);
+                log.debug("I2C PRERLO: write 0x%x\n", data);
                 super.writeWord(m, regaddr, data);
                 break;
             case REG_PRERHI:
-                System.out.printf("I2C PRERHI: write 0x%x\n", data);
+                log.debug("I2C PRERHI: write 0x%x\n", data);
                 super.writeWord(m, regaddr, data);
                 break;
             case REG_TXRRXR:
-                System.out.printf("I2C TXRX: write 0x%x\n", data);
+                log.debug("I2C TXRX: write 0x%x\n", data);
                 super.writeWord(m, regaddr, data);
                 break;
             default:
@@ -1,9 +1,14 @@
 package net.katsuster.ememu.riscv;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.BitOp;
 import net.katsuster.ememu.generic.Controller32;
+import net.katsuster.ememu.generic.SnapshotInputStream;
+import net.katsuster.ememu.generic.SnapshotOutputStream;
 import net.katsuster.ememu.generic.core.AbstractParentCore;
 import net.katsuster.ememu.generic.bus.BusMaster64;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * Power Reset Clocking Interrupt (PRCI)
@@ -11,6 +16,8 @@ import net.katsuster.ememu.generic.bus.BusMaster64;
  * 参考: SiFive FU540-C000 Manual: v1p0
  */
 public class PRCI extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("riscv.prci");
+
     private PLLCFG corePll;
     private PLLCFG ddrPll;
     private PLLCFG gemgxlPll;
@@ -38,6 +45,24 @@ public class PRCI extends AbstractParentCore {
         setSlaveCore(new PRCISlave());
     }
 
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        out.writeInt(corePll.getData());
+        out.writeInt(ddrPll.getData());
+        out.writeInt(gemgxlPll.getData());
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        corePll.setData(in.readInt());
+        ddrPll.setData(in.readInt());
+        gemgxlPll.setData(in.readInt());
+    }
+
     class PRCISlave extends Controller32 {
         public PRCISlave() {
             addReg(REG_HFXOSCCFG,       "HFXOSCCFG", 0x80000000);
@@ -73,11 +98,11 @@ public class PRCI extends AbstractParentCore {
                 break;
             case REG_CLKMUXSTATUS:
                 result = super.readWord(m, regaddr);
-                System.out.printf("PRCI: rd: CLKMUXSTATUS: 0x%x\n", result);
+                log.debug("PRCI: rd: CLKMUXSTATUS: 0x%x\n", result);
                 break;
             case REG_PROCMONCFG:
                 result = super.readWord(m, regaddr);
-                System.out.printf("PRCI: rd: PROCMONCFG: 0x%x\n", result);
+                log.debug("PRCI: rd: PROCMONCFG: 0x%x\n", result);
                 break;
             default:
                 result = super.readWord(m, regaddr);
@@ -97,24 +122,24 @@ public class PRCI extends AbstractParentCore {
             case REG_COREPLLCFG0:
                 corePll.setData(data);
                 corePll.setLock(1);
-                System.out.printf("PRCI: wr COREPLLCFG0: %s\n", corePll);
+                log.debug("PRCI: wr COREPLLCFG0: %s\n", corePll);
                 break;
             case REG_DDRPLLCFG0:
                 ddrPll.setData(data);
                 ddrPll.setLock(1);
-                System.out.printf("PRCI: wr DDRPLLCFG0: %s\n", ddrPll);
+                log.debug("PRCI: wr DDRPLLCFG0: %s\n", ddrPll);
                 break;
             case REG_GEMGXLPLLCFG0:
                 gemgxlPll.setData(data);
                 gemgxlPll.setLock(1);
-                System.out.printf("PRCI: wr GEMGXLPLLCFG0: %s\n", gemgxlPll);
+                log.debug("PRCI: wr GEMGXLPLLCFG0: %s\n", gemgxlPll);
                 break;
             case REG_CLKMUXSTATUS:
-                System.out.printf("PRCI: wr: CLKMUXSTATUS: 0x%x\n", data);
+                log.debug("PRCI: wr: CLKMUXSTATUS: 0x%x\n", data);
                 super.writeWord(m, regaddr, data);
                 break;
             case REG_PROCMONCFG:
-                System.out.printf("PRCI: wr: PROCMONCFG: 0x%x\n", data);
+                log.debug("PRCI: wr: PROCMONCFG: 0x%x\n", data);
                 super.writeWord(m, regaddr, data);
                 break;
             default:
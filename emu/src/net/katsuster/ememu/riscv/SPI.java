@@ -1,11 +1,16 @@
 package net.katsuster.ememu.riscv;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.BitOp;
 import net.katsuster.ememu.generic.Controller32;
+import net.katsuster.ememu.generic.SnapshotInputStream;
+import net.katsuster.ememu.generic.SnapshotOutputStream;
 import net.katsuster.ememu.generic.core.AbstractParentCore;
 import net.katsuster.ememu.generic.core.MasterCore64;
 import net.katsuster.ememu.generic.core.SlaveCore64;
 import net.katsuster.ememu.generic.bus.BusMaster64;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * Serial Peripheral Interface (SPI)
@@ -13,8 +18,11 @@ import net.katsuster.ememu.generic.bus.BusMaster64;
  * 参考: SiFive FU540-C000 Manual: v1p0
  */
 public class SPI extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("riscv.spi");
+
     private SPIMaster mc;
     private SPISlave sc;
+    private boolean direct;
 
     public static final int REG_SCKDIV  = 0x0000;
     public static final int REG_SCKMODE = 0x0004;
@@ -43,6 +51,91 @@ public class SPI extends AbstractParentCore {
         setSlaveCore(sc);
     }
 
+    /**
+     * 送信したデータをその場でスレーブと送受信するかどうかを取得します。
+     *
+     * @return その場で送受信するならば true、
+     * 送受信用のスレッドが送信 FIFO から取り出して送受信するならば false
+     */
+    public boolean isDirectTransfer() {
+        return direct;
+    }
+
+    /**
+     * 送信したデータをその場でスレーブと送受信するかどうかを設定します。
+     *
+     * <p>
+     * 有効にすると TXDATA レジスタへの書き込みの中でスレーブと 1バイト送受信し、
+     * 受信したデータを受信 FIFO に入れます。
+     * 受信 FIFO が一杯の場合は送信 FIFO に入れておき、
+     * RXDATA レジスタの読み出しで受信 FIFO が空いたときに送受信します。
+     * スレッドの切り替えを待たないため、SD カードのように
+     * 大量のバイトを送受信するスレーブを高速に読み書きできます。
+     * </p>
+     *
+     * <p>
+     * コアを起動する前に設定してください。
+     * </p>
+     *
+     * @param b その場で送受信するならば true、
+     *          送受信用のスレッドが送受信するならば false
+     */
+    public void setDirectTransfer(boolean b) {
+        direct = b;
+    }
+
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        synchronized (mc) {
+            out.writeInt(mc.select);
+            out.writeBoolean(mc.enableSelect);
+
+            //FIFO は取り出す順に保存する
+            out.writeInt(mc.lenTx);
+            for (int i = 0; i < mc.lenTx; i++) {
+                out.writeByte(mc.txFifo[(mc.rdTx + i) % mc.lenFifo]);
+            }
+            out.writeInt(mc.lenRx);
+            for (int i = 0; i < mc.lenRx; i++) {
+                out.writeByte(mc.rxFifo[(mc.rdRx + i) % mc.lenFifo]);
+            }
+        }
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        synchronized (mc) {
+            mc.select = in.readInt();
+            mc.enableSelect = in.readBoolean();
+
+            mc.lenTx = in.readInt();
+            if (mc.lenTx < 0 || mc.lenFifo < mc.lenTx) {
+                throw new IOException("Illegal SPI Tx FIFO length " + mc.lenTx);
+            }
+            for (int i = 0; i < mc.lenTx; i++) {
+                mc.txFifo[i] = in.readByte();
+            }
+            mc.rdTx = 0;
+            mc.wrTx = mc.lenTx % mc.lenFifo;
+
+            mc.lenRx = in.readInt();
+            if (mc.lenRx < 0 || mc.lenFifo < mc.lenRx) {
+                throw new IOException("Illegal SPI Rx FIFO length " + mc.lenRx);
+            }
+            for (int i = 0; i < mc.lenRx; i++) {
+                mc.rxFifo[i] = in.readByte();
+            }
+            mc.rdRx = 0;
+            mc.wrRx = mc.lenRx % mc.lenFifo;
+
+            mc.notifyAll();
+        }
+    }
+
     class SPIMaster extends MasterCore64 {
         private SPI parent;
         private int select = 0;
@@ -151,44 +244,74 @@ public class SPI extends AbstractParentCore {
             }
         }
 
+        /**
+         * 送受信できるかどうかを取得します。
+         *
+         * 受信したデータを捨てないよう、受信 FIFO に空きがなければ送受信しません。
+         *
+         * @return 送信 FIFO にデータがあり、受信 FIFO に空きがあれば true
+         */
+        private boolean canTransfer() {
+            return !isTxEmpty() && !isRxFull();
+        }
+
         private void process() throws InterruptedException {
             synchronized (this) {
-                while (isTxEmpty()) {
+                while (!canTransfer()) {
                     wait();
                     if (shouldHalt()) {
                         return;
                     }
                 }
 
-                if (!enableSelect) {
-                    //not chip select
-                    byte t = popTx();
-                    pushRx((byte)0xff);
-                    System.out.printf("SPI(%s) r, w: %02x, %02x\n",
-                            parent.getName(), t & 0xff, 0xff);
-                    return;
+                transfer();
+            }
+        }
+
+        /**
+         * 送信 FIFO から 1バイト取り出して送信し、受信したデータを受信 FIFO に入れます。
+         */
+        private void transfer() {
+            synchronized (this) {
+                exchange(popTx());
+            }
+        }
+
+        /**
+         * 1バイト送信し、受信したデータを受信 FIFO に入れます。
+         *
+         * スレーブの状態が進むため、受信 FIFO に空きがあるときのみ呼び出してください。
+         *
+         * @param t 送信するデータ
+         */
+        private void exchange(byte t) {
+            SlaveCore64 sc;
+            byte r = (byte)0xff;
+
+            synchronized (this) {
+                if (enableSelect) {
+                    sc = getSlaveBus().getSlaveCore(select, select);
+                    if (sc != null) {
+                        write8(select, t);
+                        r = read8(select);
+                    }
                 }
 
-                SlaveCore64 sc = getSlaveBus().getSlaveCore(select, select);
-                if (sc == null) {
-                    //not connected
-                    byte t = popTx();
-                    pushRx((byte)0xff);
-                    System.out.printf("SPI(%s) r, w: %02x, %02x\n",
-                            parent.getName(), t & 0xff, 0xff);
-                } else {
-                    byte t = popTx();
-                    write8(select, t);
-                    byte r = read8(select);
-                    pushRx(r);
-                    System.out.printf("SPI(%s) r, w: %02x, %02x\n",
-                            parent.getName(), t, r);
+                pushRx(r);
+                if (log.isTrace()) {
+                    log.trace("SPI(%s) r, w: %02x, %02x\n",
+                            parent.getName(), t & 0xff, r & 0xff);
                 }
             }
         }
 
         @Override
         public void run() {
+            if (isDirectTransfer()) {
+                //CPU のスレッドで送受信するため、スレッドは不要
+                return;
+            }
+
             while (!shouldHalt()) {
                 try {
                     process();
@@ -197,6 +320,19 @@ public class SPI extends AbstractParentCore {
                 }
             }
         }
+
+        @Override
+        public boolean runSlice() {
+            synchronized (this) {
+                if (!canTransfer()) {
+                    return false;
+                }
+
+                transfer();
+            }
+
+            return true;
+        }
     }
 
     class SPISlave extends Controller32 {
@@ -241,13 +377,13 @@ public class SPI extends AbstractParentCore {
             switch (regaddr) {
             case REG_CSID:
                 result = mc.getChipSelect();
-                System.out.printf("SPI(%s) CSID: read 0x%x\n", parent.getName(), result);
+                log.debug("SPI(%s) CSID: read 0x%x\n", parent.getName(), result);
                 break;
             case REG_CSDEF:
-                System.out.printf("SPI(%s) CSDEF: read 0x%x\n", parent.getName(), result);
+                log.debug("SPI(%s) CSDEF: read 0x%x\n", parent.getName(), result);
                 break;
             case REG_CSMODE:
-                System.out.printf("SPI(%s) CSMODE: read 0x%x\n", parent.getName(), result);
+                log.debug("SPI(%s) CSMODE: read 0x%x\n", parent.getName(), result);
                 break;
             case REG_TXDATA:
                 synchronized (mc) {
@@ -262,6 +398,10 @@ public class SPI extends AbstractParentCore {
                         result |= 0x80000000;
                     } else {
                         result |= mc.popRx() & 0xff;
+                        if (isDirectTransfer() && mc.canTransfer()) {
+                            //受信 FIFO が空くのを待っていたデータを送受信する
+                            mc.transfer();
+                        }
                     }
                 }
                 break;
@@ -281,14 +421,14 @@ public class SPI extends AbstractParentCore {
 
             switch (regaddr) {
             case REG_SCKDIV:
-                System.out.printf("SPI(%s) SCKDIV: write 0x%x\n", parent.getName(), data);
+                log.debug("SPI(%s) SCKDIV: write 0x%x\n", parent.getName(), data);
                 break;
             case REG_CSID:
                 mc.setChipSelect(data);
-                System.out.printf("SPI(%s) CSID: write 0x%x\n", parent.getName(), data);
+                log.debug("SPI(%s) CSID: write 0x%x\n", parent.getName(), data);
                 break;
             case REG_CSDEF:
-                System.out.printf("SPI(%s) CSDEF: write 0x%x\n", parent.getName(), data);
+                log.debug("SPI(%s) CSDEF: write 0x%x\n", parent.getName(), data);
                 break;
             case REG_CSMODE:
                 int mode = BitOp.getField32(data, 0, 2);
@@ -306,7 +446,7 @@ public class SPI extends AbstractParentCore {
                     break;
                 }
 
-                System.out.printf("SPI(%s) CSMODE: write 0x%x\n" +
+                log.debug("SPI(%s) CSMODE: write 0x%x\n" +
                                 "  %s: 0x%x, \n",
                         parent.getName(), data,
                         "mode", mode);
@@ -315,20 +455,23 @@ public class SPI extends AbstractParentCore {
 
                 break;
             case REG_FMT:
-                System.out.printf("SPI(%s) FMT: write 0x%x\n", parent.getName(), data);
+                log.debug("SPI(%s) FMT: write 0x%x\n", parent.getName(), data);
                 break;
             case REG_TXDATA:
                 synchronized (mc) {
-                    if (!mc.isTxFull()) {
+                    if (isDirectTransfer() && mc.isTxEmpty() && !mc.isRxFull()) {
+                        mc.exchange((byte)data);
+                    } else if (!mc.isTxFull()) {
+                        //受信 FIFO が一杯ならば、空くまで送信 FIFO で待たせる
                         mc.pushTx((byte)data);
                     }
                 }
                 break;
             case REG_RXDATA:
-                System.out.printf("SPI(%s) RXDATA: write 0x%x\n", parent.getName(), data);
+                log.debug("SPI(%s) RXDATA: write 0x%x\n", parent.getName(), data);
                 break;
             case REG_FCTRL:
-                System.out.printf("SPI(%s) FCTRL: write 0x%x\n", parent.getName(), data);
+                log.debug("SPI(%s) FCTRL: write 0x%x\n", parent.getName(), data);
                 break;
             case REG_FFMT:
                 int cmd_en = BitOp.getField32(data, 0, 1);
@@ -340,7 +483,7 @@ public class SPI extends AbstractParentCore {
                 int cmd_code = BitOp.getField32(data, 16, 8);
                 int pad_code = BitOp.getField32(data, 24, 8);
 
-                System.out.printf("SPI(%s) FFMT: write 0x%x\n" +
+                log.debug("SPI(%s) FFMT: write 0x%x\n" +
                                 "  %s: 0x%x, \n" +
                                 "  %s: 0x%x, \n" +
                                 "  %s: 0x%x, \n" +
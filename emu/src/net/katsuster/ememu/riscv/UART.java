@@ -2,10 +2,14 @@ package net.katsuster.ememu.riscv;
 
 import java.io.*;
 
+import net.katsuster.ememu.generic.AsyncOutputBuffer;
 import net.katsuster.ememu.generic.BitOp;
 import net.katsuster.ememu.generic.Controller32;
+import net.katsuster.ememu.generic.SnapshotInputStream;
+import net.katsuster.ememu.generic.SnapshotOutputStream;
 import net.katsuster.ememu.generic.core.AbstractParentCore;
 import net.katsuster.ememu.generic.bus.BusMaster64;
+import net.katsuster.ememu.generic.log.*;
 
 /**
  * Universal Asynchronous Receiver/Transmitter (UART)
@@ -13,9 +17,17 @@ import net.katsuster.ememu.generic.bus.BusMaster64;
  * 参考: SiFive FU540-C000 Manual: v1p0
  */
 public class UART extends AbstractParentCore {
+    private static final Logger log = Log.getLogger("riscv.uart");
+
     private InputStream strInput;
-    private OutputStream strOutput;
     private StringBuffer bufInput;
+    //送信 FIFO と、まだホストに書き出していない出力
+    private AsyncOutputBuffer bufOutput;
+
+    //送信 FIFO の段数
+    public static final int TX_FIFO_DEPTH = 8;
+    //ホストへの出力を保持するバッファの容量
+    public static final int TX_BUFFER_SIZE = 64 * 1024;
 
     public static final int REG_TXDATA = 0x0000;
     public static final int REG_RXDATA = 0x0004;
@@ -25,6 +37,9 @@ public class UART extends AbstractParentCore {
     public static final int REG_IP     = 0x0014;
     public static final int REG_DIV    = 0x0018;
 
+    //txdata bit fields
+    public static final int TXDATA_FULL = 31;
+
     /**
      * UART を作成します。
      *
@@ -36,12 +51,39 @@ public class UART extends AbstractParentCore {
         super(n);
 
         strInput = istr;
-        strOutput = ostr;
         bufInput = new StringBuffer();
+        bufOutput = new AsyncOutputBuffer(ostr, TX_BUFFER_SIZE);
 
         setSlaveCore(new UARTSlave());
     }
 
+    /**
+     * 送信 FIFO に入っている文字数を取得します。
+     *
+     * ホストへの出力バッファは送信 FIFO の後ろに続くシフトレジスタとみなし、
+     * 出力バッファが一杯になった分だけ送信 FIFO に文字が残っているとみなします。
+     *
+     * @return 送信 FIFO に入っている文字数
+     */
+    private int getTxLevel() {
+        return Math.max(bufOutput.size() - (TX_BUFFER_SIZE - TX_FIFO_DEPTH), 0);
+    }
+
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        out.writeString(bufInput.toString());
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        bufInput.setLength(0);
+        bufInput.append(in.readString());
+    }
+
     class UARTSlave extends Controller32 {
         public UARTSlave() {
             addReg(REG_TXDATA, "TXDATA", 0x00000000);
@@ -65,6 +107,11 @@ public class UART extends AbstractParentCore {
             regaddr = (int) (addr & BitOp.getAddressMask(LEN_WORD_BITS));
 
             switch (regaddr) {
+            case REG_TXDATA:
+                result = 0;
+                //送信 FIFO は出力バッファの残量に応じて設定する
+                result = BitOp.setBit32(result, TXDATA_FULL, getTxLevel() >= TX_FIFO_DEPTH);
+                break;
             default:
                 result = super.readWord(m, regaddr);
                 break;
@@ -87,21 +134,15 @@ public class UART extends AbstractParentCore {
                     //FIXME: IntelliJ の Console でコピーできないため無視
                     break;
                 }
-                if (strOutput != null) {
-                    try {
-                        strOutput.write(ascii);
-                        strOutput.flush();
-                    } catch (IOException ex) {
-                        //ignore
-                    }
-                }
+                //送信 FIFO が一杯のときに書き込まれた文字は捨てる
+                bufOutput.write(ascii);
 
                 break;
             case REG_TXCTRL:
-                System.out.printf("UART TXCTRL: 0x%x\n", data);
+                log.debug("UART TXCTRL: 0x%x\n", data);
                 break;
             case REG_DIV:
-                System.out.printf("UART Divisor: %d\n", data);
+                log.debug("UART Divisor: %d\n", data);
                 break;
             default:
                 super.writeWord(m, regaddr, data);
@@ -109,5 +150,21 @@ public class UART extends AbstractParentCore {
             }
         }
 
+        @Override
+        public void run() {
+            //停止するまで送信 FIFO の文字をまとめてホストに書き出す
+            bufOutput.run(this);
+        }
+
+        @Override
+        public void halt() {
+            super.halt();
+            bufOutput.wakeUp();
+        }
+
+        @Override
+        public boolean runSlice() {
+            return bufOutput.drain();
+        }
     }
 }
@@ -83,6 +83,12 @@ public class ExecStageRVI extends Stage64 {
     public void waitInt() {
         RV64 c = getCore();
 
+        if (c.isCooperative()) {
+            //他のコアを止めないよう、ブロックせずに戻る
+            c.setWaitingInterrupt(true);
+            return;
+        }
+
         synchronized (c) {
             while (!c.isRaisedInterrupt() &&
                     !c.isRaisedInternalInterrupt() &&
@@ -1224,7 +1230,8 @@ public class ExecStageRVI extends Stage64 {
         l = getWriteLock();
         l.lock();
         try {
-            if (!tryRead(paddr, 4)) {
+            //AMO はストアとして検査する
+            if (!tryWrite(paddr, 4)) {
                 //raiseException(ARMv5.EXCEPT_ABT_DATA,
                 //        String.format("ldrd [%08x]", paddr));
                 return;
@@ -1285,7 +1292,8 @@ public class ExecStageRVI extends Stage64 {
         l = getWriteLock();
         l.lock();
         try {
-            if (!tryRead(paddr, 4)) {
+            //AMO はストアとして検査する
+            if (!tryWrite(paddr, 4)) {
                 //raiseException(ARMv5.EXCEPT_ABT_DATA,
                 //        String.format("ldrd [%08x]", paddr));
                 return;
@@ -1346,7 +1354,8 @@ public class ExecStageRVI extends Stage64 {
         l = getWriteLock();
         l.lock();
         try {
-            if (!tryRead(paddr, 4)) {
+            //AMO はストアとして検査する
+            if (!tryWrite(paddr, 4)) {
                 //raiseException(ARMv5.EXCEPT_ABT_DATA,
                 //        String.format("ldrd [%08x]", paddr));
                 return;
@@ -1407,7 +1416,8 @@ public class ExecStageRVI extends Stage64 {
         l = getWriteLock();
         l.lock();
         try {
-            if (!tryRead(paddr, 4)) {
+            //AMO はストアとして検査する
+            if (!tryWrite(paddr, 4)) {
                 //raiseException(ARMv5.EXCEPT_ABT_DATA,
                 //        String.format("ldrd [%08x]", paddr));
                 return;
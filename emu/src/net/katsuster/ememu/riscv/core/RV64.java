@@ -1,12 +1,17 @@
 package net.katsuster.ememu.riscv.core;
 
+import java.io.*;
+
 import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.core.CPU;
 import net.katsuster.ememu.generic.core.CPU64;
 import net.katsuster.ememu.generic.core.INTSource;
 import net.katsuster.ememu.generic.core.Inst32;
 import net.katsuster.ememu.generic.core.NormalINTC;
 
 import static net.katsuster.ememu.riscv.core.RV64CSRFile.*;
+import net.katsuster.ememu.generic.log.*;
+import net.katsuster.ememu.generic.stats.*;
 
 /**
  * RISC-V 64bit
@@ -15,6 +20,8 @@ import static net.katsuster.ememu.riscv.core.RV64CSRFile.*;
  * RISC-V Privileged ISA V1.10
  */
 public class RV64 extends CPU64 {
+    private static final Logger log = Log.getLogger("riscv.cpu");
+
     //特権レベル
     public static final int PRIV_U = 0;
     public static final int PRIV_S = 1;
@@ -66,6 +73,7 @@ public class RV64 extends CPU64 {
 
     private RV64RegFile regfile;
     private RV64CSRFile csrfile;
+    private RV64PMP pmp;
     private NormalINTC intc;
     private int privMode;
 
@@ -83,6 +91,7 @@ public class RV64 extends CPU64 {
     public RV64() {
         regfile = new RV64RegFile();
         csrfile = new RV64CSRFile(this);
+        pmp = new RV64PMP(this);
         intc = new NormalINTC(MAX_INTSRCS);
         intc.connectINTDestination(this);
         privMode = PRIV_M;
@@ -97,6 +106,8 @@ public class RV64 extends CPU64 {
         rvcDec = new DecodeStageRVC(this);
         rviExe = new ExecStageRVI(this);
         rvcExe = new ExecStageRVC(this);
+
+        setStats(new CPUStats(OpIndex.values()));
     }
 
     @Override
@@ -222,6 +233,15 @@ public class RV64 extends CPU64 {
         return csrfile.getReg(n).getName();
     }
 
+    /**
+     * 物理メモリ保護（PMP）を取得します。
+     *
+     * @return PMP
+     */
+    public RV64PMP getPMP() {
+        return pmp;
+    }
+
     /**
      * RISC-V アーキテクチャのビット数を返します。
      *
@@ -456,6 +476,11 @@ public class RV64 extends CPU64 {
         return (getCSR(ie) & getCSR(ip)) != 0;
     }
 
+    @Override
+    public boolean isInterruptPending() {
+        return isRaisedInterrupt() || isRaisedInternalInterrupt();
+    }
+
     private int[] xcauseRegs = {
             CSR_UCAUSE,
             CSR_SCAUSE,
@@ -511,6 +536,68 @@ public class RV64 extends CPU64 {
         setCSR(r, v);
     }
 
+    /**
+     * 指定されたアドレスからの読み取りが可能かどうかを判定します。
+     *
+     * PMP により読み取りが禁止されている場合は、
+     * ロードアクセスフォルト例外を要求し、false を返します。
+     *
+     * @param addr アドレス
+     * @param len  読み取るデータのサイズ
+     * @return 読み取りが可能な場合は true、不可能な場合は false
+     */
+    @Override
+    public boolean tryRead(long addr, int len) {
+        if (!pmp.isAllowed(getPrivMode(), addr, len, RV64PMP.ACCESS_READ)) {
+            raiseException(EXCEPT_LDR_FAULT,
+                    String.format("PMP load [%08x]", addr));
+            return false;
+        }
+
+        return super.tryRead(addr, len);
+    }
+
+    /**
+     * 指定されたアドレスへの書き込みが可能かどうかを判定します。
+     *
+     * PMP により書き込みが禁止されている場合は、
+     * ストアアクセスフォルト例外を要求し、false を返します。
+     *
+     * @param addr アドレス
+     * @param len  書き込むデータのサイズ
+     * @return 書き込みが可能な場合は true、不可能な場合は false
+     */
+    @Override
+    public boolean tryWrite(long addr, int len) {
+        if (!pmp.isAllowed(getPrivMode(), addr, len, RV64PMP.ACCESS_WRITE)) {
+            raiseException(EXCEPT_STR_FAULT,
+                    String.format("PMP store [%08x]", addr));
+            return false;
+        }
+
+        return super.tryWrite(addr, len);
+    }
+
+    /**
+     * 指定されたアドレスから命令を取得できるかどうかを判定します。
+     *
+     * PMP により実行が禁止されている場合は、
+     * 命令アクセスフォルト例外を要求し、false を返します。
+     *
+     * @param addr アドレス
+     * @param len  命令のサイズ
+     * @return 取得が可能な場合は true、不可能な場合は false
+     */
+    public boolean tryFetch(long addr, int len) {
+        if (!pmp.isAllowed(getPrivMode(), addr, len, RV64PMP.ACCESS_EXEC)) {
+            raiseException(EXCEPT_INS_FAULT,
+                    String.format("PMP exec [%08x]", addr));
+            return false;
+        }
+
+        return super.tryRead(addr, len);
+    }
+
     /**
      * 命令を取得します。
      *
@@ -526,7 +613,7 @@ public class RV64 extends CPU64 {
 
         paddr = vaddr;
 
-        if (!tryRead(paddr, 2)) {
+        if (!tryFetch(paddr, 2)) {
             //raiseException(EXCEPT_ABT_INST,
             //        String.format("exec [%08x]", paddr));
             return null;
@@ -543,6 +630,9 @@ public class RV64 extends CPU64 {
         int bbb = BitOp.getField32(v16, 2, 3);
         if (bbb != 7) {
             //32bit
+            if (!tryFetch(paddr, 4)) {
+                return null;
+            }
             v32 = read_ua32(paddr);
             instRV32.reuse(v32, 4);
             return instRV32;
@@ -586,6 +676,67 @@ public class RV64 extends CPU64 {
         return decinstAll;
     }
 
+    @Override
+    public int getPrivilegeMode() {
+        return privMode;
+    }
+
+    @Override
+    public String getPrivilegeModeName(int mode) {
+        switch (mode) {
+        case PRIV_U:
+            return "u";
+        case PRIV_S:
+            return "s";
+        case PRIV_M:
+            return "m";
+        default:
+            return "?";
+        }
+    }
+
+    @Override
+    public int getGeneralRegCount() {
+        return 32;
+    }
+
+    @Override
+    public long getGeneralReg(int n) {
+        return getReg(n);
+    }
+
+    @Override
+    protected boolean isInterrupt(int num) {
+        return num < INTR_MAX;
+    }
+
+    @Override
+    protected CPU newDisassembler() {
+        return new RV64();
+    }
+
+    @Override
+    public String disassemble(long pc, int inst, int len, int mode) {
+        Inst32 instgen;
+        String s;
+
+        setPC(pc);
+        if (len == 2) {
+            instgen = new InstructionRV16(inst);
+        } else {
+            instgen = new InstructionRV32(inst);
+        }
+
+        startDisasmCapture();
+        try {
+            disasm(decode(instgen));
+        } finally {
+            s = endDisasmCapture();
+        }
+
+        return s;
+    }
+
     /**
      * 命令を逆アセンブルします。
      *
@@ -644,6 +795,7 @@ public class RV64 extends CPU64 {
 
         exceptions[num] = true;
         exceptionReasons[num] = dbgmsg;
+        traceException(num, dbgmsg);
 
         setRaisedException(true);
     }
@@ -677,7 +829,7 @@ public class RV64 extends CPU64 {
     public void doException(int cause, String dbgmsg) {
         long pcOrg, base;
 
-        System.out.printf("Exception: Machine by '%s'.\n",
+        log.debug("Exception: Machine by '%s'.\n",
                 dbgmsg);
 
         //PC の値を取っておく
@@ -789,6 +941,41 @@ public class RV64 extends CPU64 {
         raiseException(intrs[getPrivMode()], msg);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * 汎用レジスタ、CSR、特権モード、処理待ちの例外を保存します。
+     * PMP の領域の表は復元した CSR から作り直します。
+     * </p>
+     */
+    @Override
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        super.saveState(out);
+
+        regfile.saveState(out);
+        csrfile.saveState(out);
+        out.writeByte(privMode);
+        for (int i = 0; i < exceptions.length; i++) {
+            out.writeBoolean(exceptions[i]);
+            out.writeString(exceptionReasons[i]);
+        }
+    }
+
+    @Override
+    public void loadState(SnapshotInputStream in) throws IOException {
+        super.loadState(in);
+
+        regfile.loadState(in);
+        csrfile.loadState(in);
+        privMode = in.readUnsignedByte() & PRIV_MASK;
+        for (int i = 0; i < exceptions.length; i++) {
+            exceptions[i] = in.readBoolean();
+            exceptionReasons[i] = in.readString();
+        }
+        pmp.update();
+    }
+
     @Override
     public void step() {
         Inst32 inst;
@@ -825,6 +1012,9 @@ public class RV64 extends CPU64 {
 
         //デコードします
         decinst = decode(inst);
+        countInstruction(decinst.getIndex().ordinal());
+
+        traceInstruction(getPCRaw(), inst);
 
         //逆アセンブルします
         if (isEnabledDisasm()) {
@@ -833,6 +1023,7 @@ public class RV64 extends CPU64 {
 
         //実行して、次の命令へ
         execute(decinst);
+        traceRegisters();
         if (isRaisedException()) {
             setRaisedException(false);
             return;
@@ -1,7 +1,11 @@
 package net.katsuster.ememu.riscv.core;
 
+import java.io.*;
 import java.util.*;
 
+import net.katsuster.ememu.generic.SnapshotInputStream;
+import net.katsuster.ememu.generic.SnapshotOutputStream;
+
 import net.katsuster.ememu.generic.core.Reg64;
 import net.katsuster.ememu.generic.core.Reg64File;
 import net.katsuster.ememu.riscv.core.reg.*;
@@ -293,6 +297,23 @@ public class RV64CSRFile implements Reg64File {
     public static final int XCAUSE_CODE = 0;
     public static final int XCAUSE_INTERRUPT = 63;
 
+    //pmpcfg registers bit field (per entry)
+    public static final int PMPCFG_R = 0;
+    public static final int PMPCFG_W = 1;
+    public static final int PMPCFG_X = 2;
+    public static final int PMPCFG_A = 3;
+    public static final int PMPCFG_L = 7;
+
+    public static final int PMPCFG_A_OFF = 0;
+    public static final int PMPCFG_A_TOR = 1;
+    public static final int PMPCFG_A_NA4 = 2;
+    public static final int PMPCFG_A_NAPOT = 3;
+
+    public static final int PMPCFG_MASK = 0x9f;
+
+    //pmpaddr registers bit field (address[55:2])
+    public static final long PMPADDR_MASK = (1L << 54) - 1;
+
     public RV64CSRFile(RV64 c) {
         regs_csr = new HashMap<>();
 
@@ -420,26 +441,27 @@ public class RV64CSRFile implements Reg64File {
         regs_csr.put(CSR_MIP,            new Reg64("mip", 0));
 
         //Machine protection and Translation
-        regs_csr.put(CSR_PMPCFG0,        new Reg64("pmpcfg0", 0));
+        //RV64 では pmpcfg0 がエントリ 0-7、pmpcfg2 がエントリ 8-15 を持つ
+        regs_csr.put(CSR_PMPCFG0,        new RegPmpcfg64("pmpcfg0", 0, c, 0));
         regs_csr.put(CSR_PMPCFG1,        new Reg64("pmpcfg1", 0));
-        regs_csr.put(CSR_PMPCFG2,        new Reg64("pmpcfg2", 0));
+        regs_csr.put(CSR_PMPCFG2,        new RegPmpcfg64("pmpcfg2", 0, c, 8));
         regs_csr.put(CSR_PMPCFG3,        new Reg64("pmpcfg3", 0));
-        regs_csr.put(CSR_PMPADDR0,       new Reg64("pmpaddr0", 0));
-        regs_csr.put(CSR_PMPADDR1,       new Reg64("pmpaddr1", 0));
-        regs_csr.put(CSR_PMPADDR2,       new Reg64("pmpaddr2", 0));
-        regs_csr.put(CSR_PMPADDR3,       new Reg64("pmpaddr3", 0));
-        regs_csr.put(CSR_PMPADDR4,       new Reg64("pmpaddr4", 0));
-        regs_csr.put(CSR_PMPADDR5,       new Reg64("pmpaddr5", 0));
-        regs_csr.put(CSR_PMPADDR6,       new Reg64("pmpaddr6", 0));
-        regs_csr.put(CSR_PMPADDR7,       new Reg64("pmpaddr7", 0));
-        regs_csr.put(CSR_PMPADDR8,       new Reg64("pmpaddr8", 0));
-        regs_csr.put(CSR_PMPADDR9,       new Reg64("pmpaddr9", 0));
-        regs_csr.put(CSR_PMPADDR10,      new Reg64("pmpaddr10", 0));
-        regs_csr.put(CSR_PMPADDR11,      new Reg64("pmpaddr11", 0));
-        regs_csr.put(CSR_PMPADDR12,      new Reg64("pmpaddr12", 0));
-        regs_csr.put(CSR_PMPADDR13,      new Reg64("pmpaddr13", 0));
-        regs_csr.put(CSR_PMPADDR14,      new Reg64("pmpaddr14", 0));
-        regs_csr.put(CSR_PMPADDR15,      new Reg64("pmpaddr15", 0));
+        regs_csr.put(CSR_PMPADDR0,       new RegPmpaddr64("pmpaddr0", 0, c, 0));
+        regs_csr.put(CSR_PMPADDR1,       new RegPmpaddr64("pmpaddr1", 0, c, 1));
+        regs_csr.put(CSR_PMPADDR2,       new RegPmpaddr64("pmpaddr2", 0, c, 2));
+        regs_csr.put(CSR_PMPADDR3,       new RegPmpaddr64("pmpaddr3", 0, c, 3));
+        regs_csr.put(CSR_PMPADDR4,       new RegPmpaddr64("pmpaddr4", 0, c, 4));
+        regs_csr.put(CSR_PMPADDR5,       new RegPmpaddr64("pmpaddr5", 0, c, 5));
+        regs_csr.put(CSR_PMPADDR6,       new RegPmpaddr64("pmpaddr6", 0, c, 6));
+        regs_csr.put(CSR_PMPADDR7,       new RegPmpaddr64("pmpaddr7", 0, c, 7));
+        regs_csr.put(CSR_PMPADDR8,       new RegPmpaddr64("pmpaddr8", 0, c, 8));
+        regs_csr.put(CSR_PMPADDR9,       new RegPmpaddr64("pmpaddr9", 0, c, 9));
+        regs_csr.put(CSR_PMPADDR10,      new RegPmpaddr64("pmpaddr10", 0, c, 10));
+        regs_csr.put(CSR_PMPADDR11,      new RegPmpaddr64("pmpaddr11", 0, c, 11));
+        regs_csr.put(CSR_PMPADDR12,      new RegPmpaddr64("pmpaddr12", 0, c, 12));
+        regs_csr.put(CSR_PMPADDR13,      new RegPmpaddr64("pmpaddr13", 0, c, 13));
+        regs_csr.put(CSR_PMPADDR14,      new RegPmpaddr64("pmpaddr14", 0, c, 14));
+        regs_csr.put(CSR_PMPADDR15,      new RegPmpaddr64("pmpaddr15", 0, c, 15));
 
         //Machine Counter/Timers
         regs_csr.put(CSR_MCYCLE,         new Reg64("mcycle", 0));
@@ -553,6 +575,57 @@ public class RV64CSRFile implements Reg64File {
         return regs_csr.get(n);
     }
 
+    /**
+     * 全ての CSR の値を保存します。
+     *
+     * @param out 書き込み先のスナップショット
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        SortedMap<Integer, Reg64> sorted = new TreeMap<>(regs_csr);
+
+        out.writeInt(sorted.size());
+        for (Map.Entry<Integer, Reg64> e : sorted.entrySet()) {
+            out.writeShort(e.getKey());
+            out.writeLong(e.getValue().getValue());
+        }
+    }
+
+    /**
+     * 全ての CSR の値を復元します。
+     *
+     * pmpcfg のロックビットが pmpaddr の復元を妨げないよう、
+     * pmpcfg は最後に復元します。
+     * ロックされた PMP エントリを持つコアには復元できません。
+     *
+     * @param in 読み出し元のスナップショット
+     * @throws IOException 読み出しに失敗した場合、CSR が一致しない場合
+     */
+    public void loadState(SnapshotInputStream in) throws IOException {
+        int n = in.readInt();
+        Map<Integer, Long> pmpcfg = new TreeMap<>();
+
+        in.checkValue("CSR count", regs_csr.size(), n);
+        for (int i = 0; i < n; i++) {
+            int num = in.readUnsignedShort();
+            long val = in.readLong();
+            Reg64 r = regs_csr.get(num);
+
+            if (r == null) {
+                throw new IOException(String.format(
+                        "Snapshot has unknown CSR 0x%03x.", num));
+            }
+            if (r instanceof RegPmpcfg64) {
+                pmpcfg.put(num, val);
+                continue;
+            }
+            r.setValue(val);
+        }
+        for (Map.Entry<Integer, Long> e : pmpcfg.entrySet()) {
+            regs_csr.get(e.getKey()).setValue(e.getValue());
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder();
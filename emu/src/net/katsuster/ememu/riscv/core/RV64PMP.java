@@ -0,0 +1,308 @@
+package net.katsuster.ememu.riscv.core;
+
+import java.util.*;
+
+import static net.katsuster.ememu.riscv.core.RV64CSRFile.*;
+
+/**
+ * RISC-V 64 の物理メモリ保護（PMP: Physical Memory Protection）です。
+ *
+ * <p>
+ * pmpcfg, pmpaddr が書き換えられるたびに、
+ * 各エントリ（TOR, NA4, NAPOT）が示すアドレス範囲を、
+ * アドレス順に並んだ重なりのない領域の表に変換しておきます。
+ * 領域には、その範囲に一致する最も番号の小さいエントリの設定を記録します。
+ * </p>
+ *
+ * <p>
+ * アクセス時はアクセスの種類ごとに直前に一致した領域を調べ、
+ * 外れた場合のみ表を二分探索します。
+ * ロックされたエントリがなければ M モードのアクセスは検査しません。
+ * </p>
+ *
+ * RISC-V Instruction Set Manual
+ *   Volume II: Privileged Architecture
+ *   Privileged Architecture Version 1.10
+ *   3.6 Physical Memory Protection
+ */
+public class RV64PMP {
+    //エントリ数
+    public static final int MAX_ENTRIES = 16;
+
+    //アクセスの種類（pmpcfg の R, W, X ビットの位置と同じ）
+    public static final int ACCESS_READ = PMPCFG_R;
+    public static final int ACCESS_WRITE = PMPCFG_W;
+    public static final int ACCESS_EXEC = PMPCFG_X;
+    public static final int MAX_ACCESS = 3;
+
+    //PMP が扱える物理アドレスの最大値
+    public static final long ADDRESS_MAX = (1L << 56) - 1;
+
+    //どのエントリにも一致しない領域
+    private static final int NO_ENTRY = -1;
+
+    private RV64 core;
+
+    //有効なエントリが 1つでもあれば true
+    private boolean active;
+    //ロックされたエントリが 1つでもあれば true
+    private boolean locked;
+
+    //領域の開始アドレス、終了アドレス（終端を含む）、一致するエントリとその設定
+    private long[] regionStart;
+    private long[] regionEnd;
+    private int[] regionEntry;
+    private int[] regionCfg;
+    private int regions;
+
+    //アクセスの種類ごとに、直前に一致した領域の番号
+    private int[] lastRegion;
+
+    /**
+     * PMP を作成します。
+     *
+     * @param c PMP を持つコア
+     */
+    public RV64PMP(RV64 c) {
+        core = c;
+        lastRegion = new int[MAX_ACCESS];
+
+        clear();
+    }
+
+    /**
+     * 全ての領域を消去し、どのエントリにも一致しない状態にします。
+     */
+    private void clear() {
+        active = false;
+        locked = false;
+        regionStart = new long[] {0};
+        regionEnd = new long[] {ADDRESS_MAX};
+        regionEntry = new int[] {NO_ENTRY};
+        regionCfg = new int[] {0};
+        regions = 1;
+        Arrays.fill(lastRegion, 0);
+    }
+
+    /**
+     * 指定したエントリの設定（pmpcfg の 8ビット）を取得します。
+     *
+     * @param n エントリ番号
+     * @return エントリの設定
+     */
+    public int getConfig(int n) {
+        int r = (n < 8) ? CSR_PMPCFG0 : CSR_PMPCFG2;
+
+        return (int)(core.getCSR(r) >>> ((n % 8) * 8)) & 0xff;
+    }
+
+    /**
+     * 指定したエントリのアドレス一致モード（pmpcfg の A フィールド）を取得します。
+     *
+     * @param n エントリ番号
+     * @return PMPCFG_A_OFF, PMPCFG_A_TOR, PMPCFG_A_NA4, PMPCFG_A_NAPOT のいずれか
+     */
+    public int getAddressMatching(int n) {
+        return (getConfig(n) >>> PMPCFG_A) & 3;
+    }
+
+    /**
+     * 指定したエントリがロックされているかどうかを取得します。
+     *
+     * @param n エントリ番号
+     * @return ロックされていれば true、そうでなければ false
+     */
+    public boolean isLocked(int n) {
+        return (getConfig(n) & (1 << PMPCFG_L)) != 0;
+    }
+
+    /**
+     * 指定したエントリの pmpaddr を取得します。
+     *
+     * @param n エントリ番号
+     * @return pmpaddr の値
+     */
+    private long getAddress(int n) {
+        return core.getCSR(CSR_PMPADDR0 + n);
+    }
+
+    /**
+     * pmpcfg, pmpaddr の現在値から領域の表を作り直します。
+     *
+     * pmpcfg, pmpaddr を書き換えた後に呼び出してください。
+     */
+    public void update() {
+        long[] st = new long[MAX_ENTRIES];
+        long[] ed = new long[MAX_ENTRIES];
+        boolean[] valid = new boolean[MAX_ENTRIES];
+        TreeSet<Long> bounds = new TreeSet<>();
+        boolean act = false, lck = false;
+
+        //各エントリのアドレス範囲を求める
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            int cfg = getConfig(i);
+            long a = getAddress(i);
+
+            if ((cfg & (1 << PMPCFG_L)) != 0) {
+                lck = true;
+            }
+
+            switch ((cfg >>> PMPCFG_A) & 3) {
+            case PMPCFG_A_TOR:
+                st[i] = (i == 0) ? 0 : getAddress(i - 1) << 2;
+                ed[i] = (a << 2) - 1;
+                valid[i] = st[i] <= ed[i];
+                break;
+            case PMPCFG_A_NA4:
+                st[i] = a << 2;
+                ed[i] = st[i] + 3;
+                valid[i] = true;
+                break;
+            case PMPCFG_A_NAPOT:
+                int t = Long.numberOfTrailingZeros(~a);
+                if (t >= 54) {
+                    st[i] = 0;
+                    ed[i] = ADDRESS_MAX;
+                } else {
+                    st[i] = (a & ~((1L << t) - 1)) << 2;
+                    ed[i] = st[i] + (1L << (t + 3)) - 1;
+                }
+                valid[i] = true;
+                break;
+            case PMPCFG_A_OFF:
+            default:
+                valid[i] = false;
+                break;
+            }
+
+            if (valid[i]) {
+                act = true;
+                bounds.add(st[i]);
+                if (ed[i] < ADDRESS_MAX) {
+                    bounds.add(ed[i] + 1);
+                }
+            }
+        }
+
+        if (!act) {
+            clear();
+            locked = lck;
+            return;
+        }
+        bounds.add(0L);
+
+        //境界で区切った区間ごとに、一致する最も番号の小さいエントリを求める
+        int n = bounds.size();
+        long[] rst = new long[n];
+        long[] red = new long[n];
+        int[] rent = new int[n];
+        int[] rcfg = new int[n];
+        int cnt = 0;
+
+        Long[] b = bounds.toArray(new Long[n]);
+        for (int k = 0; k < n; k++) {
+            long s = b[k];
+            long e = (k + 1 < n) ? b[k + 1] - 1 : ADDRESS_MAX;
+            int ent = NO_ENTRY;
+
+            for (int i = 0; i < MAX_ENTRIES; i++) {
+                if (valid[i] && st[i] <= s && s <= ed[i]) {
+                    ent = i;
+                    break;
+                }
+            }
+
+            if (cnt > 0 && rent[cnt - 1] == ent) {
+                //同じエントリに一致する区間は連結する
+                red[cnt - 1] = e;
+                continue;
+            }
+            rst[cnt] = s;
+            red[cnt] = e;
+            rent[cnt] = ent;
+            rcfg[cnt] = (ent == NO_ENTRY) ? 0 : getConfig(ent);
+            cnt++;
+        }
+
+        regionStart = rst;
+        regionEnd = red;
+        regionEntry = rent;
+        regionCfg = rcfg;
+        regions = cnt;
+        Arrays.fill(lastRegion, 0);
+        active = true;
+        locked = lck;
+    }
+
+    /**
+     * 指定したアドレスを含む領域の番号を二分探索します。
+     *
+     * @param addr アドレス
+     * @return 領域の番号
+     */
+    private int findRegion(long addr) {
+        int lo = 0, hi = regions - 1;
+
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+
+            if (regionStart[mid] <= addr) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        return lo;
+    }
+
+    /**
+     * 指定した特権モードで、指定したアドレスへのアクセスが許可されているかを判定します。
+     *
+     * @param priv 特権モード（RV64.PRIV_xxxx）
+     * @param addr 物理アドレス
+     * @param len  アクセスするデータのサイズ（バイト単位）
+     * @param type アクセスの種類（ACCESS_READ, ACCESS_WRITE, ACCESS_EXEC）
+     * @return 許可されていれば true、そうでなければ false
+     */
+    public boolean isAllowed(int priv, long addr, int len, int type) {
+        long end = addr + len - 1;
+        int r;
+
+        if (!active) {
+            //有効なエントリがなければ全て許可する
+            return true;
+        }
+        if (priv == RV64.PRIV_M && !locked) {
+            //ロックされたエントリがなければ M モードは検査不要
+            return true;
+        }
+        if (addr < 0 || end < addr || end > ADDRESS_MAX) {
+            //PMP が扱えないアドレスはどのエントリにも一致しない
+            return priv == RV64.PRIV_M;
+        }
+
+        r = lastRegion[type];
+        if (addr < regionStart[r] || regionEnd[r] < addr) {
+            r = findRegion(addr);
+            lastRegion[type] = r;
+        }
+        if (regionEnd[r] < end) {
+            //一部のバイトのみ一致するエントリがある場合は失敗する
+            return false;
+        }
+
+        if (regionEntry[r] == NO_ENTRY) {
+            //どのエントリにも一致しない場合は M モードのみ成功する
+            return priv == RV64.PRIV_M;
+        }
+
+        int cfg = regionCfg[r];
+        if (priv == RV64.PRIV_M && (cfg & (1 << PMPCFG_L)) == 0) {
+            //ロックされていないエントリは M モードには適用されない
+            return true;
+        }
+
+        return (cfg & (1 << type)) != 0;
+    }
+}
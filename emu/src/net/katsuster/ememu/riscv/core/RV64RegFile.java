@@ -1,5 +1,9 @@
 package net.katsuster.ememu.riscv.core;
 
+import java.io.*;
+
+import net.katsuster.ememu.generic.SnapshotInputStream;
+import net.katsuster.ememu.generic.SnapshotOutputStream;
 import net.katsuster.ememu.generic.core.Reg64;
 import net.katsuster.ememu.generic.core.Reg64File;
 import net.katsuster.ememu.generic.core.RegZero64;
@@ -40,6 +44,30 @@ public class RV64RegFile implements Reg64File {
         return regs[n];
     }
 
+    /**
+     * 全ての汎用レジスタと PC の値を保存します。
+     *
+     * @param out 書き込み先のスナップショット
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public void saveState(SnapshotOutputStream out) throws IOException {
+        for (int i = 0; i < RISCV_REGFILE_SIZE; i++) {
+            out.writeLong(regs_usr[i].getValue());
+        }
+    }
+
+    /**
+     * 全ての汎用レジスタと PC の値を復元します。
+     *
+     * @param in 読み出し元のスナップショット
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public void loadState(SnapshotInputStream in) throws IOException {
+        for (int i = 0; i < RISCV_REGFILE_SIZE; i++) {
+            regs_usr[i].setValue(in.readLong());
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder();
@@ -0,0 +1,50 @@
+package net.katsuster.ememu.riscv.core.reg;
+
+import net.katsuster.ememu.generic.core.Reg64;
+import net.katsuster.ememu.riscv.core.*;
+
+import static net.katsuster.ememu.riscv.core.RV64CSRFile.*;
+
+/**
+ * pmpaddr レジスタ。
+ *
+ * 物理アドレスの 55 - 2 ビット目を保持します。
+ * 自身のエントリがロックされているか、
+ * 次のエントリが TOR でロックされている場合、書き込みは無視されます。
+ * 書き込まれると PMP の領域表を作り直します。
+ */
+public class RegPmpaddr64 extends Reg64 {
+    private RV64 core;
+    private int index;
+
+    /**
+     * pmpaddr レジスタを作成します。
+     *
+     * @param name レジスタ名
+     * @param val  レジスタの初期値
+     * @param c    レジスタを持つコア
+     * @param ind  エントリの番号
+     */
+    public RegPmpaddr64(String name, long val, RV64 c, int ind) {
+        super(name, val);
+
+        core = c;
+        index = ind;
+    }
+
+    @Override
+    public void setValue(long v) {
+        RV64PMP pmp = core.getPMP();
+
+        if (pmp.isLocked(index)) {
+            return;
+        }
+        if (index + 1 < RV64PMP.MAX_ENTRIES && pmp.isLocked(index + 1) &&
+                pmp.getAddressMatching(index + 1) == PMPCFG_A_TOR) {
+            return;
+        }
+
+        super.setValue(v & PMPADDR_MASK);
+        pmp.update();
+    }
+}
@@ -0,0 +1,62 @@
+package net.katsuster.ememu.riscv.core.reg;
+
+import net.katsuster.ememu.generic.core.Reg64;
+import net.katsuster.ememu.riscv.core.*;
+
+import static net.katsuster.ememu.riscv.core.RV64CSRFile.*;
+
+/**
+ * pmpcfg レジスタ。
+ *
+ * 1つのレジスタが 8エントリ分の設定を 8ビットずつ持ちます。
+ * ロックされたエントリへの書き込みは無視されます。
+ * 書き込まれると PMP の領域表を作り直します。
+ */
+public class RegPmpcfg64 extends Reg64 {
+    private RV64 core;
+    private int base;
+
+    /**
+     * pmpcfg レジスタを作成します。
+     *
+     * @param name レジスタ名
+     * @param val  レジスタの初期値
+     * @param c    レジスタを持つコア
+     * @param b    このレジスタが持つ最初のエントリの番号
+     */
+    public RegPmpcfg64(String name, long val, RV64 c, int b) {
+        super(name, val);
+
+        core = c;
+        base = b;
+    }
+
+    /**
+     * このレジスタが持つ最初のエントリの番号を取得します。
+     *
+     * @return エントリの番号
+     */
+    public int getBaseEntry() {
+        return base;
+    }
+
+    @Override
+    public void setValue(long v) {
+        long old = getValue();
+        long result = 0;
+
+        for (int i = 0; i < 8; i++) {
+            long o = (old >>> (i * 8)) & 0xff;
+            long n = (v >>> (i * 8)) & PMPCFG_MASK;
+
+            if ((o & (1 << PMPCFG_L)) != 0) {
+                //ロックされたエントリは変更できない
+                n = o;
+            }
+            result |= n << (i * 8);
+        }
+
+        super.setValue(result);
+        core.getPMP().update();
+    }
+}
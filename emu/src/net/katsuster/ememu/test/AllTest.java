@@ -13,6 +13,23 @@ import org.junit.runners.Suite.SuiteClasses;
         RAMTest.class,
         Bus64Test.class,
         DecodeStageRVITest.class,
+        RV64PMPTest.class,
+        SnapshotTest.class,
+        CoreExecutorTest.class,
+        UARTTest.class,
+        LogTest.class,
+        TraceTest.class,
+        StatsTest.class,
+        VTTest.class,
+        ResourceCacheTest.class,
+        ELFLoaderTest.class,
+        BinaryLoaderTest.class,
+        VirtIOBlockTest.class,
+        MMCITest.class,
+        SDCardTest.class,
+        LAN91C111Test.class,
+        DMACTest.class,
+        BatchRunnerTest.class,
 })
 public class AllTest {
     protected AllTest() {
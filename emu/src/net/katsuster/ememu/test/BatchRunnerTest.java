@@ -0,0 +1,155 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import javax.management.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.generic.stats.StatsMonitor;
+import net.katsuster.ememu.ui.*;
+
+public class BatchRunnerTest {
+    //0x1004 から UART0 に "ok\n" を書き出し、無限ループします
+    private static final int[] ROM = {
+            0x00000000,
+            0x100102b7, //lui  t0, 0x10010
+            0x06f00313, //addi t1, zero, 'o'
+            0x0062a023, //sw   t1, 0(t0)
+            0x06b00313, //addi t1, zero, 'k'
+            0x0062a023, //sw   t1, 0(t0)
+            0x00a00313, //addi t1, zero, '\n'
+            0x0062a023, //sw   t1, 0(t0)
+            0x0000006f, //j    .
+    };
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("ememu", ".batch");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir + ".");
+        }
+
+        try (OutputStream os = new FileOutputStream(new File(dir, "rom0.bin"))) {
+            for (int w : ROM) {
+                for (int i = 0; i < 4; i++) {
+                    os.write(w >>> (i * 8));
+                }
+            }
+        }
+        try (OutputStream os = new FileOutputStream(new File(dir, "empty.bin"))) {
+            os.write(0);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private void writeText(String name, String text) throws IOException {
+        try (Writer w = new OutputStreamWriter(
+                new FileOutputStream(new File(dir, name)), "UTF-8")) {
+            w.write(text);
+        }
+    }
+
+    @Test
+    public void testRunJobs() throws Exception {
+        String msg1 = "Status is wrong.";
+        String msg2 = "Name is wrong.";
+        String common = "rom0.bin\nriscv.rom1.%1$d=empty.bin\n" +
+                "riscv.flash0.%1$d=empty.bin\nemu.executor.%1$d=roundrobin\n";
+        List<BatchJob> jobs;
+        List<BatchResult> results;
+
+        //スクリプトは UTF-8 で読み込む
+        writeText("boot.txt", "# 起動メッセージを待つ\nexpect ok\n");
+        writeText("jobs.properties",
+                "emu.arch.0=riscv\nbatch.name.0=pass\nbatch.script.0=boot.txt\n" +
+                "riscv.rom0.0=" + String.format(common, 0) +
+                "emu.arch.1=riscv\nbatch.name.1=timeout\nbatch.expect.1=ng\n" +
+                "batch.timeout.1=1\nriscv.rom0.1=" + String.format(common, 1) +
+                "emu.arch.2=riscv\nbatch.name.2=fail\nbatch.expect.2=ng\n" +
+                "batch.fail.2=^ok\nriscv.rom0.2=" + String.format(common, 2));
+
+        jobs = BatchRunner.loadJobs(new File(dir, "jobs.properties"), null);
+        results = new BatchRunner(2).run(jobs);
+
+        Assert.assertEquals(msg2, 3, results.size());
+        Assert.assertEquals(msg2, "pass", results.get(0).getName());
+        Assert.assertEquals(msg1, BatchResult.STATUS_PASS, results.get(0).getStatus());
+        Assert.assertEquals(msg2, "timeout", results.get(1).getName());
+        Assert.assertEquals(msg1, BatchResult.STATUS_TIMEOUT, results.get(1).getStatus());
+        Assert.assertEquals(msg2, "fail", results.get(2).getName());
+        Assert.assertEquals(msg1, BatchResult.STATUS_FAIL, results.get(2).getStatus());
+    }
+
+    private Emulator newEmulator() {
+        EmuPropertyMap p = new EmuPropertyMap();
+        Emulator emu = new EmulatorRISCV();
+
+        p.setValue(EmulatorRISCV.RISCV_ROM0, 0, new File(dir, "rom0.bin").toURI().toString());
+        p.setValue(EmulatorRISCV.RISCV_ROM1, 0, new File(dir, "empty.bin").toURI().toString());
+        p.setValue(EmulatorRISCV.RISCV_FLASH0, 0, new File(dir, "empty.bin").toURI().toString());
+        emu.setProperties(p);
+        emu.setup();
+
+        return emu;
+    }
+
+    @Test
+    public void testHaltBeforeSetup() throws Exception {
+        String msg1 = "Emulator is still running.";
+        Emulator emu = newEmulator();
+
+        //ボードの setup 前の停止の要求を失わない
+        emu.halt();
+        emu.start();
+        emu.join(BatchRunner.HALT_TIMEOUT);
+        Assert.assertFalse(msg1, emu.isAlive());
+    }
+
+    @Test
+    public void testMBeanNames() throws Exception {
+        String msg1 = "Emulator name is overwritten.";
+        String msg2 = "MBeans are not registered.";
+        MBeanServer srv = ManagementFactory.getPlatformMBeanServer();
+        Emulator[] emus = {newEmulator(), newEmulator()};
+        ObjectName[] names = new ObjectName[emus.length];
+        boolean found = false;
+
+        for (int i = 0; i < emus.length; i++) {
+            emus[i].setName("mbean" + i);
+            names[i] = new ObjectName(StatsMonitor.DOMAIN + ":name=" +
+                    ObjectName.quote("mbean" + i) + ",type=Bus");
+            emus[i].start();
+        }
+
+        try {
+            //同じアーキテクチャのエミュレータも、それぞれの名前で登録される
+            for (int i = 0; i < 1000 && !found; i++) {
+                found = srv.isRegistered(names[0]) && srv.isRegistered(names[1]);
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < emus.length; i++) {
+                Assert.assertEquals(msg1, "mbean" + i, emus[i].getName());
+                Assert.assertTrue(msg2, srv.isRegistered(names[i]));
+                Assert.assertTrue(msg2, srv.isRegistered(new ObjectName(
+                        StatsMonitor.DOMAIN + ":name=" + ObjectName.quote("mbean" + i) +
+                        ",type=CPU,id=0")));
+            }
+        } finally {
+            for (Emulator emu : emus) {
+                emu.halt();
+                emu.join(BatchRunner.HALT_TIMEOUT);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.arm.core.ARMv5;
+import net.katsuster.ememu.generic.PagedRAM32;
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.ui.*;
+
+public class BinaryLoaderTest {
+    /**
+     * 各バイトを反転して格納する形式のデコーダです。
+     */
+    private static class InvertDecoder implements ImageDecoder {
+        @Override
+        public String getName() {
+            return "invert";
+        }
+
+        @Override
+        public boolean accept(ByteBuffer b) {
+            return b.remaining() >= 2 && b.get(b.position()) == 'I' &&
+                    b.get(b.position() + 1) == 'V';
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            //ヘッダを読み飛ばす
+            if (in.skip(2) != 2) {
+                throw new IOException("Header is broken.");
+            }
+
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int c = super.read();
+
+                    return (c == -1) ? -1 : (~c & 0xff);
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+
+                    for (int i = 0; i < n; i++) {
+                        b[off + i] = (byte)~b[off + i];
+                    }
+
+                    return n;
+                }
+            };
+        }
+    }
+
+    private static byte[] getData(int size, int seed) {
+        byte[] b = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            b[i] = (byte)(i * 7 + seed + (i >> 8));
+        }
+
+        return b;
+    }
+
+    private static byte[] gzip(byte[] b) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+        try (GZIPOutputStream out = new GZIPOutputStream(bout)) {
+            out.write(b);
+        }
+
+        return bout.toByteArray();
+    }
+
+    private static File writeTempFile(byte[] b) throws IOException {
+        File f = File.createTempFile("ememu", ".img");
+
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(b);
+        }
+
+        return f;
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        String msg1 = "Decoder is not found.";
+        String msg2 = "Decompressed size is wrong.";
+        String msg3 = "Decompressed data is wrong.";
+        Bus64 bus = new Bus64();
+        PagedRAM32 ram = new PagedRAM32(0x100000, PagedRAM32.PAGE_SIZE_4K);
+        //ブロックの大きさの倍数にならない大きさ
+        byte[] exp = getData(200 * 1024 + 3, 1);
+        ByteBuffer s = ByteBuffer.wrap(gzip(exp));
+
+        bus.addSlaveCore(ram, 0x0, 0xfffff);
+
+        Assert.assertEquals(msg1, "gzip", BinaryLoader.findDecoder(s).getName());
+        Assert.assertNull(msg1, BinaryLoader.findDecoder(ByteBuffer.wrap(exp)));
+        Assert.assertEquals(msg2, exp.length, BinaryLoader.writeImage(s, bus, null, 0x1000));
+        for (int i = 0; i < exp.length; i++) {
+            Assert.assertEquals(msg3, exp[i], bus.read8(null, 0x1000 + i));
+        }
+        Assert.assertEquals(msg3, 0, bus.read8(null, 0x1000 + exp.length));
+    }
+
+    @Test
+    public void testAddDecoder() throws Exception {
+        String msg1 = "Decoder is not found.";
+        String msg2 = "Decoded data is wrong.";
+        Bus64 bus = new Bus64();
+        PagedRAM32 ram = new PagedRAM32(0x10000, PagedRAM32.PAGE_SIZE_4K);
+        byte[] exp = getData(1000, 2);
+        byte[] b = new byte[exp.length + 2];
+        ByteBuffer s;
+
+        bus.addSlaveCore(ram, 0x0, 0xffff);
+
+        b[0] = 'I';
+        b[1] = 'V';
+        for (int i = 0; i < exp.length; i++) {
+            b[i + 2] = (byte)~exp[i];
+        }
+        s = ByteBuffer.wrap(b);
+
+        BinaryLoader.addDecoder(new InvertDecoder());
+        Assert.assertEquals(msg1, "invert", BinaryLoader.findDecoder(s).getName());
+        Assert.assertEquals(msg2, exp.length, BinaryLoader.writeImage(s, bus, null, 0x0));
+        for (int i = 0; i < exp.length; i++) {
+            Assert.assertEquals(msg2, exp[i], bus.read8(null, i));
+        }
+    }
+
+    @Test
+    public void testBootCompressed() throws Exception {
+        String msg1 = "Kernel is wrong.";
+        String msg2 = "Initrd is wrong.";
+        String msg3 = "Device Tree is wrong.";
+        String msg4 = "Entry is wrong.";
+        ARMv5 cpu = new ARMv5();
+        Bus64 bus = new Bus64();
+        PagedRAM32 ram = new PagedRAM32(0x1000000, PagedRAM32.PAGE_SIZE_4K);
+        byte[] kernel = getData(300 * 1024, 3);
+        byte[] initrd = getData(100 * 1024 + 5, 4);
+        byte[] dtb = getData(1024, 5);
+        File fk = writeTempFile(gzip(kernel));
+        File fi = writeTempFile(gzip(initrd));
+        File fd = writeTempFile(dtb);
+
+        bus.addSlaveCore(ram, 0x0, 0xffffff);
+        cpu.setSlaveBus(bus);
+
+        Assert.assertNull(ARMLinuxLoader.bootFromURIWithDT(cpu, ram,
+                fd.toURI().toString(), fk.toURI().toString(),
+                fi.toURI().toString(), "console=ttyAMA0"));
+
+        for (int i = 0; i < kernel.length; i++) {
+            Assert.assertEquals(msg1, kernel[i], bus.read8(null, 0x8000 + i));
+        }
+        for (int i = 0; i < initrd.length; i++) {
+            Assert.assertEquals(msg2, initrd[i], bus.read8(null, 0x810000 + i));
+        }
+        for (int i = 0; i < dtb.length; i++) {
+            Assert.assertEquals(msg3, dtb[i], bus.read8(null, 0x800000 + i));
+        }
+        Assert.assertEquals(msg4, 0x8000, cpu.getPCRaw());
+        Assert.assertEquals(msg3, 0x800000, cpu.getRegRaw(2));
+    }
+}
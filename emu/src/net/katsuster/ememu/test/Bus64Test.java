@@ -50,6 +50,14 @@ public class Bus64Test {
             //OK
         }
 
+        try {
+            //partially overlapped
+            bus.addSlaveCore(ram2, 0x7800, 0x87ff);
+            Assert.fail(msg3);
+        } catch (Exception e) {
+            //OK
+        }
+
         try {
             //null
             bus.addSlaveCore(null, 0x0, 0xfff);
@@ -72,11 +80,13 @@ public class Bus64Test {
         bus.addSlaveCore(ram1, 0x0, 0xfff);
         bus.addSlaveCore(ram1, 0x100000000L, 0x100000fffL);
         bus.addSlaveCore(ram2, 0x20000, 0x207ff);
+        bus.addSlaveCore(ram2, 0xfffffffffffff000L, 0xffffffffffffffffL);
 
         //simple
         Assert.assertEquals(msg1, ram1, bus.getSlaveCore(0x100, 0x200));
         Assert.assertEquals(msg1, ram1, bus.getSlaveCore(0x100000100L, 0x100000200L));
         Assert.assertEquals(msg1, ram2, bus.getSlaveCore(0x20100, 0x20200));
+        Assert.assertEquals(msg1, ram2, bus.getSlaveCore(0xfffffffffffff100L, 0xfffffffffffff200L));
 
         //non-exist
         Assert.assertNull(msg2, bus.getSlaveCore(0x1000, 0x1100));
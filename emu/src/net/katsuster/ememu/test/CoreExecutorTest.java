@@ -0,0 +1,159 @@
+package net.katsuster.ememu.test;
+
+import org.junit.*;
+
+import net.katsuster.ememu.generic.core.*;
+
+public class CoreExecutorTest {
+    //run, runSlice が呼ばれた回数を数えるコア
+    static class CountCore extends AbstractCore {
+        private volatile int count;
+        private volatile boolean sliced;
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isSliced() {
+            return sliced;
+        }
+
+        @Override
+        public void run() {
+            while (!shouldHalt()) {
+                count++;
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public boolean runSlice() {
+            count++;
+            sliced = true;
+            return true;
+        }
+    }
+
+    public void startAndHalt(String msg, CoreExecutor e, boolean cooperative)
+            throws Exception {
+        CountCore c1 = new CountCore();
+        CountCore c2 = new CountCore();
+
+        e.start(c1);
+        e.start(c2);
+        Assert.assertEquals(msg, cooperative, c1.isCooperative());
+
+        //両方のコアが実行されるまで待つ
+        for (int i = 0; i < 1000; i++) {
+            if (c1.getCount() > 0 && c2.getCount() > 0) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(msg, c1.getCount() > 0);
+        Assert.assertTrue(msg, c2.getCount() > 0);
+        Assert.assertEquals(msg, cooperative, c1.isSliced());
+
+        c1.halt();
+        e.join(c1);
+        int n = c2.getCount();
+        //残ったコアが実行され続けるまで待つ
+        for (int i = 0; i < 1000; i++) {
+            if (c2.getCount() > n) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(msg, c2.getCount() > n);
+
+        c2.halt();
+        e.join(c2);
+    }
+
+    @Test
+    public void testThread() throws Exception {
+        startAndHalt("Thread executor failed.",
+                new ThreadCoreExecutor(), false);
+    }
+
+    @Test
+    public void testVirtualThread() throws Exception {
+        startAndHalt("Virtual thread executor failed.",
+                new VirtualThreadCoreExecutor(), false);
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        startAndHalt("Round robin executor failed.",
+                new RoundRobinCoreExecutor(), true);
+    }
+
+    @Test
+    public void testRoundRobinIdle() throws Exception {
+        String msg1 = "Round robin executor did not stop the failed core.";
+        RoundRobinCoreExecutor e = new RoundRobinCoreExecutor();
+        AbstractCore idle = new AbstractCore() {
+            @Override
+            public void run() {
+                //do nothing
+            }
+        };
+        AbstractCore broken = new AbstractCore() {
+            @Override
+            public void run() {
+                //do nothing
+            }
+
+            @Override
+            public boolean runSlice() {
+                throw new IllegalStateException("test");
+            }
+        };
+
+        //例外を投げたコアは終了し、何もしないコアは停止を要求するまで残る
+        e.start(idle);
+        e.start(broken);
+        e.join(broken);
+        Assert.assertFalse(msg1, broken.shouldHalt());
+
+        idle.halt();
+        e.join(idle);
+    }
+
+    @Test
+    public void testRoundRobinError() throws Exception {
+        String msg1 = "Round robin executor did not stop the failed core.";
+        String msg2 = "Round robin executor stopped the other core.";
+        RoundRobinCoreExecutor e = new RoundRobinCoreExecutor();
+        CountCore c = new CountCore();
+        AbstractCore broken = new AbstractCore() {
+            @Override
+            public void run() {
+                //do nothing
+            }
+
+            @Override
+            public boolean runSlice() {
+                throw new Error("test");
+            }
+        };
+
+        //Error を投げたコアも終了し、join で待ち続けない
+        e.start(c);
+        e.start(broken);
+        e.join(broken);
+        Assert.assertFalse(msg1, broken.shouldHalt());
+
+        int n = c.getCount();
+        for (int i = 0; i < 1000; i++) {
+            if (c.getCount() > n) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(msg2, c.getCount() > n);
+
+        c.halt();
+        e.join(c);
+    }
+}
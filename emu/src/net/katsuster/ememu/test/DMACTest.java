@@ -0,0 +1,168 @@
+package net.katsuster.ememu.test;
+
+import org.junit.*;
+
+import net.katsuster.ememu.arm.DMAC;
+import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.generic.core.INTDestination;
+
+public class DMACTest {
+    private static final long BASE = 0x10130000L;
+    private static final long SRC = 0x10000;
+    private static final long DEST = 0x20000;
+    private static final long LLI = 0x30000;
+
+    private Bus64 bus;
+    private DMAC dmac;
+    private volatile boolean raised;
+
+    @Before
+    public void setUp() throws Exception {
+        bus = new Bus64();
+        dmac = new DMAC("dmac");
+        bus.addSlaveCore(new PagedRAM32(0x100000, PagedRAM32.PAGE_SIZE_4K), 0x0, 0xfffff);
+        bus.addSlaveCore(dmac.getSlaveCore(), BASE, BASE + 0xffff);
+        dmac.connectINTDestination(new INTDestination() {
+            @Override
+            public boolean isRaisedInterrupt() {
+                return raised;
+            }
+
+            @Override
+            public void setRaisedInterrupt(boolean m) {
+                raised = m;
+            }
+        });
+        raised = false;
+
+        for (int i = 0; i < 0x1000; i++) {
+            bus.write8(null, SRC + i, (byte)(i * 7 + 1));
+        }
+        bus.write32(null, BASE + DMAC.REG_DMACConfiguration, DMAC.CONF_E);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dmac.getSlaveCore().halt();
+    }
+
+    private static int control(int size, int sw, int dw, int flags) {
+        return size | (sw << DMAC.CTL_SWIDTH_SHIFT) | (dw << DMAC.CTL_DWIDTH_SHIFT) | flags;
+    }
+
+    private void start(int ch, long src, long dest, long lli, int ctl, int cfg) {
+        long r = BASE + ch * DMAC.CHANNEL_STRIDE;
+
+        bus.write32(null, r + DMAC.REG_DMACC0SrcAddr, (int)src);
+        bus.write32(null, r + DMAC.REG_DMACC0DestAddr, (int)dest);
+        bus.write32(null, r + DMAC.REG_DMACC0LLI, (int)lli);
+        bus.write32(null, r + DMAC.REG_DMACC0Control, ctl);
+        bus.write32(null, r + DMAC.REG_DMACC0Configuration, cfg | DMAC.CCFG_E);
+    }
+
+    @Test
+    public void testMemToMem() throws Exception {
+        String msg1 = "Transferred data is wrong.";
+        String msg2 = "Interrupt is wrong.";
+        String msg3 = "Register is wrong.";
+        int cfg = DMAC.CCFG_ITC | DMAC.CCFG_IE;
+
+        //2つ目のアイテム: バイト幅で 0x300 バイト、終了したら割り込む
+        bus.write32(null, LLI, (int)(SRC + 0x400));
+        bus.write32(null, LLI + 4, (int)(DEST + 0x800));
+        bus.write32(null, LLI + 8, 0);
+        bus.write32(null, LLI + 12, control(0x300, 0, 0,
+                DMAC.CTL_SI | DMAC.CTL_DI | DMAC.CTL_I));
+
+        //1つ目のアイテム: ワード幅で 0x100 ワード
+        start(1, SRC, DEST, LLI, control(0x100, 2, 2, DMAC.CTL_SI | DMAC.CTL_DI), cfg);
+        dmac.waitIdle();
+
+        for (int i = 0; i < 0x400; i++) {
+            Assert.assertEquals(msg1, (byte)(i * 7 + 1), bus.read8(null, DEST + i));
+        }
+        for (int i = 0; i < 0x300; i++) {
+            Assert.assertEquals(msg1, (byte)((0x400 + i) * 7 + 1),
+                    bus.read8(null, DEST + 0x800 + i));
+        }
+        Assert.assertEquals(msg1, 0, bus.read32(null, DEST + 0x400));
+
+        Assert.assertTrue(msg2, raised);
+        Assert.assertEquals(msg2, 0x2, bus.read32(null, BASE + DMAC.REG_DMACIntTCStatus));
+        Assert.assertEquals(msg2, 0x2, bus.read32(null, BASE + DMAC.REG_DMACIntStatus));
+        Assert.assertEquals(msg3, 0, bus.read32(null, BASE + DMAC.REG_DMACEnbldChns));
+        Assert.assertEquals(msg3, (int)(SRC + 0x700),
+                bus.read32(null, BASE + DMAC.REG_DMACC1SrcAddr));
+        Assert.assertEquals(msg3, 0,
+                bus.read32(null, BASE + DMAC.REG_DMACC1Control) & DMAC.CTL_TRANSFER_SIZE);
+
+        bus.write32(null, BASE + DMAC.REG_DMACIntTCClear, 0x2);
+        Assert.assertFalse(msg2, raised);
+        Assert.assertEquals(msg2, 0, bus.read32(null, BASE + DMAC.REG_DMACRawIntTCStatus));
+    }
+
+    @Test
+    public void testFixedAndError() throws Exception {
+        String msg1 = "Transferred data is wrong.";
+        String msg2 = "Interrupt is wrong.";
+        String msg3 = "Register is wrong.";
+
+        //転送先のアドレスを増やさない、ハーフワード幅で書き込む
+        bus.write32(null, DEST, 0);
+        start(0, SRC, DEST, 0, control(4, 2, 1, DMAC.CTL_SI | DMAC.CTL_I), DMAC.CCFG_ITC);
+        dmac.waitIdle();
+        Assert.assertEquals(msg1, bus.read16(null, SRC + 14), bus.read16(null, DEST));
+        Assert.assertEquals(msg1, 0, bus.read16(null, DEST + 2));
+        Assert.assertEquals(msg3, (int)DEST, bus.read32(null, BASE + DMAC.REG_DMACC0DestAddr));
+        bus.write32(null, BASE + DMAC.REG_DMACIntTCClear, 0xff);
+
+        //存在しないアドレスからの転送
+        start(2, 0x40000000L, DEST, 0, control(4, 2, 2, DMAC.CTL_SI | DMAC.CTL_DI),
+                DMAC.CCFG_IE);
+        dmac.waitIdle();
+        Assert.assertTrue(msg2, raised);
+        Assert.assertEquals(msg2, 0, bus.read32(null, BASE + DMAC.REG_DMACIntTCStatus));
+        Assert.assertEquals(msg2, 0x4, bus.read32(null, BASE + DMAC.REG_DMACIntErrorStatus));
+        Assert.assertEquals(msg3, 0, bus.read32(null, BASE + DMAC.REG_DMACEnbldChns));
+
+        //コントローラが無効ならば転送しない
+        bus.write32(null, BASE + DMAC.REG_DMACIntErrClr, 0xff);
+        bus.write32(null, BASE + DMAC.REG_DMACConfiguration, 0);
+        start(3, SRC, DEST + 0x100, 0, control(4, 2, 2, DMAC.CTL_SI | DMAC.CTL_DI), 0);
+        dmac.waitIdle();
+        Assert.assertEquals(msg1, 0, bus.read32(null, DEST + 0x100));
+        Assert.assertEquals(msg3, 0x8, bus.read32(null, BASE + DMAC.REG_DMACEnbldChns));
+        bus.write32(null, BASE + DMAC.REG_DMACConfiguration, DMAC.CONF_E);
+        dmac.waitIdle();
+        Assert.assertEquals(msg1, bus.read32(null, SRC), bus.read32(null, DEST + 0x100));
+        Assert.assertFalse(msg2, raised);
+    }
+
+    @Test
+    public void testLoopedList() throws Exception {
+        String msg1 = "Transferred data is wrong.";
+        String msg2 = "Interrupt is wrong.";
+        String msg3 = "Register is wrong.";
+
+        //大きさ 0 で自身を指すアイテム
+        bus.write32(null, LLI, (int)SRC);
+        bus.write32(null, LLI + 4, (int)DEST);
+        bus.write32(null, LLI + 8, (int)LLI);
+        bus.write32(null, LLI + 12, control(0, 2, 2, DMAC.CTL_SI | DMAC.CTL_DI));
+
+        //循環するチャネルを止め、優先度の低いチャネルも転送する
+        start(0, SRC, DEST, LLI, control(0, 2, 2, DMAC.CTL_SI | DMAC.CTL_DI),
+                DMAC.CCFG_IE);
+        start(1, SRC, DEST + 0x100, 0, control(4, 2, 2, DMAC.CTL_SI | DMAC.CTL_DI), 0);
+        dmac.waitIdle();
+
+        Assert.assertTrue(msg2, raised);
+        Assert.assertEquals(msg2, 0x1, bus.read32(null, BASE + DMAC.REG_DMACIntErrorStatus));
+        Assert.assertEquals(msg3, 0, bus.read32(null, BASE + DMAC.REG_DMACEnbldChns));
+        for (int i = 0; i < 16; i += 4) {
+            Assert.assertEquals(msg1, bus.read32(null, SRC + i),
+                    bus.read32(null, DEST + 0x100 + i));
+        }
+    }
+}
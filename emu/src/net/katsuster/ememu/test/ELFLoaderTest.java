@@ -0,0 +1,229 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.generic.PagedRAM32;
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.generic.trace.SymbolTable;
+import net.katsuster.ememu.ui.*;
+
+public class ELFLoaderTest {
+    private static final int SEG0_OFF = 0x100;
+    private static final int SEG1_OFF = 0x200;
+    private static final int SYMTAB_OFF = 0x300;
+    private static final int STRTAB_OFF = 0x380;
+    private static final int SH_OFF = 0x400;
+    private static final int SEG0_SIZE = 0x100;
+    private static final int SEG1_SIZE = 0x10;
+    //.bss を含む大きさ
+    private static final int SEG1_MEMSIZE = 0x30000;
+
+    private static void putAddr(ByteBuffer b, int off, long v, boolean is64) {
+        if (is64) {
+            b.putLong(off, v);
+        } else {
+            b.putInt(off, (int)v);
+        }
+    }
+
+    /**
+     * 2つの PT_LOAD セグメントとシンボルテーブルを持つ ELF ファイルを作成します。
+     *
+     * @param is64    ELF64 ならば true、ELF32 ならば false
+     * @param machine マシンの種類
+     * @param vbase   仮想アドレスの基準
+     * @param pbase   物理アドレスの基準
+     * @return ELF ファイルの内容
+     */
+    private static byte[] buildELF(boolean is64, int machine, long vbase, long pbase) {
+        int ehsize = is64 ? 64 : 52;
+        int phentsize = is64 ? 56 : 32;
+        int shentsize = is64 ? 64 : 40;
+        int symentsize = is64 ? 24 : 16;
+        byte[] strtab = "\0stext\0thumb\0jiffies\0".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer b = ByteBuffer.allocate(SH_OFF + shentsize * 3);
+
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        b.put(0, (byte)0x7f).put(1, (byte)'E').put(2, (byte)'L').put(3, (byte)'F');
+        b.put(4, (byte)(is64 ? 2 : 1)).put(5, (byte)1).put(6, (byte)1);
+        b.putShort(0x10, (short)2);
+        b.putShort(0x12, (short)machine);
+        b.putInt(0x14, 1);
+        putAddr(b, 0x18, vbase + 0x10, is64);
+        if (is64) {
+            b.putLong(0x20, ehsize);
+            b.putLong(0x28, SH_OFF);
+            b.putShort(0x34, (short)ehsize);
+            b.putShort(0x36, (short)phentsize);
+            b.putShort(0x38, (short)2);
+            b.putShort(0x3a, (short)shentsize);
+            b.putShort(0x3c, (short)3);
+        } else {
+            b.putInt(0x1c, ehsize);
+            b.putInt(0x20, SH_OFF);
+            b.putShort(0x28, (short)ehsize);
+            b.putShort(0x2a, (short)phentsize);
+            b.putShort(0x2c, (short)2);
+            b.putShort(0x2e, (short)shentsize);
+            b.putShort(0x30, (short)3);
+        }
+
+        //プログラムヘッダ
+        for (int i = 0; i < 2; i++) {
+            int ph = ehsize + phentsize * i;
+            long off = (i == 0) ? SEG0_OFF : SEG1_OFF;
+            long va = vbase + ((i == 0) ? 0 : 0x8000);
+            long pa = pbase + ((i == 0) ? 0 : 0x8000);
+            long filesz = (i == 0) ? SEG0_SIZE : SEG1_SIZE;
+            long memsz = (i == 0) ? SEG0_SIZE : SEG1_MEMSIZE;
+
+            b.putInt(ph, 1);
+            if (is64) {
+                b.putLong(ph + 0x08, off);
+                b.putLong(ph + 0x10, va);
+                b.putLong(ph + 0x18, pa);
+                b.putLong(ph + 0x20, filesz);
+                b.putLong(ph + 0x28, memsz);
+            } else {
+                b.putInt(ph + 0x04, (int)off);
+                b.putInt(ph + 0x08, (int)va);
+                b.putInt(ph + 0x0c, (int)pa);
+                b.putInt(ph + 0x10, (int)filesz);
+                b.putInt(ph + 0x14, (int)memsz);
+            }
+        }
+
+        //セグメントの内容
+        for (int i = 0; i < SEG0_SIZE; i++) {
+            b.put(SEG0_OFF + i, (byte)(i + 1));
+        }
+        for (int i = 0; i < SEG1_SIZE; i++) {
+            b.put(SEG1_OFF + i, (byte)(0x80 + i));
+        }
+
+        //シンボル: 0 番は空、stext, thumb（最下位ビットが立つ）, jiffies（関数ではない）
+        long[][] syms = {
+                {1, vbase, 0x10, 0x12},
+                {7, vbase + 0x11, 4, 0x12},
+                {13, vbase + 0x8000, 4, 0x11},
+        };
+        for (int i = 0; i < syms.length; i++) {
+            int st = SYMTAB_OFF + symentsize * (i + 1);
+
+            b.putInt(st, (int)syms[i][0]);
+            if (is64) {
+                b.put(st + 4, (byte)syms[i][3]);
+                b.putLong(st + 8, syms[i][1]);
+                b.putLong(st + 16, syms[i][2]);
+            } else {
+                b.putInt(st + 4, (int)syms[i][1]);
+                b.putInt(st + 8, (int)syms[i][2]);
+                b.put(st + 12, (byte)syms[i][3]);
+            }
+        }
+        for (int i = 0; i < strtab.length; i++) {
+            b.put(STRTAB_OFF + i, strtab[i]);
+        }
+
+        //セクションヘッダ: 0 番は空、.symtab, .strtab
+        for (int i = 1; i < 3; i++) {
+            int sh = SH_OFF + shentsize * i;
+            int type = (i == 1) ? 2 : 3;
+            long off = (i == 1) ? SYMTAB_OFF : STRTAB_OFF;
+            long size = (i == 1) ? symentsize * 4 : strtab.length;
+
+            b.putInt(sh + 4, type);
+            if (is64) {
+                b.putLong(sh + 0x18, off);
+                b.putLong(sh + 0x20, size);
+                b.putInt(sh + 0x28, 2);
+                b.putLong(sh + 0x38, (i == 1) ? symentsize : 0);
+            } else {
+                b.putInt(sh + 16, (int)off);
+                b.putInt(sh + 20, (int)size);
+                b.putInt(sh + 24, 2);
+                b.putInt(sh + 36, (i == 1) ? symentsize : 0);
+            }
+        }
+
+        return b.array();
+    }
+
+    private static void checkLoad(boolean is64, int machine, long vbase) throws Exception {
+        String msg1 = "Header is wrong.";
+        String msg2 = "Segment is wrong.";
+        String msg3 = ".bss is not cleared.";
+        String msg4 = "Untouched page is allocated.";
+        String msg5 = "Symbol is wrong.";
+        Bus64 bus = new Bus64();
+        PagedRAM32 ram = new PagedRAM32(0x80000, PagedRAM32.PAGE_SIZE_4K);
+        ELFLoader elf = new ELFLoader(ByteBuffer.wrap(buildELF(is64, machine, vbase, 0x8000)));
+        SymbolTable syms;
+
+        bus.addSlaveCore(ram, 0x0, 0x7ffff);
+        //.bss の途中と、.bss の後ろに書き込んでおく
+        bus.write32(null, 0x12000, 0x12345678);
+        bus.write32(null, 0x40000, 0x9abcdef0);
+
+        Assert.assertEquals(msg1, is64, elf.is64Bit());
+        Assert.assertEquals(msg1, machine, elf.getMachine());
+        Assert.assertEquals(msg1, vbase + 0x10, elf.getEntry());
+        Assert.assertEquals(msg1, 0x8010, elf.getPhysicalEntry());
+        Assert.assertEquals(msg1, 2, elf.getSegments());
+        Assert.assertEquals(msg1, 0x8000, elf.getLowAddress());
+        Assert.assertEquals(msg1, 0x10000 + SEG1_MEMSIZE, elf.getHighAddress());
+
+        Assert.assertEquals(msg2, SEG0_SIZE + SEG1_MEMSIZE, elf.load(bus, null));
+        for (int i = 0; i < SEG0_SIZE; i++) {
+            Assert.assertEquals(msg2, (byte)(i + 1), bus.read8(null, 0x8000 + i));
+        }
+        for (int i = 0; i < SEG1_SIZE; i++) {
+            Assert.assertEquals(msg2, (byte)(0x80 + i), bus.read8(null, 0x10000 + i));
+        }
+        Assert.assertEquals(msg3, 0, bus.read32(null, 0x12000));
+        Assert.assertEquals(msg3, 0x9abcdef0, bus.read32(null, 0x40000));
+        //0x8000, 0x10000, 0x12000, 0x40000 のページのみ
+        Assert.assertEquals(msg4, 4, ram.getAllocatedPages());
+
+        syms = elf.getSymbolTable();
+        Assert.assertEquals(msg5, 2, syms.size());
+        Assert.assertEquals(msg5, "stext", syms.lookup(vbase + 0x4));
+        if (machine == ELFLoader.EM_ARM) {
+            Assert.assertEquals(msg5, "thumb", syms.lookup(vbase + 0x10));
+        } else {
+            Assert.assertEquals(msg5, "thumb", syms.lookup(vbase + 0x11));
+        }
+        Assert.assertNull(msg5, syms.lookup(vbase + 0x8000));
+    }
+
+    @Test
+    public void testLoadELF32() throws Exception {
+        checkLoad(false, ELFLoader.EM_ARM, 0xc0008000L);
+    }
+
+    @Test
+    public void testLoadELF64() throws Exception {
+        checkLoad(true, ELFLoader.EM_RISCV, 0xffffffe000008000L);
+    }
+
+    @Test
+    public void testBroken() throws Exception {
+        String msg1 = "Broken ELF is accepted.";
+        byte[] b = buildELF(false, ELFLoader.EM_ARM, 0xc0008000L, 0x8000);
+
+        Assert.assertFalse(msg1, ELFLoader.isELF(ByteBuffer.wrap(new byte[64])));
+
+        //セグメントがファイルの外を指す
+        ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).putInt(52 + 0x10, 0x10000);
+        try {
+            new ELFLoader(ByteBuffer.wrap(b));
+            Assert.fail(msg1);
+        } catch (IOException e) {
+            //OK
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.generic.net.*;
+
+public class LAN91C111Test {
+    private static final long BASE0 = 0x10010000L;
+    private static final long BASE1 = 0x10020000L;
+
+    private Bus64 bus;
+    private LAN91C111 eth0;
+    private LAN91C111 eth1;
+    private EtherSwitch sw;
+
+    @Before
+    public void setUp() throws Exception {
+        bus = new Bus64();
+        eth0 = new LAN91C111("eth0");
+        eth1 = new LAN91C111("eth1");
+        eth0.setMACAddress(new byte[] {0x52, 0x54, 0x00, 0x00, 0x00, 0x01});
+        eth1.setMACAddress(new byte[] {0x52, 0x54, 0x00, 0x00, 0x00, 0x02});
+        bus.addSlaveCore(eth0.getSlaveCore(), BASE0, BASE0 + 0xffff);
+        bus.addSlaveCore(eth1.getSlaveCore(), BASE1, BASE1 + 0xffff);
+
+        sw = new EtherSwitch("test");
+        sw.connect(eth0);
+        sw.connect(eth1);
+    }
+
+    private void writeReg(long base, int bank, int off, int data) {
+        bus.write16(null, base + LAN91C111.REG_BANK, (short)bank);
+        bus.write16(null, base + off, (short)data);
+    }
+
+    private int readReg(long base, int bank, int off) {
+        bus.write16(null, base + LAN91C111.REG_BANK, (short)bank);
+        return bus.read16(null, base + off) & 0xffff;
+    }
+
+    private void enable(long base) {
+        writeReg(base, 0, LAN91C111.REG_TCR, LAN91C111.TCR_TXENA | LAN91C111.TCR_PAD_EN);
+        writeReg(base, 0, LAN91C111.REG_RCR, LAN91C111.RCR_RXEN | LAN91C111.RCR_STRIP_CRC);
+        writeReg(base, 1, LAN91C111.REG_CONTROL, LAN91C111.CTR_AUTO_RELEASE);
+        bus.write16(null, base + LAN91C111.REG_BANK, (short)2);
+        bus.write8(null, base + LAN91C111.REG_INT_MASK, (byte)LAN91C111.INT_RCV);
+    }
+
+    /**
+     * パケットを割り当て、フレームを書き込んで送信します。
+     */
+    private void send(long base, byte[] f) {
+        int arr, len = f.length;
+
+        bus.write16(null, base + LAN91C111.REG_BANK, (short)2);
+        bus.write8(null, base + LAN91C111.REG_MMU_CMD, (byte)(LAN91C111.MMU_ALLOC << 5));
+        arr = bus.read8(null, base + LAN91C111.REG_ARR) & 0xff;
+        Assert.assertEquals("Allocation failed.", 0, arr & LAN91C111.ARR_FAILED);
+        bus.write8(null, base + LAN91C111.REG_PNR, (byte)arr);
+
+        bus.write16(null, base + LAN91C111.REG_POINTER, (short)LAN91C111.PTR_AUTOINC);
+        bus.write16(null, base + LAN91C111.REG_DATA, (short)0);
+        bus.write16(null, base + LAN91C111.REG_DATA, (short)((len & ~1) + 6));
+        for (int i = 0; i + 1 < len; i += 2) {
+            bus.write16(null, base + LAN91C111.REG_DATA,
+                    (short)((f[i] & 0xff) | ((f[i + 1] & 0xff) << 8)));
+        }
+        if ((len & 1) != 0) {
+            bus.write16(null, base + LAN91C111.REG_DATA,
+                    (short)((f[len - 1] & 0xff) | (LAN91C111.CTL_ODD << 8)));
+        } else {
+            bus.write16(null, base + LAN91C111.REG_DATA, (short)0);
+        }
+
+        bus.write8(null, base + LAN91C111.REG_MMU_CMD, (byte)(LAN91C111.MMU_ENQUEUE << 5));
+    }
+
+    /**
+     * 受信 FIFO の先頭のパケットを読み出して解放します。
+     */
+    private byte[] receive(long base) {
+        int status, count, len, d, ctl;
+        byte[] b;
+
+        bus.write16(null, base + LAN91C111.REG_BANK, (short)2);
+        Assert.assertNotEquals("Rx FIFO is empty.", LAN91C111.FIFO_EMPTY,
+                bus.read8(null, base + LAN91C111.REG_RX_FIFO) & 0xff);
+        bus.write16(null, base + LAN91C111.REG_POINTER, (short)(LAN91C111.PTR_RCV |
+                LAN91C111.PTR_AUTOINC | LAN91C111.PTR_READ));
+        status = bus.read16(null, base + LAN91C111.REG_DATA) & 0xffff;
+        count = bus.read16(null, base + LAN91C111.REG_DATA) & 0xffff;
+        len = count - 6;
+        b = new byte[len + 1];
+        for (int i = 0; i < len; i += 2) {
+            d = bus.read16(null, base + LAN91C111.REG_DATA) & 0xffff;
+            b[i] = (byte)d;
+            b[i + 1] = (byte)(d >>> 8);
+        }
+        //最後のワードは奇数長の最後のバイトとコントロールバイト
+        d = bus.read16(null, base + LAN91C111.REG_DATA) & 0xffff;
+        ctl = d >>> 8;
+        Assert.assertEquals("Odd flag is wrong.", (status & LAN91C111.RS_ODDFRM) != 0,
+                (ctl & LAN91C111.CTL_ODD) != 0);
+        if ((ctl & LAN91C111.CTL_ODD) != 0) {
+            b[len] = (byte)d;
+            len++;
+        }
+        bus.write8(null, base + LAN91C111.REG_MMU_CMD, (byte)(LAN91C111.MMU_RELEASE << 5));
+
+        return Arrays.copyOf(b, len);
+    }
+
+    /**
+     * 52:54:00:00:00:xx の間で送受信するフレームを作成します。
+     *
+     * @param dst 宛先の最下位バイト、負ならばブロードキャスト
+     * @param src 送信元の最下位バイト
+     * @param len フレームの長さ
+     */
+    private byte[] frame(int dst, int src, int len) {
+        byte[] f = new byte[len];
+        byte[] mac = {0x52, 0x54, 0x00, 0x00, 0x00, 0x00};
+
+        if (dst < 0) {
+            Arrays.fill(f, 0, EtherFrame.ADDR_SIZE, (byte)0xff);
+        } else {
+            System.arraycopy(mac, 0, f, 0, EtherFrame.ADDR_SIZE);
+            f[5] = (byte)dst;
+        }
+        System.arraycopy(mac, 0, f, 6, EtherFrame.ADDR_SIZE);
+        f[11] = (byte)src;
+        f[12] = 0x08;
+        f[13] = 0x00;
+        for (int i = EtherFrame.HEADER_SIZE; i < len; i++) {
+            f[i] = (byte)i;
+        }
+
+        return f;
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        String msg1 = "Bank select is wrong.";
+        String msg2 = "Revision is wrong.";
+        String msg3 = "MAC address is wrong.";
+
+        Assert.assertEquals(msg1, 0x3303, readReg(BASE0, 3, LAN91C111.REG_BANK));
+        Assert.assertEquals(msg2, LAN91C111.REVISION, readReg(BASE0, 3, LAN91C111.REG_REVISION));
+        //16バイトごとに繰り返し現れる
+        Assert.assertEquals(msg2, LAN91C111.REVISION,
+                bus.read16(null, BASE0 + 0x100 + LAN91C111.REG_REVISION) & 0xffff);
+        Assert.assertEquals(msg3, 0x5452, readReg(BASE0, 1, LAN91C111.REG_IA));
+        Assert.assertEquals(msg3, 0x0100, readReg(BASE0, 1, LAN91C111.REG_IA + 4));
+        Assert.assertEquals(msg3, 0x00005452,
+                bus.read32(null, BASE0 + LAN91C111.REG_IA));
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        String msg1 = "Interrupt is wrong.";
+        String msg2 = "Received frame is wrong.";
+        String msg3 = "Free packets are wrong.";
+        byte[] f, r;
+
+        enable(BASE0);
+        enable(BASE1);
+
+        //ユニキャスト、奇数長
+        f = frame(2, 1, 101);
+        send(BASE0, f);
+        Assert.assertTrue(msg1, eth1.isAssert());
+        Assert.assertFalse(msg1, eth0.isAssert());
+        r = receive(BASE1);
+        Assert.assertArrayEquals(msg2, f, r);
+        Assert.assertFalse(msg1, eth1.isAssert());
+        //自動解放
+        Assert.assertEquals(msg3, LAN91C111.NUM_PACKETS,
+                readReg(BASE0, 0, LAN91C111.REG_MIR) >>> 8);
+        Assert.assertEquals(msg3, LAN91C111.NUM_PACKETS,
+                readReg(BASE1, 0, LAN91C111.REG_MIR) >>> 8);
+
+        //ブロードキャスト、短いフレームはパディングされる
+        f = frame(-1, 2, 42);
+        send(BASE1, f);
+        r = receive(BASE0);
+        Assert.assertEquals(msg2, EtherFrame.MIN_SIZE, r.length);
+        Assert.assertArrayEquals(msg2, f, Arrays.copyOf(r, f.length));
+
+        //宛先の異なるユニキャストは受信しない
+        send(BASE0, frame(3, 1, 64));
+        Assert.assertFalse(msg1, eth1.isAssert());
+
+        //受信 FIFO が溢れる
+        for (int i = 0; i < LAN91C111.NUM_PACKETS + 1; i++) {
+            send(BASE0, frame(2, 1, 64));
+        }
+        Assert.assertEquals(msg1, LAN91C111.INT_RX_OVRN,
+                readReg(BASE1, 2, LAN91C111.REG_INT) & LAN91C111.INT_RX_OVRN);
+    }
+
+    @Test
+    public void testIllegalCount() throws Exception {
+        String msg1 = "Illegal packet is sent.";
+        String msg2 = "Packet is not completed.";
+        int arr;
+
+        enable(BASE0);
+        enable(BASE1);
+        writeReg(BASE0, 1, LAN91C111.REG_CONTROL, 0);
+
+        //ステータスとバイト数に満たないバイト数は送信せずに捨てる
+        for (int count = 0; count <= 2; count++) {
+            bus.write16(null, BASE0 + LAN91C111.REG_BANK, (short)2);
+            bus.write8(null, BASE0 + LAN91C111.REG_MMU_CMD, (byte)(LAN91C111.MMU_ALLOC << 5));
+            arr = bus.read8(null, BASE0 + LAN91C111.REG_ARR) & 0xff;
+            Assert.assertEquals("Allocation failed.", 0, arr & LAN91C111.ARR_FAILED);
+            bus.write8(null, BASE0 + LAN91C111.REG_PNR, (byte)arr);
+            bus.write16(null, BASE0 + LAN91C111.REG_POINTER, (short)LAN91C111.PTR_AUTOINC);
+            bus.write16(null, BASE0 + LAN91C111.REG_DATA, (short)0);
+            bus.write16(null, BASE0 + LAN91C111.REG_DATA, (short)count);
+            bus.write8(null, BASE0 + LAN91C111.REG_MMU_CMD, (byte)(LAN91C111.MMU_ENQUEUE << 5));
+
+            Assert.assertFalse(msg1, eth1.isAssert());
+            Assert.assertEquals(msg1, 0,
+                    readReg(BASE0, 0, LAN91C111.REG_EPH_STATUS) & LAN91C111.EPH_TX_SUC);
+            //送信完了 FIFO に積まれ、ドライバが解放できる
+            Assert.assertEquals(msg2, arr,
+                    readReg(BASE0, 2, LAN91C111.REG_TX_FIFO) & 0xff);
+            bus.write8(null, BASE0 + LAN91C111.REG_MMU_CMD, (byte)(LAN91C111.MMU_FREEPKT << 5));
+            bus.write8(null, BASE0 + LAN91C111.REG_INT, (byte)LAN91C111.INT_TX);
+        }
+        Assert.assertEquals(msg2, LAN91C111.NUM_PACKETS,
+                readReg(BASE0, 0, LAN91C111.REG_MIR) >>> 8);
+
+        //その後も正しいパケットは送信できる
+        send(BASE0, frame(2, 1, 64));
+        Assert.assertTrue(msg1, eth1.isAssert());
+    }
+
+    @Test
+    public void testPcap() throws Exception {
+        String msg = "Capture file is wrong.";
+        File file = File.createTempFile("ememu", ".pcap");
+        PcapWriter pcap;
+        byte[] f, b;
+
+        file.deleteOnExit();
+        pcap = new PcapWriter(new FileOutputStream(file));
+        sw.addMonitor(pcap);
+        enable(BASE0);
+        enable(BASE1);
+
+        f = frame(2, 1, 80);
+        send(BASE0, f);
+        pcap.close();
+
+        b = Files.readAllBytes(file.toPath());
+        Assert.assertEquals(msg, 24 + 16 + f.length, b.length);
+        Assert.assertEquals(msg, (byte)0xd4, b[0]);
+        Assert.assertEquals(msg, (byte)0xa1, b[3]);
+        Assert.assertEquals(msg, f.length,
+                (b[24 + 8] & 0xff) | ((b[24 + 9] & 0xff) << 8));
+        Assert.assertArrayEquals(msg, f, Arrays.copyOfRange(b, 40, b.length));
+    }
+}
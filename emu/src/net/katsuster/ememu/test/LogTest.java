@@ -0,0 +1,134 @@
+package net.katsuster.ememu.test;
+
+import java.util.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.generic.log.*;
+
+public class LogTest {
+    private static class ListSink implements LogSink {
+        protected List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void write(LogRecord r) {
+            messages.add(r.getName() + ":" + r.getLevel() + ":" + r.getMessage());
+        }
+
+        @Override
+        public void flush() {
+            //do nothing
+        }
+    }
+
+    //最初のログを出力するときに少し待ち、キューを一杯にする出力先
+    private static class SlowSink extends ListSink {
+        private boolean slept;
+
+        @Override
+        public void write(LogRecord r) {
+            if (!slept) {
+                slept = true;
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    //ignored
+                }
+            }
+            super.write(r);
+        }
+    }
+
+    @Test
+    public void testLevel() throws Exception {
+        String msg1 = "Log level is not inherited from parent category.";
+        String msg2 = "Log level is not updated.";
+        Logger a = Log.getLogger("logtest.a");
+        Logger ab = Log.getLogger("logtest.a.b");
+        Logger c = Log.getLogger("logtest.c");
+
+        try {
+            Log.configure("logtest=warn,logtest.a=debug");
+            Assert.assertTrue(msg1, a.isDebug());
+            Assert.assertTrue(msg1, ab.isDebug());
+            Assert.assertFalse(msg1, ab.isTrace());
+            Assert.assertFalse(msg1, c.isEnabled(LogLevel.INFO));
+            Assert.assertTrue(msg1, c.isEnabled(LogLevel.WARN));
+
+            Log.setLevel("logtest.a", null);
+            Assert.assertFalse(msg2, a.isDebug());
+            Assert.assertEquals(msg2, LogLevel.WARN, ab.getLevel());
+        } finally {
+            Log.setLevel("logtest", null);
+            Log.setLevel("logtest.a", null);
+        }
+    }
+
+    @Test
+    public void testSink() throws Exception {
+        String msg1 = "Log records are not written in order.";
+        String msg2 = "Disabled log record is written.";
+        LogSink orig = Log.getSink();
+        ListSink s = new ListSink();
+        Logger l = Log.getLogger("logtest.sink");
+
+        try {
+            Log.setSink(s);
+            Log.setLevel("logtest.sink", LogLevel.INFO);
+
+            for (int i = 0; i < 100; i++) {
+                l.info("rec %d", i);
+                l.debug("dbg %d", i);
+            }
+            l.warn("100%");
+            Log.flush();
+
+            Assert.assertEquals(msg2, 101, s.messages.size());
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals(msg1, "logtest.sink:INFO:rec " + i, s.messages.get(i));
+            }
+            Assert.assertEquals(msg1, "logtest.sink:WARN:100%", s.messages.get(100));
+        } finally {
+            Log.setSink(orig);
+            Log.setLevel("logtest.sink", null);
+        }
+    }
+
+    @Test
+    public void testDropped() throws Exception {
+        String msg1 = "Dropped log records are not counted.";
+        LogSink orig = Log.getSink();
+        SlowSink s = new SlowSink();
+        Logger l = Log.getLogger("logtest.dropped");
+        int n = Log.QUEUE_SIZE * 2;
+        long d, ld;
+        int written = 0;
+
+        try {
+            Log.setSink(s);
+            Log.setLevel("logtest.dropped", LogLevel.INFO);
+
+            //出力が追いつかなくても待たずに捨て、捨てた件数を数える
+            d = Log.getDroppedCount();
+            ld = l.getDroppedCount();
+            for (int i = 0; i < n; i++) {
+                l.info("rec %d", i);
+            }
+            Log.flush();
+
+            synchronized (s.messages) {
+                for (String m : s.messages) {
+                    if (m.startsWith("logtest.dropped:")) {
+                        written++;
+                    }
+                }
+            }
+            Assert.assertTrue(msg1, l.getDroppedCount() > ld);
+            Assert.assertEquals(msg1, n, written + l.getDroppedCount() - ld);
+            Assert.assertTrue(msg1, Log.getDroppedCount() - d >= l.getDroppedCount() - ld);
+        } finally {
+            Log.setSink(orig);
+            Log.setLevel("logtest.dropped", null);
+        }
+    }
+}
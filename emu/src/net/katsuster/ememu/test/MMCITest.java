@@ -0,0 +1,267 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.nio.file.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.arm.*;
+import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.generic.core.INTDestination;
+
+public class MMCITest {
+    private static final long BASE = 0x10005000L;
+    private static final long SIC = 0x10003000L;
+    //C_SIZE の単位の 2倍
+    private static final int BLOCKS = 2048;
+    private static final int RCA_ARG_MASK = 0xffff0000;
+
+    private Bus64 bus;
+    private MMCI mci;
+    private SecondaryINTC sic;
+    private File image;
+    private volatile int raised;
+    private int rca;
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] b = new byte[BLOCKS * SDMemoryCard.BLOCK_SIZE];
+
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte)(i / SDMemoryCard.BLOCK_SIZE + i);
+        }
+        image = File.createTempFile("ememu", ".img");
+        image.deleteOnExit();
+        Files.write(image.toPath(), b);
+
+        bus = new Bus64();
+        mci = new MMCI("mci0");
+        sic = new SecondaryINTC();
+        bus.addSlaveCore(mci.getSlaveCore(), BASE, BASE + 0xfff);
+        bus.addSlaveCore(sic, SIC, SIC + 0xfff);
+        sic.connectINTSource(1, mci.getIRQ1Source());
+        sic.connectINTSource(23, mci.getIRQ0Source());
+        sic.connectINTDestination(new INTDestination() {
+            @Override
+            public boolean isRaisedInterrupt() {
+                return raised != 0;
+            }
+
+            @Override
+            public void setRaisedInterrupt(boolean m) {
+                if (m) {
+                    raised++;
+                }
+            }
+        });
+        raised = 0;
+        rca = 0;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mci.getSlaveCore().halt();
+        mci.getStorage().close();
+    }
+
+    private int command(int cmd, int arg, int flags) {
+        int st;
+
+        bus.write32(null, BASE + MMCI.REG_MCIClear, MMCI.ST_STATIC_MASK);
+        bus.write32(null, BASE + MMCI.REG_MCIArgument, arg);
+        bus.write32(null, BASE + MMCI.REG_MMCCommand, cmd | flags | MMCI.CMD_ENABLE);
+        st = bus.read32(null, BASE + MMCI.REG_MCIStatus);
+
+        return st & (MMCI.ST_CMDRESPEND | MMCI.ST_CMDSENT | MMCI.ST_CMDTIMEOUT);
+    }
+
+    private int response(int n) {
+        return bus.read32(null, BASE + MMCI.REG_MCIResponse0 + 4 * n);
+    }
+
+    private void identify() {
+        String msg1 = "Command is not accepted.";
+        String msg2 = "Response is wrong.";
+
+        bus.write32(null, BASE + MMCI.REG_MCIPower, MMCI.POWER_ON);
+        Assert.assertEquals(msg1, MMCI.ST_CMDSENT, command(0, 0, 0));
+        Assert.assertEquals(msg1, MMCI.ST_CMDRESPEND, command(8, 0x1aa, MMCI.CMD_RESPONSE));
+        Assert.assertEquals(msg2, 0x1aa, response(0));
+        //SDIO のコマンドには応答しない
+        Assert.assertEquals(msg1, MMCI.ST_CMDTIMEOUT, command(5, 0, MMCI.CMD_RESPONSE));
+
+        Assert.assertEquals(msg1, MMCI.ST_CMDRESPEND, command(55, 0, MMCI.CMD_RESPONSE));
+        Assert.assertEquals(msg1, MMCI.ST_CMDRESPEND, command(41, 0x40300000, MMCI.CMD_RESPONSE));
+        Assert.assertEquals(msg2, SDMemoryCard.OCR_BUSY | SDMemoryCard.OCR_CCS,
+                response(0) & (SDMemoryCard.OCR_BUSY | SDMemoryCard.OCR_CCS));
+
+        Assert.assertEquals(msg1, MMCI.ST_CMDRESPEND,
+                command(2, 0, MMCI.CMD_RESPONSE | MMCI.CMD_LONGRSP));
+        Assert.assertEquals(msg1, MMCI.ST_CMDRESPEND, command(3, 0, MMCI.CMD_RESPONSE));
+        rca = response(0) & RCA_ARG_MASK;
+        Assert.assertNotEquals(msg2, 0, rca);
+
+        Assert.assertEquals(msg1, MMCI.ST_CMDRESPEND,
+                command(9, rca, MMCI.CMD_RESPONSE | MMCI.CMD_LONGRSP));
+        //CSD Version 2.0, C_SIZE
+        Assert.assertEquals(msg2, 1, response(0) >>> 30);
+        Assert.assertEquals(msg2, BLOCKS * SDMemoryCard.BLOCK_SIZE / SDMemoryCard.C_SIZE_UNIT - 1,
+                ((response(1) & 0x3f) << 16) | (response(2) >>> 16));
+
+        Assert.assertEquals(msg1, MMCI.ST_CMDRESPEND, command(7, rca, MMCI.CMD_RESPONSE));
+        Assert.assertEquals(msg1, MMCI.ST_CMDRESPEND, command(13, rca, MMCI.CMD_RESPONSE));
+        Assert.assertEquals(msg2, SDMemoryCard.STATE_TRAN, (response(0) >>> 9) & 0xf);
+    }
+
+    private void waitStatus(int mask) throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            if ((bus.read32(null, BASE + MMCI.REG_MCIStatus) & mask) != 0) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertNotEquals("Status is not changed.", 0,
+                bus.read32(null, BASE + MMCI.REG_MCIStatus) & mask);
+    }
+
+    private void startData(int len, boolean read) {
+        bus.write32(null, BASE + MMCI.REG_MCIDataTimer, 0xffffffff);
+        bus.write32(null, BASE + MMCI.REG_MCIDataLength, len);
+        bus.write32(null, BASE + MMCI.REG_MCIDataCtrl, MMCI.DCTRL_ENABLE | (9 << 4) |
+                (read ? MMCI.DCTRL_DIRECTION : 0));
+    }
+
+    @Test
+    public void testIdentify() throws Exception {
+        String msg1 = "Card is detected.";
+        String msg2 = "SCR is wrong.";
+        byte[] scr = new byte[8];
+
+        Assert.assertFalse(msg1, mci.isCardInserted());
+        bus.write32(null, BASE + MMCI.REG_MCIPower, MMCI.POWER_ON);
+        Assert.assertEquals(msg1, MMCI.ST_CMDTIMEOUT, command(8, 0x1aa, MMCI.CMD_RESPONSE));
+
+        mci.getStorage().open(image, true);
+        identify();
+
+        //SCR はデータパスで読み出す
+        startData(8, true);
+        Assert.assertEquals(MMCI.ST_CMDRESPEND, command(55, rca, MMCI.CMD_RESPONSE));
+        Assert.assertEquals(MMCI.ST_CMDRESPEND, command(51, 0, MMCI.CMD_RESPONSE));
+        for (int i = 0; i < 2; i++) {
+            int v = bus.read32(null, BASE + MMCI.REG_MCIFIFO);
+
+            for (int j = 0; j < 4; j++) {
+                scr[i * 4 + j] = (byte)(v >>> (j * 8));
+            }
+        }
+        Assert.assertEquals(msg2, 0x05, scr[1] & 0x0f);
+        Assert.assertNotEquals(msg2, 0,
+                bus.read32(null, BASE + MMCI.REG_MCIStatus) & MMCI.ST_DATAEND);
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        String msg1 = "Read data is wrong.";
+        String msg2 = "FIFO count is wrong.";
+        String msg3 = "Interrupt is wrong.";
+        String msg4 = "Written data is wrong.";
+        int len = 4 * SDMemoryCard.BLOCK_SIZE;
+        byte[] img;
+
+        mci.getStorage().open(image, false);
+        identify();
+
+        //SIC の 1番（MCIINTR1）のみ有効にする
+        bus.write32(null, SIC + SecondaryINTC.REG_SIC_ENSET, 0x2);
+        bus.write32(null, BASE + MMCI.REG_MCIMask1, MMCI.ST_RXFIFOHALFFULL);
+
+        //ブロック 10 から 4ブロック読み出す
+        startData(len, true);
+        Assert.assertEquals(MMCI.ST_CMDRESPEND, command(18, 10, MMCI.CMD_RESPONSE));
+        for (int pos = 0; pos < len; pos += 4) {
+            int v;
+
+            waitStatus(MMCI.ST_RXDATAAVLBL);
+            Assert.assertTrue(msg2, (len - pos) / 4 >=
+                    bus.read32(null, BASE + MMCI.REG_MCIFifoCnt));
+            if (pos == 0) {
+                //割り込みの通知が終わるまで待つ
+                mci.getStorage().waitIdle();
+                Assert.assertTrue(msg3, raised > 0);
+                Assert.assertEquals(msg3, 0x2, bus.read32(null, SIC + SecondaryINTC.REG_SIC_STATUS));
+                Assert.assertTrue(msg3, sic.isAssert());
+            }
+            v = bus.read32(null, BASE + MMCI.REG_MCIFIFO + (pos % MMCI.FIFO_SIZE));
+            for (int j = 0; j < 4; j++) {
+                int i = 10 * SDMemoryCard.BLOCK_SIZE + pos + j;
+
+                Assert.assertEquals(msg1, (byte)(i / SDMemoryCard.BLOCK_SIZE + i),
+                        (byte)(v >>> (j * 8)));
+            }
+        }
+        Assert.assertNotEquals(msg1, 0,
+                bus.read32(null, BASE + MMCI.REG_MCIStatus) & MMCI.ST_DATAEND);
+        Assert.assertEquals(msg2, 0, bus.read32(null, BASE + MMCI.REG_MCIFifoCnt));
+        Assert.assertFalse(msg3, sic.isAssert());
+        Assert.assertEquals(MMCI.ST_CMDRESPEND, command(12, 0, MMCI.CMD_RESPONSE));
+
+        //ブロック 3 に 1ブロック書き込む
+        Assert.assertEquals(MMCI.ST_CMDRESPEND, command(24, 3, MMCI.CMD_RESPONSE));
+        startData(SDMemoryCard.BLOCK_SIZE, false);
+        for (int pos = 0; pos < SDMemoryCard.BLOCK_SIZE; pos += 4) {
+            Assert.assertNotEquals(msg2, 0,
+                    bus.read32(null, BASE + MMCI.REG_MCIStatus) & MMCI.ST_TXFIFOHALFEMPTY);
+            bus.write32(null, BASE + MMCI.REG_MCIFIFO, 0xa5a5a5a5);
+        }
+        waitStatus(MMCI.ST_DATAEND);
+        mci.getStorage().waitIdle();
+        Assert.assertEquals(MMCI.ST_CMDRESPEND, command(13, rca, MMCI.CMD_RESPONSE));
+        Assert.assertEquals(msg4, SDMemoryCard.STATE_TRAN, (response(0) >>> 9) & 0xf);
+
+        mci.getStorage().close();
+        img = Files.readAllBytes(image.toPath());
+        for (int i = 0; i < SDMemoryCard.BLOCK_SIZE; i++) {
+            Assert.assertEquals(msg4, (byte)0xa5, img[3 * SDMemoryCard.BLOCK_SIZE + i]);
+        }
+        Assert.assertEquals(msg4, (byte)(4 + 4 * SDMemoryCard.BLOCK_SIZE),
+                img[4 * SDMemoryCard.BLOCK_SIZE]);
+    }
+
+    @Test
+    public void testError() throws Exception {
+        String msg1 = "Out of card is accepted.";
+        String msg2 = "Write to read only card is accepted.";
+        String msg3 = "Pass through interrupt is wrong.";
+
+        mci.getStorage().open(image, true);
+        identify();
+
+        //カードの外は読み出せない
+        startData(SDMemoryCard.BLOCK_SIZE, true);
+        Assert.assertEquals(MMCI.ST_CMDRESPEND, command(17, BLOCKS, MMCI.CMD_RESPONSE));
+        Assert.assertNotEquals(msg1, 0, response(0) & SDMemoryCard.CS_OUT_OF_RANGE);
+        Assert.assertNotEquals(msg1, 0,
+                bus.read32(null, BASE + MMCI.REG_MCIStatus) & MMCI.ST_DATATIMEOUT);
+
+        //読み出し専用のカードには書き込めない
+        Assert.assertEquals(MMCI.ST_CMDRESPEND, command(24, 0, MMCI.CMD_RESPONSE));
+        Assert.assertNotEquals(msg2, 0, response(0) & SDMemoryCard.CS_WP_VIOLATION);
+        bus.write32(null, BASE + MMCI.REG_MCIClear, MMCI.ST_STATIC_MASK);
+        startData(SDMemoryCard.BLOCK_SIZE, false);
+        Assert.assertNotEquals(msg2, 0,
+                bus.read32(null, BASE + MMCI.REG_MCIStatus) & MMCI.ST_DATATIMEOUT);
+
+        //SIC_PICENABLE で指定した割り込みは 1st 割り込みコントローラに直接つながる
+        bus.write32(null, BASE + MMCI.REG_MCIMask0, MMCI.ST_DATATIMEOUT);
+        bus.write32(null, SIC + SecondaryINTC.REG_SIC_ENSET, 1 << 23);
+        Assert.assertTrue(msg3, sic.isAssert());
+        Assert.assertFalse(msg3, sic.getPICSource(23).isAssert());
+        bus.write32(null, SIC + SecondaryINTC.REG_SIC_PICENSET, 1 << 23);
+        Assert.assertFalse(msg3, sic.isAssert());
+        Assert.assertTrue(msg3, sic.getPICSource(23).isAssert());
+        bus.write32(null, BASE + MMCI.REG_MCIClear, MMCI.ST_STATIC_MASK);
+        Assert.assertFalse(msg3, sic.getPICSource(23).isAssert());
+    }
+}
@@ -1,10 +1,15 @@
 package net.katsuster.ememu.test;
 
+import java.util.*;
+
 import org.junit.*;
 
+import net.katsuster.ememu.generic.PagedRAM32;
+import net.katsuster.ememu.generic.RAM;
 import net.katsuster.ememu.generic.RAM16;
 import net.katsuster.ememu.generic.RAM32;
 import net.katsuster.ememu.generic.RAM64;
+import net.katsuster.ememu.generic.RAMWriteWatcher;
 import net.katsuster.ememu.generic.core.SlaveCore64;
 
 public class RAMTest {
@@ -13,11 +18,169 @@ public class RAMTest {
         RAM16 ram16 = new RAM16(0x1000);
         RAM32 ram32 = new RAM32(0x1000);
         RAM64 ram64 = new RAM64(0x1000);
+        PagedRAM32 ramp = new PagedRAM32(0x1000, 0x400);
         long start = 0x800;
 
         alignedAccess(start, ram16);
         alignedAccess(start, ram32);
         alignedAccess(start, ram64);
+        alignedAccess(start, ramp);
+    }
+
+    @Test
+    public void testPagedRAM() throws Exception {
+        String msg1 = "PagedRAM32 allocation failed.";
+        PagedRAM32 ram = new PagedRAM32(0x10000, 0x1000);
+
+        Assert.assertEquals(msg1, 16, ram.getPages());
+        Assert.assertEquals(msg1, 0, ram.getAllocatedPages());
+
+        //read and write 0 do not allocate
+        Assert.assertEquals(msg1, 0, ram.read32(null, 0x2000));
+        ram.write32(null, 0x3000, 0);
+        Assert.assertEquals(msg1, 0, ram.getAllocatedPages());
+
+        ram.write8(null, 0x3001, (byte)0x12);
+        Assert.assertEquals(msg1, 1, ram.getAllocatedPages());
+        Assert.assertTrue(msg1, ram.isAllocatedPage(3));
+        Assert.assertFalse(msg1, ram.isAllocatedPage(2));
+        Assert.assertEquals(msg1, 0x1200, ram.read32(null, 0x3000));
+        Assert.assertEquals(msg1, 0, ram.read32(null, 0x2ffc));
+
+        //other instances are not affected
+        PagedRAM32 ram2 = new PagedRAM32(0x10000, 0x1000);
+        Assert.assertEquals(msg1, 0, ram2.read32(null, 0x3000));
+    }
+
+    @Test
+    public void testPagedRAMCopyOnWrite() throws Exception {
+        String msg1 = "PagedRAM32 copy-on-write failed.";
+        PagedRAM32 base = new PagedRAM32(0x10000, 0x1000);
+        PagedRAM32 a, b;
+
+        base.write32(null, 0x1000, 0x11111111);
+        base.write32(null, 0x2000, 0x22222222);
+        Assert.assertEquals(msg1, 2, base.getAllocatedPages());
+
+        //fork shares all pages without copying
+        a = base.fork();
+        b = base.fork();
+        Assert.assertEquals(msg1, 0, base.getAllocatedPages());
+        Assert.assertEquals(msg1, 0, a.getAllocatedPages());
+        Assert.assertEquals(msg1, 0x22222222, a.read32(null, 0x2000));
+        Assert.assertEquals(msg1, 0x22222222, b.read32(null, 0x2000));
+
+        //writes copy only the written page
+        a.write32(null, 0x2004, 0x33333333);
+        Assert.assertEquals(msg1, 1, a.getAllocatedPages());
+        Assert.assertEquals(msg1, 0x22222222, a.read32(null, 0x2000));
+        Assert.assertEquals(msg1, 0x33333333, a.read32(null, 0x2004));
+        Assert.assertEquals(msg1, 0, b.read32(null, 0x2004));
+        Assert.assertEquals(msg1, 0, base.read32(null, 0x2004));
+
+        //writing 0 to a shared non-zero page also copies it
+        b.write32(null, 0x1000, 0);
+        Assert.assertEquals(msg1, 0, b.read32(null, 0x1000));
+        Assert.assertEquals(msg1, 0x11111111, a.read32(null, 0x1000));
+
+        //the base is copy-on-write as well
+        base.write32(null, 0x1000, 0x44444444);
+        Assert.assertEquals(msg1, 0x11111111, a.read32(null, 0x1000));
+        Assert.assertEquals(msg1, 0x44444444, base.read32(null, 0x1000));
+
+        try {
+            new PagedRAM32(0x20000, 0x1000).shareFrom(base);
+            Assert.fail(msg1);
+        } catch (IllegalArgumentException e) {
+            //OK
+        }
+    }
+
+    @Test
+    public void testPagedRAMClearShared() throws Exception {
+        String msg1 = "PagedRAM32 clear of shared pages failed.";
+        PagedRAM32 base = new PagedRAM32(0x10000, 0x1000);
+        PagedRAM32 a;
+
+        base.write32(null, 0x1000, 0x11111111);
+        base.write32(null, 0x2000, 0x22222222);
+        a = base.fork();
+
+        //clearing a whole shared page does not copy it
+        a.clearBlock(0x1000, 0x1000);
+        Assert.assertEquals(msg1, 0, a.getAllocatedPages());
+        Assert.assertFalse(msg1, a.isAllocatedPage(1));
+        Assert.assertEquals(msg1, 0, a.read32(null, 0x1000));
+        Assert.assertEquals(msg1, 0x11111111, base.read32(null, 0x1000));
+
+        //the cleared page is copy-on-write as a zero page
+        a.write32(null, 0x1004, 0x33333333);
+        Assert.assertEquals(msg1, 1, a.getAllocatedPages());
+        Assert.assertEquals(msg1, 0x33333333, a.read32(null, 0x1004));
+        Assert.assertEquals(msg1, 0, base.read32(null, 0x1004));
+        Assert.assertEquals(msg1, 0, new PagedRAM32(0x10000, 0x1000).read32(null, 0x1004));
+
+        //clearing a part of a shared page copies it
+        a.clearBlock(0x2000, 0x800);
+        Assert.assertEquals(msg1, 2, a.getAllocatedPages());
+        Assert.assertEquals(msg1, 0, a.read32(null, 0x2000));
+        Assert.assertEquals(msg1, 0x22222222, base.read32(null, 0x2000));
+    }
+
+    @Test
+    public void testDirtyPages() throws Exception {
+        RAM[] rams = {
+                new RAM16(0x50000),
+                new RAM32(0x50000),
+                new RAM64(0x50000),
+                new PagedRAM32(0x50000),
+        };
+
+        for (RAM ram : rams) {
+            dirtyPages(ram);
+        }
+    }
+
+    public void dirtyPages(RAM ram) throws Exception {
+        String msg1 = "RAM dirty pages failed.";
+        String msg2 = "RAM write watcher failed.";
+        final int[] watched = new int[1];
+        BitSet b;
+
+        Assert.assertEquals(msg1, 0x50, ram.getDirtyPages());
+        Assert.assertTrue(msg1, ram.fetchAndClearDirty().isEmpty());
+
+        ram.write8(null, 0x1003, (byte)1);
+        ram.write64(null, 0x41ff8, 1);
+        Assert.assertTrue(msg1, ram.isDirty(0x1));
+        Assert.assertTrue(msg1, ram.isDirty(0x41));
+        Assert.assertFalse(msg1, ram.isDirty(0x40));
+
+        //partial range
+        b = ram.fetchAndClearDirty(0x2, 0x4f);
+        Assert.assertEquals(msg1, 1, b.cardinality());
+        Assert.assertTrue(msg1, b.get(0x41));
+        Assert.assertTrue(msg1, ram.isDirty(0x1));
+        Assert.assertFalse(msg1, ram.isDirty(0x41));
+
+        b = ram.fetchAndClearDirty();
+        Assert.assertEquals(msg1, 1, b.cardinality());
+        Assert.assertTrue(msg1, b.get(0x1));
+        Assert.assertTrue(msg1, ram.fetchAndClearDirty().isEmpty());
+
+        //write watcher
+        ram.setWriteWatcher(0x10, new RAMWriteWatcher() {
+            @Override
+            public void pageWritten(RAM ram, int page, long addr) {
+                watched[0]++;
+            }
+        });
+        ram.write8(null, 0x10010, (byte)2);
+        ram.write8(null, 0x11010, (byte)2);
+        Assert.assertEquals(msg2, 1, watched[0]);
+        ram.setWriteWatcher(0x10, null);
+        ram.write8(null, 0x10010, (byte)3);
+        Assert.assertEquals(msg2, 1, watched[0]);
     }
 
     public void alignedAccess(long start, SlaveCore64 obj) throws Exception {
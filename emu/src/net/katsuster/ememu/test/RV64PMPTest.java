@@ -0,0 +1,82 @@
+package net.katsuster.ememu.test;
+
+import org.junit.*;
+
+import net.katsuster.ememu.riscv.core.*;
+
+import static net.katsuster.ememu.riscv.core.RV64CSRFile.*;
+import static net.katsuster.ememu.riscv.core.RV64PMP.*;
+
+public class RV64PMPTest {
+    private static long cfg(int a, boolean l, boolean r, boolean w, boolean x) {
+        return (a << PMPCFG_A) | (l ? (1 << PMPCFG_L) : 0) |
+                (r ? (1 << PMPCFG_R) : 0) | (w ? (1 << PMPCFG_W) : 0) |
+                (x ? (1 << PMPCFG_X) : 0);
+    }
+
+    @Test
+    public void testNoEntry() throws Exception {
+        String msg1 = "PMP without entries failed.";
+        RV64 c = new RV64();
+        RV64PMP pmp = c.getPMP();
+
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_M, 0x80000000L, 8, ACCESS_WRITE));
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_U, 0x80000000L, 8, ACCESS_WRITE));
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_S, 0x1000L, 4, ACCESS_EXEC));
+    }
+
+    @Test
+    public void testTORAndNAPOT() throws Exception {
+        String msg1 = "PMP TOR/NAPOT failed.";
+        RV64 c = new RV64();
+        RV64PMP pmp = c.getPMP();
+
+        //entry 0: NAPOT 0x8000_0000 - 0x8001_ffff, no permission
+        //entry 1: NAPOT 0x0000_0000 - 0xffff_ffff, RWX
+        //entry 2: TOR   0x7fff_fffc - 0x1_0000_0fff, R
+        c.setCSR(CSR_PMPADDR0, (0x80000000L >>> 2) | ((0x20000 >>> 3) - 1));
+        c.setCSR(CSR_PMPADDR1, (0x100000000L >>> 3) - 1);
+        c.setCSR(CSR_PMPADDR2, 0x100001000L >>> 2);
+        c.setCSR(CSR_PMPCFG0, cfg(PMPCFG_A_NAPOT, false, false, false, false) |
+                (cfg(PMPCFG_A_NAPOT, false, true, true, true) << 8) |
+                (cfg(PMPCFG_A_TOR, false, true, false, false) << 16));
+
+        //M mode without locked entries is not checked
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_M, 0x80000000L, 8, ACCESS_WRITE));
+
+        Assert.assertFalse(msg1, pmp.isAllowed(RV64.PRIV_S, 0x80000000L, 8, ACCESS_READ));
+        Assert.assertFalse(msg1, pmp.isAllowed(RV64.PRIV_S, 0x8001fff8L, 8, ACCESS_READ));
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_S, 0x80020000L, 8, ACCESS_READ));
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_S, 0x7ffffff8L, 8, ACCESS_EXEC));
+        //partially matched
+        Assert.assertFalse(msg1, pmp.isAllowed(RV64.PRIV_S, 0x7ffffffcL, 8, ACCESS_READ));
+        //TOR (bottom is pmpaddr1 itself)
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_U, 0x100000000L, 4, ACCESS_READ));
+        Assert.assertFalse(msg1, pmp.isAllowed(RV64.PRIV_U, 0x100000000L, 4, ACCESS_WRITE));
+        //no entry matched
+        Assert.assertFalse(msg1, pmp.isAllowed(RV64.PRIV_U, 0x100001000L, 4, ACCESS_READ));
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_M, 0x100001000L, 4, ACCESS_READ));
+    }
+
+    @Test
+    public void testLocked() throws Exception {
+        String msg1 = "PMP locked entry failed.";
+        RV64 c = new RV64();
+        RV64PMP pmp = c.getPMP();
+
+        //entry 0: NA4 0x1000, locked, read only
+        c.setCSR(CSR_PMPADDR0, 0x1000L >>> 2);
+        c.setCSR(CSR_PMPCFG0, cfg(PMPCFG_A_NA4, true, true, false, false));
+
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_M, 0x1000L, 4, ACCESS_READ));
+        Assert.assertFalse(msg1, pmp.isAllowed(RV64.PRIV_M, 0x1000L, 4, ACCESS_WRITE));
+        Assert.assertFalse(msg1, pmp.isAllowed(RV64.PRIV_M, 0x1000L, 4, ACCESS_EXEC));
+        Assert.assertTrue(msg1, pmp.isAllowed(RV64.PRIV_M, 0x1004L, 4, ACCESS_WRITE));
+
+        //locked entry is not writable
+        c.setCSR(CSR_PMPADDR0, 0x2000L >>> 2);
+        c.setCSR(CSR_PMPCFG0, 0);
+        Assert.assertEquals(msg1, 0x1000L >>> 2, c.getCSR(CSR_PMPADDR0));
+        Assert.assertFalse(msg1, pmp.isAllowed(RV64.PRIV_M, 0x1000L, 4, ACCESS_WRITE));
+    }
+}
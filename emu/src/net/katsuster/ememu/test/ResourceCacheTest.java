@@ -0,0 +1,168 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+
+import net.katsuster.ememu.generic.PagedRAM32;
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.ui.*;
+
+public class ResourceCacheTest {
+    private HttpServer server;
+    private volatile byte[] content;
+    private volatile String etag;
+    private AtomicInteger fullCount = new AtomicInteger();
+    private AtomicInteger notModifiedCount = new AtomicInteger();
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                byte[] b = content;
+
+                if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModifiedCount.incrementAndGet();
+                    ex.sendResponseHeaders(304, -1);
+                    ex.close();
+                    return;
+                }
+                fullCount.incrementAndGet();
+                ex.getResponseHeaders().set("ETag", etag);
+                ex.sendResponseHeaders(200, b.length);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(b);
+                }
+            }
+        });
+        server.start();
+
+        dir = Files.createTempDirectory("ememu-cache").toFile();
+        content = newContent(100000, 1);
+        etag = "\"v1\"";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.stop(0);
+        }
+        deleteAll(dir);
+    }
+
+    private static void deleteAll(File f) {
+        File[] l = f.listFiles();
+
+        if (l != null) {
+            for (File c : l) {
+                deleteAll(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static byte[] newContent(int len, int seed) {
+        byte[] b = new byte[len];
+
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte)(i * 31 + seed);
+        }
+
+        return b;
+    }
+
+    private URI getURI(String path) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        String msg1 = "Content is wrong.";
+        String msg2 = "Not fetched.";
+        String msg3 = "Not revalidated.";
+        ResourceCache c = new ResourceCache(dir, false);
+        URI uri = getURI("/Image");
+
+        Assert.assertArrayEquals(msg1, content, Files.readAllBytes(c.getFile(uri).toPath()));
+        Assert.assertEquals(msg2, 1, fullCount.get());
+
+        //2回目は 304 Not Modified となり、保存済みのファイルを使う
+        Assert.assertArrayEquals(msg1, content, Files.readAllBytes(c.getFile(uri).toPath()));
+        Assert.assertEquals(msg2, 1, fullCount.get());
+        Assert.assertEquals(msg3, 1, notModifiedCount.get());
+
+        //サーバ側で更新されたら取得し直す
+        content = newContent(5000, 2);
+        etag = "\"v2\"";
+        Assert.assertArrayEquals(msg1, content, Files.readAllBytes(c.getFile(uri).toPath()));
+        Assert.assertEquals(msg2, 2, fullCount.get());
+    }
+
+    @Test
+    public void testOffline() throws Exception {
+        String msg1 = "Content is wrong.";
+        String msg2 = "Accessed network in offline mode.";
+        String msg3 = "Uncached URI is loaded in offline mode.";
+        ResourceCache c = new ResourceCache(dir, false);
+        URI uri = getURI("/initrd");
+        byte[] exp = content;
+
+        c.getFile(uri);
+        server.stop(0);
+        server = null;
+
+        //サーバに接続できなくても保存済みのファイルを使う
+        Assert.assertArrayEquals(msg1, exp, Files.readAllBytes(c.getFile(uri).toPath()));
+
+        c = new ResourceCache(dir, true);
+        Assert.assertArrayEquals(msg1, exp, Files.readAllBytes(c.getFile(uri).toPath()));
+        Assert.assertEquals(msg2, 1, fullCount.get());
+        try {
+            c.getFile(URI.create("http://127.0.0.1:1/none"));
+            Assert.fail(msg3);
+        } catch (IOException e) {
+            //OK
+        }
+    }
+
+    @Test
+    public void testBroken() throws Exception {
+        String msg1 = "Content is wrong.";
+        String msg2 = "Broken file is used.";
+        ResourceCache c = new ResourceCache(dir, false);
+        URI uri = getURI("/dtb");
+        File f = c.getFile(uri);
+
+        //同じ大きさの異なる内容に書き換える
+        Files.write(f.toPath(), newContent(content.length, 3));
+        Assert.assertArrayEquals(msg1, content, Files.readAllBytes(c.getFile(uri).toPath()));
+        Assert.assertEquals(msg2, 2, fullCount.get());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        String msg1 = "Size is wrong.";
+        String msg2 = "Content is wrong.";
+        ResourceCache c = new ResourceCache(dir, false);
+        Bus64 bus = new Bus64();
+        PagedRAM32 ram = new PagedRAM32(0x40000);
+        ByteBuffer s;
+
+        bus.addSlaveCore(ram, 0x10000, 0x4ffff);
+
+        s = c.map(getURI("/Image"));
+        Assert.assertEquals(msg1, content.length,
+                BinaryLoader.writeBuffer(s, bus, null, 0x10003));
+        for (int i = 0; i < content.length; i++) {
+            Assert.assertEquals(msg2 + " at " + i, content[i], bus.read8(null, 0x10003 + i));
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.nio.file.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.riscv.SPI;
+
+public class SDCardTest {
+    private static final long BASE = 0x10050000L;
+    private static final int BLOCKS = 16;
+
+    private Bus64 bus;
+    private SPI spi;
+    private SDCard card;
+    private File image;
+
+    @Before
+    public void setUp() throws Exception {
+        Bus64 busSpi = new Bus64();
+        byte[] b = new byte[BLOCKS * SDCard.BLOCK_SIZE];
+
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte)(i / SDCard.BLOCK_SIZE + i);
+        }
+        image = File.createTempFile("ememu", ".img");
+        image.deleteOnExit();
+        Files.write(image.toPath(), b);
+
+        bus = new Bus64();
+        spi = new SPI("spi");
+        card = new SDCard("sdcard");
+        spi.setDirectTransfer(true);
+        bus.addSlaveCore(spi.getSlaveCore(), BASE, BASE + 0xfff);
+        busSpi.addMasterCore(spi.getMasterCore());
+        busSpi.addSlaveCore(card.getSlaveCore(), 0, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        card.getStorage().close();
+    }
+
+    /**
+     * SPI のレジスタを介して 1バイト送受信します。
+     */
+    private int spiTransfer(int b) {
+        int r;
+
+        bus.write32(null, BASE + SPI.REG_TXDATA, b);
+        r = bus.read32(null, BASE + SPI.REG_RXDATA);
+        //スレッドを介さずに受信できている
+        Assert.assertEquals("Rx FIFO is empty.", 0, r & 0x80000000);
+
+        return r & 0xff;
+    }
+
+    private int spiCommand(int cmd, int arg) {
+        int r = 0xff;
+
+        spiTransfer(0x40 | cmd);
+        spiTransfer(arg >>> 24);
+        spiTransfer((arg >>> 16) & 0xff);
+        spiTransfer((arg >>> 8) & 0xff);
+        spiTransfer(arg & 0xff);
+        spiTransfer(0x01);
+        for (int i = 0; i < 8 && r == 0xff; i++) {
+            r = spiTransfer(0xff);
+        }
+
+        return r;
+    }
+
+    private int frameCommand(int cmd, int arg) {
+        byte[] tx = {
+                (byte)(0x40 | cmd), (byte)(arg >>> 24), (byte)(arg >>> 16),
+                (byte)(arg >>> 8), (byte)arg, 0x01,
+        };
+        byte[] rx = new byte[1];
+
+        card.transfer(tx, 0, null, 0, tx.length);
+        for (int i = 0; i < 8; i++) {
+            card.transfer(null, 0, rx, 0, rx.length);
+            if (rx[0] != (byte)0xff) {
+                break;
+            }
+        }
+
+        return rx[0] & 0xff;
+    }
+
+    /**
+     * データトークンまで読み飛ばし、データブロックと CRC を受信します。
+     */
+    private byte[] frameReadBlock(int len) {
+        byte[] rx = new byte[len + 2];
+        byte[] t = new byte[1];
+
+        for (int i = 0; i < 8; i++) {
+            card.transfer(null, 0, t, 0, 1);
+            if (t[0] != (byte)0xff) {
+                break;
+            }
+        }
+        Assert.assertEquals("Data token is wrong.", (byte)SDCard.TOKEN_START_BLOCK, t[0]);
+        card.transfer(null, 0, rx, 0, rx.length);
+        Assert.assertEquals("CRC is wrong.", SDCard.getCRC16(rx, 0, len),
+                ((rx[len] & 0xff) << 8) | (rx[len + 1] & 0xff));
+
+        return rx;
+    }
+
+    @Test
+    public void testSPIDirect() throws Exception {
+        String msg1 = "Response is wrong.";
+        String msg2 = "Read data is wrong.";
+        String msg3 = "CRC is wrong.";
+        byte[] data = new byte[SDCard.BLOCK_SIZE];
+        int crc, t = 0xff;
+
+        card.getStorage().open(image, false);
+        Assert.assertEquals(msg1, 0x01, spiCommand(0, 0));
+        Assert.assertEquals(msg1, 0x01, spiCommand(55, 0));
+        Assert.assertEquals(msg1, 0x00, spiCommand(41, 0x40000000));
+
+        //CMD17: READ_SINGLE_BLOCK
+        Assert.assertEquals(msg1, 0x00, spiCommand(17, 3));
+        for (int i = 0; i < 8 && t == 0xff; i++) {
+            t = spiTransfer(0xff);
+        }
+        Assert.assertEquals(msg1, SDCard.TOKEN_START_BLOCK, t);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)spiTransfer(0xff);
+            Assert.assertEquals(msg2, (byte)(3 * SDCard.BLOCK_SIZE + i + 3), data[i]);
+        }
+        crc = spiTransfer(0xff) << 8;
+        crc |= spiTransfer(0xff);
+        Assert.assertEquals(msg3, SDCard.getCRC16(data, 0, data.length), crc);
+        Assert.assertEquals(msg1, 0xff, spiTransfer(0xff));
+    }
+
+    @Test
+    public void testSPIDirectRxFull() throws Exception {
+        String msg1 = "Tx FIFO is not full.";
+        String msg2 = "Received data is lost.";
+        String msg3 = "Response is wrong.";
+        int[] cmd = {0x40, 0, 0, 0, 0, 0x95};
+        int[] rx = new int[16];
+        boolean found = false;
+
+        //受信 FIFO を読まずに、受信 FIFO と送信 FIFO の大きさの分だけ送信する
+        card.getStorage().open(image, false);
+        for (int i = 0; i < rx.length; i++) {
+            bus.write32(null, BASE + SPI.REG_TXDATA, (i < cmd.length) ? cmd[i] : 0xff);
+        }
+        Assert.assertNotEquals(msg1, 0,
+                bus.read32(null, BASE + SPI.REG_TXDATA) & 0x80000000);
+
+        //受信 FIFO が空くたびに残りを送受信し、1バイトも捨てない
+        for (int i = 0; i < rx.length; i++) {
+            rx[i] = bus.read32(null, BASE + SPI.REG_RXDATA);
+            Assert.assertEquals(msg2, 0, rx[i] & 0x80000000);
+            if (i >= cmd.length && rx[i] == 0x01) {
+                found = true;
+            }
+        }
+        Assert.assertNotEquals(msg2, 0, bus.read32(null, BASE + SPI.REG_RXDATA) & 0x80000000);
+        Assert.assertTrue(msg3, found);
+    }
+
+    @Test
+    public void testFrame() throws Exception {
+        String msg1 = "Response is wrong.";
+        String msg2 = "Read data is wrong.";
+        String msg3 = "Written data is wrong.";
+        byte[] rx, tx, img;
+        int base = 2 * SDCard.BLOCK_SIZE;
+
+        card.getStorage().open(image, false);
+
+        //CMD18: READ_MULTIPLE_BLOCK, CMD12 で止める
+        Assert.assertEquals(msg1, 0x00, frameCommand(18, 2));
+        for (int n = 0; n < 2; n++) {
+            rx = frameReadBlock(SDCard.BLOCK_SIZE);
+            for (int i = 0; i < SDCard.BLOCK_SIZE; i++) {
+                Assert.assertEquals(msg2, (byte)(base + n * SDCard.BLOCK_SIZE + i + 2 + n), rx[i]);
+            }
+        }
+        Assert.assertEquals(msg1, 0x00, frameCommand(12, 0));
+
+        //CMD25: WRITE_MULTIPLE_BLOCK
+        tx = new byte[SDCard.BLOCK_SIZE + 2];
+        rx = new byte[4];
+        Assert.assertEquals(msg1, 0x00, frameCommand(25, 5));
+        for (int n = 0; n < 2; n++) {
+            for (int i = 0; i < SDCard.BLOCK_SIZE; i++) {
+                tx[i] = (byte)(0xa0 + n);
+            }
+            card.transfer(new byte[] {(byte)SDCard.TOKEN_START_BLOCK_MULTI}, 0, null, 0, 1);
+            card.transfer(tx, 0, null, 0, tx.length);
+            card.transfer(null, 0, rx, 0, rx.length);
+            //CRC の次のバイトでデータレスポンス、その後 busy
+            Assert.assertEquals(msg1, SDCard.DATA_ACCEPTED, rx[0] & 0x1f);
+            Assert.assertEquals(msg1, 0x00, rx[1]);
+            Assert.assertEquals(msg1, (byte)0xff, rx[2]);
+        }
+        card.transfer(new byte[] {(byte)SDCard.TOKEN_STOP_TRAN}, 0, null, 0, 1);
+        card.transfer(null, 0, rx, 0, rx.length);
+
+        //CMD17 で読み戻す
+        Assert.assertEquals(msg1, 0x00, frameCommand(17, 6));
+        rx = frameReadBlock(SDCard.BLOCK_SIZE);
+        Assert.assertEquals(msg3, (byte)0xa1, rx[0]);
+
+        card.getStorage().close();
+        img = Files.readAllBytes(image.toPath());
+        for (int i = 0; i < 2 * SDCard.BLOCK_SIZE; i++) {
+            Assert.assertEquals(msg3, (byte)(0xa0 + i / SDCard.BLOCK_SIZE),
+                    img[5 * SDCard.BLOCK_SIZE + i]);
+        }
+        Assert.assertEquals(msg3, (byte)(7 * SDCard.BLOCK_SIZE + 7), img[7 * SDCard.BLOCK_SIZE]);
+    }
+
+    @Test
+    public void testError() throws Exception {
+        String msg1 = "Response is wrong.";
+        String msg2 = "CSD is wrong.";
+        byte[] rx;
+
+        card.getStorage().open(image, true);
+
+        //範囲外のブロック
+        Assert.assertEquals(msg1, SDCard.R1_PARAMETER_ERROR, frameCommand(17, BLOCKS));
+        Assert.assertEquals(msg1, SDCard.R1_PARAMETER_ERROR, frameCommand(24, BLOCKS));
+
+        //複数ブロックの読み出しが末尾を越えたらエラートークンを返す
+        Assert.assertEquals(msg1, 0x00, frameCommand(18, BLOCKS - 1));
+        frameReadBlock(SDCard.BLOCK_SIZE);
+        rx = new byte[4];
+        card.transfer(null, 0, rx, 0, rx.length);
+        Assert.assertEquals(msg1, (byte)0xff, rx[0]);
+        Assert.assertEquals(msg1, (byte)SDCard.TOKEN_OUT_OF_RANGE, rx[1]);
+        Assert.assertEquals(msg1, 0x00, frameCommand(12, 0));
+
+        //読み出し専用のカードへの書き込み
+        Assert.assertEquals(msg1, 0x00, frameCommand(24, 0));
+        card.transfer(new byte[] {(byte)SDCard.TOKEN_START_BLOCK}, 0, null, 0, 1);
+        card.transfer(new byte[SDCard.BLOCK_SIZE + 2], 0, null, 0, SDCard.BLOCK_SIZE + 2);
+        card.transfer(null, 0, rx, 0, rx.length);
+        Assert.assertEquals(msg1, SDCard.DATA_WRITE_ERROR, rx[0] & 0x1f);
+
+        //CMD9: SEND_CSD, C_SIZE は 512KB 単位
+        Assert.assertEquals(msg1, 0x00, frameCommand(9, 0));
+        rx = frameReadBlock(16);
+        Assert.assertEquals(msg2, 0x40, rx[0] & 0xff);
+        Assert.assertEquals(msg2, 0, ((rx[7] & 0x3f) << 16) | ((rx[8] & 0xff) << 8) | (rx[9] & 0xff));
+    }
+}
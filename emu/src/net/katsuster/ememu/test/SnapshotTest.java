@@ -0,0 +1,185 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.arm.*;
+import net.katsuster.ememu.arm.core.*;
+import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.riscv.core.*;
+
+import static net.katsuster.ememu.riscv.core.RV64CSRFile.*;
+
+public class SnapshotTest {
+    private static byte[] save(Snapshottable s) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+        try (SnapshotOutputStream out = new SnapshotOutputStream(bout, 2)) {
+            out.writeState("target", s);
+        }
+
+        return bout.toByteArray();
+    }
+
+    private static void load(byte[] b, Snapshottable s) throws IOException {
+        try (SnapshotInputStream in = new SnapshotInputStream(
+                new ByteArrayInputStream(b), 2)) {
+            in.readState("target", s);
+        }
+    }
+
+    private static void checkRAM(String msg, RAM a, RAM b) {
+        for (long addr = 0; addr < a.getSize(); addr += 4) {
+            Assert.assertEquals(msg + String.format(" addr:0x%x", addr),
+                    a.read32(null, addr), b.read32(null, addr));
+        }
+    }
+
+    public void ramSnapshot(RAM src, RAM dst, RAM dst2) throws Exception {
+        String msg1 = "RAM snapshot failed.";
+        String msg2 = "RAM snapshot of different size is not rejected.";
+        byte[] b;
+
+        //先頭、チャンク境界をまたぐ位置、末尾に書き込む
+        for (int i = 0; i < 64; i++) {
+            src.write32(null, i * 4, 0x01010101 * i);
+        }
+        src.write32(null, RAM.SNAPSHOT_CHUNK_SIZE - 4, 0xdeadbeef);
+        src.write32(null, RAM.SNAPSHOT_CHUNK_SIZE, 0xcafebabe);
+        src.write8(null, src.getSize() - 1, (byte)0x5a);
+        //復元先の古い内容は消える
+        dst.write32(null, RAM.SNAPSHOT_CHUNK_SIZE * 2, 0x12345678);
+
+        b = save(src);
+        load(b, dst);
+        checkRAM(msg1, src, dst);
+
+        try {
+            load(b, dst2);
+            Assert.fail(msg2);
+        } catch (IOException e) {
+            //OK
+        }
+    }
+
+    @Test
+    public void testRAM() throws Exception {
+        int size = RAM.SNAPSHOT_CHUNK_SIZE * 4;
+
+        ramSnapshot(new RAM16(size), new RAM16(size), new RAM16(size / 2));
+        ramSnapshot(new RAM32(size), new RAM32(size), new RAM32(size / 2));
+        ramSnapshot(new RAM64(size), new RAM64(size), new RAM64(size / 2));
+        ramSnapshot(new PagedRAM32(size, PagedRAM32.PAGE_SIZE_4K),
+                new PagedRAM32(size), new PagedRAM32(size / 2));
+    }
+
+    @Test
+    public void testPagedRAMStaysSparse() throws Exception {
+        String msg1 = "Restoring zero chunks allocated pages.";
+        PagedRAM32 src = new PagedRAM32(16 * 1024 * 1024);
+        PagedRAM32 dst = new PagedRAM32(16 * 1024 * 1024);
+
+        src.write32(null, 0x100000, 1);
+        load(save(src), dst);
+
+        Assert.assertEquals(msg1, 1, dst.getAllocatedPages());
+        Assert.assertEquals(msg1, 1, dst.read32(null, 0x100000));
+    }
+
+    @Test
+    public void testARMv5() throws Exception {
+        String msg1 = "ARMv5 snapshot failed.";
+        ARMv5 src = new ARMv5();
+        ARMv5 dst = new ARMv5();
+        CoProc cp15 = src.getCoproc(15);
+
+        src.getCPSR().setMode(PSR.MODE_SVC);
+        src.setRegRaw(0, 0x100);
+        src.setRegRaw(13, 0x200);
+        src.getCPSR().setMode(PSR.MODE_IRQ);
+        src.setRegRaw(13, 0x300);
+        src.getSPSR().setValue(0x13);
+        src.getCPSR().setMode(PSR.MODE_FIQ);
+        src.setRegRaw(8, 0x400);
+        cp15.setCReg(CoProcStdv5.CR02_MMU_TTBR0, 0x4000);
+        cp15.setCReg(CoProcStdv5.CR03_MMU_DACR, 0x5);
+        src.setHighVector(true);
+
+        load(save(src), dst);
+
+        Assert.assertEquals(msg1, PSR.MODE_FIQ, dst.getCPSR().getMode());
+        Assert.assertEquals(msg1, 0x100, dst.getRegRaw(0));
+        Assert.assertEquals(msg1, 0x400, dst.getRegRaw(8));
+        dst.getCPSR().setMode(PSR.MODE_IRQ);
+        Assert.assertEquals(msg1, 0x300, dst.getRegRaw(13));
+        Assert.assertEquals(msg1, 0x13, dst.getSPSR().getValue());
+        Assert.assertEquals(msg1, 0, dst.getRegRaw(8));
+        dst.getCPSR().setMode(PSR.MODE_SVC);
+        Assert.assertEquals(msg1, 0x200, dst.getRegRaw(13));
+
+        Assert.assertEquals(msg1, 0x4000,
+                dst.getCoproc(15).getCReg(CoProcStdv5.CR02_MMU_TTBR0));
+        Assert.assertEquals(msg1, 0x4000, dst.getMMU().getTableBase());
+        Assert.assertEquals(msg1, 1, dst.getMMU().getDomainAccess(0));
+        Assert.assertEquals(msg1, 1, dst.getMMU().getDomainAccess(1));
+        Assert.assertTrue(msg1, dst.isHighVector());
+    }
+
+    @Test
+    public void testRV64() throws Exception {
+        String msg1 = "RV64 snapshot failed.";
+        RV64 src = new RV64();
+        RV64 dst = new RV64();
+
+        src.setReg(10, 0x1234567890L);
+        src.setPC(0x80000000L);
+        src.setCSR(CSR_MTVEC, 0x80001000L);
+        //entry 0: NA4 0x1000, locked, R
+        src.setCSR(CSR_PMPADDR0, 0x1000L >>> 2);
+        src.setCSR(CSR_PMPCFG0, (PMPCFG_A_NA4 << PMPCFG_A) |
+                (1 << PMPCFG_L) | (1 << PMPCFG_R));
+
+        load(save(src), dst);
+
+        Assert.assertEquals(msg1, 0x1234567890L, dst.getReg(10));
+        Assert.assertEquals(msg1, 0x80000000L, dst.getPC());
+        Assert.assertEquals(msg1, 0x80001000L, dst.getCSR(CSR_MTVEC));
+        Assert.assertEquals(msg1, 0x1000L >>> 2, dst.getCSR(CSR_PMPADDR0));
+        Assert.assertTrue(msg1, dst.getPMP().isLocked(0));
+        Assert.assertFalse(msg1, dst.getPMP().isAllowed(RV64.PRIV_M,
+                0x1000L, 4, RV64PMP.ACCESS_WRITE));
+    }
+
+    @Test
+    public void testDevice() throws Exception {
+        String msg1 = "Device snapshot failed.";
+        DualTimer src = new DualTimer("src");
+        DualTimer dst = new DualTimer("dst");
+
+        src.getSlaveCore().write32(null, DualTimer.REG_Timer1Load, 0x1000);
+        src.getSlaveCore().write32(null, DualTimer.REG_Timer1Control, 0xe2);
+
+        load(save(src), dst);
+
+        Assert.assertEquals(msg1, 0x1000,
+                dst.getSlaveCore().read32(null, DualTimer.REG_Timer1Load));
+        Assert.assertEquals(msg1,
+                src.getSlaveCore().read32(null, DualTimer.REG_Timer1Control),
+                dst.getSlaveCore().read32(null, DualTimer.REG_Timer1Control));
+    }
+
+    @Test
+    public void testSectionMismatch() throws Exception {
+        String msg1 = "Mismatched section is not rejected.";
+        byte[] b = save(new RAM32(4096));
+
+        try (SnapshotInputStream in = new SnapshotInputStream(
+                new ByteArrayInputStream(b), 1)) {
+            in.readState("other", new RAM32(4096));
+            Assert.fail(msg1);
+        } catch (IOException e) {
+            //OK
+        }
+    }
+}
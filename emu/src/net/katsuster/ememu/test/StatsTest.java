@@ -0,0 +1,68 @@
+package net.katsuster.ememu.test;
+
+import java.lang.management.*;
+import javax.management.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.arm.core.*;
+import net.katsuster.ememu.generic.bus.*;
+import net.katsuster.ememu.generic.stats.*;
+
+public class StatsTest {
+    @Test
+    public void testCPUStats() throws Exception {
+        String msg1 = "Instruction count is wrong.";
+        String msg2 = "Top opcodes are wrong.";
+        String msg3 = "Exception count is wrong.";
+        CPUStats s = new CPUStats(OpIndex.values());
+        String[] top;
+
+        for (int i = 0; i < 10; i++) {
+            s.instruction(OpIndex.INS_ARM_LDR.ordinal());
+        }
+        for (int i = 0; i < 3; i++) {
+            s.instruction(OpIndex.INS_ARM_STR.ordinal());
+        }
+        s.exception(true);
+        s.exception(true);
+        s.exception(false);
+
+        Assert.assertEquals(msg1, 13, s.getInstructions());
+        Assert.assertEquals(msg1, 10, s.getOpcodeCounts()[OpIndex.INS_ARM_LDR.ordinal()]);
+        top = s.getTopOpcodes();
+        Assert.assertEquals(msg2, 2, top.length);
+        Assert.assertEquals(msg2, "INS_ARM_LDR 10", top[0]);
+        Assert.assertEquals(msg2, "INS_ARM_STR 3", top[1]);
+        Assert.assertEquals(msg3, 2, s.getInterrupts());
+        Assert.assertEquals(msg3, 1, s.getExceptions());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        String msg1 = "Statistics are not registered to MBean server.";
+        String msg2 = "Statistics are not unregistered from MBean server.";
+        MBeanServer srv = ManagementFactory.getPlatformMBeanServer();
+        CPUStats s = new CPUStats(OpIndex.values());
+        StatsMonitor m = new StatsMonitor("statstest", new CPUStats[] {s},
+                new BusStats(new Bus64()), 0);
+        ObjectName cpu = new ObjectName(StatsMonitor.DOMAIN +
+                ":name=\"statstest\",type=CPU,id=0");
+        ObjectName bus = new ObjectName(StatsMonitor.DOMAIN +
+                ":name=\"statstest\",type=Bus");
+        long start = System.currentTimeMillis();
+
+        s.instruction(0);
+        m.start();
+        while (!srv.isRegistered(bus)) {
+            Assert.assertTrue(msg1, System.currentTimeMillis() - start < 10000);
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(msg1, 1L, srv.getAttribute(cpu, "Instructions"));
+        Assert.assertEquals(msg1, 0, ((String[])srv.getAttribute(bus, "IOAccesses")).length);
+
+        m.halt();
+        Assert.assertFalse(msg2, srv.isRegistered(cpu));
+        Assert.assertFalse(msg2, srv.isRegistered(bus));
+    }
+}
@@ -0,0 +1,159 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.arm.core.*;
+import net.katsuster.ememu.generic.trace.*;
+
+import static net.katsuster.ememu.generic.trace.TraceRecorder.*;
+
+public class TraceTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        String msg1 = "Trace header is wrong.";
+        String msg2 = "Instruction record is wrong.";
+        String msg3 = "Register record is wrong.";
+        String msg4 = "Memory record is wrong.";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TraceWriter w;
+        TraceRecorder r0, r1;
+        ARMv5 c = new ARMv5();
+        TraceReader rd;
+        TraceEvent ev;
+
+        w = new TraceWriter(out, "arm");
+        r0 = w.newRecorder(0, TRACE_REGS | TRACE_MEM);
+        r1 = w.newRecorder(1, 0);
+
+        //連続した命令、分岐先の命令、Thumb 命令
+        r0.instruction(0x8000, new InstructionARM(0xe3a00201), 0);
+        r0.instruction(0x8004, new InstructionARM(0xe5801000), 0);
+        r0.memory(0x101f1000L, 4, 0x4f);
+        r0.instruction(0x9000, new InstructionThumb(0x2001), 1);
+        c.setRegRaw(3, 0x12345678);
+        r0.registers(c);
+        r0.registers(c);
+        r1.instruction(0x20000000L, new InstructionARM(0xe1a00000), 0);
+        w.close();
+
+        rd = new TraceReader(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(msg1, "arm", rd.getArch());
+
+        ev = rd.next();
+        Assert.assertEquals(msg2, REC_INST, ev.getType());
+        Assert.assertEquals(msg2, 0, ev.getCPU());
+        Assert.assertEquals(msg2, 0x8000, ev.getAddress());
+        Assert.assertEquals(msg2, 0xe3a00201, ev.getInst());
+        Assert.assertEquals(msg2, 4, ev.getLength());
+
+        ev = rd.next();
+        Assert.assertEquals(msg2, REC_INST, ev.getType());
+        Assert.assertEquals(msg2, 0x8004, ev.getAddress());
+        Assert.assertEquals(msg2, 0xe5801000, ev.getInst());
+
+        ev = rd.next();
+        Assert.assertEquals(msg4, REC_MEM, ev.getType());
+        Assert.assertEquals(msg4, 0x101f1000L, ev.getAddress());
+        Assert.assertEquals(msg4, 0x4f, ev.getValue());
+        Assert.assertEquals(msg4, 4, ev.getLength());
+
+        ev = rd.next();
+        Assert.assertEquals(msg2, REC_INST, ev.getType());
+        Assert.assertEquals(msg2, 0x9000, ev.getAddress());
+        Assert.assertEquals(msg2, 0x2001, ev.getInst());
+        Assert.assertEquals(msg2, 2, ev.getLength());
+        Assert.assertEquals(msg2, 1, ev.getMode());
+
+        //変化したレジスタのみ、1度だけ記録される
+        ev = rd.next();
+        Assert.assertEquals(msg3, REC_REG, ev.getType());
+        Assert.assertEquals(msg3, 3, ev.getReg());
+        Assert.assertEquals(msg3, 0x12345678L, ev.getValue());
+
+        ev = rd.next();
+        Assert.assertEquals(msg2, REC_INST, ev.getType());
+        Assert.assertEquals(msg2, 1, ev.getCPU());
+        Assert.assertEquals(msg2, 0x20000000L, ev.getAddress());
+
+        Assert.assertNull(msg2, rd.next());
+        rd.close();
+    }
+
+    @Test
+    public void testFlightRecorder() throws Exception {
+        String msg1 = "Flight recorder did not keep the last events.";
+        String msg2 = "Flight recorder dump is wrong.";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ARMv5 c = new ARMv5();
+        FlightRecorder f = new FlightRecorder(4);
+        String s;
+
+        c.setFlightRecorder(f);
+        for (int i = 0; i < 10; i++) {
+            f.instruction(0x8000 + i * 4, 0xe1a00000, 4, 0);
+        }
+        f.exception(1, "test exception");
+        f.io(true, 0x101f1000L, 4, 0x41);
+        Assert.assertEquals(msg1, 12, f.getCount());
+
+        c.dumpFlightRecorder(new PrintStream(out, true, "UTF-8"));
+        s = out.toString("UTF-8");
+        Assert.assertTrue(msg2, s.contains("last 4 of 12 events"));
+        Assert.assertFalse(msg2, s.contains("00008018"));
+        Assert.assertTrue(msg2, s.contains("00008020"));
+        Assert.assertTrue(msg2, s.contains("00008024"));
+        Assert.assertTrue(msg2, s.contains("mov"));
+        Assert.assertTrue(msg2, s.contains("exception 1: test exception"));
+        Assert.assertTrue(msg2, s.contains("[0x101f1000] <- 0x00000041 (4)"));
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        String msg1 = "Histogram lost samples while growing.";
+        PCHistogram h = new PCHistogram();
+        int len = PCHistogram.INITIAL_CAPACITY * 4;
+        long[] pcs = new long[len + 1];
+        int[] modes = new int[len + 1];
+        long[] counts = new long[len + 1];
+        long sum = 0;
+
+        for (int i = 0; i < len; i++) {
+            h.add(0xffffffe000000000L + i * 4, i & 1);
+            h.add(0xffffffe000000000L + i * 4, i & 1);
+        }
+        h.add(0x8000, 0x13, 5);
+        Assert.assertEquals(msg1, len + 1, h.size());
+
+        int n = h.getEntries(pcs, modes, counts);
+        Assert.assertEquals(msg1, len + 1, n);
+        for (int i = 0; i < n; i++) {
+            sum += counts[i];
+        }
+        Assert.assertEquals(msg1, len * 2 + 5, sum);
+    }
+
+    @Test
+    public void testSymbolTable() throws Exception {
+        String msg1 = "Symbol lookup is wrong.";
+        String map = "c0008000 T stext\n" +
+                "c0008100 t __loop\n" +
+                "c0100000 D jiffies\n" +
+                "ffffffe000000000 T high\n";
+        SymbolTable t = SymbolTable.loadSystemMap(
+                new ByteArrayInputStream(map.getBytes("UTF-8")));
+
+        Assert.assertEquals(msg1, 3, t.size());
+        Assert.assertNull(msg1, t.lookup(0xc0007ffcL));
+        Assert.assertEquals(msg1, "stext", t.lookup(0xc0008000L));
+        Assert.assertEquals(msg1, "stext", t.lookup(0xc00080fcL));
+        Assert.assertEquals(msg1, "__loop", t.lookup(0xc0100004L));
+        Assert.assertEquals(msg1, "high", t.lookup(0xffffffe000000010L));
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadMagic() throws Exception {
+        new TraceReader(new ByteArrayInputStream(new byte[64]));
+    }
+}
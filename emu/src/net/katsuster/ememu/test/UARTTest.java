@@ -0,0 +1,183 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.arm.*;
+import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.core.*;
+
+import static net.katsuster.ememu.arm.UART.*;
+
+public class UARTTest {
+    private static boolean isSet(int v, int bit) {
+        return BitOp.getBit32(v, bit);
+    }
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        String msg1 = "Ring buffer lost or reordered data.";
+        final ByteRingBuffer r = new ByteRingBuffer(16);
+        final int len = 100000;
+        Thread producer;
+
+        producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] b = new byte[7];
+                int sent = 0;
+
+                try {
+                    while (sent < len) {
+                        int n = Math.min(Math.min(r.awaitFree(), b.length), len - sent);
+
+                        for (int i = 0; i < n; i++) {
+                            b[i] = (byte)(sent + i);
+                        }
+                        sent += r.offer(b, 0, n);
+                    }
+                } catch (InterruptedException e) {
+                    //ignored
+                }
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < len; i++) {
+            int v;
+
+            while ((v = r.poll()) == -1) {
+                Thread.yield();
+            }
+            Assert.assertEquals(msg1, i & 0xff, v);
+        }
+        producer.join();
+        Assert.assertTrue(msg1, r.isEmpty());
+    }
+
+    @Test
+    public void testFifoLevel() throws Exception {
+        String msg1 = "UART Rx timeout interrupt is not raised below trigger level.";
+        String msg2 = "UART Rx interrupt is not raised at trigger level.";
+        String msg3 = "UART FIFO disabled mode failed.";
+        UART u;
+        SlaveCore64 s;
+        int fr;
+
+        //FIFO 有効、閾値 1/2（8文字）
+        u = new UART("uart", new ByteArrayInputStream(new byte[3]), null);
+        s = u.getSlaveCore();
+        s.write32(null, REG_UARTLCR_H, 1 << LCR_H_FEN);
+        s.runSlice();
+        Assert.assertFalse(msg1, isSet(u.getRawInt(), INTR_RX));
+        Assert.assertTrue(msg1, isSet(u.getRawInt(), INTR_RT));
+
+        u = new UART("uart", new ByteArrayInputStream(new byte[20]), null);
+        s = u.getSlaveCore();
+        s.write32(null, REG_UARTLCR_H, 1 << LCR_H_FEN);
+        s.runSlice();
+        fr = s.read32(null, REG_UARTFR);
+        Assert.assertTrue(msg2, isSet(u.getRawInt(), INTR_RX));
+        Assert.assertTrue(msg2, isSet(fr, FR_RXFF));
+        Assert.assertFalse(msg2, isSet(fr, FR_RXFE));
+
+        //FIFO 無効時は 1文字で満杯
+        u = new UART("uart", new ByteArrayInputStream(new byte[2]), null);
+        s = u.getSlaveCore();
+        s.runSlice();
+        Assert.assertTrue(msg3, isSet(s.read32(null, REG_UARTFR), FR_RXFF));
+        s.read32(null, REG_UARTDR);
+        s.read32(null, REG_UARTDR);
+        Assert.assertTrue(msg3, isSet(s.read32(null, REG_UARTFR), FR_RXFE));
+    }
+
+    @Test
+    public void testReceiveBulk() throws Exception {
+        String msg1 = "UART received wrong data.";
+        String msg2 = "UART receive is too slow.";
+        byte[] data = new byte[1024 * 1024];
+        CoreExecutor e = new ThreadCoreExecutor();
+        UART u;
+        SlaveCore64 s;
+        long start;
+
+        new Random(1).nextBytes(data);
+        u = new UART("uart", new ByteArrayInputStream(data), null);
+        s = u.getSlaveCore();
+        s.write32(null, REG_UARTLCR_H, 1 << LCR_H_FEN);
+
+        start = System.currentTimeMillis();
+        e.start(s);
+        for (int i = 0; i < data.length; i++) {
+            while (isSet(s.read32(null, REG_UARTFR), FR_RXFE)) {
+                Assert.assertTrue(msg2, System.currentTimeMillis() - start < 10000);
+                Thread.yield();
+            }
+            Assert.assertEquals(msg1, data[i] & 0xff, s.read32(null, REG_UARTDR));
+        }
+        s.halt();
+        e.join(s);
+    }
+
+    @Test
+    public void testTransmit() throws Exception {
+        String msg1 = "UART Tx did not coalesce output.";
+        String msg2 = "UART Tx FIFO full flag is wrong.";
+        String msg3 = "UART Tx did not flush on halt.";
+        final int[] counts = new int[2];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                counts[0]++;
+                super.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                counts[1]++;
+            }
+        };
+        CoreExecutor e = new ThreadCoreExecutor();
+        UART u;
+        SlaveCore64 s;
+
+        //1文字ずつ書き込んでもまとめて書き出し、改行でフラッシュする
+        u = new UART("uart", null, out);
+        s = u.getSlaveCore();
+        s.write32(null, REG_UARTLCR_H, 1 << LCR_H_FEN);
+        for (char c : "hello\nworld".toCharArray()) {
+            s.write32(null, REG_UARTDR, c);
+        }
+        Assert.assertFalse(msg1, isSet(s.read32(null, REG_UARTFR), FR_TXFE));
+        Assert.assertFalse(msg2, isSet(s.read32(null, REG_UARTFR), FR_TXFF));
+        s.runSlice();
+        Assert.assertEquals(msg1, "hello\nworld", out.toString("ISO-8859-1"));
+        Assert.assertEquals(msg1, 1, counts[0]);
+        Assert.assertEquals(msg1, 1, counts[1]);
+        Assert.assertTrue(msg1, isSet(s.read32(null, REG_UARTFR), FR_TXFE));
+
+        //ホストへの書き出しが追いつかなければ FIFO が埋まる
+        for (int i = 0; i < TX_BUFFER_SIZE; i++) {
+            s.write32(null, REG_UARTDR, 'a');
+        }
+        Assert.assertTrue(msg2, isSet(s.read32(null, REG_UARTFR), FR_TXFF));
+        Assert.assertFalse(msg2, isSet(u.getRawInt(), INTR_TX));
+        s.runSlice();
+        Assert.assertFalse(msg2, isSet(s.read32(null, REG_UARTFR), FR_TXFF));
+        Assert.assertTrue(msg2, isSet(u.getRawInt(), INTR_TX));
+
+        //停止時に残りを書き出す
+        out.reset();
+        u = new UART("uart", null, out);
+        s = u.getSlaveCore();
+        e.start(s);
+        for (char c : "abc".toCharArray()) {
+            s.write32(null, REG_UARTDR, c);
+        }
+        s.halt();
+        e.join(s);
+        Assert.assertEquals(msg3, "abc", out.toString("ISO-8859-1"));
+    }
+}
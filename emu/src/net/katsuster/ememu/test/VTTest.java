@@ -0,0 +1,207 @@
+package net.katsuster.ememu.test;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.nio.charset.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.ui.*;
+
+public class VTTest {
+    private static final int PANE_WIDTH = 400;
+    private static final int PANE_HEIGHT = 200;
+
+    private static VirtualTerminal parent;
+
+    @BeforeClass
+    public static void setUpClass() {
+        parent = new VirtualTerminal();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        parent.close();
+    }
+
+    /**
+     * 画面を持たない環境でも大きさを決められる端末の表示領域です。
+     */
+    private static class TestPane extends VTInnerPane {
+        private static final long serialVersionUID = 1L;
+
+        private BufferedImage dummy = new BufferedImage(1, 1,
+                BufferedImage.TYPE_INT_RGB);
+
+        public TestPane(int maxLines) throws Exception {
+            super(parent);
+            setMaxLines(maxLines);
+            //ディセントが行の下の余白より大きく、文字の下端が次の行にはみ出すフォント
+            setFont(new Font(Font.MONOSPACED, Font.PLAIN, 20));
+            setSize(PANE_WIDTH, PANE_HEIGHT);
+            //大きさの変更はイベントディスパッチスレッドにも通知されるため、
+            //通知の処理が描画と重ならないように待つ
+            EventQueue.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    //do nothing
+                }
+            });
+            componentResized(null);
+        }
+
+        @Override
+        public Graphics getGraphics() {
+            Graphics g = dummy.createGraphics();
+
+            g.setFont(getFont());
+
+            return g;
+        }
+
+        public void write(String s) throws IOException {
+            layoutChars(new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        public BufferedImage draw(int start) {
+            BufferedImage img = new BufferedImage(PANE_WIDTH, PANE_HEIGHT,
+                    BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = img.createGraphics();
+
+            drawAll(g, start);
+            g.dispose();
+
+            return img;
+        }
+    }
+
+    private static void assertSameImage(String msg, BufferedImage exp, BufferedImage act) {
+        for (int y = 0; y < exp.getHeight(); y++) {
+            for (int x = 0; x < exp.getWidth(); x++) {
+                Assert.assertEquals(msg + " (" + x + ", " + y + ")",
+                        exp.getRGB(x, y), act.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testGlyphCache() throws Exception {
+        String msg1 = "Glyph is different from drawChars.";
+        String msg2 = "Atlas is not reused.";
+        Font f = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+        GlyphCache gc = new GlyphCache();
+        BufferedImage exp = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+        BufferedImage act = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g;
+
+        gc.setCell(8, 12, 2, 11);
+        for (char c : new char[] {'g', 'A', '_', 0xe9}) {
+            DecoratedChar dch = new DecoratedChar(c, Color.WHITE, Color.BLUE, f);
+
+            g = exp.createGraphics();
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, 40, 40);
+            g.setColor(Color.BLUE);
+            g.fillRect(10, 10, 8, 12);
+            g.setColor(Color.WHITE);
+            g.setFont(f);
+            g.drawChars(new char[] {c}, 0, 1, 12, 21);
+            g.dispose();
+
+            g = act.createGraphics();
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, 40, 40);
+            //2回目はアトラスから複写する
+            gc.draw(g, dch, 10, 10);
+            gc.draw(g, dch, 10, 10);
+            g.dispose();
+
+            assertSameImage(msg1 + " '" + c + "'", exp, act);
+        }
+        Assert.assertEquals(msg2, 1, gc.size());
+    }
+
+    private static String getLine(int i) {
+        //空行を混ぜ、文字の下端が空白の上にはみ出すようにする
+        if (i % 3 != 0) {
+            return "\r\n";
+        }
+        return String.format("line %d: \033[3%dmjyjyjyjy_gjpqy\033[0m\r\n", i, i % 8);
+    }
+
+    @Test
+    public void testScrollback() throws Exception {
+        String msg1 = "Character is wrong.";
+        String msg2 = "Decoration is wrong.";
+        String msg3 = "Scroll count is wrong.";
+        String msg4 = "Decorations are not shared.";
+        ScrollbackBuffer b = new ScrollbackBuffer(4, 3);
+        DecoratedChar red = new DecoratedChar('a', Color.RED, Color.BLACK,
+                DecoratedChar.DEFAULT_FONT);
+        DecoratedChar nega = new DecoratedChar('b', Color.RED, Color.BLACK,
+                DecoratedChar.DEFAULT_FONT);
+        int ir, in;
+
+        nega.setNegaMode(true);
+        ir = b.addDecoration(red);
+        in = b.addDecoration(nega);
+        Assert.assertNotEquals(msg2, ir, in);
+        Assert.assertEquals(msg4, ir, b.addDecoration(
+                new DecoratedChar('c', new Color(255, 0, 0), Color.BLACK,
+                        DecoratedChar.DEFAULT_FONT)));
+        Assert.assertEquals(msg4, 3, b.getDecorationCount());
+
+        b.set(0, 0, 'x', ir);
+        b.set(1, 1, 'y', in);
+        b.set(3, 2, 'z', ir);
+        Assert.assertEquals(msg1, 'x', b.getChar(0, 0));
+        Assert.assertEquals(msg1, 0, b.getChar(1, 0));
+        Assert.assertEquals(msg2, Color.RED, b.getDecoration(b.getAttribute(0, 0)).getForeground());
+        Assert.assertEquals(msg2, Color.BLACK, b.getDecoration(b.getAttribute(1, 1)).getForeground());
+
+        //最も古い行を捨て、最後の行は空になる
+        b.scroll();
+        Assert.assertEquals(msg3, 1, b.getScrollCount());
+        Assert.assertEquals(msg1, 'y', b.getChar(1, 0));
+        Assert.assertEquals(msg1, 'z', b.getChar(3, 1));
+        Assert.assertEquals(msg1, 0, b.getChar(0, 2));
+        Assert.assertEquals(msg2, 0, b.getAttribute(0, 2));
+        b.set(2, 2, 'w', ir);
+        b.scroll();
+        b.scroll();
+        Assert.assertEquals(msg3, 3, b.getScrollCount());
+        Assert.assertEquals(msg1, 'w', b.getChar(2, 0));
+        Assert.assertEquals(msg1, 0, b.getChar(0, 2));
+    }
+
+    @Test
+    public void testIncrementalDraw() throws Exception {
+        checkIncrementalDraw(VTInnerPane.DEFAULT_MAX_LINES);
+        //過去の行を捨てながら描画する
+        checkIncrementalDraw(16);
+    }
+
+    private void checkIncrementalDraw(int maxLines) throws Exception {
+        String msg1 = "Incremental drawing is different from full drawing.";
+        TestPane inc = new TestPane(maxLines);
+        int start = 0;
+
+        for (int i = 0; i < 40; i++) {
+            TestPane full = new TestPane(maxLines);
+
+            inc.write(getLine(i));
+            inc.draw(start);
+            //表示を開始する行を進めたり戻したりする
+            start = Math.max(0, inc.getCurrentLine() - inc.getLines() + 1 - (i % 4));
+            for (int j = 0; j <= i; j++) {
+                full.write(getLine(j));
+            }
+            assertSameImage(msg1 + " at " + i, full.draw(start), inc.draw(start));
+
+            //過去の行へ戻る
+            assertSameImage(msg1 + " at " + i + " back",
+                    full.draw(Math.max(0, start - 2)), inc.draw(Math.max(0, start - 2)));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package net.katsuster.ememu.test;
+
+import java.io.*;
+import java.nio.file.*;
+
+import org.junit.*;
+
+import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.generic.core.INTDestination;
+
+public class VirtIOBlockTest {
+    private static final long BASE = 0x10000000L;
+    private static final int QUEUE_NUM = 16;
+    private static final long DESC = 0x1000;
+    private static final long AVAIL = 0x2000;
+    private static final long USED = 0x3000;
+    //要求ごとのヘッダ、データ、ステータスの領域
+    private static final long HEADER = 0x10000;
+    private static final long DATA = 0x20000;
+    private static final long STATUS = 0x80000;
+    private static final int SECTORS = 64;
+
+    private Bus64 bus;
+    private VirtIOBlock blk;
+    private File image;
+    private volatile int raised;
+    private int availIdx;
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] b = new byte[SECTORS * VirtIOBlock.SECTOR_SIZE + 100];
+
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte)(i / VirtIOBlock.SECTOR_SIZE);
+        }
+        image = File.createTempFile("ememu", ".img");
+        image.deleteOnExit();
+        Files.write(image.toPath(), b);
+
+        bus = new Bus64();
+        blk = new VirtIOBlock("vda");
+        bus.addSlaveCore(new PagedRAM32(0x100000, PagedRAM32.PAGE_SIZE_4K), 0x0, 0xfffff);
+        bus.addSlaveCore(blk.getSlaveCore(), BASE, BASE + 0xfff);
+        blk.connectINTDestination(new INTDestination() {
+            @Override
+            public boolean isRaisedInterrupt() {
+                return raised != 0;
+            }
+
+            @Override
+            public void setRaisedInterrupt(boolean m) {
+                raised++;
+            }
+        });
+        raised = 0;
+        availIdx = 0;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        blk.getSlaveCore().halt();
+        blk.close();
+    }
+
+    private void initQueue() {
+        Assert.assertEquals(VirtIOBlock.MAGIC_VALUE, bus.read32(null, BASE + VirtIOBlock.REG_MagicValue));
+        Assert.assertEquals(VirtIOBlock.VERSION, bus.read32(null, BASE + VirtIOBlock.REG_Version));
+        Assert.assertEquals(VirtIOBlock.DEVICE_ID_BLOCK, bus.read32(null, BASE + VirtIOBlock.REG_DeviceID));
+
+        bus.write32(null, BASE + VirtIOBlock.REG_Status, 0);
+        bus.write32(null, BASE + VirtIOBlock.REG_Status, 0x3);
+        bus.write32(null, BASE + VirtIOBlock.REG_DriverFeaturesSel, 1);
+        bus.write32(null, BASE + VirtIOBlock.REG_DriverFeatures, 1);
+        bus.write32(null, BASE + VirtIOBlock.REG_Status, 0xb);
+        bus.write32(null, BASE + VirtIOBlock.REG_QueueSel, 0);
+        Assert.assertEquals(VirtIOBlock.QUEUE_NUM_MAX, bus.read32(null, BASE + VirtIOBlock.REG_QueueNumMax));
+        bus.write32(null, BASE + VirtIOBlock.REG_QueueNum, QUEUE_NUM);
+        bus.write32(null, BASE + VirtIOBlock.REG_QueueDescLow, (int)DESC);
+        bus.write32(null, BASE + VirtIOBlock.REG_QueueDriverLow, (int)AVAIL);
+        bus.write32(null, BASE + VirtIOBlock.REG_QueueDeviceLow, (int)USED);
+        bus.write32(null, BASE + VirtIOBlock.REG_QueueReady, 1);
+        bus.write32(null, BASE + VirtIOBlock.REG_Status, 0xf);
+    }
+
+    private void putDesc(int i, long addr, int len, int flags, int next) {
+        long d = DESC + 16 * i;
+
+        bus.write64(null, d, addr);
+        bus.write32(null, d + 8, len);
+        bus.write16(null, d + 12, (short)flags);
+        bus.write16(null, d + 14, (short)next);
+    }
+
+    /**
+     * 要求を avail リングに積みます。通知はしません。
+     *
+     * @param n      要求の番号、ディスクリプタ 3n, 3n+1, 3n+2 を使います
+     * @param type   要求の種類
+     * @param sector 開始セクタ
+     * @param len    データの大きさ
+     */
+    private void putRequest(int n, int type, long sector, int len) {
+        int h = n * 3;
+
+        bus.write32(null, HEADER + 16 * n, type);
+        bus.write64(null, HEADER + 16 * n + 8, sector);
+        bus.write8(null, STATUS + n, (byte)0xff);
+
+        putDesc(h, HEADER + 16 * n, 16, VirtIOBlock.DESC_F_NEXT, h + 1);
+        putDesc(h + 1, DATA + 0x4000 * n, len, VirtIOBlock.DESC_F_NEXT |
+                ((type == VirtIOBlock.T_IN) ? VirtIOBlock.DESC_F_WRITE : 0), h + 2);
+        putDesc(h + 2, STATUS + n, 1, VirtIOBlock.DESC_F_WRITE, 0);
+
+        bus.write16(null, AVAIL + 4 + 2 * (availIdx % QUEUE_NUM), (short)h);
+        availIdx++;
+        bus.write16(null, AVAIL + 2, (short)availIdx);
+    }
+
+    private void notifyAndWait(int used) throws Exception {
+        bus.write32(null, BASE + VirtIOBlock.REG_QueueNotify, 0);
+        for (int i = 0; i < 1000; i++) {
+            if ((bus.read16(null, USED + 2) & 0xffff) == used) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Requests are not completed.", used,
+                bus.read16(null, USED + 2) & 0xffff);
+        //割り込みの状態の更新が終わるまで待つ
+        blk.waitIdle();
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        String msg1 = "Capacity is wrong.";
+        String msg2 = "Status is wrong.";
+        String msg3 = "Read data is wrong.";
+        String msg4 = "Used ring is wrong.";
+        String msg5 = "Interrupt is wrong.";
+        String msg6 = "Written data is wrong.";
+        int ids = 0;
+        byte[] img;
+
+        blk.open(image, false);
+        initQueue();
+        Assert.assertEquals(msg1, SECTORS, bus.read32(null, BASE + VirtIOBlock.REG_CapacityLow));
+        Assert.assertEquals(msg1, 0, bus.read32(null, BASE + VirtIOBlock.REG_CapacityHigh));
+
+        //複数の要求を積んでから 1度だけ通知する
+        putRequest(0, VirtIOBlock.T_IN, 0, 0x1000);
+        putRequest(1, VirtIOBlock.T_IN, 16, 0x400);
+        for (int i = 0; i < 0x400; i++) {
+            bus.write8(null, DATA + 0x4000 * 2 + i, (byte)0xa5);
+        }
+        //並行して処理されるため、読み出す領域と重ならないセクタに書き込む
+        putRequest(2, VirtIOBlock.T_OUT, 40, 0x400);
+        putRequest(3, VirtIOBlock.T_FLUSH, 0, 0);
+        notifyAndWait(4);
+
+        for (int n = 0; n < 4; n++) {
+            Assert.assertEquals(msg2, VirtIOBlock.S_OK, bus.read8(null, STATUS + n));
+        }
+        for (int i = 0; i < 0x1000; i++) {
+            Assert.assertEquals(msg3, (byte)(i / 512), bus.read8(null, DATA + i));
+        }
+        for (int i = 0; i < 0x400; i++) {
+            Assert.assertEquals(msg3, (byte)(16 + i / 512), bus.read8(null, DATA + 0x4000 + i));
+        }
+
+        //完了した順に返すので、要求の順番は問わない
+        for (int n = 0; n < 4; n++) {
+            int id = bus.read32(null, USED + 4 + 8 * n);
+            int len = bus.read32(null, USED + 8 + 8 * n);
+
+            ids |= 1 << id;
+            if (id == 0) {
+                Assert.assertEquals(msg4, 0x1001, len);
+            } else if (id == 3) {
+                Assert.assertEquals(msg4, 0x401, len);
+            } else {
+                Assert.assertEquals(msg4, 1, len);
+            }
+        }
+        Assert.assertEquals(msg4, 0x249, ids);
+
+        Assert.assertTrue(msg5, raised > 0);
+        Assert.assertTrue(msg5, blk.isAssert());
+        Assert.assertEquals(msg5, 1, bus.read32(null, BASE + VirtIOBlock.REG_InterruptStatus));
+        bus.write32(null, BASE + VirtIOBlock.REG_InterruptACK, 1);
+        Assert.assertFalse(msg5, blk.isAssert());
+
+        blk.close();
+        img = Files.readAllBytes(image.toPath());
+        for (int i = 0; i < 0x400; i++) {
+            Assert.assertEquals(msg6, (byte)0xa5, img[40 * 512 + i]);
+        }
+        Assert.assertEquals(msg6, 42, img[42 * 512]);
+    }
+
+    @Test
+    public void testError() throws Exception {
+        String msg1 = "Out of disk is accepted.";
+        String msg2 = "Write to read only disk is accepted.";
+        String msg3 = "Unknown request is accepted.";
+
+        blk.open(image, true);
+        initQueue();
+
+        putRequest(0, VirtIOBlock.T_IN, SECTORS - 1, 0x400);
+        putRequest(1, VirtIOBlock.T_OUT, 0, 0x200);
+        putRequest(2, 0x100, 0, 0x200);
+        notifyAndWait(3);
+
+        Assert.assertEquals(msg1, VirtIOBlock.S_IOERR, bus.read8(null, STATUS + 0));
+        Assert.assertEquals(msg2, VirtIOBlock.S_IOERR, bus.read8(null, STATUS + 1));
+        Assert.assertEquals(msg3, VirtIOBlock.S_UNSUPP, bus.read8(null, STATUS + 2));
+        Assert.assertEquals(msg2, 0, Files.readAllBytes(image.toPath())[0]);
+    }
+}
@@ -2,13 +2,22 @@ package net.katsuster.ememu.ui;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.util.concurrent.*;
 
 import net.katsuster.ememu.arm.core.ARMv5;
 import net.katsuster.ememu.generic.RAM;
 import net.katsuster.ememu.generic.core.CPU;
+import net.katsuster.ememu.generic.trace.SymbolTable;
 
 /**
  * ARM Linux 用の簡易ブートローダです。
+ *
+ * <p>
+ * カーネルイメージ、Initrd、Device Tree はメモリ上の重ならない領域に配置するため、
+ * それぞれ別のスレッドで並行して読み込みます。
+ * gzip などで圧縮されたファイルは展開しながら読み込みます。
+ * </p>
  */
 public class ARMLinuxLoader {
     public static final int ATAG_NONE      = 0x00000000;
@@ -30,18 +39,9 @@ public class ARMLinuxLoader {
                 uri.toString(), addr);
 
         try {
-            DataInputStream s = new DataInputStream(
-                    new BufferedInputStream(uri.toURL().openStream()));
-
-            i = 0;
-            try {
-                while (true) {
-                    cpu.write8_a32(addr + i, s.readByte());
-                    i++;
-                }
-            } catch (EOFException e) {
-                //end
-            }
+            ByteBuffer s = ResourceCache.getDefault().map(uri);
+
+            i = BinaryLoader.writeImage(s, cpu.getSlaveBus(), cpu, addr & 0xffffffffL);
         } catch (IOException e) {
             e.printStackTrace(System.err);
             throw new IllegalArgumentException(e);
@@ -53,7 +53,146 @@ public class ARMLinuxLoader {
         return i;
     }
 
-    public static void bootFromURI(ARMv5 cpu, RAM ramMain, String kimage, String initrd, String cmdline) {
+    /**
+     * 読み込んだカーネルイメージの配置です。
+     */
+    private static class KernelImage {
+        //配置した物理アドレス
+        private int addr;
+        //大きさ（バイト単位）
+        private int size;
+        //物理アドレスのエントリポイント
+        private int entry;
+        //ELF ファイルのシンボル、ELF ファイルでなければ null
+        private SymbolTable symbols;
+    }
+
+    /**
+     * カーネルイメージを読み込みます。
+     *
+     * ELF ファイル（vmlinux など）であればセグメントを物理アドレスに配置し、
+     * エントリポイントから開始します。
+     * そうでなければ指定したアドレスに配置し（圧縮されていれば展開し）、先頭から開始します。
+     *
+     * @param uri  カーネルイメージの URI
+     * @param cpu  書き込む CPU
+     * @param addr ELF ファイルでない場合に配置するアドレス
+     * @return 読み込んだカーネルイメージの配置
+     */
+    private static KernelImage loadKernelResource(URI uri, CPU cpu, int addr) {
+        KernelImage k = new KernelImage();
+        ELFLoader elf;
+        ByteBuffer s;
+
+        try {
+            s = ResourceCache.getDefault().map(uri);
+            if (!ELFLoader.isELF(s)) {
+                System.out.printf("loadURL: %s\n" +
+                                "  addr : 0x%08x\n",
+                        uri.toString(), addr);
+
+                k.addr = addr;
+                k.size = BinaryLoader.writeImage(s, cpu.getSlaveBus(), cpu, addr & 0xffffffffL);
+                k.entry = addr;
+
+                System.out.printf("loadURL: '%s' done, %dbytes.\n",
+                        uri.toString(), k.size);
+
+                return k;
+            }
+
+            elf = new ELFLoader(s);
+
+            System.out.printf("loadELF: %s\n" +
+                            "  entry: 0x%08x\n",
+                    uri.toString(), elf.getPhysicalEntry());
+
+            elf.load(cpu.getSlaveBus(), cpu);
+            k.addr = (int)elf.getLowAddress();
+            k.size = (int)(elf.getHighAddress() - elf.getLowAddress());
+            k.entry = (int)elf.getPhysicalEntry();
+            k.symbols = elf.getSymbolTable();
+
+            System.out.printf("loadELF: '%s' done, %d segments, %dbytes, %d symbols.\n",
+                    uri.toString(), elf.getSegments(), k.size, k.symbols.size());
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalArgumentException(e);
+        }
+
+        return k;
+    }
+
+    /**
+     * ファイルを読み込むタスクを開始します。
+     *
+     * @param executor タスクを実行するスレッド
+     * @param uri      ファイルの URI
+     * @param cpu      書き込む CPU
+     * @param addr     配置するアドレス
+     * @return 読み込んだ大きさ（バイト単位）を返すタスク
+     */
+    private static Future<Integer> submitURIResource(ExecutorService executor,
+                                                     final URI uri, final CPU cpu, final int addr) {
+        return executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return loadURIResource(uri, cpu, addr);
+            }
+        });
+    }
+
+    /**
+     * カーネルイメージを読み込むタスクを開始します。
+     *
+     * @param executor タスクを実行するスレッド
+     * @param uri      カーネルイメージの URI
+     * @param cpu      書き込む CPU
+     * @param addr     ELF ファイルでない場合に配置するアドレス
+     * @return 読み込んだカーネルイメージの配置を返すタスク
+     */
+    private static Future<KernelImage> submitKernelResource(ExecutorService executor,
+                                                            final URI uri, final CPU cpu, final int addr) {
+        return executor.submit(new Callable<KernelImage>() {
+            @Override
+            public KernelImage call() {
+                return loadKernelResource(uri, cpu, addr);
+            }
+        });
+    }
+
+    /**
+     * ファイルを読み込むタスクの終了を待ち、結果を取得します。
+     *
+     * @param f   ファイルを読み込むタスク
+     * @param <T> タスクの結果の型
+     * @return タスクの結果
+     */
+    private static <T> T getLoadResult(Future<T> f) {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IllegalArgumentException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading images.", e);
+        }
+    }
+
+    /**
+     * カーネルイメージと Initrd を読み込み、ATAGS を設定して起動の準備をします。
+     *
+     * @param cpu     CPU
+     * @param ramMain メインメモリ
+     * @param kimage  カーネルイメージ（Image または vmlinux）の URI
+     * @param initrd  Initrd/InitramFS の URI、使わなければ空文字列
+     * @param cmdline カーネルのコマンドライン
+     * @return カーネルイメージが ELF ファイルであればそのシンボル、そうでなければ null
+     */
+    public static SymbolTable bootFromURI(ARMv5 cpu, RAM ramMain, String kimage, String initrd, String cmdline) {
         byte[] cmdlb = cmdline.getBytes();
         //+1: need null char at the end of line
         byte[] cmdalign = new byte[(cmdlb.length + 1 + 3) & ~0x3];
@@ -62,23 +201,46 @@ public class ARMLinuxLoader {
         final int addrRAM = 0x00000000;
         final int addrAtagsStart = addrRAM + 0x800000;
         int addrAtags = addrAtagsStart;
-        final int addrImage = addrRAM + 0x00008000;
+        int addrImage = addrRAM + 0x00008000;
         int sizeImage = 0;
+        KernelImage k;
         final int addrInitrd = addrRAM + 0x00810000;
         int sizeInitrd = 0;
         boolean initrdExist = !initrd.equals("");
 
+        URI uriImage, uriInitrd = null;
+        Future<KernelImage> fImage;
+        Future<Integer> fInitrd = null;
+        ExecutorService executor;
+
+        try {
+            uriImage = new URI(kimage);
+            if (initrdExist) {
+                uriInitrd = new URI(initrd);
+            }
+        } catch (URISyntaxException e) {
+            e.printStackTrace(System.err);
+            return null;
+        }
+
         //tentative boot loader for ARM Linux
+        executor = Executors.newFixedThreadPool(2);
         try {
             //load Image file
-            sizeImage = loadURIResource(new URI(kimage), cpu, addrImage);
+            fImage = submitKernelResource(executor, uriImage, cpu, addrImage);
             //load Initrd/InitramFS file
             if (initrdExist) {
-                sizeInitrd = loadURIResource(new URI(initrd), cpu, addrInitrd);
+                fInitrd = submitURIResource(executor, uriInitrd, cpu, addrInitrd);
             }
-        } catch (URISyntaxException e) {
-            e.printStackTrace(System.err);
-            return;
+
+            k = getLoadResult(fImage);
+            addrImage = k.addr;
+            sizeImage = k.size;
+            if (initrdExist) {
+                sizeInitrd = getLoadResult(fInitrd);
+            }
+        } finally {
+            executor.shutdownNow();
         }
 
         //report address mapping
@@ -158,11 +320,24 @@ public class ARMLinuxLoader {
         }
 
         //pc: entry of stext
-        cpu.setPC(addrImage);
+        cpu.setPC(k.entry);
         cpu.setJumped(false);
+
+        return k.symbols;
     }
 
-    public static void bootFromURIWithDT(ARMv5 cpu, RAM ramMain, String dtree, String kimage, String initrd, String cmdline) {
+    /**
+     * Device Tree、カーネルイメージと Initrd を読み込み、起動の準備をします。
+     *
+     * @param cpu     CPU
+     * @param ramMain メインメモリ
+     * @param dtree   Device Tree Blob の URI
+     * @param kimage  カーネルイメージ（Image または vmlinux）の URI
+     * @param initrd  Initrd/InitramFS の URI、使わなければ空文字列
+     * @param cmdline カーネルのコマンドライン
+     * @return カーネルイメージが ELF ファイルであればそのシンボル、そうでなければ null
+     */
+    public static SymbolTable bootFromURIWithDT(ARMv5 cpu, RAM ramMain, String dtree, String kimage, String initrd, String cmdline) {
         byte[] cmdlb = cmdline.getBytes();
         //+1: need null char at the end of line
         byte[] cmdalign = new byte[(cmdlb.length + 1 + 3) & ~0x3];
@@ -171,25 +346,51 @@ public class ARMLinuxLoader {
         final int addrRAM = 0x00000000;
         final int addrDT = addrRAM + 0x800000;
         int sizeDT = 0;
-        final int addrImage = addrRAM + 0x008000;
+        int addrImage = addrRAM + 0x008000;
         int sizeImage = 0;
+        KernelImage k;
         final int addrInitrd = addrRAM + 0x00810000;
         int sizeInitrd = 0;
         boolean initrdExist = !initrd.equals("");
 
+        URI uriDT, uriImage, uriInitrd = null;
+        Future<Integer> fDT;
+        Future<KernelImage> fImage;
+        Future<Integer> fInitrd = null;
+        ExecutorService executor;
+
+        try {
+            uriDT = new URI(dtree);
+            uriImage = new URI(kimage);
+            if (initrdExist) {
+                uriInitrd = new URI(initrd);
+            }
+        } catch (URISyntaxException e) {
+            e.printStackTrace(System.err);
+            return null;
+        }
+
         //tentative boot loader for ARM Linux with Device Tree
+        executor = Executors.newFixedThreadPool(3);
         try {
             //load Device Tree Blob
-            sizeDT = loadURIResource(new URI(dtree), cpu, addrDT);
+            fDT = submitURIResource(executor, uriDT, cpu, addrDT);
             //load Image file
-            sizeImage = loadURIResource(new URI(kimage), cpu, addrImage);
+            fImage = submitKernelResource(executor, uriImage, cpu, addrImage);
             //load Initrd/InitramFS file
             if (initrdExist) {
-                sizeInitrd = loadURIResource(new URI(initrd), cpu, addrInitrd);
+                fInitrd = submitURIResource(executor, uriInitrd, cpu, addrInitrd);
             }
-        } catch (URISyntaxException e) {
-            e.printStackTrace(System.err);
-            return;
+
+            sizeDT = getLoadResult(fDT);
+            k = getLoadResult(fImage);
+            addrImage = k.addr;
+            sizeImage = k.size;
+            if (initrdExist) {
+                sizeInitrd = getLoadResult(fInitrd);
+            }
+        } finally {
+            executor.shutdownNow();
         }
 
         //report address mapping
@@ -212,7 +413,9 @@ public class ARMLinuxLoader {
         cpu.setReg(2, addrDT);
 
         //pc: entry of stext
-        cpu.setPC(addrImage);
+        cpu.setPC(k.entry);
         cpu.setJumped(false);
+
+        return k.symbols;
     }
 }
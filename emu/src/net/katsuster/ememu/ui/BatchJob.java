@@ -0,0 +1,291 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * バッチ実行する 1つのエミュレータの設定です。
+ *
+ * <p>
+ * エミュレータのプロパティ（インデックス 0）に加えて、
+ * UART に送る入力のスクリプト、期待する出力のパターンを保持します。
+ * </p>
+ *
+ * <p>
+ * スクリプトは 1行に 1つの命令を書いたテキストです。
+ * 空行と # で始まる行は無視します。
+ * </p>
+ *
+ * <pre>
+ * expect 正規表現   出力が正規表現に一致するまで待つ
+ * send 文字列       文字列を UART に送る（\n, \r, \t, \\ を解釈する）
+ * </pre>
+ */
+public class BatchJob {
+    //タイムアウトのデフォルト値（ミリ秒単位）
+    public static final long DEFAULT_TIMEOUT = 10 * 60 * 1000;
+
+    private String name;
+    private EmuPropertyMap props;
+    private List<Step> script;
+    private Pattern expect;
+    private Pattern fail;
+    private long timeout;
+    private int uart;
+    private File outDir;
+
+    /**
+     * スクリプトの 1つの命令です。
+     */
+    static class Step {
+        private Pattern pattern;
+        private String text;
+
+        public Step(Pattern p, String t) {
+            pattern = p;
+            text = t;
+        }
+
+        /**
+         * 出力を待つパターンを取得します。
+         *
+         * @return パターン、文字列を送る命令ならば null
+         */
+        public Pattern getPattern() {
+            return pattern;
+        }
+
+        /**
+         * UART に送る文字列を取得します。
+         *
+         * @return 文字列、出力を待つ命令ならば null
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * バッチ実行するエミュレータの設定を作成します。
+     *
+     * @param n     名前、出力ファイルの名前にも使います
+     * @param p     エミュレータのプロパティ
+     */
+    public BatchJob(String n, EmuPropertyMap p) {
+        name = n;
+        props = p;
+        script = new ArrayList<>();
+        expect = null;
+        fail = null;
+        timeout = DEFAULT_TIMEOUT;
+        uart = 0;
+        outDir = null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * エミュレートするアーキテクチャを取得します。
+     *
+     * @return アーキテクチャ（"arm" または "riscv"）
+     */
+    public String getArch() {
+        return props.getValue(LinuxOption.EMU_ARCH, 0);
+    }
+
+    /**
+     * エミュレータのプロパティを取得します。
+     *
+     * @return エミュレータのプロパティ
+     */
+    public EmuPropertyMap getProperties() {
+        return props;
+    }
+
+    /**
+     * スクリプトの命令を全て取得します。
+     *
+     * @return スクリプトの命令
+     */
+    List<Step> getScript() {
+        return script;
+    }
+
+    /**
+     * 出力が正規表現に一致するまで待つ命令を、スクリプトの末尾に追加します。
+     *
+     * @param regex 正規表現
+     */
+    public void addExpect(String regex) {
+        script.add(new Step(Pattern.compile(regex), null));
+    }
+
+    /**
+     * 文字列を UART に送る命令を、スクリプトの末尾に追加します。
+     *
+     * @param str 文字列
+     */
+    public void addSend(String str) {
+        script.add(new Step(null, str));
+    }
+
+    /**
+     * スクリプトを読み込み、命令を末尾に追加します。
+     *
+     * @param r スクリプトを読み出す Reader
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public void loadScript(Reader r) throws IOException {
+        BufferedReader br = new BufferedReader(r);
+        String line;
+        int num = 0;
+
+        while ((line = br.readLine()) != null) {
+            num++;
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            if (line.startsWith("expect ")) {
+                addExpect(line.substring(7));
+            } else if (line.startsWith("send ")) {
+                addSend(unescape(line.substring(5)));
+            } else {
+                throw new IllegalArgumentException(String.format(
+                        "Unknown command at line %d: '%s'.", num, line));
+            }
+        }
+    }
+
+    /**
+     * \n, \r, \t, \\ をそれぞれの文字に置き換えます。
+     *
+     * @param str 文字列
+     * @return 置き換えた文字列
+     */
+    private static String unescape(String str) {
+        StringBuilder b = new StringBuilder();
+
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+
+            if (c != '\\' || i + 1 == str.length()) {
+                b.append(c);
+                continue;
+            }
+
+            i++;
+            switch (str.charAt(i)) {
+            case 'n':
+                b.append('\n');
+                break;
+            case 'r':
+                b.append('\r');
+                break;
+            case 't':
+                b.append('\t');
+                break;
+            default:
+                b.append(str.charAt(i));
+                break;
+            }
+        }
+
+        return b.toString();
+    }
+
+    /**
+     * 成功とみなす出力のパターンを取得します。
+     *
+     * @return パターン、スクリプトの終了をもって成功とする場合は null
+     */
+    public Pattern getExpect() {
+        return expect;
+    }
+
+    public void setExpect(String regex) {
+        expect = (regex == null) ? null : Pattern.compile(regex);
+    }
+
+    /**
+     * 失敗とみなす出力のパターンを取得します。
+     *
+     * @return パターン、設定されていなければ null
+     */
+    public Pattern getFail() {
+        return fail;
+    }
+
+    public void setFail(String regex) {
+        fail = (regex == null) ? null : Pattern.compile(regex);
+    }
+
+    /**
+     * タイムアウトを取得します。
+     *
+     * @return 起動してから終了させるまでの最大の時間（ミリ秒単位）
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long t) {
+        timeout = t;
+    }
+
+    /**
+     * スクリプトを実行する UART の番号を取得します。
+     *
+     * @return UART の番号
+     */
+    public int getUART() {
+        return uart;
+    }
+
+    public void setUART(int n) {
+        uart = n;
+    }
+
+    /**
+     * UART の出力を書き出すディレクトリを取得します。
+     *
+     * @return ディレクトリ、書き出さない場合は null
+     */
+    public File getOutputDirectory() {
+        return outDir;
+    }
+
+    public void setOutputDirectory(File d) {
+        outDir = d;
+    }
+
+    /**
+     * UART の出力を書き出すファイルを取得します。
+     *
+     * @param index UART の番号
+     * @return ファイル、書き出さない場合は null
+     */
+    public File getOutputFile(int index) {
+        if (outDir == null) {
+            return null;
+        }
+
+        return new File(outDir, String.format("%s.uart%d.log", name, index));
+    }
+
+    /**
+     * フライトレコーダの記録を書き出すファイルを取得します。
+     *
+     * @return ファイル、書き出さない場合は null
+     */
+    public File getFlightRecorderFile() {
+        if (outDir == null) {
+            return null;
+        }
+
+        return new File(outDir, String.format("%s.flight.log", name));
+    }
+}
@@ -0,0 +1,71 @@
+package net.katsuster.ememu.ui;
+
+/**
+ * バッチ実行した 1つのエミュレータの結果です。
+ */
+public class BatchResult {
+    /** スクリプトを最後まで実行し、期待する出力が得られた */
+    public static final String STATUS_PASS = "PASS";
+    /** 失敗とみなす出力が得られた */
+    public static final String STATUS_FAIL = "FAIL";
+    /** 期待する出力が時間内に得られなかった */
+    public static final String STATUS_TIMEOUT = "TIMEOUT";
+    /** エミュレータの起動に失敗した、または途中で停止した */
+    public static final String STATUS_ERROR = "ERROR";
+
+    private String name;
+    private String status;
+    private String message;
+    private long elapsed;
+
+    /**
+     * 結果を作成します。
+     *
+     * @param n   エミュレータの設定の名前
+     * @param s   結果（STATUS_xxxx）
+     * @param msg 結果の詳細
+     * @param t   実行にかかった時間（ミリ秒単位）
+     */
+    public BatchResult(String n, String s, String msg, long t) {
+        name = n;
+        status = s;
+        message = msg;
+        elapsed = t;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * 成功したかどうかを取得します。
+     *
+     * @return 成功していれば true、そうでなければ false
+     */
+    public boolean isPassed() {
+        return status.equals(STATUS_PASS);
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * 実行にかかった時間を取得します。
+     *
+     * @return 実行にかかった時間（ミリ秒単位）
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-7s %s (%d ms) %s",
+                status, name, elapsed, message);
+    }
+}
@@ -0,0 +1,467 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * 多数のエミュレータを 1つの JVM で並行してバッチ実行します。
+ *
+ * <p>
+ * 同時に実行するエミュレータの数は、指定したスレッド数までに制限します。
+ * 各エミュレータの UART の出力は、それぞれ別のファイルに書き出します。
+ * JVM の起動と JIT コンパイルにかかる時間を、全てのエミュレータで共有できます。
+ * </p>
+ *
+ * <p>
+ * 設定ファイル（loadJobs）は Java のプロパティファイルで、
+ * キーの末尾にエミュレータの番号を付けて記述します。
+ * </p>
+ *
+ * <pre>
+ * emu.arch.0=arm
+ * emu.executor.0=roundrobin
+ * linux.kimage.0=Image
+ * linux.initrd.0=initramfs.gz
+ * linux.cmdline.0=console=ttyAMA0 mem=64M root=/dev/ram init=/bin/init
+ * batch.name.0=arm-boot
+ * batch.script.0=login.txt
+ * batch.expect.0=^# $
+ * batch.fail.0=Kernel panic
+ * batch.timeout.0=600
+ * </pre>
+ *
+ * <p>
+ * ファイルのパスは設定ファイルのディレクトリからの相対パス、または URI で指定します。
+ * </p>
+ */
+public class BatchRunner {
+    /** 名前、出力ファイルの名前にも使います */
+    public static final String BATCH_NAME = "batch.name";
+    /** UART に送る入力のスクリプトファイルのパス */
+    public static final String BATCH_SCRIPT = "batch.script";
+    /** スクリプトの実行後、成功とみなす出力のパターン */
+    public static final String BATCH_EXPECT = "batch.expect";
+    /** 失敗とみなす出力のパターン */
+    public static final String BATCH_FAIL = "batch.fail";
+    /** タイムアウト（秒単位） */
+    public static final String BATCH_TIMEOUT = "batch.timeout";
+    /** スクリプトを実行する UART の番号 */
+    public static final String BATCH_UART = "batch.uart";
+
+    //出力ストリームを接続する UART の数
+    public static final int MAX_UARTS = 4;
+    //停止を要求してからエミュレータの終了を待つ時間（ミリ秒単位）
+    public static final int HALT_TIMEOUT = 10 * 1000;
+
+    //ファイルのパスを値に持つプロパティ
+    private static final String[] URI_KEYS = {
+            LinuxOption.LINUX_DTB,
+            LinuxOption.LINUX_KIMAGE,
+            LinuxOption.LINUX_INITRD,
+            EmulatorRISCV.RISCV_ROM0,
+            EmulatorRISCV.RISCV_ROM1,
+            EmulatorRISCV.RISCV_FLASH0,
+    };
+
+    private int threads;
+
+    /**
+     * バッチ実行を作成します。
+     *
+     * @param n 同時に実行するエミュレータの最大数
+     */
+    public BatchRunner(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal number of threads %d.", n));
+        }
+
+        threads = n;
+    }
+
+    /**
+     * 同時に実行するエミュレータの最大数を取得します。
+     *
+     * @return 同時に実行するエミュレータの最大数
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * 全てのエミュレータを実行し、終了を待ちます。
+     *
+     * @param jobs エミュレータの設定
+     * @return 各エミュレータの結果、設定と同じ順に並びます
+     * @throws InterruptedException 待っている間に割り込まれた場合
+     */
+    public List<BatchResult> run(List<BatchJob> jobs) throws InterruptedException {
+        ExecutorService ex = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "batch");
+            }
+        });
+        List<Future<BatchResult>> futures = new ArrayList<>();
+        List<BatchResult> results = new ArrayList<>();
+
+        try {
+            for (final BatchJob job : jobs) {
+                futures.add(ex.submit(new Callable<BatchResult>() {
+                    @Override
+                    public BatchResult call() throws Exception {
+                        return runJob(job);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new BatchResult(jobs.get(i).getName(),
+                            BatchResult.STATUS_ERROR, e.getCause().toString(), 0));
+                }
+            }
+        } finally {
+            ex.shutdownNow();
+        }
+
+        return results;
+    }
+
+    /**
+     * エミュレータを 1つ実行し、終了を待ちます。
+     *
+     * @param job エミュレータの設定
+     * @return エミュレータの結果
+     * @throws InterruptedException 待っている間に割り込まれた場合
+     */
+    public BatchResult runJob(BatchJob job) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        final Throwable[] error = new Throwable[1];
+        final BatchUARTOutput[] outs = new BatchUARTOutput[MAX_UARTS];
+        BatchUARTInput in = new BatchUARTInput();
+        Emulator emu;
+        String[] r;
+        boolean stopped;
+
+        if (job.getUART() < 0 || MAX_UARTS <= job.getUART()) {
+            return new BatchResult(job.getName(), BatchResult.STATUS_ERROR,
+                    "Illegal UART " + job.getUART() + ".", 0);
+        }
+        try {
+            emu = newEmulator(job.getArch());
+        } catch (IllegalArgumentException e) {
+            return new BatchResult(job.getName(), BatchResult.STATUS_ERROR,
+                    e.getMessage(), 0);
+        }
+        emu.setProperties(job.getProperties());
+        emu.setup();
+        emu.setName(job.getName());
+
+        for (int i = 0; i < MAX_UARTS; i++) {
+            outs[i] = new BatchUARTOutput(job.getOutputFile(i));
+            emu.getBoard().setUARTOutputStream(i, outs[i]);
+        }
+        emu.getBoard().setUARTInputStream(job.getUART(), in);
+
+        emu.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                synchronized (error) {
+                    error[0] = e;
+                }
+            }
+        });
+        emu.start();
+
+        try {
+            r = runScript(job, emu, in, outs[job.getUART()],
+                    start + job.getTimeout());
+            if (!r[0].equals(BatchResult.STATUS_PASS)) {
+                //ゲストのパニックなどで失敗した直前の実行履歴を残す
+                dumpFlightRecorder(job, emu);
+            }
+        } finally {
+            //ボードの setup 前ならば、setup が終わった時点で停止する
+            emu.halt();
+            emu.join(HALT_TIMEOUT);
+            stopped = !emu.isAlive();
+            if (!stopped) {
+                System.err.printf("Emulator '%s' did not stop within %d ms.\n",
+                        job.getName(), HALT_TIMEOUT);
+            }
+
+            try {
+                in.close();
+                for (BatchUARTOutput o : outs) {
+                    o.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                //ignored
+            }
+        }
+
+        synchronized (error) {
+            if (error[0] != null) {
+                r = new String[] {BatchResult.STATUS_ERROR, error[0].toString()};
+            }
+        }
+        if (!stopped) {
+            //停止しないエミュレータはスレッドとコアを占有し続ける
+            r = new String[] {BatchResult.STATUS_ERROR,
+                    "Emulator did not stop within " + HALT_TIMEOUT + " ms."};
+        }
+
+        return new BatchResult(job.getName(), r[0], r[1],
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * フライトレコーダの記録をファイルに書き出します。
+     *
+     * @param job エミュレータの設定
+     * @param emu エミュレータ
+     */
+    private void dumpFlightRecorder(BatchJob job, Emulator emu) {
+        File f = job.getFlightRecorderFile();
+
+        if (f == null) {
+            return;
+        }
+
+        try (PrintStream ps = new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(f)), false, "UTF-8")) {
+            emu.dumpFlightRecorder(ps);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            //ignored
+        }
+    }
+
+    /**
+     * スクリプトを実行し、期待する出力を待ちます。
+     *
+     * @param job      エミュレータの設定
+     * @param emu      エミュレータ
+     * @param in       スクリプトを実行する UART の入力
+     * @param out      スクリプトを実行する UART の出力
+     * @param deadline タイムアウトする時刻
+     * @return 結果（STATUS_xxxx）と詳細
+     * @throws InterruptedException 待っている間に割り込まれた場合
+     */
+    private String[] runScript(BatchJob job, Emulator emu,
+                               BatchUARTInput in, BatchUARTOutput out,
+                               long deadline) throws InterruptedException {
+        String[] r;
+
+        for (BatchJob.Step s : job.getScript()) {
+            if (s.getPattern() == null) {
+                in.send(s.getText());
+                continue;
+            }
+
+            r = waitOutput(job, emu, out, s.getPattern(), deadline);
+            if (r != null) {
+                return r;
+            }
+        }
+
+        if (job.getExpect() != null) {
+            r = waitOutput(job, emu, out, job.getExpect(), deadline);
+            if (r != null) {
+                return r;
+            }
+        }
+
+        return new String[] {BatchResult.STATUS_PASS, ""};
+    }
+
+    /**
+     * パターンに一致する出力が現れるまで待ちます。
+     *
+     * @param job      エミュレータの設定
+     * @param emu      エミュレータ
+     * @param out      スクリプトを実行する UART の出力
+     * @param p        パターン
+     * @param deadline タイムアウトする時刻
+     * @return 一致すれば null、そうでなければ結果（STATUS_xxxx）と詳細
+     * @throws InterruptedException 待っている間に割り込まれた場合
+     */
+    private String[] waitOutput(BatchJob job, Emulator emu,
+                                BatchUARTOutput out, Pattern p,
+                                long deadline) throws InterruptedException {
+        Pattern[] pats;
+
+        if (job.getFail() == null) {
+            pats = new Pattern[] {p};
+        } else {
+            pats = new Pattern[] {p, job.getFail()};
+        }
+
+        while (true) {
+            boolean alive = emu.isAlive();
+            long rest = deadline - System.currentTimeMillis();
+            int m = out.waitFor(pats, Math.max(0,
+                    Math.min(rest, BatchUARTOutput.POLL_INTERVAL)));
+
+            if (m == 0) {
+                return null;
+            } else if (m == 1) {
+                return new String[] {BatchResult.STATUS_FAIL,
+                        "Matched '" + job.getFail().pattern() + "'."};
+            }
+
+            if (!alive) {
+                return new String[] {BatchResult.STATUS_ERROR,
+                        "Emulator stopped while waiting for '" + p.pattern() + "'."};
+            }
+            if (rest <= 0) {
+                return new String[] {BatchResult.STATUS_TIMEOUT,
+                        "Timed out while waiting for '" + p.pattern() + "'."};
+            }
+        }
+    }
+
+    /**
+     * 指定したアーキテクチャのエミュレータを作成します。
+     *
+     * @param arch アーキテクチャ（"arm" または "riscv"）
+     * @return エミュレータ
+     */
+    public static Emulator newEmulator(String arch) {
+        if (arch.compareToIgnoreCase("arm") == 0) {
+            return new EmulatorARM();
+        } else if (arch.compareToIgnoreCase("riscv") == 0) {
+            return new EmulatorRISCV();
+        } else {
+            throw new IllegalArgumentException("Not support '" +
+                    arch + "' architecture.");
+        }
+    }
+
+    /**
+     * 設定ファイルを読み込み、エミュレータの設定を作成します。
+     *
+     * @param spec   設定ファイル
+     * @param outDir UART の出力を書き出すディレクトリ、書き出さない場合は null
+     * @return エミュレータの設定、番号順に並びます
+     * @throws IOException 設定ファイル、スクリプトの読み出しに失敗した場合
+     */
+    public static List<BatchJob> loadJobs(File spec, File outDir) throws IOException {
+        Properties p = new Properties();
+        File base = spec.getAbsoluteFile().getParentFile();
+        SortedMap<Integer, EmuPropertyMap> maps = new TreeMap<>();
+        List<BatchJob> jobs = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+
+        try (InputStream is = new FileInputStream(spec)) {
+            p.load(is);
+        }
+
+        for (String k : p.stringPropertyNames()) {
+            int dot = k.lastIndexOf('.');
+            String key, val;
+            int index;
+
+            try {
+                index = Integer.parseInt(k.substring(dot + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format(
+                        "Index is missing in key '%s'.", k));
+            }
+            key = k.substring(0, Math.max(dot, 0));
+            val = p.getProperty(k);
+            if (Arrays.asList(URI_KEYS).contains(key)) {
+                val = toURIString(base, val);
+            }
+
+            if (!maps.containsKey(index)) {
+                maps.put(index, new EmuPropertyMap());
+            }
+            maps.get(index).setValue(key, 0, val);
+        }
+
+        for (Map.Entry<Integer, EmuPropertyMap> e : maps.entrySet()) {
+            EmuPropertyMap m = e.getValue();
+            String name = m.getValue(BATCH_NAME, 0);
+            String script = m.getValue(BATCH_SCRIPT, 0);
+            String expect = m.getValue(BATCH_EXPECT, 0);
+            String fail = m.getValue(BATCH_FAIL, 0);
+            String timeout = m.getValue(BATCH_TIMEOUT, 0);
+            BatchJob job;
+
+            if (name.equals("")) {
+                name = "job" + e.getKey();
+            }
+            if (!names.add(name)) {
+                throw new IllegalArgumentException(String.format(
+                        "Name '%s' is used twice.", name));
+            }
+
+            job = new BatchJob(name, m);
+            if (!script.equals("")) {
+                File f = new File(script);
+
+                if (!f.isAbsolute()) {
+                    f = new File(base, script);
+                }
+                try (Reader r = new InputStreamReader(
+                        new FileInputStream(f), "UTF-8")) {
+                    job.loadScript(r);
+                }
+            }
+            if (!expect.equals("")) {
+                job.setExpect(expect);
+            }
+            if (!fail.equals("")) {
+                job.setFail(fail);
+            }
+            if (!timeout.equals("")) {
+                job.setTimeout(Long.parseLong(timeout) * 1000);
+            }
+            job.setUART(m.getAsInteger(BATCH_UART, 0));
+            job.setOutputDirectory(outDir);
+
+            jobs.add(job);
+        }
+
+        return jobs;
+    }
+
+    /**
+     * ファイルのパスを URI の文字列に変換します。
+     *
+     * 既に URI であればそのまま返します。
+     *
+     * @param base 相対パスの基準となるディレクトリ
+     * @param path ファイルのパス、または URI
+     * @return URI の文字列
+     */
+    private static String toURIString(File base, String path) {
+        File f;
+
+        if (path.equals("")) {
+            return path;
+        }
+        try {
+            if (new URI(path).isAbsolute()) {
+                return path;
+            }
+        } catch (URISyntaxException e) {
+            //ファイルのパスとみなす
+        }
+
+        f = new File(path);
+        if (!f.isAbsolute()) {
+            f = new File(base, path);
+        }
+
+        return f.toURI().toString();
+    }
+}
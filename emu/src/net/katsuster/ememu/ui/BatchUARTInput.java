@@ -0,0 +1,79 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+
+/**
+ * バッチ実行時に UART へ文字を送るための入力ストリームです。
+ *
+ * <p>
+ * send で渡した文字列をためておき、UART が読み出します。
+ * UART は available が 0 より大きいときのみ読み出すため、
+ * 送る文字がない間はブロックしません。
+ * </p>
+ */
+public class BatchUARTInput extends InputStream {
+    private byte[] buf;
+    private int rd;
+    private int wr;
+    private boolean closed;
+
+    public BatchUARTInput() {
+        buf = new byte[256];
+        rd = 0;
+        wr = 0;
+        closed = false;
+    }
+
+    /**
+     * UART に送る文字列を追加します。
+     *
+     * @param str 文字列
+     */
+    public synchronized void send(String str) {
+        byte[] b = str.getBytes();
+
+        if (wr + b.length > buf.length) {
+            //読み出し済みの領域を詰め、足りなければ広げる
+            byte[] n = buf;
+
+            if (wr - rd + b.length > buf.length) {
+                n = new byte[Math.max(buf.length * 2, wr - rd + b.length)];
+            }
+            System.arraycopy(buf, rd, n, 0, wr - rd);
+            wr -= rd;
+            rd = 0;
+            buf = n;
+        }
+        System.arraycopy(b, 0, buf, wr, b.length);
+        wr += b.length;
+
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return wr - rd;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        while (rd == wr) {
+            if (closed) {
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        return buf[rd++] & 0xff;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,137 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.util.regex.*;
+
+/**
+ * バッチ実行時に UART の出力を受け取る出力ストリームです。
+ *
+ * <p>
+ * 出力をファイルに書き出すとともに、直近の出力を保持して
+ * パターンに一致する出力が現れるのを待てるようにします。
+ * ファイルは最初に出力があったときに作成し、改行ごとに書き出します。
+ * </p>
+ *
+ * <p>
+ * パターンは改行をまたがないものとし、新たな出力があるたびに
+ * 未完成の最終行以降のみを検索します。
+ * </p>
+ */
+public class BatchUARTOutput extends OutputStream {
+    //保持する出力の最大文字数
+    public static final int MAX_TEXT = 1024 * 1024;
+    //改行が出力されない場合に出力を検索する間隔（ミリ秒単位）
+    public static final int POLL_INTERVAL = 100;
+
+    private File file;
+    private OutputStream strFile;
+    //パターンと照合していない出力
+    private StringBuilder text;
+    //検索済みの行の終端
+    private int checked;
+    private boolean closed;
+
+    /**
+     * UART の出力を受け取るストリームを作成します。
+     *
+     * @param f 出力を書き出すファイル、null ならば書き出さない
+     */
+    public BatchUARTOutput(File f) {
+        file = f;
+        text = new StringBuilder();
+        checked = 0;
+        closed = false;
+    }
+
+    /**
+     * 出力を書き出すファイルを取得します。
+     *
+     * @return 出力を書き出すファイル、書き出さない場合は null
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed.");
+        }
+        if (strFile == null && file != null) {
+            strFile = new BufferedOutputStream(new FileOutputStream(file));
+        }
+
+        if (strFile != null) {
+            strFile.write(b);
+        }
+        text.append((char)(b & 0xff));
+        if (text.length() > MAX_TEXT) {
+            int n = text.length() - MAX_TEXT / 2;
+
+            text.delete(0, n);
+            checked = Math.max(0, checked - n);
+        }
+
+        if (b == '\n') {
+            if (strFile != null) {
+                strFile.flush();
+            }
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        //UART は 1文字ごとに flush するため、改行ごとに書き出す
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (strFile != null) {
+            strFile.close();
+        }
+        notifyAll();
+    }
+
+    /**
+     * いずれかのパターンに一致する出力が現れるまで待ちます。
+     *
+     * 一致した場合は、一致した箇所までの出力を読み捨てます。
+     *
+     * @param pats    パターン
+     * @param timeout 待つ最大の時間（ミリ秒単位）
+     * @return 一致したパターンの番号、時間内に一致しなければ -1
+     * @throws InterruptedException 待っている間に割り込まれた場合
+     */
+    public synchronized int waitFor(Pattern[] pats, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        checked = 0;
+        while (true) {
+            int start = text.lastIndexOf("\n", checked - 1) + 1;
+
+            for (int i = 0; i < pats.length; i++) {
+                Matcher m = pats[i].matcher(text);
+
+                m.region(start, text.length());
+                if (m.find()) {
+                    text.delete(0, m.end());
+                    checked = 0;
+                    return i;
+                }
+            }
+            checked = text.length();
+
+            long rest = deadline - System.currentTimeMillis();
+            if (rest <= 0 || closed) {
+                return -1;
+            }
+            wait(Math.min(rest, POLL_INTERVAL));
+        }
+    }
+}
@@ -2,13 +2,106 @@ package net.katsuster.ememu.ui;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.generic.bus.BusMaster64;
 
 /**
  * バイナリファイルのローダです。
+ *
+ * <p>
+ * 圧縮されたファイルは登録されたデコーダで展開しながら、ゲストのメモリに書き込みます。
+ * </p>
  */
 public class BinaryLoader {
+    //ゲストのメモリに一度に書き込む大きさ
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    //イメージファイルのデコーダ
+    private static final List<ImageDecoder> decoders = new CopyOnWriteArrayList<>();
+
+    static {
+        decoders.add(new GzipImageDecoder());
+        try {
+            for (ImageDecoder d : ServiceLoader.load(ImageDecoder.class)) {
+                decoders.add(d);
+            }
+        } catch (ServiceConfigurationError e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * バッファの内容を読み出すストリームです。
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer buf;
+
+        public ByteBufferInputStream(ByteBuffer b) {
+            buf = b;
+        }
+
+        @Override
+        public int read() {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+
+            return buf.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, buf.remaining());
+
+            if (len > 0 && n == 0) {
+                return -1;
+            }
+            buf.get(b, off, n);
+
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * イメージファイルのデコーダを登録します。
+     *
+     * 後から登録したデコーダほど先に調べます。
+     *
+     * @param d デコーダ
+     */
+    public static void addDecoder(ImageDecoder d) {
+        if (d == null) {
+            throw new IllegalArgumentException("Decoder is null.");
+        }
+
+        decoders.add(0, d);
+    }
+
+    /**
+     * ファイルを展開できるデコーダを取得します。
+     *
+     * @param b ファイルの内容、現在位置をファイルの先頭とします
+     * @return デコーダ、圧縮されていなければ null
+     */
+    public static ImageDecoder findDecoder(ByteBuffer b) {
+        for (ImageDecoder d : decoders) {
+            if (d.accept(b)) {
+                return d;
+            }
+        }
+
+        return null;
+    }
+
     public static int loadURIResource(URI uri, Bus64 bus, long addr) {
         int i = 0;
 
@@ -17,16 +110,17 @@ public class BinaryLoader {
                 uri.toString(), addr);
 
         try {
-            DataInputStream s = new DataInputStream(
-                    new BufferedInputStream(uri.toURL().openStream()));
-
-            try {
-                while (true) {
-                    bus.write8(null, addr + i, s.readByte());
-                    i++;
-                }
-            } catch (EOFException e) {
-                //end
+            ByteBuffer s = ResourceCache.getDefault().map(uri);
+
+            if (ELFLoader.isELF(s)) {
+                //ELF ファイルはセグメントごとに指定された物理アドレスに配置する
+                ELFLoader elf = new ELFLoader(s);
+
+                System.out.printf("loadELF: %d segments, 0x%08x - 0x%08x\n",
+                        elf.getSegments(), elf.getLowAddress(), elf.getHighAddress() - 1);
+                i = (int)elf.load(bus, null);
+            } else {
+                i = writeImage(s, bus, null, addr);
             }
         } catch (IOException e) {
             e.printStackTrace(System.err);
@@ -42,6 +136,92 @@ public class BinaryLoader {
         return i;
     }
 
+    /**
+     * バッファの内容をバスに書き込みます。
+     *
+     * 書き込み先が RAM であれば、ブロック単位でまとめて書き込みます。
+     *
+     * @param s    書き込む内容、現在位置から末尾までを書き込みます
+     * @param bus  書き込み先のバス
+     * @param m    書き込むマスターコア
+     * @param addr 書き込みを開始するアドレス
+     * @return 書き込んだ大きさ（バイト単位）
+     */
+    public static int writeBuffer(ByteBuffer s, Bus64 bus, BusMaster64 m, long addr) {
+        byte[] buf = new byte[Math.min(s.remaining(), BLOCK_SIZE)];
+        int i = 0;
+
+        while (s.hasRemaining()) {
+            int n = Math.min(s.remaining(), buf.length);
+
+            s.get(buf, 0, n);
+            bus.writeBlock(m, addr + i, buf, 0, n);
+            i += n;
+        }
+
+        return i;
+    }
+
+    /**
+     * ストリームの内容をバスに書き込みます。
+     *
+     * 書き込み先が RAM であれば、ブロック単位でまとめて書き込みます。
+     *
+     * @param s    書き込む内容
+     * @param bus  書き込み先のバス
+     * @param m    書き込むマスターコア
+     * @param addr 書き込みを開始するアドレス
+     * @return 書き込んだ大きさ（バイト単位）
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public static int writeStream(InputStream s, Bus64 bus, BusMaster64 m, long addr)
+            throws IOException {
+        byte[] buf = new byte[BLOCK_SIZE];
+        int i = 0;
+
+        while (true) {
+            int n = 0;
+            int r = 0;
+
+            //ブロック単位で書き込めるよう、ブロックが一杯になるまで読み出す
+            while (n < buf.length && (r = s.read(buf, n, buf.length - n)) != -1) {
+                n += r;
+            }
+            bus.writeBlock(m, addr + i, buf, 0, n);
+            i += n;
+            if (r == -1) {
+                break;
+            }
+        }
+
+        return i;
+    }
+
+    /**
+     * イメージファイルをバスに書き込みます。
+     *
+     * 圧縮されていれば展開しながら書き込みます。
+     *
+     * @param s    イメージファイルの内容、現在位置から末尾までを書き込みます
+     * @param bus  書き込み先のバス
+     * @param m    書き込むマスターコア
+     * @param addr 書き込みを開始するアドレス
+     * @return 書き込んだ大きさ（展開後の大きさ、バイト単位）
+     * @throws IOException 展開に失敗した場合
+     */
+    public static int writeImage(ByteBuffer s, Bus64 bus, BusMaster64 m, long addr)
+            throws IOException {
+        ImageDecoder d = findDecoder(s);
+
+        if (d == null) {
+            return writeBuffer(s, bus, m, addr);
+        }
+
+        try (InputStream in = d.decode(new ByteBufferInputStream(s))) {
+            return writeStream(in, bus, m, addr);
+        }
+    }
+
     public static int loadFromURI(Bus64 bus, String uri, long addr) {
         int size = 0;
 
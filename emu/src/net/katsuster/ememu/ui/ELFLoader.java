@@ -0,0 +1,264 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import net.katsuster.ememu.generic.bus.Bus64;
+import net.katsuster.ememu.generic.bus.BusMaster64;
+import net.katsuster.ememu.generic.trace.SymbolTable;
+
+/**
+ * ELF ファイル（ELF32, ELF64）のローダです。
+ *
+ * <p>
+ * プログラムヘッダの PT_LOAD セグメントを物理アドレス（p_paddr）に配置します。
+ * ファイルに含まれる部分はブロック単位でまとめて書き込み、
+ * 残りの部分（.bss）は 0 で埋めます。
+ * </p>
+ *
+ * <p>
+ * エントリポイントが仮想アドレスの場合は、
+ * エントリポイントを含むセグメントの物理アドレスに変換した値を
+ * 物理的なエントリポイントとします。
+ * </p>
+ */
+public class ELFLoader {
+    //ELF ヘッダの定数
+    public static final int ELFCLASS32 = SymbolTable.ELFCLASS32;
+    public static final int ELFCLASS64 = SymbolTable.ELFCLASS64;
+    public static final int ELFDATA2LSB = SymbolTable.ELFDATA2LSB;
+    public static final int ELFDATA2MSB = SymbolTable.ELFDATA2MSB;
+    public static final int EM_ARM = SymbolTable.EM_ARM;
+    public static final int EM_RISCV = 243;
+    public static final int PT_LOAD = 1;
+
+    /**
+     * PT_LOAD セグメントです。
+     */
+    private static class Segment {
+        private long offset;
+        private long vaddr;
+        private long paddr;
+        private long filesz;
+        private long memsz;
+    }
+
+    private ByteBuffer buf;
+    private boolean is64;
+    private int machine;
+    private long entry;
+    private List<Segment> segments;
+
+    /**
+     * ELF ファイルのヘッダとプログラムヘッダを読み込みます。
+     *
+     * @param b ELF ファイルの内容、現在位置をファイルの先頭とします
+     * @throws IOException ELF ファイルでないか、壊れている場合
+     */
+    public ELFLoader(ByteBuffer b) throws IOException {
+        long phoff;
+        int phentsize, phnum;
+
+        if (!isELF(b)) {
+            throw new IOException("Not an ELF file.");
+        }
+
+        buf = b.slice();
+        segments = new ArrayList<>();
+
+        try {
+            if (buf.get(5) == ELFDATA2MSB) {
+                buf.order(ByteOrder.BIG_ENDIAN);
+            } else if (buf.get(5) == ELFDATA2LSB) {
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                throw new IOException("Unknown ELF data encoding " + buf.get(5) + ".");
+            }
+            if (buf.get(4) == ELFCLASS64) {
+                is64 = true;
+                entry = buf.getLong(0x18);
+                phoff = buf.getLong(0x20);
+                phentsize = buf.getShort(0x36) & 0xffff;
+                phnum = buf.getShort(0x38) & 0xffff;
+            } else if (buf.get(4) == ELFCLASS32) {
+                is64 = false;
+                entry = buf.getInt(0x18) & 0xffffffffL;
+                phoff = buf.getInt(0x1c) & 0xffffffffL;
+                phentsize = buf.getShort(0x2a) & 0xffff;
+                phnum = buf.getShort(0x2c) & 0xffff;
+            } else {
+                throw new IOException("Unknown ELF class " + buf.get(4) + ".");
+            }
+            machine = buf.getShort(0x12) & 0xffff;
+
+            for (int i = 0; i < phnum; i++) {
+                int ph = (int)(phoff + (long)i * phentsize);
+                Segment s;
+
+                if (buf.getInt(ph) != PT_LOAD) {
+                    continue;
+                }
+
+                s = new Segment();
+                if (is64) {
+                    s.offset = buf.getLong(ph + 0x08);
+                    s.vaddr = buf.getLong(ph + 0x10);
+                    s.paddr = buf.getLong(ph + 0x18);
+                    s.filesz = buf.getLong(ph + 0x20);
+                    s.memsz = buf.getLong(ph + 0x28);
+                } else {
+                    s.offset = buf.getInt(ph + 0x04) & 0xffffffffL;
+                    s.vaddr = buf.getInt(ph + 0x08) & 0xffffffffL;
+                    s.paddr = buf.getInt(ph + 0x0c) & 0xffffffffL;
+                    s.filesz = buf.getInt(ph + 0x10) & 0xffffffffL;
+                    s.memsz = buf.getInt(ph + 0x14) & 0xffffffffL;
+                }
+                if (s.filesz < 0 || s.filesz > s.memsz || s.memsz > Integer.MAX_VALUE ||
+                        s.offset < 0 || s.offset + s.filesz > buf.limit()) {
+                    throw new IOException(String.format(
+                            "Broken ELF, segment %d is out of file.", i));
+                }
+                segments.add(s);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Broken ELF, offset is out of file.", e);
+        }
+    }
+
+    /**
+     * ELF ファイルかどうかを判定します。
+     *
+     * @param b ファイルの内容、現在位置をファイルの先頭とします
+     * @return ELF ファイルならば true、そうでなければ false
+     */
+    public static boolean isELF(ByteBuffer b) {
+        int p = b.position();
+
+        return b.remaining() >= 0x34 && b.get(p) == 0x7f &&
+                b.get(p + 1) == 'E' && b.get(p + 2) == 'L' && b.get(p + 3) == 'F';
+    }
+
+    /**
+     * ELF64 かどうかを取得します。
+     *
+     * @return ELF64 ならば true、ELF32 ならば false
+     */
+    public boolean is64Bit() {
+        return is64;
+    }
+
+    /**
+     * マシンの種類（e_machine）を取得します。
+     *
+     * @return マシンの種類
+     */
+    public int getMachine() {
+        return machine;
+    }
+
+    /**
+     * エントリポイント（e_entry）を取得します。
+     *
+     * @return エントリポイント
+     */
+    public long getEntry() {
+        return entry;
+    }
+
+    /**
+     * 物理アドレスのエントリポイントを取得します。
+     *
+     * @return 物理アドレスのエントリポイント
+     */
+    public long getPhysicalEntry() {
+        for (Segment s : segments) {
+            //アドレスは符号無しとして比較する
+            if ((s.vaddr ^ Long.MIN_VALUE) <= (entry ^ Long.MIN_VALUE) &&
+                    entry - s.vaddr < s.memsz) {
+                return entry - s.vaddr + s.paddr;
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * PT_LOAD セグメントの数を取得します。
+     *
+     * @return セグメントの数
+     */
+    public int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * セグメントを配置する最も小さい物理アドレスを取得します。
+     *
+     * @return 最も小さい物理アドレス、セグメントがなければ 0
+     */
+    public long getLowAddress() {
+        long low;
+
+        if (segments.isEmpty()) {
+            return 0;
+        }
+
+        low = segments.get(0).paddr;
+        for (Segment s : segments) {
+            low = Math.min(low, s.paddr);
+        }
+
+        return low;
+    }
+
+    /**
+     * セグメントを配置する最も大きい物理アドレスの次のアドレスを取得します。
+     *
+     * @return 最も大きい物理アドレスの次のアドレス、セグメントがなければ 0
+     */
+    public long getHighAddress() {
+        long high = 0;
+
+        for (Segment s : segments) {
+            high = Math.max(high, s.paddr + s.memsz);
+        }
+
+        return high;
+    }
+
+    /**
+     * 全ての PT_LOAD セグメントをバスに書き込みます。
+     *
+     * @param bus 書き込み先のバス
+     * @param m   書き込むマスターコア
+     * @return 書き込んだ大きさ（バイト単位、.bss を含む）
+     */
+    public long load(Bus64 bus, BusMaster64 m) {
+        long total = 0;
+
+        for (Segment s : segments) {
+            ByteBuffer b = buf.duplicate();
+
+            b.limit((int)(s.offset + s.filesz));
+            b.position((int)s.offset);
+            BinaryLoader.writeBuffer(b, bus, m, s.paddr);
+            //RAM のゼロページには書き込まない
+            bus.clearBlock(m, s.paddr + s.filesz, s.memsz - s.filesz);
+
+            total += s.memsz;
+        }
+
+        return total;
+    }
+
+    /**
+     * シンボルテーブルから関数のシンボルを読み込みます。
+     *
+     * @return シンボルの表
+     * @throws IOException ELF ファイルが壊れている場合
+     */
+    public SymbolTable getSymbolTable() throws IOException {
+        return SymbolTable.loadELF(buf);
+    }
+}
@@ -1,6 +1,13 @@
 package net.katsuster.ememu.ui;
 
+import java.io.*;
+import java.util.*;
+
 import net.katsuster.ememu.generic.*;
+import net.katsuster.ememu.generic.core.*;
+import net.katsuster.ememu.generic.net.*;
+import net.katsuster.ememu.generic.stats.*;
+import net.katsuster.ememu.generic.trace.*;
 
 import static net.katsuster.ememu.ui.EmuPropertyPanel.*;
 
@@ -9,11 +16,48 @@ import static net.katsuster.ememu.ui.EmuPropertyPanel.*;
  */
 public class Emulator extends Thread
         implements Configurable {
+    /** コアを実行する方式（"thread", "virtual", "roundrobin"） */
+    public static final String EMU_EXECUTOR = "emu.executor";
+    /** 命令トレースを書き出すファイル（空ならば記録しない） */
+    public static final String EMU_TRACE = "emu.trace";
+    /** 命令トレースに命令以外に記録する内容（"regs", "mem" をカンマで区切る） */
+    public static final String EMU_TRACE_DETAIL = "emu.trace.detail";
+    /** プロファイラのサンプルを書き出すファイル（空ならばサンプリングしない） */
+    public static final String EMU_PROFILE = "emu.profile";
+    /** プロファイラのサンプリング間隔（マイクロ秒単位） */
+    public static final String EMU_PROFILE_INTERVAL = "emu.profile.interval";
+    /** 実行統計をログに出力する間隔（秒単位、0 ならば JMX への公開のみ） */
+    public static final String EMU_STATS = "emu.stats";
+    /** virtio-mmio ブロックデバイスのディスクイメージファイル（ARM のみ、空ならば使わない） */
+    public static final String EMU_DISK = "emu.disk";
+    /** ディスクイメージを読み出し専用とするかどうか */
+    public static final String EMU_DISK_READONLY = "emu.disk.readonly";
+    /** MMC/SD カードのイメージファイル（空ならばカードを挿入しない） */
+    public static final String EMU_MMC = "emu.mmc";
+    /** MMC/SD カードのイメージを読み出し専用とするかどうか */
+    public static final String EMU_MMC_READONLY = "emu.mmc.readonly";
+    /** 接続する仮想 Ethernet スイッチの名前（空ならばスイッチに接続しない） */
+    public static final String EMU_NET = "emu.net";
+    /** パケットキャプチャの出力ファイル（空ならばキャプチャしない） */
+    public static final String EMU_NET_PCAP = "emu.net.pcap";
+
     private EmuPropertyMap props;
     private Board board;
+    private TraceWriter trace;
+    private SamplingProfiler profiler;
+    private StatsMonitor stats;
+    private SymbolTable symbols;
+    private List<BlockStorage> disks = new ArrayList<>();
+    private EtherPort netPort;
+    private EtherSwitch netSwitch;
+    private PcapWriter pcap;
+    private final Object haltLock = new Object();
+    private boolean haltRequested;
+    private boolean boardReady;
 
     public Emulator() {
-
+        //名前を指定しなければクラス名とする、JMX の MBean の名前にも使う
+        setName(getClass().getName());
     }
 
     @Override
@@ -21,6 +65,19 @@ public class Emulator extends Thread
         int index = 0;
 
         p.setProperty("test.test", index, "Test", TYPE_STRING, "test default");
+        p.setProperty(EMU_EXECUTOR, index, "Core executor", TYPE_STRING, "thread");
+        p.setProperty(EMU_TRACE, index, "Instruction trace file", TYPE_STRING, "");
+        p.setProperty(EMU_TRACE_DETAIL, index, "Instruction trace detail", TYPE_STRING, "");
+        p.setProperty(EMU_PROFILE, index, "Profile output file", TYPE_STRING, "");
+        p.setProperty(EMU_PROFILE_INTERVAL, index, "Profile interval (us)", TYPE_STRING,
+                Long.toString(SamplingProfiler.DEFAULT_INTERVAL));
+        p.setProperty(EMU_STATS, index, "Statistics log interval (s)", TYPE_STRING, "0");
+        p.setProperty(EMU_DISK, index, "Disk image file", TYPE_STRING, "");
+        p.setProperty(EMU_DISK_READONLY, index, "Read only disk", TYPE_BOOLEAN, "false");
+        p.setProperty(EMU_MMC, index, "MMC/SD card image file", TYPE_STRING, "");
+        p.setProperty(EMU_MMC_READONLY, index, "Read only MMC/SD card", TYPE_BOOLEAN, "false");
+        p.setProperty(EMU_NET, index, "Virtual Ethernet switch name", TYPE_STRING, "");
+        p.setProperty(EMU_NET_PCAP, index, "Packet capture file", TYPE_STRING, "");
     }
 
     @Override
@@ -47,6 +104,27 @@ public class Emulator extends Thread
         return board;
     }
 
+    /**
+     * ゲストのプログラムのシンボルを取得します。
+     *
+     * @return シンボルの表、分からなければ null
+     */
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
+
+    /**
+     * ゲストのプログラムのシンボルを設定します。
+     *
+     * ELF ファイルを読み込んだ場合に設定します。
+     * プロファイルを書き出すときに、関数ごとの集計にも使います。
+     *
+     * @param syms シンボルの表、分からなければ null
+     */
+    protected void setSymbolTable(SymbolTable syms) {
+        symbols = syms;
+    }
+
     /**
      * エミュレーション対象となるボードを設定します。
      *
@@ -56,6 +134,361 @@ public class Emulator extends Thread
         board = b;
     }
 
+    /**
+     * コアを実行する方式を作成します。
+     *
+     * <ul>
+     * <li>"thread" または空文字列: 各コアを専用のスレッドで実行します</li>
+     * <li>"virtual": デバイスのコアを仮想スレッドで実行します</li>
+     * <li>"roundrobin": 全てのコアを 1つのスレッドで交互に実行します</li>
+     * </ul>
+     *
+     * @param name 実行方式の名前
+     * @return コアを実行する方式
+     */
+    public static CoreExecutor newCoreExecutor(String name) {
+        if (name.equals("") || name.equalsIgnoreCase("thread")) {
+            return new ThreadCoreExecutor();
+        } else if (name.equalsIgnoreCase("virtual")) {
+            return new VirtualThreadCoreExecutor();
+        } else if (name.equalsIgnoreCase("roundrobin")) {
+            return new RoundRobinCoreExecutor();
+        } else {
+            throw new IllegalArgumentException("Not support '" +
+                    name + "' executor.");
+        }
+    }
+
+    /**
+     * プロパティで指定された、コアを実行する方式を作成します。
+     *
+     * @return コアを実行する方式
+     */
+    protected CoreExecutor newCoreExecutor() {
+        if (getProperties() == null) {
+            return new ThreadCoreExecutor();
+        }
+
+        return newCoreExecutor(getProperties().getValue(EMU_EXECUTOR, 0));
+    }
+
+    /**
+     * 命令トレースに命令以外に記録する内容を解釈します。
+     *
+     * @param detail "regs", "mem" をカンマで区切った文字列
+     * @return TraceRecorder.TRACE_xxxx の論理和
+     */
+    public static int parseTraceDetail(String detail) {
+        int flags = 0;
+
+        for (String s : detail.split(",")) {
+            s = s.trim();
+            if (s.equals("")) {
+                continue;
+            } else if (s.equalsIgnoreCase("regs")) {
+                flags |= TraceRecorder.TRACE_REGS;
+            } else if (s.equalsIgnoreCase("mem")) {
+                flags |= TraceRecorder.TRACE_MEM;
+            } else {
+                throw new IllegalArgumentException("Not support '" +
+                        s + "' trace detail.");
+            }
+        }
+
+        return flags;
+    }
+
+    /**
+     * プロパティで指定されていれば、全ての CPU の命令トレースの記録を開始します。
+     *
+     * ボードの setup の後、boot の前に呼び出してください。
+     *
+     * @param arch アーキテクチャ名
+     */
+    protected void startTrace(String arch) {
+        String path;
+        int flags;
+
+        if (getProperties() == null) {
+            return;
+        }
+        path = getProperties().getValue(EMU_TRACE, 0);
+        if (path.equals("")) {
+            return;
+        }
+        flags = parseTraceDetail(getProperties().getValue(EMU_TRACE_DETAIL, 0));
+
+        try {
+            CPU[] cpus = getBoard().getCPUs();
+
+            trace = new TraceWriter(new File(path), arch);
+            for (int i = 0; i < cpus.length; i++) {
+                cpus[i].setTrace(trace.newRecorder(i, flags));
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            trace = null;
+        }
+    }
+
+    /**
+     * 命令トレースの記録を終了し、ファイルを閉じます。
+     *
+     * 全ての CPU が停止してから呼び出してください。
+     */
+    protected void stopTrace() {
+        if (trace == null) {
+            return;
+        }
+
+        for (CPU c : getBoard().getCPUs()) {
+            c.setTrace(null);
+        }
+        try {
+            trace.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        trace = null;
+    }
+
+    /**
+     * プロパティで指定されていれば、全ての CPU のサンプリングを開始します。
+     *
+     * ボードの setup の後、boot の前に呼び出してください。
+     *
+     * @param arch アーキテクチャ名
+     */
+    protected void startProfile(String arch) {
+        String path, intr;
+        long interval = SamplingProfiler.DEFAULT_INTERVAL;
+
+        if (getProperties() == null) {
+            return;
+        }
+        path = getProperties().getValue(EMU_PROFILE, 0);
+        if (path.equals("")) {
+            return;
+        }
+        intr = getProperties().getValue(EMU_PROFILE_INTERVAL, 0);
+        if (!intr.equals("")) {
+            interval = Long.parseLong(intr);
+        }
+
+        profiler = new SamplingProfiler(arch, getBoard().getCPUs(), interval);
+        profiler.start();
+    }
+
+    /**
+     * サンプリングを終了し、サンプルをファイルに書き出します。
+     *
+     * シンボルが分かっていれば、関数ごとの集計を
+     * ファイル名に .txt を付けたファイルに書き出します。
+     */
+    protected void stopProfile() {
+        String path;
+
+        if (profiler == null) {
+            return;
+        }
+
+        profiler.halt();
+        path = getProperties().getValue(EMU_PROFILE, 0);
+        try (PrintStream ps = new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(path)), false, "UTF-8")) {
+            profiler.write(ps);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        profiler = null;
+
+        if (symbols == null) {
+            return;
+        }
+
+        //シンボルが分かっていれば、関数ごとの集計も書き出す
+        try (InputStream in = new FileInputStream(path);
+             PrintStream ps = new PrintStream(new BufferedOutputStream(
+                     new FileOutputStream(path + ".txt")), false, "UTF-8")) {
+            ProfileReport r = new ProfileReport(symbols);
+
+            r.load(in);
+            r.printText(ps, -1);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * プロパティで指定されていれば、ディスクイメージを開いてブロックストレージに接続します。
+     *
+     * ボードの setup の後、boot の前に呼び出してください。
+     *
+     * @param s    ディスクイメージを接続するブロックストレージ
+     * @param file ディスクイメージのファイルを指定するプロパティの名前
+     * @param ro   読み出し専用とするかどうかを指定するプロパティの名前
+     */
+    protected void openDisk(BlockStorage s, String file, String ro) {
+        String path;
+
+        if (getProperties() == null) {
+            return;
+        }
+        path = getProperties().getValue(file, 0);
+        if (path.equals("")) {
+            return;
+        }
+
+        try {
+            s.open(new File(path), Boolean.parseBoolean(
+                    getProperties().getValue(ro, 0)));
+            disks.add(s);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * 開いた全てのディスクイメージへの変更を書き戻して閉じます。
+     *
+     * 全ての CPU が停止してから呼び出してください。
+     */
+    protected void closeDisks() {
+        for (BlockStorage s : disks) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+        disks.clear();
+    }
+
+    /**
+     * プロパティで指定されていれば、ネットワークインタフェースを仮想スイッチに接続し、
+     * パケットキャプチャを開始します。
+     *
+     * スイッチに接続した場合はスイッチを流れる全てのフレームを、
+     * そうでなければインタフェースが送信したフレームをキャプチャします。
+     * ボードの setup の後、boot の前に呼び出してください。
+     *
+     * @param p ネットワークインタフェース
+     */
+    protected void connectNet(EtherPort p) {
+        String name, path;
+
+        if (getProperties() == null) {
+            return;
+        }
+        name = getProperties().getValue(EMU_NET, 0);
+        path = getProperties().getValue(EMU_NET_PCAP, 0);
+
+        if (!path.equals("")) {
+            try {
+                pcap = new PcapWriter(new FileOutputStream(path));
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+
+        netPort = p;
+        if (!name.equals("")) {
+            netSwitch = EtherSwitch.getSwitch(name);
+            netSwitch.connect(p);
+            if (pcap != null) {
+                netSwitch.addMonitor(pcap);
+            }
+        } else if (pcap != null) {
+            p.connectEtherDestination(pcap);
+        }
+    }
+
+    /**
+     * ネットワークインタフェースを仮想スイッチから切断し、パケットキャプチャを終了します。
+     *
+     * 全ての CPU が停止してから呼び出してください。
+     */
+    protected void disconnectNet() {
+        if (netSwitch != null) {
+            netSwitch.disconnect(netPort);
+            if (pcap != null) {
+                netSwitch.removeMonitor(pcap);
+            }
+            netSwitch = null;
+        } else if (netPort != null && pcap != null) {
+            netPort.disconnectEtherDestination();
+        }
+        netPort = null;
+
+        if (pcap != null) {
+            try {
+                pcap.close();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+            pcap = null;
+        }
+    }
+
+    /**
+     * 実行統計の JMX への公開と、命令の実行速度の計測を開始します。
+     *
+     * プロパティで間隔が指定されていれば、実行統計を定期的にログに出力します。
+     * ボードの setup の後、boot の前に呼び出してください。
+     */
+    protected void startStats() {
+        CPU[] cpus = getBoard().getCPUs();
+        List<CPUStats> l = new ArrayList<>();
+        String intr = "";
+        BusStats bus;
+
+        if (getProperties() != null) {
+            intr = getProperties().getValue(EMU_STATS, 0);
+        }
+        for (CPU c : cpus) {
+            if (c.getStats() != null) {
+                l.add(c.getStats());
+            }
+        }
+        bus = new BusStats(getBoard().getMainBus());
+
+        stats = new StatsMonitor(getName(), l.toArray(new CPUStats[0]), bus,
+                intr.equals("") ? 0 : Long.parseLong(intr) * 1000);
+        stats.start();
+    }
+
+    /**
+     * 実行統計の公開を終了します。
+     */
+    protected void stopStats() {
+        if (stats == null) {
+            return;
+        }
+
+        stats.halt();
+        stats = null;
+    }
+
+    /**
+     * 全ての CPU のフライトレコーダの記録を出力します。
+     *
+     * 実行中のエミュレータに対しても呼び出せます。
+     *
+     * @param ps 出力先
+     */
+    public void dumpFlightRecorder(PrintStream ps) {
+        Board b = getBoard();
+
+        if (b == null) {
+            return;
+        }
+
+        for (CPU c : b.getCPUs()) {
+            c.dumpFlightRecorder(ps);
+        }
+        ps.flush();
+    }
+
     /**
      * エミュレータを設定します。
      */
@@ -70,10 +503,44 @@ public class Emulator extends Thread
         getBoard().boot();
     }
 
+    /**
+     * ボードを設定し、停止の要求を受け付けられる状態にします。
+     *
+     * ボードの設定が終わる前に停止を要求された場合は、
+     * 設定が終わった時点でボードを停止します。
+     * この場合、呼び出し元はボードを起動せずに戻る必要があります。
+     *
+     * @return ボードを起動して良ければ true、既に停止を要求されていれば false
+     */
+    protected boolean setupBoard() {
+        getBoard().setup();
+
+        synchronized (haltLock) {
+            boardReady = true;
+            if (!haltRequested) {
+                return true;
+            }
+        }
+
+        getBoard().halt();
+
+        return false;
+    }
+
     /**
      * エミュレータを停止します。
+     *
+     * ボードの設定が終わる前に呼ばれた場合は、
+     * 設定が終わるまで停止を遅らせます。
      */
     public void halt() {
+        synchronized (haltLock) {
+            haltRequested = true;
+            if (!boardReady) {
+                return;
+            }
+        }
+
         getBoard().halt();
     }
 }
@@ -15,6 +15,7 @@ public class EmulatorARM extends Emulator {
     @Override
     public void setup() {
         setBoard(new ARMVersatile());
+        getBoard().setCoreExecutor(newCoreExecutor());
     }
 
     @Override
@@ -23,9 +24,9 @@ public class EmulatorARM extends Emulator {
         ARMv5 cpu;
         RAM ram;
 
-        setName(getClass().getName());
-
-        getBoard().setup();
+        if (!setupBoard()) {
+            return;
+        }
         cpu = (ARMv5)getBoard().getMainCPU();
         ram = getBoard().getMainRAM();
 
@@ -34,11 +35,27 @@ public class EmulatorARM extends Emulator {
         initrd = getProperties().getValue(LinuxOption.LINUX_INITRD, 0);
         cmdline = getProperties().getValue(LinuxOption.LINUX_CMDLINE, 0);
         if (dtree.equals("")) {
-            ARMLinuxLoader.bootFromURI(cpu, ram, kimage, initrd, cmdline);
+            setSymbolTable(ARMLinuxLoader.bootFromURI(cpu, ram, kimage, initrd, cmdline));
         } else {
-            ARMLinuxLoader.bootFromURIWithDT(cpu, ram, dtree, kimage, initrd, cmdline);
+            setSymbolTable(ARMLinuxLoader.bootFromURIWithDT(cpu, ram, dtree, kimage, initrd, cmdline));
         }
 
-        getBoard().boot();
+        openDisk(((ARMVersatile)getBoard()).getVirtIOBlock().getStorage(),
+                EMU_DISK, EMU_DISK_READONLY);
+        openDisk(((ARMVersatile)getBoard()).getMMCI().getStorage(),
+                EMU_MMC, EMU_MMC_READONLY);
+        connectNet(((ARMVersatile)getBoard()).getEthernet());
+        startTrace("arm");
+        startProfile("arm");
+        startStats();
+        try {
+            getBoard().boot();
+        } finally {
+            stopStats();
+            stopProfile();
+            stopTrace();
+            closeDisks();
+            disconnectNet();
+        }
     }
 }
@@ -5,17 +5,43 @@ import net.katsuster.ememu.board.RISCVUnleashed;
 import net.katsuster.ememu.generic.bus.Bus64;
 import net.katsuster.ememu.riscv.core.RV64;
 
+import static net.katsuster.ememu.ui.EmuPropertyPanel.*;
+
 /**
  * RISC-V エミュレータです。
  */
 public class EmulatorRISCV extends Emulator {
+    /** ROM 0 (0x1000) に配置するイメージファイルのパス */
+    public static final String RISCV_ROM0 = "riscv.rom0";
+    /** ROM 1 (0x10000) に配置するイメージファイルのパス */
+    public static final String RISCV_ROM1 = "riscv.rom1";
+    /** QSPI Flash 0 (0x20000000) に配置するイメージファイルのパス */
+    public static final String RISCV_FLASH0 = "riscv.flash0";
+
+    //プロパティが空の場合に使うイメージファイルのパス
+    public static final String DEFAULT_ROM0 = "file:///home/katsuhiro/share/ememu/unleashed/rom0.bin";
+    public static final String DEFAULT_ROM1 = "file:///home/katsuhiro/share/ememu/unleashed/rom1.bin";
+    public static final String DEFAULT_FLASH0 = "file:///home/katsuhiro/share/ememu/unleashed/flash0.bin";
+
     public EmulatorRISCV() {
 
     }
 
+    @Override
+    public void initProperties(EmuPropertyMap p) {
+        int index = 0;
+
+        super.initProperties(p);
+
+        p.setProperty(RISCV_ROM0, index, "ROM 0 Image", TYPE_URI, DEFAULT_ROM0);
+        p.setProperty(RISCV_ROM1, index, "ROM 1 Image", TYPE_URI, DEFAULT_ROM1);
+        p.setProperty(RISCV_FLASH0, index, "QSPI Flash 0 Image", TYPE_URI, DEFAULT_FLASH0);
+    }
+
     @Override
     public void setup() {
         setBoard(new RISCVUnleashed());
+        getBoard().setCoreExecutor(newCoreExecutor());
     }
 
     @Override
@@ -24,20 +50,49 @@ public class EmulatorRISCV extends Emulator {
         RV64 cpu;
         Bus64 bus;
 
-        setName(getClass().getName());
-
-        getBoard().setup();
+        if (!setupBoard()) {
+            return;
+        }
         cpu = (RV64)getBoard().getMainCPU();
         bus = getBoard().getMainBus();
 
-        rom0 = "file:///home/katsuhiro/share/ememu/unleashed/rom0.bin";
-        rom1 = "file:///home/katsuhiro/share/ememu/unleashed/rom1.bin";
-        qspi_flash0 = "file:///home/katsuhiro/share/ememu/unleashed/flash0.bin";
+        rom0 = getImage(RISCV_ROM0, DEFAULT_ROM0);
+        rom1 = getImage(RISCV_ROM1, DEFAULT_ROM1);
+        qspi_flash0 = getImage(RISCV_FLASH0, DEFAULT_FLASH0);
 
         BinaryLoader.loadFromURI(bus, rom0, 0x1000);
         BinaryLoader.loadFromURI(bus, rom1, 0x10000);
         BinaryLoader.loadFromURI(bus, qspi_flash0, 0x20000000);
 
-        getBoard().boot();
+        openDisk(((RISCVUnleashed)getBoard()).getSDCard().getStorage(),
+                EMU_MMC, EMU_MMC_READONLY);
+        startTrace("riscv");
+        startProfile("riscv");
+        startStats();
+        try {
+            getBoard().boot();
+        } finally {
+            stopStats();
+            stopProfile();
+            stopTrace();
+            closeDisks();
+        }
+    }
+
+    /**
+     * イメージファイルのパスをプロパティから取得します。
+     *
+     * @param key キー
+     * @param def プロパティが設定されていない場合のパス
+     * @return イメージファイルのパス
+     */
+    private String getImage(String key, String def) {
+        String v = getProperties().getValue(key, 0);
+
+        if (v.equals("")) {
+            return def;
+        }
+
+        return v;
     }
 }
@@ -0,0 +1,267 @@
+package net.katsuster.ememu.ui;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+
+/**
+ * 描画済みの文字の画像（グリフ）を保持するキャッシュです。
+ *
+ * <p>
+ * 文字の色、背景色、フォントの組み合わせごとに 1枚の画像（アトラス）を作り、
+ * Latin-1 の範囲の文字を初めて描画するときにアトラスへ描画しておきます。
+ * 以降はアトラスから 1文字分の領域を複写するだけで描画できるため、
+ * 文字ごとに文字列を作ったり、フォントを設定したりする必要がありません。
+ * </p>
+ *
+ * <p>
+ * グリフの大きさは 1文字の描画領域に、フォントのディセントの高さと、
+ * 描画領域からはみ出す文字の幅を加えたものです。
+ * 描画領域の部分は背景色で塗りつぶし、加えた部分は透明にします。
+ * 文字が隣の文字や次の行にはみ出す様子は、直接文字列を描画した場合と同じになります。
+ * </p>
+ */
+public class GlyphCache {
+    //アトラスに描画する文字の数（Latin-1）
+    public static final int ATLAS_CHARS = 256;
+    //保持する最大のアトラスの数
+    public static final int MAX_ATLASES = 64;
+    //アトラスの 1行に並べる文字の数
+    private static final int ATLAS_COLUMNS = 16;
+
+    /**
+     * アトラスを区別するための文字の装飾です。
+     */
+    private static class Style {
+        private Color fg;
+        private Color bg;
+        private Font font;
+
+        public Style(Color f, Color b, Font fn) {
+            fg = f;
+            bg = b;
+            font = fn;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Style)) {
+                return false;
+            }
+
+            Style s = (Style)obj;
+
+            return fg.equals(s.fg) && bg.equals(s.bg) && font.equals(s.font);
+        }
+
+        @Override
+        public int hashCode() {
+            return (fg.hashCode() * 31 + bg.hashCode()) * 31 + font.hashCode();
+        }
+    }
+
+    /**
+     * 1つの装飾の文字を描画した画像です。
+     */
+    private class Atlas {
+        private Style style;
+        private BufferedImage img;
+        private int glyphWidth;
+        private int glyphHeight;
+        private boolean[] drawn;
+
+        public Atlas(Style s) {
+            Graphics2D g;
+            FontMetrics fm;
+
+            style = s;
+
+            //文字の大きさを調べるためだけの画像
+            img = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+            g = img.createGraphics();
+            fm = g.getFontMetrics(s.font);
+            glyphWidth = Math.max(cellWidth, textX + fm.getMaxAdvance());
+            glyphHeight = cellHeight + Math.max(fm.getMaxDescent(), 0);
+            g.dispose();
+
+            img = new BufferedImage(glyphWidth * ATLAS_COLUMNS,
+                    glyphHeight * (ATLAS_CHARS / ATLAS_COLUMNS),
+                    BufferedImage.TYPE_INT_ARGB);
+            drawn = new boolean[ATLAS_CHARS];
+        }
+
+        /**
+         * アトラスに文字を描画します。
+         *
+         * @param c 文字
+         */
+        private void render(char c) {
+            Graphics2D g = img.createGraphics();
+            int sx = (c % ATLAS_COLUMNS) * glyphWidth;
+            int sy = (c / ATLAS_COLUMNS) * glyphHeight;
+
+            g.clipRect(sx, sy, glyphWidth, glyphHeight);
+            g.setColor(style.bg);
+            g.fillRect(sx, sy, cellWidth, cellHeight);
+            g.setColor(style.fg);
+            g.setFont(style.font);
+            chars[0] = c;
+            g.drawChars(chars, 0, 1, sx + textX, sy + textY);
+            g.dispose();
+
+            drawn[c] = true;
+        }
+
+        /**
+         * 文字をアトラスから複写します。
+         *
+         * @param g 描画先
+         * @param c 文字
+         * @param x 1文字の描画領域の X 座標
+         * @param y 1文字の描画領域の Y 座標
+         */
+        public void draw(Graphics g, char c, int x, int y) {
+            int sx = (c % ATLAS_COLUMNS) * glyphWidth;
+            int sy = (c / ATLAS_COLUMNS) * glyphHeight;
+
+            if (!drawn[c]) {
+                render(c);
+            }
+
+            g.drawImage(img, x, y, x + glyphWidth, y + glyphHeight,
+                    sx, sy, sx + glyphWidth, sy + glyphHeight, null);
+        }
+    }
+
+    //1文字の描画領域の大きさ
+    private int cellWidth;
+    private int cellHeight;
+    //1文字の描画領域の左上から見た、文字のベースラインの開始位置
+    private int textX;
+    private int textY;
+
+    private Map<Style, Atlas> atlases;
+    //最後に使ったアトラス
+    private Atlas last;
+    //drawChars に渡すための作業領域
+    private char[] chars;
+
+    public GlyphCache() {
+        atlases = new HashMap<>();
+        last = null;
+        chars = new char[1];
+    }
+
+    /**
+     * 1文字の描画領域を設定します。
+     *
+     * 描画済みのグリフは全て破棄します。
+     *
+     * @param w  1文字の描画領域の幅
+     * @param h  1文字の描画領域の高さ
+     * @param tx 描画領域の左端から、文字の左端までの距離
+     * @param ty 描画領域の上端から、文字のベースラインまでの距離
+     */
+    public void setCell(int w, int h, int tx, int ty) {
+        cellWidth = w;
+        cellHeight = h;
+        textX = tx;
+        textY = ty;
+
+        clear();
+    }
+
+    /**
+     * 描画済みのグリフを全て破棄します。
+     */
+    public void clear() {
+        atlases.clear();
+        last = null;
+    }
+
+    /**
+     * 保持しているアトラスの数を取得します。
+     *
+     * @return アトラスの数
+     */
+    public int size() {
+        return atlases.size();
+    }
+
+    /**
+     * 指定した装飾のアトラスを取得します。
+     *
+     * @param fg 文字の色
+     * @param bg 背景色
+     * @param f  フォント
+     * @return アトラス
+     */
+    private Atlas getAtlas(Color fg, Color bg, Font f) {
+        Style s;
+        Atlas a;
+
+        //同じ装飾の文字が続くことが多いため、直前のアトラスを先に調べる
+        if (last != null && last.style.fg == fg && last.style.bg == bg &&
+                last.style.font == f) {
+            return last;
+        }
+
+        s = new Style(fg, bg, f);
+        a = atlases.get(s);
+        if (a == null) {
+            if (atlases.size() >= MAX_ATLASES) {
+                atlases.clear();
+            }
+            a = new Atlas(s);
+            atlases.put(s, a);
+        }
+        last = a;
+
+        return a;
+    }
+
+    /**
+     * 装飾付き文字を描画します。
+     *
+     * 1文字の描画領域を背景色で塗りつぶし、文字を描画します。
+     *
+     * @param g   描画先
+     * @param dch 装飾付き文字
+     * @param x   1文字の描画領域の X 座標
+     * @param y   1文字の描画領域の Y 座標
+     */
+    public void draw(Graphics g, DecoratedChar dch, int x, int y) {
+        draw(g, dch.getChar(), dch, x, y);
+    }
+
+    /**
+     * 文字を指定した装飾で描画します。
+     *
+     * 1文字の描画領域を背景色で塗りつぶし、文字を描画します。
+     *
+     * @param g    描画先
+     * @param c    文字
+     * @param attr 装飾、文字は無視します
+     * @param x    1文字の描画領域の X 座標
+     * @param y    1文字の描画領域の Y 座標
+     */
+    public void draw(Graphics g, char c, DecoratedChar attr, int x, int y) {
+        if (cellWidth <= 0 || cellHeight <= 0) {
+            return;
+        }
+
+        if (c >= ATLAS_CHARS) {
+            //Latin-1 以外の文字はアトラスに置かず、直接描画する
+            g.setColor(attr.getBackground());
+            g.fillRect(x, y, cellWidth, cellHeight);
+            g.setColor(attr.getForeground());
+            g.setFont(attr.getFont());
+            chars[0] = c;
+            g.drawChars(chars, 0, 1, x + textX, y + textY);
+            return;
+        }
+
+        getAtlas(attr.getForeground(), attr.getBackground(), attr.getFont())
+                .draw(g, c, x, y);
+    }
+}
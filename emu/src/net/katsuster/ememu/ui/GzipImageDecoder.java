@@ -0,0 +1,31 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+/**
+ * gzip 形式のイメージファイル（Image.gz, initramfs.gz など）を展開するデコーダです。
+ */
+public class GzipImageDecoder implements ImageDecoder {
+    //展開に用いるバッファの大きさ
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public boolean accept(ByteBuffer b) {
+        int p = b.position();
+
+        return b.remaining() >= 2 && (b.get(p) & 0xff) == 0x1f &&
+                (b.get(p + 1) & 0xff) == 0x8b;
+    }
+
+    @Override
+    public InputStream decode(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,43 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * 圧縮されたイメージファイルを展開するデコーダです。
+ *
+ * <p>
+ * ローダはファイルの先頭を調べ、受け付けるデコーダがあれば展開しながら読み込みます。
+ * gzip のデコーダは組み込まれています。
+ * その他のデコーダは {@link BinaryLoader#addDecoder(ImageDecoder)} で登録するか、
+ * META-INF/services/net.katsuster.ememu.ui.ImageDecoder に
+ * クラス名を記述して ServiceLoader から読み込ませます。
+ * </p>
+ */
+public interface ImageDecoder {
+    /**
+     * デコーダの名前を取得します。
+     *
+     * @return デコーダの名前
+     */
+    public abstract String getName();
+
+    /**
+     * ファイルの先頭を調べ、このデコーダで展開できるかどうかを判定します。
+     *
+     * バッファの現在位置は変更しないでください。
+     *
+     * @param b ファイルの内容、現在位置をファイルの先頭とします
+     * @return 展開できるならば true、そうでなければ false
+     */
+    public abstract boolean accept(ByteBuffer b);
+
+    /**
+     * 展開したデータを読み出すストリームを作成します。
+     *
+     * @param in 圧縮されたデータを読み出すストリーム
+     * @return 展開したデータを読み出すストリーム
+     * @throws IOException ストリームの作成に失敗した場合
+     */
+    public abstract InputStream decode(InputStream in) throws IOException;
+}
@@ -2,6 +2,9 @@ package net.katsuster.ememu.ui;
 
 import java.io.*;
 import java.awt.*;
+import java.util.List;
+
+import net.katsuster.ememu.generic.trace.SymbolTable;
 
 /**
  * エミュレータのテキスト画面、ログ表示用のクラス。
@@ -10,12 +13,37 @@ public class Main {
     public static void usage(String[] args) {
         System.out.println("Usage:\n" +
                 "    ememu [-h] arch image initramfs [cmdline]\n" +
+                "    ememu -b spec [-j threads] [-o outdir]\n" +
+                "    ememu -t trace [-n count]\n" +
+                "    ememu -p profile [-s symbols] [-n count] [-f]\n" +
                 "  Arguments:\n" +
                 "    -h       : Show this help messages.\n" +
                 "    arch     : Architecture of CPU.\n"  +
                 "    image    : Linux kernel image file.\n" +
                 "    initramfs: initrd or initramfs image file.\n" +
-                "    cmdline  : Command line parameters to Linux kernel.\n");
+                "    cmdline  : Command line parameters to Linux kernel.\n" +
+                "  Batch mode:\n" +
+                "    -b spec   : Run emulators headless as described in spec.\n" +
+                "    -j threads: Maximum number of emulators running at once.\n" +
+                "    -o outdir : Directory to write UART outputs.\n" +
+                "  Trace dump:\n" +
+                "    -t trace  : Disassemble the instruction trace file\n" +
+                "                (recorded by emu.trace property).\n" +
+                "    -n count  : Maximum number of instructions to show.\n" +
+                "  Profile report:\n" +
+                "    -p profile: Summarize the samples by function\n" +
+                "                (recorded by emu.profile property).\n" +
+                "    -s symbols: System.map or ELF file to resolve functions.\n" +
+                "    -n count  : Maximum number of functions to show.\n" +
+                "    -f        : Output folded stacks for flamegraph.pl.\n" +
+                "  Logging:\n" +
+                "    -Dememu.log=level[,category=level...]\n" +
+                "      level: trace, debug, info (default), warn, error or off.\n" +
+                "      e.g. -Dememu.log=info,riscv.spi=trace,arm=warn\n" +
+                "  Cache of kernel, initrd and DTB:\n" +
+                "    -Dememu.cache.dir=dir : Directory to cache (default: ~/.ememu/cache).\n" +
+                "    -Dememu.cache.offline=true\n" +
+                "                          : Use only cached files, never access network.\n");
     }
 
     public static void main(String[] args) {
@@ -35,6 +63,18 @@ public class Main {
                 usage(args);
                 return;
             }
+            if (args[0].equals("-b")) {
+                mainBatch(args);
+                return;
+            }
+            if (args[0].equals("-t")) {
+                mainTraceDump(args);
+                return;
+            }
+            if (args[0].equals("-p")) {
+                mainProfileReport(args);
+                return;
+            }
             opts.setValue(LinuxOption.EMU_ARCH, 0, args[0]);
         }
         if (args.length >= 2) {
@@ -77,4 +117,126 @@ public class Main {
             //ignored
         }
     }
+
+    public static void mainTraceDump(String[] args) {
+        File trace = null;
+        long max = -1;
+        PrintStream ps = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024), false);
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-t") && i + 1 < args.length) {
+                trace = new File(args[++i]);
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                max = Long.parseLong(args[++i]);
+            } else {
+                usage(args);
+                System.exit(2);
+            }
+        }
+        if (trace == null) {
+            usage(args);
+            System.exit(2);
+        }
+
+        try {
+            TraceDump.dump(trace, max, ps);
+        } catch (IOException | IllegalArgumentException e) {
+            ps.flush();
+            e.printStackTrace(System.err);
+            System.exit(2);
+        }
+        ps.flush();
+    }
+
+    public static void mainProfileReport(String[] args) {
+        File profile = null;
+        File syms = null;
+        int max = -1;
+        boolean folded = false;
+        PrintStream ps = new PrintStream(new BufferedOutputStream(System.out, 64 * 1024), false);
+        ProfileReport r;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p") && i + 1 < args.length) {
+                profile = new File(args[++i]);
+            } else if (args[i].equals("-s") && i + 1 < args.length) {
+                syms = new File(args[++i]);
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                max = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-f")) {
+                folded = true;
+            } else {
+                usage(args);
+                System.exit(2);
+            }
+        }
+        if (profile == null) {
+            usage(args);
+            System.exit(2);
+        }
+
+        try (InputStream is = new FileInputStream(profile)) {
+            r = new ProfileReport((syms == null) ? null : SymbolTable.load(syms));
+            r.load(is);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            System.exit(2);
+            return;
+        }
+
+        if (folded) {
+            r.printFolded(ps);
+        } else {
+            r.printText(ps, max);
+        }
+        ps.flush();
+    }
+
+    public static void mainBatch(String[] args) {
+        File spec = null;
+        File outDir = new File(".");
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<BatchJob> jobs;
+        List<BatchResult> results;
+        int failed = 0;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-b") && i + 1 < args.length) {
+                    spec = new File(args[++i]);
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-o") && i + 1 < args.length) {
+                    outDir = new File(args[++i]);
+                } else {
+                    usage(args);
+                    System.exit(2);
+                }
+            }
+            if (spec == null) {
+                usage(args);
+                System.exit(2);
+            }
+            if (!outDir.isDirectory() && !outDir.mkdirs()) {
+                throw new IOException("Cannot create directory '" + outDir + "'.");
+            }
+
+            jobs = BatchRunner.loadJobs(spec, outDir);
+            results = new BatchRunner(threads).run(jobs);
+        } catch (IOException | IllegalArgumentException | InterruptedException e) {
+            e.printStackTrace(System.err);
+            System.exit(2);
+            return;
+        }
+
+        for (BatchResult r : results) {
+            System.out.println(r);
+            if (!r.isPassed()) {
+                failed++;
+            }
+        }
+        System.out.printf("%d/%d passed.\n", results.size() - failed, results.size());
+
+        System.exit((failed == 0) ? 0 : 1);
+    }
 }
@@ -17,11 +17,13 @@ public class MainMenuBar extends JMenuBar {
         JMenu menuSystem = new JMenu("System");
         JMenuItem itemReset = new JMenuItem("Reset");
         JMenuItem itemClear = new JMenuItem("Clear Log");
+        JMenuItem itemFlight = new JMenuItem("Dump Flight Recorder");
         JMenuItem itemGC = new JMenuItem("GC");
 
         menuSystem.add(itemReset);
         menuSystem.addSeparator();
         menuSystem.add(itemClear);
+        menuSystem.add(itemFlight);
         menuSystem.addSeparator();
         menuSystem.add(itemGC);
         menuSystem.setMnemonic(KeyEvent.VK_S);
@@ -32,6 +34,9 @@ public class MainMenuBar extends JMenuBar {
         itemClear.setActionCommand("clear");
         itemClear.addActionListener(listener);
         itemClear.setMnemonic(KeyEvent.VK_C);
+        itemFlight.setActionCommand("flight");
+        itemFlight.addActionListener(listener);
+        itemFlight.setMnemonic(KeyEvent.VK_F);
         itemGC.setActionCommand("gc");
         itemGC.addActionListener(listener);
 
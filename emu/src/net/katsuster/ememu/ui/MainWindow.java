@@ -6,10 +6,14 @@ import java.util.*;
 import java.util.List;
 import javax.swing.*;
 
+import net.katsuster.ememu.generic.log.*;
+
 /**
  * エミュレータのグラフィカル画面、ログ表示用のウインドウ。
  */
 public class MainWindow extends JFrame {
+    private static final Logger log = Log.getLogger("ui.main");
+
     private ButtonListener listenButton;
     private JTabbedPane tabPane;
     private JSplitPane panel;
@@ -103,7 +107,7 @@ public class MainWindow extends JFrame {
     }
 
     public void create() {
-        System.out.println("create");
+        log.debug("create\n");
 
         //Create emulator properties
         String arch = opts.getValue(LinuxOption.EMU_ARCH, 0);
@@ -115,10 +119,25 @@ public class MainWindow extends JFrame {
             tempEmu = new EmulatorARM();
 
             keys.add("test.test");
+            keys.add(Emulator.EMU_EXECUTOR);
+            keys.add(Emulator.EMU_TRACE);
+            keys.add(Emulator.EMU_TRACE_DETAIL);
+            keys.add(Emulator.EMU_PROFILE);
+            keys.add(Emulator.EMU_PROFILE_INTERVAL);
+            keys.add(Emulator.EMU_STATS);
         } else if (arch.compareToIgnoreCase("riscv") == 0) {
             tempEmu = new EmulatorRISCV();
 
             keys.add("test.test");
+            keys.add(Emulator.EMU_EXECUTOR);
+            keys.add(Emulator.EMU_TRACE);
+            keys.add(Emulator.EMU_TRACE_DETAIL);
+            keys.add(Emulator.EMU_PROFILE);
+            keys.add(Emulator.EMU_PROFILE_INTERVAL);
+            keys.add(Emulator.EMU_STATS);
+            keys.add(EmulatorRISCV.RISCV_ROM0);
+            keys.add(EmulatorRISCV.RISCV_ROM1);
+            keys.add(EmulatorRISCV.RISCV_FLASH0);
         } else {
             throw new IllegalArgumentException("Not support '" +
                     arch + "' architecture.");
@@ -130,7 +149,7 @@ public class MainWindow extends JFrame {
     }
 
     public void destroy() {
-        System.out.println("destroy");
+        log.debug("destroy\n");
 
         //Destroy emulator properties
         if (emuOptPanel != null) {
@@ -142,7 +161,7 @@ public class MainWindow extends JFrame {
     public void start() {
         int index = 0;
 
-        System.out.println("start");
+        log.debug("start\n");
 
         if (emu != null)
             return;
@@ -188,7 +207,7 @@ public class MainWindow extends JFrame {
     }
 
     public void stop() {
-        System.out.println("stop");
+        log.debug("stop\n");
 
         if (emu == null)
             return;
@@ -237,6 +256,11 @@ public class MainWindow extends JFrame {
             if (e.getActionCommand().equals("clear")) {
                 stdoutPanel.clear();
             }
+            if (e.getActionCommand().equals("flight")) {
+                if (emu != null) {
+                    emu.dumpFlightRecorder(System.out);
+                }
+            }
             if (e.getActionCommand().equals("gc")) {
                 System.gc();
             }
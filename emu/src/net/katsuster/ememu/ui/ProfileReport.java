@@ -0,0 +1,190 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.math.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import net.katsuster.ememu.generic.trace.*;
+
+/**
+ * プロファイラのサンプルを関数ごとに集計して出力します。
+ *
+ * <p>
+ * シンボルの表を指定した場合は PC を関数名に変換し、
+ * 指定しない場合は PC のまま集計します。
+ * </p>
+ *
+ * <p>
+ * 集計結果はサンプル数の多い順に並べたテキストか、
+ * FlameGraph（flamegraph.pl）が読み込める折り畳み形式で出力します。
+ * 折り畳み形式のスタックは CPU、動作モード、関数の 3段です。
+ * ゲストのコールスタックはサンプリングしないため、呼び出し元は含みません。
+ * </p>
+ */
+public class ProfileReport {
+    private SymbolTable symbols;
+    //"cpu;mode;関数" ごとのサンプル数
+    private Map<String, Long> stacks;
+    //"mode;関数" ごとのサンプル数
+    private Map<String, Long> funcs;
+    private long total;
+
+    /**
+     * 集計を作成します。
+     *
+     * @param syms シンボルの表、PC のまま集計する場合は null
+     */
+    public ProfileReport(SymbolTable syms) {
+        symbols = syms;
+        stacks = new HashMap<>();
+        funcs = new HashMap<>();
+        total = 0;
+    }
+
+    /**
+     * 全てのサンプル数を取得します。
+     *
+     * @return サンプル数
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * PC を関数名に変換します。
+     *
+     * @param pc PC
+     * @return 関数名
+     */
+    private String getFunction(long pc) {
+        String name;
+
+        if (symbols == null) {
+            return String.format("0x%08x", pc);
+        }
+
+        name = symbols.lookup(pc);
+        if (name == null) {
+            return "[unknown]";
+        }
+
+        return name;
+    }
+
+    /**
+     * サンプルを集計に加えます。
+     *
+     * @param cpu   CPU の番号
+     * @param mode  動作モードの名前
+     * @param func  関数名
+     * @param count サンプル数
+     */
+    private void add(int cpu, String mode, String func, long count) {
+        String s = "cpu" + cpu + ";" + mode + ";" + func;
+        String f = mode + ";" + func;
+        Long v;
+
+        v = stacks.get(s);
+        stacks.put(s, (v == null) ? count : v + count);
+        v = funcs.get(f);
+        funcs.put(f, (v == null) ? count : v + count);
+        total += count;
+    }
+
+    /**
+     * プロファイラが書き出したサンプルを読み込みます。
+     *
+     * @param is 入力
+     * @throws IOException 読み込みに失敗した場合
+     */
+    public void load(InputStream is) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(is,
+                StandardCharsets.UTF_8));
+        String line;
+
+        while ((line = r.readLine()) != null) {
+            String[] s = line.trim().split("\\s+");
+
+            if (s[0].equals("") || s[0].startsWith("#") ||
+                    s[0].equals("arch") || s[0].equals("interval")) {
+                continue;
+            }
+            if (s.length != 4) {
+                throw new IOException("Broken profile, '" + line + "'.");
+            }
+
+            try {
+                int cpu = Integer.parseInt(s[0]);
+                long count = Long.parseLong(s[3]);
+
+                if (s[1].equals("idle")) {
+                    add(cpu, "idle", "[idle]", count);
+                } else {
+                    add(cpu, s[1], getFunction(new BigInteger(s[2], 16).longValue()),
+                            count);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Broken profile, '" + line + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * サンプル数の多い順に並べます。
+     *
+     * @param m 集計
+     * @return 並べた集計
+     */
+    private static List<Map.Entry<String, Long>> sort(Map<String, Long> m) {
+        List<Map.Entry<String, Long>> l = new ArrayList<>(m.entrySet());
+
+        Collections.sort(l, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                int c = Long.compare(b.getValue(), a.getValue());
+
+                if (c != 0) {
+                    return c;
+                }
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        return l;
+    }
+
+    /**
+     * 関数ごとのサンプル数を、多い順にテキストで出力します。
+     *
+     * @param ps  出力先
+     * @param max 出力する最大の関数の数、負の値ならば全て
+     */
+    public void printText(PrintStream ps, int max) {
+        int n = 0;
+
+        ps.printf("total %d samples\n", total);
+        ps.printf("%10s %7s  %-5s %s\n", "samples", "percent", "mode", "function");
+        for (Map.Entry<String, Long> e : sort(funcs)) {
+            String[] k = e.getKey().split(";", 2);
+
+            if (max >= 0 && n >= max) {
+                break;
+            }
+            ps.printf("%10d %6.2f%%  %-5s %s\n", e.getValue(),
+                    e.getValue() * 100.0 / Math.max(total, 1), k[0], k[1]);
+            n++;
+        }
+    }
+
+    /**
+     * FlameGraph の折り畳み形式で出力します。
+     *
+     * @param ps 出力先
+     */
+    public void printFolded(PrintStream ps) {
+        for (Map.Entry<String, Long> e : sort(stacks)) {
+            ps.printf("%s %d\n", e.getKey(), e.getValue());
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+import net.katsuster.ememu.generic.log.*;
+
+/**
+ * カーネルイメージなど、URI で指定したファイルを保存しておくキャッシュです。
+ *
+ * <p>
+ * ファイルの内容は SHA-256 ハッシュ値を名前として objects ディレクトリに保存し、
+ * URI ごとの索引（ハッシュ値、ETag、Last-Modified）を index ディレクトリに保存します。
+ * 同じ内容のファイルは異なる URI から取得しても 1つだけ保存します。
+ * </p>
+ *
+ * <p>
+ * HTTP の URI は索引の ETag、Last-Modified を付けて条件付きで取得し、
+ * サーバが 304 Not Modified を返せば保存済みのファイルを使います。
+ * 取得に失敗した場合やオフラインモードの場合も、保存済みのファイルがあれば使います。
+ * file スキームの URI はキャッシュせず、そのファイルを直接使います。
+ * </p>
+ *
+ * <p>
+ * キャッシュの場所はシステムプロパティ ememu.cache.dir で指定できます。
+ * 指定しなければ ~/.ememu/cache です。
+ * システムプロパティ ememu.cache.offline を true にするとオフラインモードになり、
+ * ネットワークにアクセスしません。
+ * </p>
+ */
+public class ResourceCache {
+    private static final Logger log = Log.getLogger("cache");
+
+    //キャッシュの場所を指定するシステムプロパティ
+    public static final String DIR_PROPERTY = "ememu.cache.dir";
+    //オフラインモードを指定するシステムプロパティ
+    public static final String OFFLINE_PROPERTY = "ememu.cache.offline";
+    //接続を待つ最大の時間（ミリ秒単位）
+    public static final int CONNECT_TIMEOUT = 10000;
+    //受信を待つ最大の時間（ミリ秒単位）
+    public static final int READ_TIMEOUT = 30000;
+
+    private static final String KEY_URI = "uri";
+    private static final String KEY_HASH = "sha256";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    private static ResourceCache defaultCache;
+
+    private File dir;
+    private File indexDir;
+    private File objectDir;
+    private boolean offline;
+
+    /**
+     * キャッシュを作成します。
+     *
+     * @param d   キャッシュを保存するディレクトリ
+     * @param off オフラインモードならば true、そうでなければ false
+     */
+    public ResourceCache(File d, boolean off) {
+        if (d == null) {
+            throw new IllegalArgumentException("Directory is null.");
+        }
+
+        dir = d;
+        indexDir = new File(d, "index");
+        objectDir = new File(d, "objects");
+        offline = off;
+    }
+
+    /**
+     * システムプロパティの設定に従ったキャッシュを取得します。
+     *
+     * @return キャッシュ
+     */
+    public static synchronized ResourceCache getDefault() {
+        if (defaultCache == null) {
+            String d = System.getProperty(DIR_PROPERTY);
+            File f;
+
+            if (d != null && !d.isEmpty()) {
+                f = new File(d);
+            } else {
+                f = new File(new File(System.getProperty("user.home"), ".ememu"), "cache");
+            }
+            defaultCache = new ResourceCache(f, Boolean.getBoolean(OFFLINE_PROPERTY));
+        }
+
+        return defaultCache;
+    }
+
+    /**
+     * キャッシュを保存するディレクトリを取得します。
+     *
+     * @return ディレクトリ
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * オフラインモードかどうかを取得します。
+     *
+     * @return オフラインモードならば true、そうでなければ false
+     */
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * オフラインモードを設定します。
+     *
+     * @param off オフラインモードならば true、そうでなければ false
+     */
+    public void setOffline(boolean off) {
+        offline = off;
+    }
+
+    /**
+     * URI の内容を保存したファイルを取得します。
+     *
+     * 必要であればファイルを取得し直してキャッシュに保存します。
+     *
+     * @param uri URI
+     * @return URI の内容を保存したファイル
+     * @throws IOException 取得に失敗し、キャッシュにも保存されていない場合
+     */
+    public File getFile(URI uri) throws IOException {
+        Properties ent;
+        File cached = null;
+
+        if ("file".equalsIgnoreCase(uri.getScheme())) {
+            return new File(uri);
+        }
+
+        ent = loadIndex(uri);
+        if (ent != null) {
+            cached = getObject(ent);
+            if (cached == null) {
+                log.warn("cache: '%s' is broken, discarded.\n", uri);
+                ent = null;
+            }
+        }
+
+        if (offline) {
+            if (cached == null) {
+                throw new IOException("'" + uri + "' is not cached (offline mode).");
+            }
+            log.info("cache: '%s' (offline).\n", uri);
+            return cached;
+        }
+
+        try {
+            return fetch(uri, ent, cached);
+        } catch (IOException e) {
+            if (cached == null) {
+                throw e;
+            }
+            log.warn("cache: cannot fetch '%s' (%s), use cached copy.\n", uri, e);
+            return cached;
+        }
+    }
+
+    /**
+     * URI の内容をメモリにマップします。
+     *
+     * @param uri URI
+     * @return URI の内容を読み出し専用でマップしたバッファ
+     * @throws IOException 取得に失敗し、キャッシュにも保存されていない場合
+     */
+    public MappedByteBuffer map(URI uri) throws IOException {
+        File f = getFile(uri);
+
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    /**
+     * URI から取得してキャッシュに保存します。
+     *
+     * @param uri    URI
+     * @param ent    保存済みの索引、なければ null
+     * @param cached 保存済みのファイル、なければ null
+     * @return URI の内容を保存したファイル
+     * @throws IOException 取得に失敗した場合
+     */
+    private File fetch(URI uri, Properties ent, File cached) throws IOException {
+        URLConnection conn = uri.toURL().openConnection();
+        HttpURLConnection http = null;
+        Properties next = new Properties();
+        String v;
+
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        if (conn instanceof HttpURLConnection) {
+            http = (HttpURLConnection)conn;
+            if (ent != null) {
+                v = ent.getProperty(KEY_ETAG);
+                if (v != null) {
+                    http.setRequestProperty("If-None-Match", v);
+                }
+                v = ent.getProperty(KEY_LAST_MODIFIED);
+                if (v != null) {
+                    http.setRequestProperty("If-Modified-Since", v);
+                }
+            }
+        }
+
+        try {
+            if (http != null) {
+                int code = http.getResponseCode();
+
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                    log.info("cache: '%s' not modified.\n", uri);
+                    return cached;
+                }
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException(String.format("Server returned %d %s for '%s'.",
+                            code, http.getResponseMessage(), uri));
+                }
+                v = http.getHeaderField("ETag");
+                if (v != null) {
+                    next.setProperty(KEY_ETAG, v);
+                }
+                v = http.getHeaderField("Last-Modified");
+                if (v != null) {
+                    next.setProperty(KEY_LAST_MODIFIED, v);
+                }
+            }
+
+            next.setProperty(KEY_URI, uri.toString());
+            try (InputStream in = conn.getInputStream()) {
+                store(in, next);
+            }
+        } finally {
+            if (http != null) {
+                http.disconnect();
+            }
+        }
+        storeIndex(uri, next);
+        log.info("cache: '%s' fetched, %s bytes.\n", uri, next.getProperty(KEY_SIZE));
+
+        return new File(objectDir, next.getProperty(KEY_HASH));
+    }
+
+    /**
+     * 内容を一時ファイルに書き出し、ハッシュ値の名前で保存します。
+     *
+     * @param in  内容を読み出すストリーム
+     * @param ent ハッシュ値と大きさを設定する索引
+     * @throws IOException 読み出しまたは保存に失敗した場合
+     */
+    private void store(InputStream in, Properties ent) throws IOException {
+        MessageDigest md = newDigest();
+        byte[] buf = new byte[64 * 1024];
+        long size = 0;
+        File tmp;
+        String hash;
+
+        mkdirs(objectDir);
+        tmp = File.createTempFile("fetch", ".tmp", objectDir);
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                int n;
+
+                while ((n = in.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                    size += n;
+                }
+            }
+            hash = toHex(md.digest());
+            Files.move(tmp.toPath(), new File(objectDir, hash).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+
+        ent.setProperty(KEY_HASH, hash);
+        ent.setProperty(KEY_SIZE, Long.toString(size));
+    }
+
+    /**
+     * 索引が指すファイルを取得します。
+     *
+     * ファイルの大きさとハッシュ値が索引と異なる場合は壊れているとみなします。
+     *
+     * @param ent 索引
+     * @return 保存済みのファイル、存在しないか壊れていれば null
+     * @throws IOException 読み出しに失敗した場合
+     */
+    private File getObject(Properties ent) throws IOException {
+        String hash = ent.getProperty(KEY_HASH);
+        MessageDigest md;
+        File f;
+
+        if (hash == null) {
+            return null;
+        }
+        f = new File(objectDir, hash);
+        if (!f.isFile() || !Long.toString(f.length()).equals(ent.getProperty(KEY_SIZE))) {
+            return null;
+        }
+
+        md = newDigest();
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            md.update(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+        if (!toHex(md.digest()).equals(hash)) {
+            return null;
+        }
+
+        return f;
+    }
+
+    /**
+     * URI の索引を読み出します。
+     *
+     * @param uri URI
+     * @return 索引、保存されていなければ null
+     */
+    private Properties loadIndex(URI uri) {
+        File f = getIndexFile(uri);
+        Properties p = new Properties();
+
+        if (!f.isFile()) {
+            return null;
+        }
+
+        try (InputStream in = new FileInputStream(f)) {
+            p.load(in);
+        } catch (IOException e) {
+            log.warn("cache: cannot read index of '%s': %s\n", uri, e);
+            return null;
+        }
+        if (!uri.toString().equals(p.getProperty(KEY_URI))) {
+            return null;
+        }
+
+        return p;
+    }
+
+    /**
+     * URI の索引を保存します。
+     *
+     * @param uri URI
+     * @param ent 索引
+     * @throws IOException 保存に失敗した場合
+     */
+    private void storeIndex(URI uri, Properties ent) throws IOException {
+        File f = getIndexFile(uri);
+        File tmp;
+
+        mkdirs(indexDir);
+        tmp = File.createTempFile("index", ".tmp", indexDir);
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                ent.store(out, null);
+            }
+            Files.move(tmp.toPath(), f.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * URI の索引を保存するファイルを取得します。
+     *
+     * @param uri URI
+     * @return 索引を保存するファイル
+     */
+    private File getIndexFile(URI uri) {
+        MessageDigest md = newDigest();
+
+        md.update(uri.toString().getBytes(StandardCharsets.UTF_8));
+
+        return new File(indexDir, toHex(md.digest()));
+    }
+
+    private static void mkdirs(File d) throws IOException {
+        if (!d.isDirectory() && !d.mkdirs() && !d.isDirectory()) {
+            throw new IOException("Cannot create directory '" + d + "'.");
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            //SHA-256 は全ての Java 実装が備えている
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+
+        for (byte v : b) {
+            sb.append(String.format("%02x", v & 0xff));
+        }
+
+        return sb.toString();
+    }
+}
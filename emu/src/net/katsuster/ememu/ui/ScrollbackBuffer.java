@@ -0,0 +1,351 @@
+package net.katsuster.ememu.ui;
+
+import java.awt.*;
+import java.util.*;
+
+/**
+ * 端末の画面と、スクロールにより巻き戻せる過去の行を保持するバッファです。
+ *
+ * <p>
+ * 文字は行ごとの char 型の配列に、装飾は行ごとの int 型の配列に保持します。
+ * 装飾の配列には装飾そのものではなく、装飾の表の番号を格納します。
+ * 1文字あたりの大きさは 6バイトで、文字ごとにオブジェクトを作りません。
+ * 行の配列は初めて文字を書き込むときに作成します。
+ * </p>
+ *
+ * <p>
+ * 行はリング状に並べており、最も古い行を捨てるスクロールは
+ * 先頭の位置を変えるだけで済みます。
+ * 捨てた行の配列は消去して、新たな最後の行として再利用します。
+ * </p>
+ *
+ * <p>
+ * 行の番号（論理的な行）は最も古い行を 0 とする番号です。
+ * スクロールすると全ての行の番号が 1つずつ小さくなります。
+ * 一方で物理的な行の位置はスクロールしても変わりません。
+ * </p>
+ *
+ * <p>
+ * 装飾の表を除き、このクラスは同期を取りません。
+ * 文字を書き込むスレッドと読み出すスレッドが異なる場合は、
+ * 書き込み、スクロール、読み出しを同じロックで保護してください。
+ * </p>
+ */
+public class ScrollbackBuffer {
+    /**
+     * 装飾の表を引くためのキーです。
+     */
+    private static class AttrKey {
+        private Color fg;
+        private Color bg;
+        private boolean nega;
+        private Font font;
+
+        public AttrKey(DecoratedChar d) {
+            //反転表示の場合は入れ替えた色になるが、反転表示かどうかも比べるため問題ない
+            fg = d.getForeground();
+            bg = d.getBackground();
+            nega = d.getNegaMode();
+            font = d.getFont();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof AttrKey)) {
+                return false;
+            }
+
+            AttrKey k = (AttrKey)obj;
+
+            return fg.equals(k.fg) && bg.equals(k.bg) && nega == k.nega &&
+                    font.equals(k.font);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((fg.hashCode() * 31 + bg.hashCode()) * 31 +
+                    font.hashCode()) * 2 + (nega ? 1 : 0);
+        }
+    }
+
+    //1行の桁数
+    private int columns;
+    //保持する最大の行数
+    private int maxLines;
+    //行 0 の物理的な位置
+    private int head;
+    //スクロールした行数の合計
+    private long scrollCount;
+    //物理的な行ごとの文字、文字を書き込んでいない行は null
+    private char[][] chars;
+    //物理的な行ごとの装飾の番号
+    private int[][] attrs;
+
+    //装飾の表、描画するスレッドからも参照するため、追加するときは作り直す
+    private volatile DecoratedChar[] attrTable;
+    private int attrCount;
+    private Map<AttrKey, Integer> attrIndex;
+    //直前に登録した装飾
+    private DecoratedChar lastAttr;
+    private int lastIndex;
+
+    /**
+     * バッファを作成します。
+     *
+     * 装飾の表の 0番には既定の装飾を登録します。
+     *
+     * @param col 1行の桁数
+     * @param max 保持する最大の行数
+     */
+    public ScrollbackBuffer(int col, int max) {
+        if (col <= 0 || max <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Illegal size %d x %d.", col, max));
+        }
+
+        columns = col;
+        maxLines = max;
+        head = 0;
+        scrollCount = 0;
+        chars = new char[max][];
+        attrs = new int[max][];
+
+        attrTable = new DecoratedChar[16];
+        attrCount = 0;
+        attrIndex = new HashMap<>();
+        lastAttr = new DecoratedChar();
+        lastIndex = addDecoration(lastAttr);
+    }
+
+    /**
+     * 1行の桁数を取得します。
+     *
+     * @return 1行の桁数
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * 保持する最大の行数を取得します。
+     *
+     * @return 最大の行数
+     */
+    public int getMaxLines() {
+        return maxLines;
+    }
+
+    /**
+     * 今までにスクロールした行数の合計を取得します。
+     *
+     * @return スクロールした行数
+     */
+    public long getScrollCount() {
+        return scrollCount;
+    }
+
+    /**
+     * 行の物理的な位置を取得します。
+     *
+     * 物理的な位置はスクロールしても変わりません。
+     *
+     * @param y 行
+     * @return 物理的な位置
+     */
+    public int getPhysicalLine(int y) {
+        int p = head + y;
+
+        if (p >= maxLines) {
+            p -= maxLines;
+        }
+
+        return p;
+    }
+
+    /**
+     * 装飾を表に登録し、番号を取得します。
+     *
+     * 既に同じ装飾が登録されていれば、その番号を返します。
+     *
+     * @param d 装飾、文字は無視します
+     * @return 装飾の番号
+     */
+    public int addDecoration(DecoratedChar d) {
+        AttrKey k;
+        Integer i;
+
+        //同じ装飾が続くことが多いため、直前の装飾を先に調べる
+        if (attrCount > 0 && lastAttr.getForeground() == d.getForeground() &&
+                lastAttr.getBackground() == d.getBackground() &&
+                lastAttr.getNegaMode() == d.getNegaMode() &&
+                lastAttr.getFont() == d.getFont()) {
+            return lastIndex;
+        }
+
+        k = new AttrKey(d);
+        i = attrIndex.get(k);
+        if (i == null) {
+            DecoratedChar[] t = attrTable;
+            DecoratedChar a = new DecoratedChar();
+
+            a.copyAttributes(d);
+            if (attrCount == t.length) {
+                t = Arrays.copyOf(t, t.length * 2);
+            }
+            t[attrCount] = a;
+            attrTable = t;
+            i = attrCount;
+            attrCount++;
+            attrIndex.put(k, i);
+        }
+        lastAttr.copyAttributes(d);
+        lastIndex = i;
+
+        return i;
+    }
+
+    /**
+     * 番号に対応する装飾を取得します。
+     *
+     * 返された装飾は変更しないでください。
+     *
+     * 他のスレッドが登録したばかりの装飾が見えない場合は、既定の装飾を返します。
+     * 文字を書き込んだスレッドが描画し直しを要求するため、
+     * 一時的に既定の装飾で描画されても問題ありません。
+     *
+     * @param index 装飾の番号
+     * @return 装飾
+     */
+    public DecoratedChar getDecoration(int index) {
+        DecoratedChar[] t = attrTable;
+
+        if (index >= t.length || t[index] == null) {
+            return t[0];
+        }
+
+        return t[index];
+    }
+
+    /**
+     * 登録されている装飾の数を取得します。
+     *
+     * @return 装飾の数
+     */
+    public int getDecorationCount() {
+        return attrCount;
+    }
+
+    /**
+     * 指定した座標の文字を取得します。
+     *
+     * @param x X座標
+     * @param y Y座標
+     * @return 文字、文字がなければ 0
+     */
+    public char getChar(int x, int y) {
+        char[] l = chars[getPhysicalLine(y)];
+
+        if (l == null) {
+            return 0;
+        }
+
+        return l[x];
+    }
+
+    /**
+     * 指定した座標の装飾の番号を取得します。
+     *
+     * @param x X座標
+     * @param y Y座標
+     * @return 装飾の番号
+     */
+    public int getAttribute(int x, int y) {
+        int[] l = attrs[getPhysicalLine(y)];
+
+        if (l == null) {
+            return 0;
+        }
+
+        return l[x];
+    }
+
+    /**
+     * 指定した行の文字の配列を取得します。
+     *
+     * 返された配列は変更しないでください。
+     *
+     * @param y Y座標
+     * @return 文字の配列、文字を書き込んでいない行は null
+     */
+    public char[] getLineChars(int y) {
+        return chars[getPhysicalLine(y)];
+    }
+
+    /**
+     * 指定した行の装飾の番号の配列を取得します。
+     *
+     * 返された配列は変更しないでください。
+     *
+     * @param y Y座標
+     * @return 装飾の番号の配列、文字を書き込んでいない行は null
+     */
+    public int[] getLineAttributes(int y) {
+        return attrs[getPhysicalLine(y)];
+    }
+
+    /**
+     * 指定した座標に文字と装飾を設定します。
+     *
+     * @param x    X座標
+     * @param y    Y座標
+     * @param c    文字
+     * @param attr 装飾の番号
+     */
+    public void set(int x, int y, char c, int attr) {
+        int p = getPhysicalLine(y);
+
+        if (chars[p] == null) {
+            attrs[p] = new int[columns];
+            chars[p] = new char[columns];
+        }
+        attrs[p][x] = attr;
+        chars[p][x] = c;
+    }
+
+    /**
+     * 指定した座標の文字を設定します。装飾は変更しません。
+     *
+     * @param x X座標
+     * @param y Y座標
+     * @param c 文字
+     */
+    public void setChar(int x, int y, char c) {
+        int p = getPhysicalLine(y);
+
+        if (chars[p] == null) {
+            if (c == 0) {
+                return;
+            }
+            attrs[p] = new int[columns];
+            chars[p] = new char[columns];
+        }
+        chars[p][x] = c;
+    }
+
+    /**
+     * 最も古い行を捨て、全ての行を 1行ずつ上へ移動させます。
+     *
+     * 最後の行は空になります。
+     */
+    public void scroll() {
+        int p = head;
+
+        if (chars[p] != null) {
+            Arrays.fill(chars[p], (char)0);
+            Arrays.fill(attrs[p], 0);
+        }
+
+        head = getPhysicalLine(1);
+        scrollCount++;
+    }
+}
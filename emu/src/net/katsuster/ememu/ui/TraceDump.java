@@ -0,0 +1,133 @@
+package net.katsuster.ememu.ui;
+
+import java.io.*;
+import java.util.*;
+
+import net.katsuster.ememu.arm.core.*;
+import net.katsuster.ememu.generic.core.*;
+import net.katsuster.ememu.generic.trace.*;
+import net.katsuster.ememu.riscv.core.*;
+
+/**
+ * 命令トレースを逆アセンブルしてテキストで出力します。
+ *
+ * <p>
+ * 命令はエミュレータの逆アセンブル表示と同じ形式で出力し、
+ * レジスタ、メモリの記録がある場合は命令の後に続けて出力します。
+ * </p>
+ *
+ * <pre>
+ * 0: 00008000:    e3a00001        mov     r0, #1
+ *         r0 = 0x00000001
+ *         [0x00010000] &lt;- 0x00000001 (4)
+ * </pre>
+ */
+public class TraceDump {
+    private String arch;
+    private Map<Integer, CPU> cpus;
+    private long count;
+
+    /**
+     * 命令トレースの表示を作成します。
+     *
+     * @param a アーキテクチャ名
+     */
+    public TraceDump(String a) {
+        arch = a;
+        cpus = new HashMap<>();
+        count = 0;
+    }
+
+    /**
+     * 表示した命令の数を取得します。
+     *
+     * @return 命令の数
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * 逆アセンブルに使う CPU を取得します。
+     *
+     * @param id CPU の番号
+     * @return CPU
+     */
+    private CPU getCPU(int id) {
+        CPU c = cpus.get(id);
+
+        if (c == null) {
+            if (arch.equals("arm")) {
+                c = new ARMv5();
+            } else if (arch.equals("riscv")) {
+                c = new RV64();
+            } else {
+                throw new IllegalArgumentException("Not support '" +
+                        arch + "' architecture.");
+            }
+            c.setThreadID(id);
+            c.setPrintInstruction(true);
+            cpus.put(id, c);
+        }
+
+        return c;
+    }
+
+    /**
+     * 1つの記録を出力します。
+     *
+     * @param e  記録
+     * @param ps 出力先
+     */
+    public void print(TraceEvent e, PrintStream ps) {
+        CPU c = getCPU(e.getCPU());
+
+        switch (e.getType()) {
+        case TraceRecorder.REC_INST:
+            try {
+                ps.print(c.disassemble(e.getAddress(), e.getInst(),
+                        e.getLength(), e.getMode()));
+            } catch (IllegalArgumentException ex) {
+                ps.printf("%d: %08x:    %0" + (e.getLength() * 2) + "x    (unknown)\n",
+                        e.getCPU(), e.getAddress(), e.getInst());
+            }
+            count++;
+            break;
+        case TraceRecorder.REC_REG:
+            ps.printf("        %s = 0x%08x\n", c.getRegName(e.getReg()), e.getValue());
+            break;
+        case TraceRecorder.REC_MEM:
+            ps.printf("        [0x%08x] <- 0x%0" + (e.getLength() * 2) + "x (%d)\n",
+                    e.getAddress(), e.getValue(), e.getLength());
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * 命令トレースのファイルを読み出して出力します。
+     *
+     * @param f   命令トレースのファイル
+     * @param max 出力する最大の命令数、負の値ならば全て
+     * @param ps  出力先
+     * @return 出力した命令の数
+     * @throws IOException 読み出しに失敗した場合
+     */
+    public static long dump(File f, long max, PrintStream ps) throws IOException {
+        try (TraceReader r = new TraceReader(f)) {
+            TraceDump d = new TraceDump(r.getArch());
+            TraceEvent e;
+
+            while ((e = r.next()) != null) {
+                if (max >= 0 && e.getType() == TraceRecorder.REC_INST &&
+                        d.getCount() >= max) {
+                    break;
+                }
+                d.print(e, ps);
+            }
+
+            return d.getCount();
+        }
+    }
+}
@@ -2,17 +2,41 @@ package net.katsuster.ememu.ui;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import javax.swing.*;
 import javax.swing.event.*;
 
+import net.katsuster.ememu.generic.log.*;
+
 /**
  * 端末への出力を表示するパネルです。
+ *
+ * <p>
+ * 画面は裏の描画バッファに描画してから表示します。
+ * 文字が変更された行のみを描画し直し、
+ * スクロールした場合は描画済みの行を複写して、新たに見えるようになった行のみを描画します。
+ * 文字の描画には描画済みのグリフ（{@link GlyphCache}）を使います。
+ * </p>
+ *
+ * <p>
+ * 文字を配置するスレッドからの再描画の要求はまとめて扱い、
+ * 最短でも {@link #FRAME_INTERVAL} ミリ秒の間隔を空けて再描画します。
+ * 文字を配置するスレッドが再描画の完了を待つことはありません。
+ * </p>
  */
 public class VTInnerPane extends JComponent
         implements ChangeListener, ComponentListener {
     private static final long serialVersionUID = 1L;
+    private static final Logger log = Log.getLogger("ui.vt");
+
+    //スクロールにより巻き戻せる最大の行数の既定値
+    public static final int DEFAULT_MAX_LINES = 100000;
+
+    //再描画の最短の間隔（ミリ秒単位）
+    public static final int FRAME_INTERVAL = 1000 / 30;
 
     //親コンポーネント
     private VirtualTerminal parent;
@@ -38,8 +62,8 @@ public class VTInnerPane extends JComponent
     private int cursorY;
     //現在の文字の色
     private DecoratedChar currentDecoration = new DecoratedChar();
-    //画面上の文字の位置
-    private DecoratedChar[][] layoutBox;
+    //画面上の文字と、巻き戻せる過去の行
+    private ScrollbackBuffer scrollback;
     //自動改行が必要かどうか
     private boolean needWrap;
     //自動改行（後退時）が必要かどうか
@@ -64,6 +88,26 @@ public class VTInnerPane extends JComponent
             new Color(127, 127, 127)
     };
 
+    //裏の描画バッファ
+    private BufferedImage backBuffer;
+    //裏の描画バッファに描画されている先頭の行
+    private int bufferStart;
+    //裏の描画バッファを描画したときに、文字のバッファがスクロールしていた行数
+    private long bufferScrollCount;
+    //描画済みの文字の画像
+    private GlyphCache glyphs;
+    //描画し直す必要がある行（物理的な行の位置）
+    //文字を配置するスレッドと描画するスレッドの間で、文字のバッファを守るロックも兼ねる
+    private final BitSet damaged = new BitSet();
+    //全ての行を描画し直す必要があるかどうか
+    private boolean damagedAll = true;
+    //再描画を要求済みかどうか
+    private final AtomicBoolean repaintRequested = new AtomicBoolean();
+    //再描画の間隔を空けるためのタイマー
+    private javax.swing.Timer frameTimer;
+    //drawChars に渡すための作業領域
+    private char[] cursorChar = new char[1];
+
     public VTInnerPane(VirtualTerminal p) {
         super();
 
@@ -80,21 +124,30 @@ public class VTInnerPane extends JComponent
         strWriteBack = new StringBuilder();
         columns = 80;
         lines = 0;
-        maxLines = 1000;
+        maxLines = DEFAULT_MAX_LINES;
         currentLine = 0;
         cursorX = 0;
         cursorY = 0;
         currentDecoration = new DecoratedChar();
-        layoutBox = new DecoratedChar[getColumns()][getMaxLines()];
-        for (int x = 0; x < getColumns(); x++) {
-            for (int y = 0; y < getMaxLines(); y++) {
-                layoutBox[x][y] = new DecoratedChar();
-            }
-        }
+        scrollback = new ScrollbackBuffer(getColumns(), getMaxLines());
         needWrap = false;
         needWrapBack = false;
         currentPalette = paletteNormal;
 
+        backBuffer = null;
+        bufferStart = 0;
+        bufferScrollCount = 0;
+        glyphs = new GlyphCache();
+        frameTimer = new javax.swing.Timer(FRAME_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                repaintRequested.set(false);
+                updateScrollBar();
+                repaint();
+            }
+        });
+        frameTimer.setRepeats(false);
+
         setFocusable(false);
         addComponentListener(this);
     }
@@ -104,6 +157,7 @@ public class VTInnerPane extends JComponent
         super.setForeground(fg);
 
         getCurrentDecoration().setForeground(fg);
+        markDamagedAll();
     }
 
     @Override
@@ -111,6 +165,7 @@ public class VTInnerPane extends JComponent
         super.setBackground(bg);
 
         getCurrentDecoration().setBackground(bg);
+        markDamagedAll();
     }
 
     @Override
@@ -118,6 +173,7 @@ public class VTInnerPane extends JComponent
         super.setFont(font);
 
         getCurrentDecoration().setFont(font);
+        markDamagedAll();
     }
 
     /**
@@ -150,10 +206,13 @@ public class VTInnerPane extends JComponent
     /**
      * 1行に表示する文字数（桁数）を設定します。
      *
+     * 表示している文字は全て消去されます。
+     *
      * @param col 1行の桁数
      */
     public void setColumns(int col) {
         columns = col;
+        clearScrollback();
     }
 
     /**
@@ -186,10 +245,32 @@ public class VTInnerPane extends JComponent
     /**
      * スクロールにより巻き戻せる最大の行数を設定します。
      *
+     * 表示している文字は全て消去されます。
+     *
      * @param m 巻き戻せる最大の行数
      */
     protected void setMaxLines(int m) {
         maxLines = m;
+        clearScrollback();
+    }
+
+    /**
+     * 表示している文字と、巻き戻せる過去の行を全て消去します。
+     *
+     * カーソルは先頭に戻ります。
+     */
+    protected void clearScrollback() {
+        synchronized (damaged) {
+            scrollback = new ScrollbackBuffer(getColumns(), getMaxLines());
+            damaged.clear();
+            damagedAll = true;
+        }
+        currentLine = 0;
+        setCursorLocation(0, 0);
+        needWrap = false;
+        needWrapBack = false;
+
+        requestRepaint();
     }
 
     /**
@@ -210,7 +291,7 @@ public class VTInnerPane extends JComponent
      * 現在の行数は、
      * 端末への出力された文字の最も大きな Y 座標と等しくなります。
      *
-     * スクロールバーの範囲を更新します。
+     * スクロールバーの範囲は、次の再描画の前に更新します。
      *
      * @param l 現在の行数
      */
@@ -219,26 +300,66 @@ public class VTInnerPane extends JComponent
             currentLine = l;
         }
 
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                JScrollBar pscr = parent.getScrollBar();
-                int maximum;
-                boolean chase = false;
-
-                //一番最後の行を追うかどうか
-                if (pscr.getValue() == pscr.getMaximum()) {
-                    chase = true;
-                }
+        requestRepaint();
+    }
 
-                maximum = currentLine - getLines() + 1;
-                maximum = Math.max(0, maximum);
-                pscr.setMaximum(maximum);
-                if (chase) {
-                    pscr.setValue(pscr.getMaximum());
-                }
-            }
-        });
+    /**
+     * スクロールバーの範囲を現在の行数に合わせて更新します。
+     *
+     * イベントディスパッチスレッドから呼び出してください。
+     */
+    protected void updateScrollBar() {
+        JScrollBar pscr = parent.getScrollBar();
+        int maximum;
+        boolean chase = false;
+
+        //一番最後の行を追うかどうか
+        if (pscr.getValue() == pscr.getMaximum()) {
+            chase = true;
+        }
+
+        maximum = currentLine - getLines() + 1;
+        maximum = Math.max(0, maximum);
+        pscr.setMaximum(maximum);
+        if (chase) {
+            pscr.setValue(pscr.getMaximum());
+        }
+    }
+
+    /**
+     * 再描画を要求します。
+     *
+     * どのスレッドからも呼び出せます。
+     * 前回の要求による再描画が済んでいなければ何もしません。
+     * 再描画は要求から {@link #FRAME_INTERVAL} ミリ秒後に、
+     * イベントディスパッチスレッドで行います。
+     */
+    public void requestRepaint() {
+        if (repaintRequested.get() || !repaintRequested.compareAndSet(false, true)) {
+            return;
+        }
+
+        frameTimer.start();
+    }
+
+    /**
+     * 指定した行を描画し直す必要があることを記録します。
+     *
+     * @param y Y座標
+     */
+    protected void markDamaged(int y) {
+        synchronized (damaged) {
+            damaged.set(scrollback.getPhysicalLine(y));
+        }
+    }
+
+    /**
+     * 全ての行を描画し直す必要があることを記録します。
+     */
+    protected void markDamagedAll() {
+        synchronized (damaged) {
+            damagedAll = true;
+        }
     }
 
     /**
@@ -343,10 +464,9 @@ public class VTInnerPane extends JComponent
      * 1行古い履歴をスクロールし、捨てます。
      */
     public void scrollLine() {
-        for (int y = 1; y < getMaxLines(); y++) {
-            for (int x = 0; x < getColumns(); x++) {
-                layoutBox[x][y - 1].copy(layoutBox[x][y]);
-            }
+        synchronized (damaged) {
+            scrollback.scroll();
+            markDamaged(getMaxLines() - 1);
         }
     }
 
@@ -364,12 +484,22 @@ public class VTInnerPane extends JComponent
     /**
      * 指定した座標の装飾付き文字を取得します。
      *
+     * 返される装飾付き文字は複製です。
+     * 変更しても端末の表示には反映されません。
+     *
      * @param x X座標
      * @param y Y座標
      * @return 指定した座標の装飾付き文字
      */
     public DecoratedChar getDecoratedChar(int x, int y) {
-        return layoutBox[x][y];
+        DecoratedChar dch = new DecoratedChar();
+
+        synchronized (damaged) {
+            dch.copyAttributes(scrollback.getDecoration(scrollback.getAttribute(x, y)));
+            dch.setChar(scrollback.getChar(x, y));
+        }
+
+        return dch;
     }
 
     /**
@@ -380,7 +510,9 @@ public class VTInnerPane extends JComponent
      * @return 指定した座標の文字
      */
     public char getChar(int x, int y) {
-        return layoutBox[x][y].getChar();
+        synchronized (damaged) {
+            return scrollback.getChar(x, y);
+        }
     }
 
     /**
@@ -391,7 +523,10 @@ public class VTInnerPane extends JComponent
      * @param c 指定した座標の文字
      */
     public void setChar(int x, int y, char c) {
-        layoutBox[x][y].setChar(c);
+        synchronized (damaged) {
+            scrollback.setChar(x, y, c);
+            markDamaged(y);
+        }
     }
 
     /**
@@ -401,7 +536,10 @@ public class VTInnerPane extends JComponent
      * @param y Y座標
      */
     public void eraseChar(int x, int y) {
-        layoutBox[x][y].setChar((char)0);
+        synchronized (damaged) {
+            scrollback.setChar(x, y, (char)0);
+            markDamaged(y);
+        }
     }
 
     /**
@@ -450,7 +588,7 @@ public class VTInnerPane extends JComponent
             throw new IOException("Reached EOF");
         }
 
-        //System.out.printf("%02x\n", i);
+        //log.trace("%02x\n", i);
 
         return (char)i;
     }
@@ -633,7 +771,7 @@ public class VTInnerPane extends JComponent
                     //break;
                 default:
                     //Unknown, do nothing
-                    System.out.printf("CSI %d J (Erase Display) is not implemented, sorry.\n", param0);
+                    log.debug("CSI %d J (Erase Display) is not implemented, sorry.\n", param0);
                     break;
                 }
 
@@ -659,7 +797,7 @@ public class VTInnerPane extends JComponent
                     //break;
                 default:
                     //Unknown, do nothing
-                    System.out.printf("CSI %d K (Erase Line) is not implemented, sorry.\n", param0);
+                    log.debug("CSI %d K (Erase Line) is not implemented, sorry.\n", param0);
                     break;
                 }
 
@@ -840,12 +978,12 @@ public class VTInnerPane extends JComponent
                         break;
                     default:
                         //Unknown: ignore it
-                        System.out.printf("Unknown SGR %d;\n", param0);
+                        log.debug("Unknown SGR %d;\n", param0);
                         break;
                     }
 
                     //For debug
-                    //System.out.printf("Unknown SGR %d;\n", param0);
+                    //log.debug("Unknown SGR %d;\n", param0);
                 }
 
                 sequenceEnd = true;
@@ -870,7 +1008,7 @@ public class VTInnerPane extends JComponent
                 for (Integer i : params) {
                     sb.append(String.format("%d; ", i));
                 }
-                System.out.printf("%s%c(0x%02x)\n", sb, csrChar, (int)csrChar);
+                log.debug("%s%c(0x%02x)\n", sb, csrChar, (int)csrChar);
 
                 sequenceEnd = true;
                 break;
@@ -903,7 +1041,7 @@ public class VTInnerPane extends JComponent
                 break;
             default:
                 //Unknown: Ignore it
-                System.out.printf("Unknown CSR ? %d; %d; %c(0x%02x)\n", numN, numM, csrChar,
+                log.debug("Unknown CSR ? %d; %d; %c(0x%02x)\n", numN, numM, csrChar,
                         (int)csrChar);
 
                 sequenceEnd = true;
@@ -920,16 +1058,20 @@ public class VTInnerPane extends JComponent
      * @param ins 文字列を入力するストリーム
      */
     protected void layoutNormalChar(InputStream ins) throws IOException {
-        DecoratedChar dch;
         char c = readNext(ins);
+        int attr;
 
         if (getCursorX() == getColumns() - 1 && needWrap) {
             nextLine();
         }
 
-        dch = getDecoratedChar(getCursorX(), getCursorY());
-        dch.copyAttributes(getCurrentDecoration());
-        dch.setChar(c);
+        //装飾の表は描画するスレッドからもロックなしで参照できる
+        attr = scrollback.addDecoration(getCurrentDecoration());
+        //描画するスレッドが書き換え途中の行を読まないようにする
+        synchronized (damaged) {
+            scrollback.set(getCursorX(), getCursorY(), c, attr);
+            markDamaged(getCursorY());
+        }
         //NOTE: Need wrap the line at next char if we are in end of line
         needWrap = (getCursorX() == getColumns() - 1);
         setCursorX(getCursorX() + 1);
@@ -985,63 +1127,244 @@ public class VTInnerPane extends JComponent
             if (getCurrentLine() < getCursorY()) {
                 setCurrentLine(getCursorY());
             }
+
+            //カーソルの移動も表示に反映させる
+            requestRepaint();
         } while (ins.available() != 0);
     }
 
-    protected void drawAll(Graphics2D g, int start) {
+    /**
+     * 裏の描画バッファを更新します。
+     *
+     * 前回から表示を開始する行が変わった場合は、描画済みの行を複写して、
+     * 新たに見えるようになった行を描画します。
+     * その他は文字が変更された行のみを描画し直します。
+     *
+     * @param start 表示を開始する行
+     */
+    protected void updateBackBuffer(int start) {
         int yEnd = Math.min(start + getLines(), getMaxLines());
-        DecoratedChar dch;
-        Rectangle rscr, r;
+        BitSet d = new BitSet();
+        boolean all;
+        long scrolled;
+
+        //描画し終わるまで、文字を配置するスレッドが文字を書き換えたり、
+        //行をスクロールしたりしないようにする
+        synchronized (damaged) {
+            for (int y = start; y < yEnd; y++) {
+                if (damaged.get(scrollback.getPhysicalLine(y))) {
+                    d.set(y);
+                }
+            }
+            all = damagedAll;
+            damaged.clear();
+            damagedAll = false;
+
+            //前回の描画の後に文字のバッファがスクロールした場合、
+            //描画済みの行の番号もスクロールした行数だけ小さくなっている
+            scrolled = scrollback.getScrollCount() - bufferScrollCount;
+            bufferScrollCount = scrollback.getScrollCount();
+            if (scrolled > getMaxLines()) {
+                all = true;
+            } else {
+                bufferStart -= (int)scrolled;
+            }
 
-        rscr = boxScreen.getContents();
+            drawBackBuffer(start, d, all);
+        }
+    }
 
-        //Draw whole screen
-        g.setColor(getBackground());
-        g.fill3DRect(0, 0, getWidth(), getHeight(), false);
-        for (int y = start; y < yEnd; y++) {
-            for (int x = 0; x < getColumns(); x++) {
-                dch = getDecoratedChar(x, y);
+    /**
+     * 裏の描画バッファに描画します。
+     *
+     * @param start 表示を開始する行
+     * @param d     描画し直す必要がある行
+     * @param all   全ての行を描画し直す必要があるかどうか
+     */
+    private void drawBackBuffer(int start, BitSet d, boolean all) {
+        Rectangle rscr = boxScreen.getContents();
+        int w = getWidth();
+        int h = getHeight();
+        int rows = getLines();
+        int yEnd = Math.min(start + rows, getMaxLines());
+        Graphics2D g;
+
+        if (backBuffer == null || backBuffer.getWidth() != w ||
+                backBuffer.getHeight() != h) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+
+            if (gc != null) {
+                backBuffer = gc.createCompatibleImage(w, h);
+            } else {
+                backBuffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            }
+            all = true;
+        }
 
-                if (dch.getChar() == 0) {
-                    continue;
+        g = backBuffer.createGraphics();
+        try {
+            if (!all && bufferStart != start) {
+                if (Math.abs(start - bufferStart) < rows) {
+                    scrollBackBuffer(g, rscr, start, start - bufferStart, d);
+                } else {
+                    all = true;
                 }
+            }
+            if (all) {
+                g.setColor(getBackground());
+                g.fill3DRect(0, 0, w, h, false);
+                d.set(start, Math.max(start, yEnd));
+            }
 
-                boxChar.setX(rscr.x + x * boxChar.getWidth());
-                boxChar.setY(rscr.y + (y - start) * boxChar.getHeight());
-                r = boxChar.getBounds();
-                g.setColor(dch.getBackground());
-                g.fillRect(r.x, r.y, r.width, r.height);
-
-                r = boxChar.getContents();
-                g.setColor(dch.getForeground());
-                g.setFont(dch.getFont());
-                g.drawString(String.valueOf(dch.getChar()),
-                        r.x, r.y + r.height - 1);
+            for (int y = start; y < yEnd; y++) {
+                //文字の下端は次の行にはみ出すため、前の行が変わった場合も描画し直す
+                if (d.get(y) || (y > start && d.get(y - 1))) {
+                    drawLine(g, rscr, start, y);
+                }
             }
+        } finally {
+            g.dispose();
+        }
+
+        bufferStart = start;
+    }
+
+    /**
+     * 裏の描画バッファの描画済みの行を複写してスクロールします。
+     *
+     * @param g     描画先
+     * @param rscr  端末画面の描画領域
+     * @param start 表示を開始する行
+     * @param shift スクロールする行数、正の値ならば上へ、負の値ならば下へ
+     * @param d     描画し直す必要がある行
+     */
+    protected void scrollBackBuffer(Graphics2D g, Rectangle rscr, int start,
+                                    int shift, BitSet d) {
+        int rows = getLines();
+        int ch = boxChar.getHeight();
+        int lw = getLineWidth(rscr);
+        int n = rows - Math.abs(shift);
+
+        if (shift > 0) {
+            g.copyArea(rscr.x, rscr.y + shift * ch, lw, n * ch,
+                    0, -shift * ch);
+            d.set(start + n, start + rows);
+        } else {
+            g.copyArea(rscr.x, rscr.y, lw, n * ch,
+                    0, -shift * ch);
+            d.set(start, start - shift);
         }
 
-        //Draw cursor
+        //画面の端の行には、画面外の行からはみ出した文字の下端が残るため描画し直す
+        d.set(start);
+        d.set(start + rows - 1);
+    }
+
+    /**
+     * 裏の描画バッファに描画する 1行の幅を取得します。
+     *
+     * 行の最後の文字は右側にはみ出すことがあるため、
+     * 少なくとも端末画面の描画領域の右端までを 1行の幅とします。
+     *
+     * @param rscr 端末画面の描画領域
+     * @return 1行の幅
+     */
+    protected int getLineWidth(Rectangle rscr) {
+        return Math.max(getColumns() * boxChar.getWidth(), rscr.width);
+    }
+
+    /**
+     * 裏の描画バッファに 1行を描画します。
+     *
+     * @param g     描画先
+     * @param rscr  端末画面の描画領域
+     * @param start 表示を開始する行
+     * @param y     描画する行
+     */
+    protected void drawLine(Graphics2D g, Rectangle rscr, int start, int y) {
+        int ch = boxChar.getHeight();
+        int lw = getLineWidth(rscr);
+        int top = rscr.y + (y - start) * ch;
+        int height = ch;
+        Shape clip = g.getClip();
+
+        if (y - start == getLines() - 1) {
+            //最後の行の下の余白には、最後の行からはみ出した文字の下端が描画される
+            height = Math.max(ch, rscr.y + rscr.height - top);
+        }
+
+        g.clipRect(rscr.x, top, lw, height);
+        g.setColor(getBackground());
+        g.fillRect(rscr.x, top, lw, height);
+        if (y > start) {
+            drawChars(g, rscr, y - 1, top - ch);
+        }
+        drawChars(g, rscr, y, top);
+        g.setClip(clip);
+    }
+
+    /**
+     * 1行分の文字を描画します。
+     *
+     * @param g    描画先
+     * @param rscr 端末画面の描画領域
+     * @param y    描画する行
+     * @param top  行の上端の Y 座標
+     */
+    protected void drawChars(Graphics2D g, Rectangle rscr, int y, int top) {
+        int cw = boxChar.getWidth();
+        char[] chars = scrollback.getLineChars(y);
+        int[] attrs = scrollback.getLineAttributes(y);
+
+        if (chars == null || attrs == null) {
+            return;
+        }
+
+        for (int x = 0; x < getColumns(); x++) {
+            if (chars[x] == 0) {
+                continue;
+            }
+
+            glyphs.draw(g, chars[x], scrollback.getDecoration(attrs[x]),
+                    rscr.x + x * cw, top);
+        }
+    }
+
+    /**
+     * カーソルを描画します。
+     *
+     * @param g     描画先
+     * @param start 表示を開始する行
+     */
+    protected void drawCursor(Graphics2D g, int start) {
+        Rectangle rscr, r;
         int x = getCursorX();
         int y = getCursorY();
+        //文字を配置するスレッドが書き換えても、読み出した 1文字を描画する
+        char c = getChar(x, y);
 
+        rscr = boxScreen.getContents();
         boxChar.setX(rscr.x + x * boxChar.getWidth());
         boxChar.setY(rscr.y + (y - start) * boxChar.getHeight());
         r = boxChar.getBounds();
         g.setColor(getForeground());
         g.fillRect(r.x, r.y, r.width, r.height);
-        if (getChar(x, y) != 0) {
+        if (c != 0) {
             r = boxChar.getContents();
             g.setColor(getBackground());
-            g.drawString(String.valueOf(getChar(x, y)),
-                    r.x, r.y + r.height);
+            cursorChar[0] = c;
+            g.drawChars(cursorChar, 0, 1, r.x, r.y + r.height);
         }
     }
 
-    @Override
-    public void paint(Graphics g) {
-        super.paint(g);
+    protected void drawAll(Graphics2D g, int start) {
+        if (getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
 
-        drawAll((Graphics2D)g, parent.getStartLine());
+        updateBackBuffer(start);
+        g.drawImage(backBuffer, 0, 0, null);
+        drawCursor(g, start);
     }
 
     @Override
@@ -1057,6 +1380,7 @@ public class VTInnerPane extends JComponent
         FontMetrics fm = g.getFontMetrics();
         int advance = fm.getMaxAdvance();
         int ascent = fm.getMaxAscent();
+        Rectangle r;
 
         //一行の高さの設定を更新する
         if (advance == -1) {
@@ -1065,13 +1389,21 @@ public class VTInnerPane extends JComponent
         boxChar.setWidth(advance * 20 / 45);
         boxChar.setHeight(ascent);
 
+        //描画済みの文字の大きさが変わるため、破棄する
+        boxChar.setX(0);
+        boxChar.setY(0);
+        r = boxChar.getContents();
+        glyphs.setCell(boxChar.getWidth(), boxChar.getHeight(),
+                r.x, r.y + r.height - 1);
+        markDamagedAll();
+
         //一画面に表示できる行数の設定を更新する
         boxScreen.setWidth(getWidth());
         boxScreen.setHeight(getHeight());
         setLines(boxScreen.getContents().height / boxChar.getHeight());
 
         //スクロールできる範囲を更新する
-        setCurrentLine(getCurrentLine());
+        updateScrollBar();
     }
 
     @Override
@@ -3,15 +3,18 @@ package net.katsuster.ememu.ui;
 import java.awt.*;
 import java.awt.datatransfer.*;
 import java.awt.event.*;
-import java.lang.reflect.*;
 import java.io.*;
 import javax.swing.*;
 
+import net.katsuster.ememu.generic.log.*;
+
 /**
  * 仮想端末。
  */
 public class VirtualTerminal extends JPanel
         implements MouseListener, MouseMotionListener, MouseWheelListener, KeyListener {
+    private static final Logger log = Log.getLogger("ui.vt");
+
     //端末への出力の表示領域パネル
     private VTInnerPane vt;
     //表示領域の右端スクロールバー
@@ -223,7 +226,7 @@ public class VirtualTerminal extends JPanel
         x = Math.min(x, vt.getColumns() - 1);
         y = Math.max(y, 0);
         y = Math.min(y, vt.getMaxLines() - 1);
-        System.out.printf("char (%d, %d) %c\n", x, y, vt.getChar(x, y));
+        log.trace("char (%d, %d) %c\n", x, y, vt.getChar(x, y));
         */
     }
 
@@ -258,7 +261,7 @@ public class VirtualTerminal extends JPanel
             //ignore
             return;
         }
-        //System.out.printf("press:code:0x%02x, char:0x%02x\n", e.getKeyCode(), (int)e.getKeyChar());
+        //log.trace("press:code:0x%02x, char:0x%02x\n", e.getKeyCode(), (int)e.getKeyChar());
 
         if ((e.getModifiersEx() & KeyEvent.SHIFT_DOWN_MASK) == KeyEvent.SHIFT_DOWN_MASK) {
             shift = true;
@@ -351,34 +354,13 @@ public class VirtualTerminal extends JPanel
         @Override
         public void run() {
             try {
-                int i = 0;
                 while (!shouldHalt()) {
+                    //再描画は VTInnerPane がまとめて行うため、完了を待たない
                     vt.layoutChars(outPin);
-
-                    try {
-                        SwingUtilities.invokeAndWait(new Painter(vt));
-                    } catch (InterruptedException e) {
-                        e.printStackTrace(System.err);
-                    } catch (InvocationTargetException e) {
-                        e.printStackTrace(System.err);
-                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace(System.err);
             }
         }
-
-        private class Painter implements Runnable {
-            VTInnerPane pane;
-
-            public Painter(VTInnerPane p) {
-                pane = p;
-            }
-
-            @Override
-            public void run() {
-                pane.repaint();
-            }
-        }
     }
 }